@@ -0,0 +1,74 @@
+package com.nsantos.httpfileserver;
+
+import com.nsantos.httpfileserver.exceptions.WebServerException;
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Requests, configuration and files shared by the benchmarks.
+ */
+final class BenchmarkSupport {
+    // Headers sent by browsers, used before the generated ones
+    private static final String[] COMMON_HEADERS = {
+            "Host: localhost:8080",
+            "User-Agent: Mozilla/5.0 (X11; Linux x86_64; rv:109.0) Gecko/20100101 Firefox/115.0",
+            "Accept: text/html,application/xhtml+xml,application/xml;q=0.9,*/*;q=0.8",
+            "Accept-Language: en-US,en;q=0.5",
+            "Connection: keep-alive",
+    };
+
+    private BenchmarkSupport() {
+    }
+
+    /**
+     * @param target      The request target
+     * @param headerCount The number of headers of the request
+     * @return The head of a GET request
+     */
+    static String get(String target, int headerCount) {
+        var request = new StringBuilder("GET ").append(target).append(" HTTP/1.1").append(Constants.CRLF);
+        for (int i = 0; i < headerCount; i++) {
+            request.append(i < COMMON_HEADERS.length ? COMMON_HEADERS[i] : "X-Header-%d: value-%d".formatted(i, i))
+                    .append(Constants.CRLF);
+        }
+        return request.append(Constants.CRLF).toString();
+    }
+
+    /**
+     * @param head The head of a request. Each request needs its own parser, because the headers are read from its buffer.
+     */
+    static HttpRequest parse(String head) throws IOException, WebServerException {
+        var parser = new HttpRequestParser(8192, 65536);
+        parser.fill(new ByteArrayInputStream(head.getBytes(StandardCharsets.US_ASCII)));
+        return parser.parse();
+    }
+
+    /**
+     * @param basePath  The directory served
+     * @param overrides Properties that replace the defaults
+     * @return The configuration of a server without file watching, whose events would add noise to the measurements
+     */
+    static Config config(Path basePath, Map<String, Object> overrides) {
+        var properties = new HashMap<>(overrides);
+        properties.put(Constants.FILE_SERVER_BASE_PATH, basePath.toString());
+        properties.put(Constants.WATCH_FILES, false);
+        return ConfigFactory.parseMap(properties).withFallback(ConfigFactory.load());
+    }
+
+    static void deleteRecursively(Path path) throws IOException {
+        try (var paths = Files.walk(path)) {
+            for (var p : paths.sorted(Comparator.reverseOrder()).toList()) {
+                Files.delete(p);
+            }
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package com.nsantos.httpfileserver;
+
+import com.nsantos.httpfileserver.exceptions.WebServerException;
+import com.nsantos.httpfileserver.fileserver.FileServerImpl;
+import com.nsantos.httpfileserver.metrics.ServerMetrics;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Rendering of directory listings, in HTML and JSON, from reading the directory to writing the response. Listings
+ * larger than the listing buffer are streamed.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class DirectoryListingBenchmark {
+
+    @Param({"10", "1000"})
+    int entries;
+
+    @Param({"html", "json"})
+    String format;
+
+    private final OutputStream os = OutputStream.nullOutputStream();
+    private Path baseDir;
+    private DirectoryListingHandler listingHandler;
+    private HttpRequest request;
+
+    @Setup
+    public void setUp() throws IOException, WebServerException {
+        baseDir = Files.createTempDirectory("listing-benchmark");
+        var dir = Files.createDirectory(baseDir.resolve("dir"));
+        for (int i = 0; i < entries; i++) {
+            Files.writeString(dir.resolve("file-%05d.txt".formatted(i)), "Contents of file " + i);
+        }
+        var config = BenchmarkSupport.config(baseDir, Map.of());
+        var writer = new HttpResponseWriter(config, new ServerMetrics());
+        listingHandler = new DirectoryListingHandler(new FileServerImpl(config), writer, new ContentEncoder(config), config);
+        var accept = format.equals("json") ? "application/json" : "text/html";
+        request = BenchmarkSupport.parse("GET /dir/ HTTP/1.1\r\nHost: localhost\r\nAccept: %s\r\n\r\n".formatted(accept));
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        BenchmarkSupport.deleteRecursively(baseDir);
+    }
+
+    @Benchmark
+    public void listing() throws IOException, WebServerException {
+        listingHandler.sendListing(request, os, "dir", null);
+    }
+}
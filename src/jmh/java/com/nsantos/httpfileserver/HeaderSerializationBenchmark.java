@@ -0,0 +1,91 @@
+package com.nsantos.httpfileserver;
+
+import org.apache.hc.core5.http.HeaderElements;
+import org.apache.hc.core5.http.HttpHeaders;
+import org.apache.hc.core5.http.HttpStatus;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.Clock;
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Serialization of the head of a response, as done by HttpResponseWriter. The baseline is the encoder used before
+ * HeaderEncoder, which formats each line into a String. It did not send the Date header, which HeaderEncoder does.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class HeaderSerializationBenchmark {
+    private static final long KEEP_ALIVE_TIMEOUT_SECONDS = 30;
+
+    @Param({"2", "8", "32"})
+    int headerCount;
+
+    private final OutputStream os = OutputStream.nullOutputStream();
+    private HeaderEncoder headerEncoder;
+    private HashMap<String, String> headers;
+
+    @Setup
+    public void setUp() {
+        headerEncoder = new HeaderEncoder(KEEP_ALIVE_TIMEOUT_SECONDS, 10, Clock.systemUTC());
+        headers = new HashMap<>();
+        headers.put(HttpHeaders.CONTENT_TYPE, "text/html; charset=utf-8");
+        headers.put(HttpHeaders.ACCEPT_RANGES, "bytes");
+        headers.put(HttpHeaders.ETAG, "\"5f3a2b-1c8e4d9a\"");
+        headers.put(HttpHeaders.LAST_MODIFIED, "Tue, 15 Nov 1994 12:45:26 GMT");
+        headers.put(HttpHeaders.VARY, "Accept-Encoding");
+        for (int i = headers.size(); i < headerCount; i++) {
+            headers.put("X-Header-" + i, "value-" + i);
+        }
+        while (headers.size() > headerCount) {
+            headers.remove(headers.keySet().iterator().next());
+        }
+    }
+
+    @Benchmark
+    public int headerEncoder() throws IOException {
+        return headerEncoder.writeHead(os, HttpStatus.SC_OK, headers, 65536);
+    }
+
+    @Benchmark
+    public int formatted() throws IOException {
+        // The previous encoder added its headers to the map of the response, so it works on a copy
+        var copy = new HashMap<>(headers);
+        copy.put(HttpHeaders.CONTENT_LENGTH, Long.toString(65536));
+        return sendHeaderFormatted(os, HttpStatus.SC_OK, copy);
+    }
+
+    private static int sendHeaderFormatted(OutputStream os, int status, HashMap<String, String> headers) throws IOException {
+        var writer = new StringBuilder();
+        var statusString = HttpConstants.HTTP_STATUS.get(status);
+        writer.append("HTTP/1.1 %d %s".formatted(status, statusString));
+        writer.append(Constants.CRLF);
+        headers.put(HttpHeaders.CONNECTION, HeaderElements.KEEP_ALIVE);
+        headers.put(HttpHeaders.KEEP_ALIVE, "timeout=%d, max=10".formatted(KEEP_ALIVE_TIMEOUT_SECONDS));
+        for (var entry : headers.entrySet()) {
+            writer.append("%s: %s".formatted(entry.getKey(), entry.getValue()));
+            writer.append(Constants.CRLF);
+        }
+        writer.append(Constants.CRLF);
+        var bytes = writer.toString().getBytes(StandardCharsets.US_ASCII);
+        os.write(bytes);
+        return bytes.length;
+    }
+}
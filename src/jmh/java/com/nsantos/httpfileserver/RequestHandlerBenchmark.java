@@ -0,0 +1,132 @@
+package com.nsantos.httpfileserver;
+
+import com.nsantos.httpfileserver.accesslog.AccessLog;
+import com.nsantos.httpfileserver.exceptions.ExceptionHandler;
+import com.nsantos.httpfileserver.fileserver.CachingFileServer;
+import com.nsantos.httpfileserver.fileserver.FileServerImpl;
+import com.nsantos.httpfileserver.metrics.ServerMetrics;
+import com.typesafe.config.Config;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The whole processing of a connection by the blocking engine: parsing the pipelined requests, resolving the files,
+ * and writing the responses through the buffered output of the connection. The connection is an in-memory socket,
+ * so the network is not measured, and the files are sent by copying, since there is no channel to transfer them to.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class RequestHandlerBenchmark {
+    private static final int REQUESTS_PER_CONNECTION = 10;
+
+    @Param({"1024", "65536", "1048576"})
+    int fileSize;
+
+    @Param({"2", "16"})
+    int headerCount;
+
+    @Param({"false", "true"})
+    boolean contentCache;
+
+    @Param({"false", "true"})
+    boolean accessLog;
+
+    private Path baseDir;
+    private CachingFileServer fileServer;
+    private AccessLog log;
+    private HttpRequestHandler requestHandler;
+    private ServerMetrics metrics;
+    private Config config;
+    private byte[] requests;
+
+    @Setup
+    public void setUp() throws IOException {
+        baseDir = Files.createTempDirectory("handler-benchmark");
+        var content = new byte[fileSize];
+        ThreadLocalRandom.current().nextBytes(content);
+        Files.write(baseDir.resolve("file.bin"), content);
+        config = BenchmarkSupport.config(baseDir, Map.of(
+                Constants.CONTENT_CACHE_ENABLED, contentCache,
+                Constants.CONTENT_CACHE_MAX_FILE_SIZE, "2 MiB",
+                Constants.ACCESS_LOG_ENABLED, accessLog,
+                Constants.ACCESS_LOG_FILE, baseDir.resolve("logs/access.log").toString()
+        ));
+        fileServer = new CachingFileServer(new FileServerImpl(config), config);
+        metrics = new ServerMetrics();
+        log = new AccessLog(config);
+        var writer = new HttpResponseWriter(config, metrics);
+        requestHandler = new HttpRequestHandler(fileServer, new ExceptionHandler(writer), writer, metrics, log, config);
+        requests = BenchmarkSupport.get("/file.bin", headerCount).repeat(REQUESTS_PER_CONNECTION).getBytes(StandardCharsets.US_ASCII);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        fileServer.close();
+        log.close();
+        BenchmarkSupport.deleteRecursively(baseDir);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(REQUESTS_PER_CONNECTION)
+    public void pipelinedRequests() throws IOException {
+        new ConnectionHandler(requestHandler, null, null, metrics, config, new MemorySocket(requests)).handleRequests(false);
+    }
+
+    /**
+     * An unconnected socket that reads the given bytes and discards what is written to it.
+     */
+    private static class MemorySocket extends Socket {
+        private final InputStream is;
+
+        MemorySocket(byte[] input) {
+            this.is = new ByteArrayInputStream(input);
+        }
+
+        @Override
+        public InputStream getInputStream() {
+            return is;
+        }
+
+        @Override
+        public OutputStream getOutputStream() {
+            return OutputStream.nullOutputStream();
+        }
+
+        @Override
+        public void setSoTimeout(int timeout) {
+            // Reads never block
+        }
+
+        @Override
+        public synchronized void close() {
+            // Nothing to release
+        }
+    }
+}
@@ -0,0 +1,61 @@
+package com.nsantos.httpfileserver;
+
+import com.nsantos.httpfileserver.exceptions.WebServerException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parsing of the head of a request, as done by the connection handlers: the bytes are read into the buffer of the
+ * parser, which then parses the request line and the headers.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class RequestParsingBenchmark {
+
+    @Param({"2", "8", "32"})
+    int headerCount;
+
+    private ByteArrayInputStream input;
+    private HttpRequestParser parser;
+
+    @Setup
+    public void setUp() {
+        input = new ByteArrayInputStream(BenchmarkSupport.get("/dir1/file1.txt", headerCount).getBytes(StandardCharsets.US_ASCII));
+        parser = new HttpRequestParser(8192, 65536);
+    }
+
+    @Benchmark
+    public HttpRequest parse() throws IOException, WebServerException {
+        // The parser consumed the previous request, so its buffer is reused as in a keep-alive connection
+        input.reset();
+        HttpRequest request;
+        while ((request = parser.parse()) == null) {
+            parser.fill(input);
+        }
+        return request;
+    }
+
+    @Benchmark
+    public String parseAndReadHeader() throws IOException, WebServerException {
+        // Headers are decoded lazily, so reading one is part of the cost of a request that uses it
+        return parse().headers().get("Accept-Encoding");
+    }
+}
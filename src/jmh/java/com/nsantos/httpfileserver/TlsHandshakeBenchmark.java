@@ -0,0 +1,141 @@
+package com.nsantos.httpfileserver;
+
+import com.nsantos.httpfileserver.metrics.ServerMetrics;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult.HandshakeStatus;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.TrustManagerFactory;
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * TLS handshakes of new connections, with the context and parameters of the server. The client and the server engines
+ * exchange their records in memory, so only the cost of the handshake is measured. Resumed handshakes reuse the
+ * session of the previous connection, from the session cache of the server or from a session ticket.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class TlsHandshakeBenchmark {
+    private static final String KEYSTORE_PASSWORD = "changeit";
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    @Param({"TLSv1.3", "TLSv1.2"})
+    String protocol;
+
+    @Param({"false", "true"})
+    boolean resumed;
+
+    private TlsHandshaker handshaker;
+    private SSLContext clientContext;
+
+    @Setup
+    public void setUp() throws IOException, GeneralSecurityException, URISyntaxException {
+        var keystore = Path.of(TlsHandshakeBenchmark.class.getResource("/tls/server.p12").toURI());
+        var config = BenchmarkSupport.config(keystore.getParent(), Map.of(
+                Constants.TLS_ENABLED, true,
+                Constants.TLS_KEYSTORE_PATH, keystore.toString(),
+                Constants.TLS_KEYSTORE_PASSWORD, KEYSTORE_PASSWORD,
+                Constants.TLS_HANDSHAKE_THREADS, 1
+        ));
+        handshaker = new TlsHandshaker(config, new ServerMetrics());
+        var trustStore = KeyStore.getInstance("PKCS12");
+        try (var in = Files.newInputStream(keystore)) {
+            trustStore.load(in, KEYSTORE_PASSWORD.toCharArray());
+        }
+        var trustManagerFactory = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+        trustManagerFactory.init(trustStore);
+        clientContext = SSLContext.getInstance("TLS");
+        clientContext.init(null, trustManagerFactory.getTrustManagers(), null);
+        // The session resumed by the first measured handshake
+        handshake();
+    }
+
+    @TearDown
+    public void tearDown() {
+        handshaker.stop();
+    }
+
+    @Benchmark
+    public SSLEngine handshake() throws SSLException {
+        // The client only caches the sessions of engines created for a peer
+        var client = resumed ? clientContext.createSSLEngine("localhost", 443) : clientContext.createSSLEngine();
+        client.setUseClientMode(true);
+        client.setEnabledProtocols(new String[]{protocol});
+        var server = handshaker.createEngine();
+        var packetSize = Math.max(client.getSession().getPacketBufferSize(), server.getSession().getPacketBufferSize());
+        var clientToServer = ByteBuffer.allocate(packetSize * 4);
+        var serverToClient = ByteBuffer.allocate(packetSize * 4);
+        var application = ByteBuffer.allocate(client.getSession().getApplicationBufferSize());
+        client.beginHandshake();
+        server.beginHandshake();
+        // Also delivers the session tickets the server sends after the handshake
+        while (step(client, serverToClient, clientToServer, application) | step(server, clientToServer, serverToClient, application)) {
+            // Until neither engine has anything else to do
+        }
+        if (client.getHandshakeStatus() != HandshakeStatus.NOT_HANDSHAKING
+                || server.getHandshakeStatus() != HandshakeStatus.NOT_HANDSHAKING) {
+            throw new IllegalStateException("Handshake did not complete: %s, %s".formatted(
+                    client.getHandshakeStatus(), server.getHandshakeStatus()));
+        }
+        return server;
+    }
+
+    /**
+     * Advances the handshake of an engine by a single operation.
+     *
+     * @param in          The records received from the peer
+     * @param out         Where to write the records for the peer
+     * @param application Receives application data, which is discarded
+     * @return false if the engine cannot make progress until the peer sends more records
+     */
+    private static boolean step(SSLEngine engine, ByteBuffer in, ByteBuffer out, ByteBuffer application) throws SSLException {
+        var status = engine.getHandshakeStatus();
+        switch (status) {
+            case NEED_TASK -> {
+                Runnable task;
+                while ((task = engine.getDelegatedTask()) != null) {
+                    task.run();
+                }
+                return true;
+            }
+            case NEED_WRAP -> {
+                var result = engine.wrap(EMPTY, out);
+                return result.bytesProduced() > 0 || result.getHandshakeStatus() != status;
+            }
+            default -> {
+                if (in.position() == 0 && status != HandshakeStatus.NEED_UNWRAP_AGAIN) {
+                    return false;
+                }
+                in.flip();
+                var result = engine.unwrap(in, application.clear());
+                in.compact();
+                return result.bytesConsumed() > 0 || result.getHandshakeStatus() != status;
+            }
+        }
+    }
+}
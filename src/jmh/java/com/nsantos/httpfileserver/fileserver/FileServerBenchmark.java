@@ -0,0 +1,95 @@
+package com.nsantos.httpfileserver.fileserver;
+
+import com.nsantos.httpfileserver.Constants;
+import com.typesafe.config.ConfigFactory;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Resolution of request paths and lookup of the metadata of files, with and without the caches of CachingFileServer.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class FileServerBenchmark {
+
+    @Param({"false", "true"})
+    boolean cached;
+
+    private Path baseDir;
+    private FileServer fileServer;
+    private String file;
+    private String missingFile;
+
+    @Setup
+    public void setUp() throws IOException {
+        baseDir = Files.createTempDirectory("fileserver-benchmark");
+        var dir = Files.createDirectories(baseDir.resolve("dir1/dir2"));
+        Files.writeString(dir.resolve("index.html"), "<html><body>Benchmark</body></html>");
+        file = "dir1/dir2/index.html";
+        missingFile = "dir1/dir2/missing.html";
+        // No file watching, its events would add noise to the measurements
+        var config = ConfigFactory.parseMap(Map.of(
+                Constants.FILE_SERVER_BASE_PATH, baseDir.toString(),
+                Constants.WATCH_FILES, false,
+                Constants.CONTENT_CACHE_ENABLED, cached,
+                Constants.METADATA_CACHE_MAX_ENTRIES, cached ? 1000 : 0
+        )).withFallback(ConfigFactory.load());
+        var delegate = new FileServerImpl(config);
+        fileServer = cached ? new CachingFileServer(delegate, config) : delegate;
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        if (fileServer instanceof CachingFileServer cachingFileServer) {
+            cachingFileServer.close();
+        }
+        try (var paths = Files.walk(baseDir)) {
+            for (var p : paths.sorted(Comparator.reverseOrder()).toList()) {
+                Files.delete(p);
+            }
+        }
+    }
+
+    @Benchmark
+    public Path getFile() {
+        return fileServer.getFile(file);
+    }
+
+    @Benchmark
+    public Optional<FileStat> stat() throws IOException {
+        return fileServer.stat(file);
+    }
+
+    @Benchmark
+    public Optional<FileStat> statMissing() throws IOException {
+        return fileServer.stat(missingFile);
+    }
+
+    @Benchmark
+    public Optional<byte[]> getContent() throws IOException {
+        var stat = fileServer.stat(file).orElseThrow();
+        return fileServer.getContent(file, stat);
+    }
+}
@@ -0,0 +1,168 @@
+package com.nsantos.httpfileserver;
+
+import com.nsantos.httpfileserver.exceptions.ResponseAbortedException;
+import com.nsantos.httpfileserver.metrics.ServerMetrics;
+import com.typesafe.config.Config;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.file.OpenOption;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Sends files read with asynchronous reads, performed by a pool of threads separate from those that serve the
+ * connections, for base paths on slow or network storage. While a chunk of a file is written to the client, the next
+ * chunks are already being read, so the time of a transfer is closer to the slowest of the storage and the network
+ * than to their sum. The connection thread only waits for the storage when the chunk it needs is not read yet.
+ * <p>
+ * The reads wait for a thread in a bounded queue. When it is full, requests stop reading ahead until it has space, and
+ * only fail if they cannot issue the read of the chunk they need. The time each request waits for the storage and for
+ * the client is recorded in its metrics.
+ * <p>
+ * Files are read after the head of the response was sent, so errors reading them abort the response.
+ */
+class AsyncFileReader {
+    private static final Logger logger = LoggerFactory.getLogger(AsyncFileReader.class);
+    private static final Set<OpenOption> READ_OPTIONS = Set.of(StandardOpenOption.READ);
+
+    /**
+     * A read of a chunk of a file, which may be still in progress
+     */
+    private record PendingRead(ByteBuffer buffer, long position, Future<Integer> result) {
+    }
+
+    private final boolean enabled;
+    private final int chunkSize;
+    private final int readAhead;
+    private final ThreadPoolExecutor executor;
+    private final ServerMetrics metrics;
+    private final LongAdder readsAheadSkipped = new LongAdder();
+
+    /**
+     * @param config  Global configuration
+     * @param metrics Where to record the time requests wait for the storage and for the client
+     */
+    AsyncFileReader(Config config, ServerMetrics metrics) {
+        this.enabled = config.getBoolean(Constants.ASYNC_FILE_READS_ENABLED);
+        var chunkSize = config.getBytes(Constants.ASYNC_FILE_READS_CHUNK_SIZE);
+        if (chunkSize <= 0 || chunkSize > BufferPool.MAX_BUFFER_SIZE) {
+            throw new IllegalArgumentException("Invalid value for %s: %d bytes. Must be between 1 and %d".formatted(
+                    Constants.ASYNC_FILE_READS_CHUNK_SIZE, chunkSize, BufferPool.MAX_BUFFER_SIZE));
+        }
+        this.chunkSize = chunkSize.intValue();
+        this.readAhead = config.getInt(Constants.ASYNC_FILE_READS_READ_AHEAD);
+        var threads = config.getInt(Constants.ASYNC_FILE_READS_THREADS);
+        var queueSize = config.getInt(Constants.ASYNC_FILE_READS_QUEUE_SIZE);
+        if (readAhead < 0 || threads < 1 || queueSize < 0) {
+            throw new IllegalArgumentException("Invalid value for %s, %s or %s: %d, %d, %d".formatted(
+                    Constants.ASYNC_FILE_READS_READ_AHEAD, Constants.ASYNC_FILE_READS_THREADS,
+                    Constants.ASYNC_FILE_READS_QUEUE_SIZE, readAhead, threads, queueSize));
+        }
+        this.metrics = metrics;
+        this.executor = enabled ? ThreadUtils.newBoundedThreadPool(threads, queueSize, "file-io") : null;
+        if (enabled) {
+            logger.info("Reading files asynchronously. Threads: {}, Chunk size: {}, Read ahead: {}", threads, chunkSize, readAhead);
+            metrics.registerGauge("async_file_reads_queued", "", "Reads of files waiting for a thread", () -> executor.getQueue().size());
+            metrics.registerCounter("async_file_reads_skipped_total", "", "Reads ahead not issued because the queue was full", readsAheadSkipped::sum);
+        }
+    }
+
+    boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Writes a region of a file to an output stream, reading ahead while the previous chunks are written.
+     *
+     * @throws ResponseAbortedException If the file cannot be read, it is shorter than expected, or there is no thread
+     *                                  to read it
+     * @throws IOException              If the output fails
+     */
+    void transfer(Path file, long position, long count, OutputStream os) throws IOException {
+        var storageWaitNanos = 0L;
+        var networkWaitNanos = 0L;
+        try (var channel = open(file)) {
+            var reads = new ArrayDeque<PendingRead>(readAhead + 1);
+            // Buffers are allocated per transfer and not borrowed from the buffer pool, since reads still in progress
+            // when a transfer fails would write to them after they were released
+            ByteBuffer spare = null;
+            var next = position;
+            var end = position + count;
+            while (position < end) {
+                while (reads.size() <= readAhead && next < end) {
+                    var length = (int) Math.min(chunkSize, end - next);
+                    var buffer = spare != null ? spare.clear().limit(length) : ByteBuffer.allocate(length);
+                    spare = null;
+                    try {
+                        reads.add(new PendingRead(buffer, next, channel.read(buffer, next)));
+                    } catch (RejectedExecutionException e) {
+                        if (reads.isEmpty()) {
+                            throw new ResponseAbortedException("Too many reads of files waiting for a thread", e);
+                        }
+                        readsAheadSkipped.increment();
+                        spare = buffer;
+                        break;
+                    }
+                    next += length;
+                }
+                var read = reads.poll();
+                var buffer = read.buffer();
+                var result = read.result();
+                var start = System.nanoTime();
+                while (true) {
+                    if (await(result, file) < 0) {
+                        throw new ResponseAbortedException("File truncated while being sent: %s".formatted(file), null);
+                    }
+                    if (!buffer.hasRemaining()) {
+                        break;
+                    }
+                    // Short read, read the rest of the chunk
+                    try {
+                        result = channel.read(buffer, read.position() + buffer.position());
+                    } catch (RejectedExecutionException e) {
+                        throw new ResponseAbortedException("Too many reads of files waiting for a thread", e);
+                    }
+                }
+                var ready = System.nanoTime();
+                storageWaitNanos += ready - start;
+                ByteBufferOutput.write(os, buffer.flip());
+                networkWaitNanos += System.nanoTime() - ready;
+                position += buffer.limit();
+                spare = buffer;
+            }
+        } finally {
+            metrics.bodyTransferWaited(storageWaitNanos, networkWaitNanos);
+        }
+    }
+
+    private AsynchronousFileChannel open(Path file) throws ResponseAbortedException {
+        try {
+            return AsynchronousFileChannel.open(file, READ_OPTIONS, executor);
+        } catch (IOException e) {
+            throw new ResponseAbortedException("Error opening %s".formatted(file), e);
+        }
+    }
+
+    private static int await(Future<Integer> result, Path file) throws IOException {
+        try {
+            return result.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ResponseAbortedException("Interrupted while reading %s".formatted(file), e);
+        } catch (ExecutionException e) {
+            throw new ResponseAbortedException("Error reading %s".formatted(file), e.getCause());
+        }
+    }
+}
@@ -0,0 +1,243 @@
+package com.nsantos.httpfileserver;
+
+import com.nsantos.httpfileserver.metrics.ServerMetrics;
+import com.typesafe.config.Config;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.ref.Cleaner;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Pool of direct buffers shared by all the connections, so that connections borrow their I/O buffers only while they
+ * use them, instead of allocating their own, and the data written to sockets is not copied again from the heap into a
+ * temporary direct buffer by the JDK.
+ * <p>
+ * Buffers come in a few size classes, and a request is served with the smallest class that fits. Each thread keeps a
+ * few released buffers of each class to reuse them without contention, the rest go back to queues shared by all the
+ * threads. The buffers cached by a thread return to the shared queues when the thread ends. Virtual threads, one per
+ * connection, end too soon for their caches to be reused, and would keep the buffers until they are garbage collected,
+ * so they always use the shared queues. Direct buffers are only
+ * allocated up to a total budget, and never freed. Beyond the budget, or above the largest class, heap buffers are
+ * handed out instead, and simply dropped when released.
+ * <p>
+ * Every buffer acquired must be released exactly once, and not used afterwards. With leak detection enabled, the pool
+ * records where each outstanding buffer was acquired, and rejects buffers released twice.
+ */
+class BufferPool {
+    private static final Logger logger = LoggerFactory.getLogger(BufferPool.class);
+
+    // Sizes of the buffers, each 4 times the previous
+    private static final int MIN_BUFFER_SIZE = 4 * 1024;
+    private static final int SIZE_CLASSES = 5;
+    static final int MAX_BUFFER_SIZE = MIN_BUFFER_SIZE << 2 * (SIZE_CLASSES - 1);
+
+    private static final Cleaner cleaner = Cleaner.create(ThreadUtils.newThreadFactory("buffer-pool-cleaner", true));
+
+    /**
+     * Where a buffer comes from, counted in the metrics
+     */
+    private enum Source {
+        THREAD_CACHE,
+        SHARED,
+        ALLOCATED,
+        HEAP
+    }
+
+    /**
+     * The buffers cached by a thread. When the thread ends, they are given back to the shared queues by a cleaning
+     * action, which must not reference this object.
+     */
+    private static class ThreadCache {
+        private final ArrayDeque<ByteBuffer>[] buffers;
+
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        ThreadCache() {
+            buffers = new ArrayDeque[SIZE_CLASSES];
+            for (int i = 0; i < SIZE_CLASSES; i++) {
+                buffers[i] = new ArrayDeque<>();
+            }
+        }
+    }
+
+    private final long maxDirectMemory;
+    private final int threadCacheSize;
+    private final ConcurrentLinkedQueue<ByteBuffer>[] shared;
+    private final ThreadLocal<ThreadCache> threadCaches = ThreadLocal.withInitial(this::newThreadCache);
+    // Where each outstanding buffer was acquired, if leak detection is enabled
+    private final Map<ByteBuffer, Throwable> outstandingBuffers;
+    private final AtomicLong allocatedBytes = new AtomicLong();
+    private final LongAdder inUseBytes = new LongAdder();
+    private final LongAdder outstanding = new LongAdder();
+    private final LongAdder[] acquired = new LongAdder[Source.values().length];
+
+    /**
+     * @param config Global configuration
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    BufferPool(Config config) {
+        this.maxDirectMemory = config.getBytes(Constants.BUFFER_POOL_MAX_DIRECT_MEMORY);
+        if (maxDirectMemory < 0) {
+            throw new IllegalArgumentException("Invalid value for %s: %d bytes".formatted(Constants.BUFFER_POOL_MAX_DIRECT_MEMORY, maxDirectMemory));
+        }
+        this.threadCacheSize = config.getInt(Constants.BUFFER_POOL_THREAD_CACHE_SIZE);
+        if (threadCacheSize < 0) {
+            throw new IllegalArgumentException("Invalid value for %s: %d. Must not be negative".formatted(Constants.BUFFER_POOL_THREAD_CACHE_SIZE, threadCacheSize));
+        }
+        this.outstandingBuffers = config.getBoolean(Constants.BUFFER_POOL_LEAK_DETECTION)
+                ? Collections.synchronizedMap(new IdentityHashMap<>()) : null;
+        this.shared = new ConcurrentLinkedQueue[SIZE_CLASSES];
+        for (int i = 0; i < SIZE_CLASSES; i++) {
+            shared[i] = new ConcurrentLinkedQueue<>();
+        }
+        for (var source : Source.values()) {
+            acquired[source.ordinal()] = new LongAdder();
+        }
+    }
+
+    void registerMetrics(ServerMetrics metrics) {
+        metrics.registerGauge("buffer_pool_direct_bytes", "state=\"allocated\"", "Direct memory of the buffer pool, by state", allocatedBytes::get);
+        metrics.registerGauge("buffer_pool_direct_bytes", "state=\"in_use\"", "Direct memory of the buffer pool, by state", inUseBytes::sum);
+        for (var source : Source.values()) {
+            metrics.registerCounter("buffer_pool_acquired_total", "source=\"%s\"".formatted(source.name().toLowerCase(Locale.ROOT)),
+                    "Buffers acquired from the pool, by where they came from", acquired[source.ordinal()]::sum);
+        }
+    }
+
+    /**
+     * Acquires a buffer, which must be released once it is no longer used.
+     *
+     * @param size The minimum capacity of the buffer
+     * @return A cleared buffer, direct unless the budget is exhausted or the size is larger than the largest class
+     */
+    ByteBuffer acquire(int size) {
+        var sizeClass = sizeClass(size);
+        ByteBuffer buffer = null;
+        Source source;
+        ThreadCache cache;
+        if (sizeClass < 0) {
+            source = Source.HEAP;
+        } else if ((cache = threadCache()) != null && (buffer = cache.buffers[sizeClass].pollLast()) != null) {
+            source = Source.THREAD_CACHE;
+        } else if ((buffer = shared[sizeClass].poll()) != null) {
+            source = Source.SHARED;
+        } else if ((buffer = allocateDirect(sizeClass)) != null) {
+            source = Source.ALLOCATED;
+        } else {
+            source = Source.HEAP;
+        }
+        if (buffer == null) {
+            buffer = ByteBuffer.allocate(size);
+        } else {
+            inUseBytes.add(buffer.capacity());
+        }
+        acquired[source.ordinal()].increment();
+        outstanding.increment();
+        if (outstandingBuffers != null) {
+            outstandingBuffers.put(buffer, new Throwable("Buffer of %d bytes acquired here".formatted(buffer.capacity())));
+        }
+        return buffer.clear();
+    }
+
+    /**
+     * Gives back a buffer acquired from this pool, which must not be used afterwards.
+     */
+    void release(ByteBuffer buffer) {
+        if (outstandingBuffers != null && outstandingBuffers.remove(buffer) == null) {
+            throw new IllegalStateException("Buffer released twice, or not acquired from this pool");
+        }
+        outstanding.decrement();
+        if (!buffer.isDirect()) {
+            return;
+        }
+        inUseBytes.add(-buffer.capacity());
+        var sizeClass = sizeClass(buffer.capacity());
+        var cache = threadCache();
+        if (cache != null && cache.buffers[sizeClass].size() < threadCacheSize) {
+            cache.buffers[sizeClass].addLast(buffer);
+        } else {
+            shared[sizeClass].add(buffer);
+        }
+    }
+
+    /**
+     * @return The cache of the current thread, or null if it is a virtual thread
+     */
+    private ThreadCache threadCache() {
+        return ThreadUtils.isVirtual(Thread.currentThread()) ? null : threadCaches.get();
+    }
+
+    /**
+     * @return Number of buffers acquired and not yet released
+     */
+    long outstanding() {
+        return outstanding.sum();
+    }
+
+    /**
+     * Logs where the buffers that were not released were acquired. Requires leak detection.
+     *
+     * @return Number of buffers not released
+     */
+    int reportLeaks() {
+        if (outstandingBuffers == null) {
+            throw new IllegalStateException("Leak detection is disabled, enable it with " + Constants.BUFFER_POOL_LEAK_DETECTION);
+        }
+        ArrayList<Throwable> leaks;
+        synchronized (outstandingBuffers) {
+            leaks = new ArrayList<>(outstandingBuffers.values());
+        }
+        for (var leak : leaks) {
+            logger.warn("Buffer not released", leak);
+        }
+        return leaks.size();
+    }
+
+    /**
+     * @return The index of the smallest size class that fits a size, or -1 if it is larger than all of them
+     */
+    private static int sizeClass(int size) {
+        var sizeClass = 0;
+        for (var classSize = MIN_BUFFER_SIZE; classSize < size; classSize <<= 2) {
+            if (++sizeClass == SIZE_CLASSES) {
+                return -1;
+            }
+        }
+        return sizeClass;
+    }
+
+    /**
+     * @return A new direct buffer of a size class, or null if it would exceed the budget
+     */
+    private ByteBuffer allocateDirect(int sizeClass) {
+        var size = MIN_BUFFER_SIZE << 2 * sizeClass;
+        long allocated;
+        do {
+            allocated = allocatedBytes.get();
+            if (allocated + size > maxDirectMemory) {
+                return null;
+            }
+        } while (!allocatedBytes.compareAndSet(allocated, allocated + size));
+        return ByteBuffer.allocateDirect(size);
+    }
+
+    private ThreadCache newThreadCache() {
+        var cache = new ThreadCache();
+        var buffers = cache.buffers;
+        cleaner.register(cache, () -> {
+            for (int i = 0; i < SIZE_CLASSES; i++) {
+                shared[i].addAll(buffers[i]);
+            }
+        });
+        return cache;
+    }
+}
@@ -0,0 +1,43 @@
+package com.nsantos.httpfileserver;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Implemented by the output streams that can write the contents of byte buffers without first copying them into an
+ * array, like those of sockets with a channel, which write direct and mapped buffers straight to the socket.
+ */
+interface ByteBufferOutput {
+    // Size of the array used to copy buffers that have none to streams that only write arrays
+    int COPY_CHUNK_SIZE = 16 * 1024;
+
+    /**
+     * Writes the remaining bytes of a buffer, advancing its position to its limit.
+     *
+     * @throws IOException
+     */
+    void write(ByteBuffer src) throws IOException;
+
+    /**
+     * Writes the remaining bytes of a buffer to any output stream, without copying them unless the stream can only
+     * write arrays and the buffer has none.
+     *
+     * @throws IOException
+     */
+    static void write(OutputStream os, ByteBuffer src) throws IOException {
+        if (os instanceof ByteBufferOutput output) {
+            output.write(src);
+        } else if (src.hasArray()) {
+            os.write(src.array(), src.arrayOffset() + src.position(), src.remaining());
+            src.position(src.limit());
+        } else {
+            var chunk = new byte[Math.min(src.remaining(), COPY_CHUNK_SIZE)];
+            while (src.hasRemaining()) {
+                var length = Math.min(src.remaining(), chunk.length);
+                src.get(chunk, 0, length);
+                os.write(chunk, 0, length);
+            }
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package com.nsantos.httpfileserver;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A range of bytes of a representation, as requested with the Range header.
+ * https://datatracker.ietf.org/doc/html/rfc7233
+ *
+ * @param first Offset of the first byte of the range
+ * @param last  Offset of the last byte of the range, inclusive
+ */
+record ByteRange(long first, long last) {
+    // Requests with more ranges are served in full, to prevent abuse with many small or overlapping ranges
+    static final int MAX_RANGES = 32;
+
+    private static final String BYTES_UNIT = "bytes=";
+
+    long length() {
+        return last - first + 1;
+    }
+
+    /**
+     * @return The value of the Content-Range header for this range
+     */
+    String contentRange(long size) {
+        return "bytes %d-%d/%d".formatted(first, last, size);
+    }
+
+    /**
+     * Parses the value of a Range header.
+     *
+     * @param header The value of the header, for instance "bytes=0-99,200-"
+     * @param size   The size of the representation
+     * @return The satisfiable ranges, in the order they were requested, which is empty if none of them is satisfiable.
+     * Returns null if the header is invalid or not supported, in which case it must be ignored.
+     */
+    static List<ByteRange> parseRangeHeader(String header, long size) {
+        if (!header.regionMatches(true, 0, BYTES_UNIT, 0, BYTES_UNIT.length())) {
+            return null;
+        }
+        var ranges = new ArrayList<ByteRange>();
+        var count = 0;
+        var pos = BYTES_UNIT.length();
+        while (pos <= header.length()) {
+            var comma = header.indexOf(',', pos);
+            var specEnd = comma < 0 ? header.length() : comma;
+            var spec = header.substring(pos, specEnd).trim();
+            pos = specEnd + 1;
+            if (spec.isEmpty()) {
+                // Empty elements of a list are allowed
+                continue;
+            }
+            if (++count > MAX_RANGES) {
+                return null;
+            }
+            var dash = spec.indexOf('-');
+            if (dash < 0) {
+                return null;
+            }
+            try {
+                if (dash == 0) {
+                    // Suffix range: the last N bytes
+                    var suffixLength = Long.parseLong(spec.substring(1));
+                    if (suffixLength < 0) {
+                        return null;
+                    }
+                    if (suffixLength > 0 && size > 0) {
+                        ranges.add(new ByteRange(Math.max(0, size - suffixLength), size - 1));
+                    }
+                } else {
+                    var first = Long.parseLong(spec.substring(0, dash));
+                    var last = dash == spec.length() - 1 ? Long.MAX_VALUE : Long.parseLong(spec.substring(dash + 1));
+                    if (first < 0 || last < first) {
+                        return null;
+                    }
+                    if (first < size) {
+                        ranges.add(new ByteRange(first, Math.min(last, size - 1)));
+                    }
+                }
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+        return count == 0 ? null : ranges;
+    }
+}
@@ -0,0 +1,126 @@
+package com.nsantos.httpfileserver;
+
+import com.nsantos.httpfileserver.exceptions.ResponseAbortedException;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Buffered output stream of a socket that has an associated channel. Files are sent with FileChannel.transferTo, which
+ * on Linux uses sendfile, so that the contents go from the file system cache to the socket without being copied into
+ * the Java heap.
+ * <p>
+ * The buffer is a direct buffer borrowed from the buffer pool when data is written, and given back with
+ * releaseBuffer(), so that the connection does not hold it while idle.
+ */
+class ChannelOutputStream extends OutputStream implements FileTransferOutput, ByteBufferOutput {
+    private final WritableByteChannel channel;
+    private final BufferPool bufferPool;
+    private final int bufferSize;
+    // In write mode, null while released
+    private ByteBuffer buffer;
+
+    /**
+     * @param channel    The channel of the socket, in blocking mode
+     * @param bufferPool Where to borrow the buffer from
+     * @param bufferSize Size of the buffer, when full it is flushed to the socket
+     */
+    public ChannelOutputStream(WritableByteChannel channel, BufferPool bufferPool, int bufferSize) {
+        this.channel = channel;
+        this.bufferPool = bufferPool;
+        this.bufferSize = bufferSize;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        ensureSpace(1);
+        buffer.put((byte) b);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (len >= bufferSize) {
+            // Large writes are sent directly, like BufferedOutputStream does
+            flushBuffer();
+            writeFully(ByteBuffer.wrap(b, off, len));
+            return;
+        }
+        ensureSpace(len);
+        buffer.put(b, off, len);
+    }
+
+    @Override
+    public void write(ByteBuffer src) throws IOException {
+        if (src.remaining() >= bufferSize) {
+            // Direct and mapped buffers are written to the socket without copying them
+            flushBuffer();
+            writeFully(src);
+            return;
+        }
+        ensureSpace(src.remaining());
+        buffer.put(src);
+    }
+
+    @Override
+    public void flush() throws IOException {
+        flushBuffer();
+    }
+
+    @Override
+    public void transferFile(Path file, long position, long count) throws IOException {
+        // Data written before must go first
+        flushBuffer();
+        try (var fileChannel = FileChannel.open(file, StandardOpenOption.READ)) {
+            var end = position + count;
+            while (position < end) {
+                var transferred = fileChannel.transferTo(position, end - position, channel);
+                if (transferred == 0 && position >= fileChannel.size()) {
+                    throw new ResponseAbortedException("File truncated while being sent: %s".formatted(file), null);
+                }
+                position += transferred;
+            }
+        } catch (ResponseAbortedException e) {
+            throw e;
+        } catch (IOException e) {
+            // Part of the file may have been sent, and transferTo does not tell errors reading the file from errors
+            // writing to the socket
+            throw new ResponseAbortedException("Error sending %s".formatted(file), e);
+        }
+    }
+
+    /**
+     * Gives the buffer back to the pool, discarding any data not flushed. It is borrowed again on the next write.
+     */
+    void releaseBuffer() {
+        if (buffer != null) {
+            bufferPool.release(buffer);
+            buffer = null;
+        }
+    }
+
+    private void ensureSpace(int length) throws IOException {
+        if (buffer == null) {
+            buffer = bufferPool.acquire(bufferSize).limit(bufferSize);
+        } else if (buffer.remaining() < length) {
+            flushBuffer();
+        }
+    }
+
+    private void flushBuffer() throws IOException {
+        if (buffer != null && buffer.position() > 0) {
+            writeFully(buffer.flip());
+            buffer.clear().limit(bufferSize);
+        }
+    }
+
+    private void writeFully(ByteBuffer src) throws IOException {
+        while (src.hasRemaining()) {
+            channel.write(src);
+        }
+    }
+}
@@ -0,0 +1,102 @@
+package com.nsantos.httpfileserver;
+
+import com.nsantos.httpfileserver.metrics.ServerMetrics;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Encodes the body of a response with the chunked transfer coding, for bodies whose length is not known in advance.
+ * The data is buffered to avoid sending many small chunks. Closing this stream sends the last chunk, which ends the
+ * body, but does not close the underlying stream.
+ * https://datatracker.ietf.org/doc/html/rfc7230#section-4.1
+ */
+public class ChunkedOutputStream extends OutputStream {
+    private static final byte[] CRLF_BYTES = Constants.CRLF.getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] LAST_CHUNK = ("0" + Constants.CRLF + Constants.CRLF).getBytes(StandardCharsets.US_ASCII);
+
+    private final OutputStream os;
+    private final ServerMetrics metrics;
+    private final byte[] buffer;
+    private int count = 0;
+    private boolean closed = false;
+
+    /**
+     * @param os        The stream of the connection
+     * @param chunkSize The maximum size of the chunks
+     * @param metrics   Where to record the bytes sent
+     */
+    ChunkedOutputStream(OutputStream os, int chunkSize, ServerMetrics metrics) {
+        this.os = os;
+        this.metrics = metrics;
+        this.buffer = new byte[chunkSize];
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        ensureOpen();
+        if (count == buffer.length) {
+            writeChunk();
+        }
+        buffer[count++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        ensureOpen();
+        while (len > 0) {
+            if (count == buffer.length) {
+                writeChunk();
+            }
+            var n = Math.min(len, buffer.length - count);
+            System.arraycopy(b, off, buffer, count, n);
+            count += n;
+            off += n;
+            len -= n;
+        }
+    }
+
+    /**
+     * Sends the buffered data as a chunk and flushes the underlying stream.
+     */
+    @Override
+    public void flush() throws IOException {
+        ensureOpen();
+        writeChunk();
+        os.flush();
+    }
+
+    /**
+     * Sends the buffered data and the last chunk. The underlying stream is not flushed nor closed.
+     */
+    @Override
+    public void close() throws IOException {
+        if (!closed) {
+            writeChunk();
+            os.write(LAST_CHUNK);
+            metrics.bodyBytesSent(LAST_CHUNK.length);
+            closed = true;
+        }
+    }
+
+    private void writeChunk() throws IOException {
+        if (count == 0) {
+            // An empty chunk would end the body
+            return;
+        }
+        var size = Integer.toHexString(count).getBytes(StandardCharsets.US_ASCII);
+        os.write(size);
+        os.write(CRLF_BYTES);
+        os.write(buffer, 0, count);
+        os.write(CRLF_BYTES);
+        metrics.bodyBytesSent(size.length + count + 2L * CRLF_BYTES.length);
+        count = 0;
+    }
+
+    private void ensureOpen() throws IOException {
+        if (closed) {
+            throw new IOException("Stream closed");
+        }
+    }
+}
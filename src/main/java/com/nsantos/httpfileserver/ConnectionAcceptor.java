@@ -0,0 +1,22 @@
+package com.nsantos.httpfileserver;
+
+import java.io.IOException;
+
+/**
+ * A task that accepts new connections in a listening socket and dispatches them to be served. There is one
+ * implementation for each of the serving engines.
+ */
+interface ConnectionAcceptor extends Runnable {
+    /**
+     * @return The port where this acceptor is listening for connections
+     */
+    int getLocalPort();
+
+    /**
+     * Stops accepting new connections and closes all the active connections.
+     *
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    void stop() throws IOException, InterruptedException;
+}
@@ -1,116 +1,148 @@
 package com.nsantos.httpfileserver;
 
-import com.nsantos.httpfileserver.exceptions.ExceptionHandler;
-import com.nsantos.httpfileserver.fileserver.FileServer;
+import com.nsantos.httpfileserver.exceptions.WebServerException;
+import com.nsantos.httpfileserver.metrics.ServerMetrics;
 import com.typesafe.config.Config;
-import org.apache.hc.core5.http.HttpStatus;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLSocket;
 import java.io.*;
 import java.net.*;
-import java.nio.charset.StandardCharsets;
-import java.nio.file.AccessDeniedException;
-import java.nio.file.Files;
-import java.util.HashMap;
-import java.util.Locale;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SocketChannel;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
-import java.util.stream.Collectors;
-
-import static com.nsantos.httpfileserver.HttpConstants.TEXT_HTML_UTF8;
 
 /**
  * Processes a sequence of HTTP requests received in a given socket.
+ * <p>
+ * The requests may be processed in several runs, possibly on different threads: a run may end when the connection is
+ * idle, waiting for the next request, so that the connection can be parked without holding a thread, and the next run
+ * starts once the next request arrives. The state of the connection, like the buffer of the parser, is kept between
+ * runs.
  */
 class ConnectionHandler {
     private static final Logger logger = LoggerFactory.getLogger(ConnectionHandler.class);
 
-    private static final String directoryListingLineTemplate = "<li><a href=\"%s\">%s</a></li>";
+    /**
+     * What to do after processing a request
+     */
+    private enum Next {
+        // Process the next request
+        CONTINUE,
+        // The connection is idle, end the run
+        PARK,
+        // Reached end of input or the connection must be closed
+        CLOSE,
+        // The client started HTTP/2, serve the connection with it
+        SWITCH_PROTOCOLS
+    }
 
-    private static final String directoryListingTemplate = """
-            <!DOCTYPE HTML PUBLIC "-//W3C//DTD HTML 4.01//EN" "http://www.w3.org/TR/html4/strict.dtd">
-            <html>
-            <head>
-            <meta http-equiv="Content-Type" content="text/html; charset=utf-8">
-            <title>Directory listing for %s</title>
-            </head>
-            <body>
-            <h1>Directory listing for %s</h1>
-            <hr>
-            <ul>
-            %s
-            </ul>
-            <hr>
-            </body>
-            </html>
-            """;
+    // How long to wait for the client to close the connection, after the last response
+    private static final int LINGER_TIMEOUT_MILLIS = 1000;
 
     // Enforces lifecycle, prevents callers from using this instance after being closed.
     private final AtomicBoolean closed = new AtomicBoolean(false);
 
-    private final FileServer fileServer;
-    private final ExceptionHandler exceptionHandler;
+    private final HttpRequestHandler requestHandler;
+    // Null if HTTP/2 is disabled
+    private final Http2ConnectionFactory http2;
+    private final BufferPool bufferPool;
+    private final ServerMetrics metrics;
     private final Socket socket;
-    private final HttpResponseWriter httpResponseWriter;
+    // The channel of a plain socket, or null. An SSLSocket exposes the channel of the socket it wraps, which must not
+    // be written to directly.
+    private final SocketChannel channel;
+    // The channel watched while the connection is parked, which for TLS is the channel of the socket it wraps. TLS
+    // records are read from it only as needed, so once the decrypted input is consumed, nothing is buffered above it.
+    private final SocketChannel parkableChannel;
+    // Read once, the socket creates a new address each time
+    private final SocketAddress remoteAddress;
+    private final Config config;
     private final int keepAliveTimeoutMillis;
+    private final int keepAliveMaxRequests;
+    private final int flushThreshold;
+    // Created by the first run, and kept for the next ones
+    private HttpRequestParser parser;
+    private InputStream is;
+    private OutputStream bos;
+    // Requests received in this connection
+    private int requests = 0;
+    // Set when the client starts HTTP/2
+    private Http2Connection http2Connection;
 
     /**
-     * @param fileServer
-     * @param exceptionHandler
+     * @param requestHandler Processes the requests received in this connection
+     * @param http2          Starts HTTP/2 if the client asks for it, or null if HTTP/2 is disabled
+     * @param bufferPool     Where the output buffer is borrowed from, while serving requests
+     * @param metrics        Where to record the connection
      * @param config
      * @param socket
      */
-    public ConnectionHandler(FileServer fileServer, ExceptionHandler exceptionHandler, HttpResponseWriter httpResponseWriter, Config config, Socket socket) {
-        this.fileServer = fileServer;
-        this.exceptionHandler = exceptionHandler;
-        this.httpResponseWriter = httpResponseWriter;
+    public ConnectionHandler(HttpRequestHandler requestHandler, Http2ConnectionFactory http2, BufferPool bufferPool,
+                             ServerMetrics metrics, Config config, Socket socket) {
+        this.requestHandler = requestHandler;
+        this.http2 = http2;
+        this.bufferPool = bufferPool;
+        this.metrics = metrics;
         this.socket = socket;
+        this.parkableChannel = socket.getChannel();
+        this.channel = socket instanceof SSLSocket ? null : parkableChannel;
+        this.remoteAddress = socket.getRemoteSocketAddress();
+        this.config = config;
         var keepAliveTimeoutMillisLong = config.getDuration(Constants.KEEP_ALIVE_TIMEOUT, TimeUnit.MILLISECONDS);
         if (keepAliveTimeoutMillisLong > Integer.MAX_VALUE) {
             throw new IllegalArgumentException("Invalid value for %s: %d millis. Must be smaller than %d".formatted(Constants.KEEP_ALIVE_TIMEOUT, keepAliveTimeoutMillisLong, Integer.MAX_VALUE));
         }
         this.keepAliveTimeoutMillis = (int) keepAliveTimeoutMillisLong;
+        this.keepAliveMaxRequests = config.getInt(Constants.KEEP_ALIVE_MAX_REQUESTS);
+        this.flushThreshold = (int) Math.min(config.getBytes(Constants.RESPONSE_FLUSH_THRESHOLD), Integer.MAX_VALUE);
+        metrics.connectionOpened();
     }
 
     /**
-     * Starts processing requests. This method will run until the underlying socket is closed, either by a client
-     * disconnection or by being closed locally by a call to stop().
+     * Processes requests until the underlying socket is closed, either by a client disconnection, by reaching the
+     * maximum number of requests or by being closed locally by a call to stop(), or, if allowed, until the connection
+     * is idle.
      * <p>
      * The calling thread is used to serve requests.
+     *
+     * @param mayPark If true, return as soon as the connection is idle after serving a request, instead of blocking
+     *                until the next one. Ignored if the socket has no channel, which is needed to park it.
+     * @return true if the connection is open and idle, and it must be parked until it is readable, and then processed
+     * by calling this method again. false if the connection was closed.
      */
-    public void handleRequests() throws SocketException {
-        logger.debug("Processing requests from {}", socket.getRemoteSocketAddress());
+    public boolean handleRequests(boolean mayPark) throws SocketException {
+        logger.debug("Processing requests from {}", remoteAddress);
         var originalName = Thread.currentThread().getName();
-        Thread.currentThread().setName(originalName + "-" + socket.getRemoteSocketAddress());
-        /*  We have to read/write multiple requests in this connection, which requires careful handling of the input/output
-         * streams.
-         * 1) We should not close the streams while processing a request. So if we wrap them in another stream for
-         *   convenience, do not close that stream
-         * 2) We must be carefully about buffering, especially around input streams. We may want to use a BufferedReader
-         *   to conveniently read the header line by line using its readLine method. Then to read the body, if the body
-         *   must be read as binary, to use again the underlying InputStream. However, the BufferedReader may read ahead
-         *   from the underlying input stream more than what was needed for the header, so that when we try to read from
-         *   the underlying InputStream, we will miss the part of the body that was read by the BufferedReader into its
-         *   buffer.
-         *
-         * Because this server does not support requests with bodies, I can safely wrap the input stream in a
-         * BufferedReader and use it to read everything. But if ever this server is extended to support requests with
-         * bodies, we have to revise this decision, probably have to read only from the InputStream and parse the header
-         * ourselves.
-         */
-
-        // Set the socket to timeout to enforce keep-alive
-        socket.setSoTimeout(keepAliveTimeoutMillis);
-        try (var reader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-             var bos = new BufferedOutputStream(socket.getOutputStream())) {
-            var endOfInput = false;
-            while (!endOfInput) {
-                endOfInput = handleOneRequest(reader, bos);
+        Thread.currentThread().setName(originalName + "-" + remoteAddress);
+        var idle = false;
+        try {
+            if (parser == null) {
+                open();
+            }
+            // Always read a request before parking, which also detects when the client closed the connection
+            var next = handleOneRequest(false);
+            while (next == Next.CONTINUE) {
+                next = handleOneRequest(mayPark && parkableChannel != null);
             }
+            if (next == Next.SWITCH_PROTOCOLS) {
+                // HTTP/2 connections are served until they are closed, holding this thread
+                http2Connection.serve();
+                next = Next.CLOSE;
+            }
+            if (next == Next.CLOSE) {
+                bos.flush();
+                lingeringClose();
+            }
+            idle = next == Next.PARK;
         } catch (SocketTimeoutException ex) {
-            logger.info("Timeout waiting for next request, closing connection.");
-        } catch (SocketException ex) {
+            logger.debug("Timeout waiting for next request, closing connection.");
+        } catch (SocketException | ClosedChannelException | SSLException ex) {
+            // Sockets with a channel fail with ClosedChannelException when closed by another thread, and TLS sockets
+            // with SSLException
             if (!closed.get()) {
                 logger.warn("Exception reading from socket", ex);
             }
@@ -118,7 +150,12 @@ class ConnectionHandler {
             logger.warn("Exception reading from socket", ex);
         } finally {
             Thread.currentThread().setName(originalName);
-            if (!closed.get()) {
+            // The output was flushed if the connection is idle, and discarded otherwise. The buffer is borrowed again
+            // by the next run.
+            if (bos instanceof ChannelOutputStream channelOutput) {
+                channelOutput.releaseBuffer();
+            }
+            if (!idle && !closed.get()) {
                 try {
                     this.stop();
                 } catch (IOException e) {
@@ -126,6 +163,77 @@ class ConnectionHandler {
                 }
             }
         }
+        return idle;
+    }
+
+    /**
+     * Prepares the connection for the first run.
+     */
+    private void open() throws IOException {
+        /*  We have to read/write multiple requests in this connection, which requires careful handling of the input/output
+         * streams.
+         * 1) We should not close the streams while processing a request. So if we wrap them in another stream for
+         *   convenience, do not close that stream
+         * 2) We must be carefully about buffering, especially around input streams. Requests are read into the buffer
+         *   of the parser, which may read ahead more than the head of the current request, like its body or the next
+         *   pipelined requests. So we never read directly from the InputStream of the socket, the parser keeps those
+         *   bytes and gives access to them.
+         */
+
+        // Set the socket to timeout to enforce keep-alive
+        socket.setSoTimeout(keepAliveTimeoutMillis);
+        this.is = socket.getInputStream();
+        this.bos = createOutputStream();
+        this.parser = new HttpRequestParser(config);
+    }
+
+    /**
+     * Waits for the client to close the connection after the last response. Closing a socket with unread data, like
+     * the requests pipelined after the last one served, resets the connection, and the client may then discard the
+     * responses it did not read yet. So the output is shut down and the input is discarded until the client closes the
+     * connection, for a short time at most.
+     */
+    private void lingeringClose() {
+        try {
+            socket.shutdownOutput();
+            socket.setSoTimeout(LINGER_TIMEOUT_MILLIS);
+            var discard = new byte[1024];
+            while (is.read(discard) >= 0) {
+                // Discard
+            }
+        } catch (IOException e) {
+            // The connection is closed anyway
+            logger.debug("Suppressing error waiting for the client to close the connection: {}", e.toString());
+        }
+    }
+
+    /**
+     * Creates the output stream where to write the responses. If the socket has a channel, files are sent directly
+     * through the channel, and the buffer is borrowed from the buffer pool. The buffer holds the responses to pipelined
+     * requests, so that they are sent together, and it is flushed to the socket when it is full.
+     */
+    private OutputStream createOutputStream() throws IOException {
+        if (channel != null) {
+            return new ChannelOutputStream(channel, bufferPool, flushThreshold);
+        } else {
+            return new BufferedOutputStream(socket.getOutputStream(), flushThreshold);
+        }
+    }
+
+    /**
+     * @return The channel to watch for the next request while the connection is parked. Only readiness must be checked
+     * on it, for TLS connections it carries the encrypted records.
+     */
+    public SocketChannel getChannel() {
+        return parkableChannel;
+    }
+
+    public Socket getSocket() {
+        return socket;
+    }
+
+    public boolean isOpen() {
+        return !closed.get();
     }
 
     /**
@@ -136,7 +244,14 @@ class ConnectionHandler {
     public void stop() throws IOException {
         if (closed.compareAndSet(false, true)) {
             logger.debug("Closing {}", socket);
-            this.socket.close();
+            metrics.connectionClosed();
+            if (channel == null && parkableChannel != null && !parkableChannel.isBlocking()) {
+                // A parked TLS connection cannot send the close_notify alert while its channel is in non-blocking
+                // mode, so it is closed without it
+                parkableChannel.close();
+            } else {
+                this.socket.close();
+            }
         } else {
             logger.warn("Already closed");
         }
@@ -145,112 +260,49 @@ class ConnectionHandler {
     /**
      * Reads and processes a single request.
      *
-     * @param reader Where to read the request from
-     * @param os     Where to write the response
-     * @return true if it reached end of input, false if there may be more requests.
+     * @param mayPark If true, return without reading when there is no data available for the next request
+     * @return Whether to process the next request, to park the connection, to close it or to switch to HTTP/2.
      * @throws IOException
      */
-    private boolean handleOneRequest(BufferedReader reader, OutputStream os) throws IOException {
-        // https://datatracker.ietf.org/doc/html/rfc2616#section-4.1
-        // https://datatracker.ietf.org/doc/html/rfc7230#section-3
+    private Next handleOneRequest(boolean mayPark) throws IOException {
         logger.debug("Waiting for HTTP request");
-        var headerLine = reader.readLine();
-        // Ignore empty lines, as per spec
-        while (headerLine != null && headerLine.isBlank()) {
-            headerLine = reader.readLine();
-        }
-        if (headerLine == null) {
-            // Reached end of input, client closed connection
-            return true;
-        }
-        var parts = headerLine.split(" ");
-        var method = parts[0].trim();
-        var uri = URI.create(parts[1].trim());
-        var httpVersion = parts[2].trim();
-
-        // Read the headers
-        // https://datatracker.ietf.org/doc/html/rfc2616#section-4.2
-        var headers = new HashMap<String, String>();
-        var line = reader.readLine();
-        while (true) {
-            line = reader.readLine();
-            if (line == null) {
-                // The request was partially read, throw an exception
-                throw new IOException("Error reading request, unexpected end of input");
-            }
-            // The headers section end with the first blank line
-            if (line.isBlank()) {
-                break;
-            }
-            // Parse an HTTP header line
-            var colonIndex = line.indexOf(':');
-            if (colonIndex < 0) {
-                throw new IOException("Malformed HTTP Request, invalid header line: %s".formatted(line));
-            }
-            var headerName = line.substring(0, colonIndex);
-            /* TODO: The value of an header can contain a series of values, separated by a comma, so we should break
-             *   them apart in individual elements and return a <String, List<String>> to represent the header.
-             *   Question: can we simply split the header value using comma as separator or are there quoting rules to
-             *   allow including a , as part of a value? e.g. is "MyHeader: "1, 2", "one, two" " parsed to two values,
-             *   '1, 2' and 'one, two' or parsed as 4 values:  '"1' , '2"', '"one', 'two"' ?
-             */
-            var headerValue = line.substring(colonIndex + 1).trim();
-            headers.put(headerName, headerValue);
-        }
-        var request = new HttpRequest(method, uri, httpVersion, headers);
-        logger.debug("Received request: {}", request);
-        handle(request, os);
-        return false;
-    }
-
-    public void handle(HttpRequest request, OutputStream os) throws IOException {
         try {
-            var method = request.method().toUpperCase(Locale.ROOT);
-            logger.info("Request URI: {}, Method: {}", request.uri(), method);
-            switch (method) {
-                case "GET" -> handleGet(request, os);
-                case "HEAD" -> handleHead(request, os);
-                default -> throw new UnsupportedOperationException();
-            }
-        } catch (Throwable t) {
-            exceptionHandler.handleException(t, os);
-        }
-    }
-
-    private void handleHead(HttpRequest request, OutputStream os) {
-        throw new UnsupportedOperationException();
-    }
-
-    private void handleGet(HttpRequest request, OutputStream os) throws IOException {
-        // Remove the starting /
-        var uri = request.uri().toString().substring(1);
-        // Support UTF_8 characters
-        var requestPath = URLDecoder.decode(uri, StandardCharsets.UTF_8);
-        try {
-            if (fileServer.isFile(requestPath)) {
-                // Send the file
-                var requestedFile = fileServer.getFile(requestPath);
-                httpResponseWriter.sendResponse(os, HttpStatus.SC_OK, new HashMap<>(), requestedFile);
-
-            } else if (fileServer.isDirectory(requestPath)) {
-                // Send a directory listing
-                var fileList = fileServer.getDirectoryListing(requestPath).map(p -> {
-                    var fileName = p.getFileName().toString();
-                    if (Files.isDirectory(p)) {
-                        fileName += "/";
+            HttpRequest request;
+            while ((request = parser.parse()) == null) {
+                // Before blocking for the next request, send the responses to the previous ones. While more pipelined
+                // requests are available, keep the responses in the buffer to send them together.
+                if (is.available() == 0) {
+                    bos.flush();
+                    if (mayPark && !parser.hasBufferedData()) {
+                        return Next.PARK;
                     }
-                    return directoryListingLineTemplate.formatted(fileName, fileName);
-                }).collect(Collectors.joining("\n"));
-                var body = directoryListingTemplate.formatted("/" + requestPath, "/" + requestPath, fileList);
-                httpResponseWriter.sendResponse(os, HttpStatus.SC_OK, new HashMap<>(), body.getBytes(StandardCharsets.UTF_8), TEXT_HTML_UTF8);
-
-            } else {
-                logger.debug("File not found {}", requestPath);
-                httpResponseWriter.sendResponse(os, HttpStatus.SC_NOT_FOUND, new HashMap<>());
+                }
+                if (parser.fill(is) < 0) {
+                    if (parser.hasBufferedData()) {
+                        // The request was partially read
+                        throw new IOException("Error reading request, unexpected end of input");
+                    }
+                    // Reached end of input, client closed connection
+                    return Next.CLOSE;
+                }
+            }
+            logger.debug("Received request: {}", request);
+            if (http2 != null) {
+                var start = http2.detectStart(request, requests == 0);
+                // h2c is only for plain connections, over TLS the client sends the preface after negotiating h2 with ALPN
+                if (start != null && !(start == Http2ConnectionFactory.Start.UPGRADE && socket instanceof SSLSocket)) {
+                    http2Connection = http2.createConnection(start, request, parser.remainingInput(is), bos, remoteAddress);
+                    return Next.SWITCH_PROTOCOLS;
+                }
             }
-        } catch (AccessDeniedException ex) {
-            logger.debug("Access denied: {}", ex.toString());
-            httpResponseWriter.sendResponse(os, HttpStatus.SC_FORBIDDEN, new HashMap<>());
+            requests++;
+            var lastRequest = requests >= keepAliveMaxRequests;
+            requestHandler.handle(request, bos, remoteAddress, lastRequest);
+            return lastRequest ? Next.CLOSE : Next.CONTINUE;
+        } catch (WebServerException ex) {
+            // Malformed request, the rest of the input cannot be parsed, so reply with the error and close the connection
+            requestHandler.handleMalformedRequest(ex, bos, remoteAddress);
+            return Next.CLOSE;
         }
     }
 
@@ -1,12 +1,16 @@
 package com.nsantos.httpfileserver;
 
+import com.nsantos.httpfileserver.accesslog.AccessLog;
 import com.nsantos.httpfileserver.exceptions.ExceptionHandler;
 import com.nsantos.httpfileserver.fileserver.FileServer;
+import com.nsantos.httpfileserver.metrics.ServerMetrics;
 import com.typesafe.config.Config;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.net.Socket;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
 
 /**
  * Creates new instances of connection handlers. This class holds the global configuration and dependencies required
@@ -16,26 +20,52 @@ import java.net.Socket;
 class ConnectionHandlerFactory {
     private static final Logger logger = LoggerFactory.getLogger(ConnectionHandlerFactory.class);
 
-    private final FileServer fileServer;
-    private final ExceptionHandler exceptionHandler;
-    private final HttpResponseWriter httpResponseWriter;
+    private final HttpRequestHandler requestHandler;
+    // Null if HTTP/2 is disabled
+    private final Http2ConnectionFactory http2;
+    private final BufferPool bufferPool;
+    private final ServerMetrics metrics;
     private final Config config;
 
     /**
      * @param fileServer         An instance of the underlying file server service, used to process requests for files
      * @param exceptionHandler   Handler for exceptions that occur while processing the requests.
      * @param httpResponseWriter Generates HTTP Responses
+     * @param metrics            Where to record the connections and requests
+     * @param accessLog          Where to log the requests
      * @param conf               Global configuration
      */
-    public ConnectionHandlerFactory(FileServer fileServer, ExceptionHandler exceptionHandler, HttpResponseWriter httpResponseWriter, Config conf) {
-        this.fileServer = fileServer;
-        this.exceptionHandler = exceptionHandler;
-        this.httpResponseWriter = httpResponseWriter;
+    public ConnectionHandlerFactory(FileServer fileServer, ExceptionHandler exceptionHandler, HttpResponseWriter httpResponseWriter,
+                                    ServerMetrics metrics, AccessLog accessLog, Config conf) {
+        this.requestHandler = new HttpRequestHandler(fileServer, exceptionHandler, httpResponseWriter, metrics, accessLog, conf);
+        this.http2 = conf.getBoolean(Constants.HTTP2_ENABLED) ? new Http2ConnectionFactory(requestHandler, metrics, conf) : null;
+        this.bufferPool = new BufferPool(conf);
+        this.metrics = metrics;
         this.config = conf;
+        fileServer.registerMetrics(metrics);
+        bufferPool.registerMetrics(metrics);
+        accessLog.registerMetrics(metrics);
+    }
+
+    public ServerMetrics getMetrics() {
+        return metrics;
+    }
 
+    BufferPool getBufferPool() {
+        return bufferPool;
     }
 
     public ConnectionHandler createHandler(Socket socket) {
-        return new ConnectionHandler(fileServer, exceptionHandler, httpResponseWriter, config, socket);
+        return new ConnectionHandler(requestHandler, http2, bufferPool, metrics, config, socket);
+    }
+
+    /**
+     * Creates the handler for a connection served by the NIO engine.
+     *
+     * @param channel The connected channel, already in non-blocking mode
+     * @param key     The key of the channel in the selector of the event loop that owns the connection
+     */
+    public NioConnectionHandler createNioHandler(SocketChannel channel, SelectionKey key) {
+        return new NioConnectionHandler(requestHandler, bufferPool, metrics, config, channel, key);
     }
 }
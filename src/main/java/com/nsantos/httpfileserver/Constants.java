@@ -14,6 +14,281 @@ public interface Constants {
      */
     String FILE_SERVER_BASE_PATH = "com.nsantos.httpfileserver.base-path";
     String KEEP_ALIVE_TIMEOUT = "com.nsantos.httpfileserver.keep-alive-timeout";
+    /**
+     * Maximum number of requests served on a connection. The response to the last one has Connection: close, and the
+     * connection is closed after it.
+     */
+    String KEEP_ALIVE_MAX_REQUESTS = "com.nsantos.httpfileserver.keep-alive-max-requests";
+    /**
+     * Whether the blocking engine parks idle keep-alive connections in a selector, instead of keeping a thread
+     * blocked on each of them while waiting for the next request
+     */
+    String IDLE_CONNECTIONS_PARK = "com.nsantos.httpfileserver.idle-connections.park";
+    /**
+     * Maximum number of parked idle connections. When exceeded, the connections idle for the longest time are closed.
+     */
+    String IDLE_CONNECTIONS_MAX = "com.nsantos.httpfileserver.idle-connections.max";
+    /**
+     * Engine used to serve connections: blocking (thread-per-connection) or nio (event loops with a Selector)
+     */
+    String SERVER_ENGINE = "com.nsantos.httpfileserver.engine";
+    /**
+     * Number of event loop threads of the nio engine. Set to 0 to use one per available processor.
+     */
+    String EVENT_LOOP_THREADS = "com.nsantos.httpfileserver.event-loop-threads";
+    /**
+     * Number of threads accepting connections with the blocking engine, each with its own server socket bound to the
+     * same port with SO_REUSEPORT and its own pool of connection handlers.
+     */
+    String ACCEPTOR_SHARDS = "com.nsantos.httpfileserver.acceptor-shards";
+    /**
+     * Whether the blocking engine serves HTTP/2 without TLS (h2c), to clients that start a connection with the HTTP/2
+     * preface or that upgrade it from HTTP/1.1
+     */
+    String HTTP2_ENABLED = "com.nsantos.httpfileserver.http2.enabled";
+    /**
+     * Maximum number of streams that a client can have open at the same time in an HTTP/2 connection
+     */
+    String HTTP2_MAX_CONCURRENT_STREAMS = "com.nsantos.httpfileserver.http2.max-concurrent-streams";
+    /**
+     * Size of the thread pool that processes the streams of all the HTTP/2 connections
+     */
+    String HTTP2_STREAM_THREADS = "com.nsantos.httpfileserver.http2.stream-threads";
+    /**
+     * Whether the blocking engine serves HTTPS instead of plain HTTP
+     */
+    String TLS_ENABLED = "com.nsantos.httpfileserver.tls.enabled";
+    /**
+     * File of the keystore with the private key and the certificate chain of the server
+     */
+    String TLS_KEYSTORE_PATH = "com.nsantos.httpfileserver.tls.keystore.path";
+    /**
+     * Password of the keystore, also used for the private key
+     */
+    String TLS_KEYSTORE_PASSWORD = "com.nsantos.httpfileserver.tls.keystore.password";
+    /**
+     * Type of the keystore, like PKCS12 or JKS
+     */
+    String TLS_KEYSTORE_TYPE = "com.nsantos.httpfileserver.tls.keystore.type";
+    /**
+     * Versions of TLS accepted
+     */
+    String TLS_PROTOCOLS = "com.nsantos.httpfileserver.tls.protocols";
+    /**
+     * Maximum number of sessions kept by the server, which clients can resume without a full handshake
+     */
+    String TLS_SESSION_CACHE_SIZE = "com.nsantos.httpfileserver.tls.session-cache-size";
+    /**
+     * How long a session can be resumed after it was created
+     */
+    String TLS_SESSION_TIMEOUT = "com.nsantos.httpfileserver.tls.session-timeout";
+    /**
+     * Whether sessions are resumed with session tickets kept by the clients, instead of only from the server cache
+     */
+    String TLS_SESSION_TICKETS = "com.nsantos.httpfileserver.tls.session-tickets";
+    /**
+     * Threads that perform the TLS handshakes of new connections, separate from those that serve the requests
+     */
+    String TLS_HANDSHAKE_THREADS = "com.nsantos.httpfileserver.tls.handshake-threads";
+    /**
+     * New connections that can wait for a handshake thread. Further connections are closed.
+     */
+    String TLS_HANDSHAKE_QUEUE_SIZE = "com.nsantos.httpfileserver.tls.handshake-queue-size";
+    /**
+     * Connections whose client sends nothing for this long during the handshake are closed
+     */
+    String TLS_HANDSHAKE_TIMEOUT = "com.nsantos.httpfileserver.tls.handshake-timeout";
+
+    /**
+     * Strategy used by the blocking engine to run connection handlers: platform (a bounded pool of platform threads)
+     * or virtual (a virtual thread per connection, if supported by the runtime).
+     */
+    String CONNECTION_EXECUTOR = "com.nsantos.httpfileserver.connection-executor";
+    /**
+     * Maximum number of connections served concurrently with the virtual executor.
+     */
+    String VIRTUAL_THREAD_MAX_CONNECTIONS = "com.nsantos.httpfileserver.virtual-thread-max-connections";
+    /**
+     * Connections that wait for a thread of the blocking engine when all of them are busy. Further connections are
+     * answered with 503 (Service Unavailable) and closed. Set to 0 to not let connections wait.
+     */
+    String ADMISSION_QUEUE_SIZE = "com.nsantos.httpfileserver.admission.queue-size";
+    /**
+     * Maximum time a connection waits for a thread. Connections that waited longer are answered with 503 (Service
+     * Unavailable) and closed, instead of being served.
+     */
+    String ADMISSION_QUEUE_TIMEOUT = "com.nsantos.httpfileserver.admission.queue-timeout";
+    /**
+     * Sent in the Retry-After header of the 503 (Service Unavailable) responses to the connections that are not served
+     */
+    String ADMISSION_RETRY_AFTER = "com.nsantos.httpfileserver.admission.retry-after";
+
+    /**
+     * Maximum size of the request line of a request. Longer requests are rejected with 414 (URI Too Long)
+     */
+    String MAX_REQUEST_LINE_SIZE = "com.nsantos.httpfileserver.max-request-line-size";
+    /**
+     * Maximum size of the headers of a request. Larger requests are rejected with 431 (Header Fields Too Large)
+     */
+    String MAX_HEADER_SIZE = "com.nsantos.httpfileserver.max-header-size";
+
+    /**
+     * Responses are buffered up to this size while there are more pipelined requests to process.
+     */
+    String RESPONSE_FLUSH_THRESHOLD = "com.nsantos.httpfileserver.response-flush-threshold";
+    /**
+     * Direct memory that the shared buffer pool may allocate for the I/O buffers of the connections. Beyond it, buffers
+     * are allocated on the heap.
+     */
+    String BUFFER_POOL_MAX_DIRECT_MEMORY = "com.nsantos.httpfileserver.buffer-pool.max-direct-memory";
+    /**
+     * Released buffers of each size that a thread keeps for reuse, before giving them back to the shared pool
+     */
+    String BUFFER_POOL_THREAD_CACHE_SIZE = "com.nsantos.httpfileserver.buffer-pool.thread-cache-size";
+    /**
+     * Whether the buffer pool records where each buffer was acquired, to report those never released. For tests.
+     */
+    String BUFFER_POOL_LEAK_DETECTION = "com.nsantos.httpfileserver.buffer-pool.leak-detection";
+
+    /**
+     * Directory listings larger than this are streamed with chunked transfer coding, as the directory is read
+     */
+    String LISTING_BUFFER_SIZE = "com.nsantos.httpfileserver.listing-buffer-size";
+    /**
+     * Maximum number of entries of each page of the JSON directory listings
+     */
+    String LISTING_PAGE_SIZE = "com.nsantos.httpfileserver.listing-page-size";
+
+    /**
+     * Whether to keep the contents of small files in memory
+     */
+    String CONTENT_CACHE_ENABLED = "com.nsantos.httpfileserver.content-cache.enabled";
+    /**
+     * Maximum total size of the file contents kept in memory
+     */
+    String CONTENT_CACHE_MAX_SIZE = "com.nsantos.httpfileserver.content-cache.max-size";
+    /**
+     * Files larger than this size are never kept in memory
+     */
+    String CONTENT_CACHE_MAX_FILE_SIZE = "com.nsantos.httpfileserver.content-cache.max-file-size";
+    /**
+     * Whether to keep large files mapped in memory, to send them to outputs that cannot transfer files directly
+     */
+    String MAPPED_FILES_ENABLED = "com.nsantos.httpfileserver.mapped-files.enabled";
+    /**
+     * Files smaller than this size are never mapped
+     */
+    String MAPPED_FILES_MIN_FILE_SIZE = "com.nsantos.httpfileserver.mapped-files.min-file-size";
+    /**
+     * Maximum total size of the files mapped in memory, which takes virtual memory
+     */
+    String MAPPED_FILES_MAX_SIZE = "com.nsantos.httpfileserver.mapped-files.max-size";
+    /**
+     * Mapped files not requested for this long are unmapped
+     */
+    String MAPPED_FILES_IDLE_TTL = "com.nsantos.httpfileserver.mapped-files.idle-ttl";
+    /**
+     * Whether files are read with asynchronous reads on a separate pool of threads, reading ahead while the previous
+     * chunks are sent, instead of being sent with sendfile or from mapped files. Requires the blocking engine.
+     */
+    String ASYNC_FILE_READS_ENABLED = "com.nsantos.httpfileserver.async-file-reads.enabled";
+    /**
+     * Threads that perform the reads of files for all the connections
+     */
+    String ASYNC_FILE_READS_THREADS = "com.nsantos.httpfileserver.async-file-reads.threads";
+    /**
+     * Reads that can wait for a thread. Further reads ahead are skipped.
+     */
+    String ASYNC_FILE_READS_QUEUE_SIZE = "com.nsantos.httpfileserver.async-file-reads.queue-size";
+    /**
+     * Size of each read from a file
+     */
+    String ASYNC_FILE_READS_CHUNK_SIZE = "com.nsantos.httpfileserver.async-file-reads.chunk-size";
+    /**
+     * Chunks of a file read ahead while the current one is sent
+     */
+    String ASYNC_FILE_READS_READ_AHEAD = "com.nsantos.httpfileserver.async-file-reads.read-ahead";
+    /**
+     * Maximum number of files and directories whose metadata is kept in memory
+     */
+    String METADATA_CACHE_MAX_ENTRIES = "com.nsantos.httpfileserver.metadata-cache.max-entries";
+    /**
+     * How long to keep the metadata of files in memory before reading it again
+     */
+    String METADATA_CACHE_TTL = "com.nsantos.httpfileserver.metadata-cache.ttl";
+    /**
+     * A file in the mime.types format with MIME types that replace or extend the bundled ones. Empty for none.
+     */
+    String MIME_TYPES_FILE = "com.nsantos.httpfileserver.mime-types.file";
+    /**
+     * MIME types by file extension, which take precedence over the bundled ones and those of MIME_TYPES_FILE
+     */
+    String MIME_TYPES_OVERRIDES = "com.nsantos.httpfileserver.mime-types.overrides";
+    /**
+     * Path where the metrics are served, in the Prometheus text format. Empty to not serve them.
+     */
+    String METRICS_PATH = "com.nsantos.httpfileserver.metrics-path";
+    /**
+     * Whether to watch the base path for changes, to evict modified files from the caches as soon as possible
+     */
+    String WATCH_FILES = "com.nsantos.httpfileserver.watch-files";
+
+    /**
+     * Whether to compress responses for clients that accept compressed responses
+     */
+    String COMPRESSION_ENABLED = "com.nsantos.httpfileserver.compression.enabled";
+    /**
+     * Whether to send pre-compressed files (foo.gz for foo) to clients that accept gzip
+     */
+    String COMPRESSION_PRECOMPRESSED = "com.nsantos.httpfileserver.compression.precompressed";
+    /**
+     * Files smaller than this are not compressed
+     */
+    String COMPRESSION_MIN_SIZE = "com.nsantos.httpfileserver.compression.min-size";
+    /**
+     * Files larger than this are not compressed on the fly
+     */
+    String COMPRESSION_MAX_SIZE = "com.nsantos.httpfileserver.compression.max-size";
+    /**
+     * MIME types that are compressed on the fly. A type ending in /* matches all subtypes.
+     */
+    String COMPRESSION_MIME_TYPES = "com.nsantos.httpfileserver.compression.mime-types";
+    /**
+     * Maximum total size of the compressed files kept in memory
+     */
+    String COMPRESSION_CACHE_SIZE = "com.nsantos.httpfileserver.compression.cache-size";
+
+    /**
+     * Whether to write a line for each request to the access log
+     */
+    String ACCESS_LOG_ENABLED = "com.nsantos.httpfileserver.access-log.enabled";
+    /**
+     * The file of the access log. Rotated files get the suffixes .1, .2, ...
+     */
+    String ACCESS_LOG_FILE = "com.nsantos.httpfileserver.access-log.file";
+    /**
+     * Number of records that can wait to be written to the access log
+     */
+    String ACCESS_LOG_BUFFER_SIZE = "com.nsantos.httpfileserver.access-log.buffer-size";
+    /**
+     * What to do when the buffer of the access log is full: drop the record, or block until there is space
+     */
+    String ACCESS_LOG_OVERFLOW_POLICY = "com.nsantos.httpfileserver.access-log.overflow-policy";
+    /**
+     * The access log is rotated when it reaches this size
+     */
+    String ACCESS_LOG_MAX_FILE_SIZE = "com.nsantos.httpfileserver.access-log.max-file-size";
+    /**
+     * Number of rotated access log files to keep
+     */
+    String ACCESS_LOG_MAX_FILES = "com.nsantos.httpfileserver.access-log.max-files";
+
+    String ENGINE_BLOCKING = "blocking";
+    String ENGINE_NIO = "nio";
+    String EXECUTOR_PLATFORM = "platform";
+    String EXECUTOR_VIRTUAL = "virtual";
+    String OVERFLOW_DROP = "drop";
+    String OVERFLOW_BLOCK = "block";
 
     /* Start of port range for random ports (inclusive).  */
     int RANDOM_PORT_RANGE_LOWER = 40000;
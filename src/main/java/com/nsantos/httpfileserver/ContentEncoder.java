@@ -0,0 +1,271 @@
+package com.nsantos.httpfileserver;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import com.nsantos.httpfileserver.fileserver.FileServer;
+import com.nsantos.httpfileserver.fileserver.FileStat;
+import com.typesafe.config.Config;
+import org.apache.hc.core5.http.HttpHeaders;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Optional;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Compresses responses with the content codings accepted by the clients.
+ * https://datatracker.ietf.org/doc/html/rfc7231#section-5.3.4
+ * <p>
+ * Files are compressed on the fly only if their content type is in the list of compressible types and their size is
+ * within the configured limits. The compressed files are cached, keyed by the path and the version of the file, so
+ * that each file is compressed once. Files that do not compress well are remembered as well, so that no attempt is
+ * made to compress them again.
+ */
+class ContentEncoder {
+    private static final Logger logger = LoggerFactory.getLogger(ContentEncoder.class);
+
+    /**
+     * The supported content codings, in order of preference
+     */
+    enum Encoding {
+        // The only encoding for which pre-compressed files are looked up
+        GZIP("gzip"),
+        // The zlib format, despite the name. https://datatracker.ietf.org/doc/html/rfc7230#section-4.2.2
+        DEFLATE("deflate");
+
+        final String token;
+
+        Encoding(String token) {
+            this.token = token;
+        }
+    }
+
+    // Extension of the pre-compressed files
+    static final String GZIP_EXTENSION = ".gz";
+    // Minimum reduction in size to consider that a file is compressible
+    private static final double MAX_COMPRESSION_RATIO = 0.9;
+    // Cached in place of the compressed contents of files that are not compressible
+    private static final byte[] INCOMPRESSIBLE = new byte[0];
+    // Approximate size of the key and internal structures of an entry of the cache
+    private static final int ENTRY_OVERHEAD = 128;
+
+    private record VariantKey(String path, Encoding encoding, long size, long lastModifiedNanos, int fileKeyHash) {
+    }
+
+    private final boolean enabled;
+    private final boolean precompressed;
+    private final long minSize;
+    private final long maxSize;
+    private final List<String> mimeTypes;
+    private final Cache<VariantKey, byte[]> variants;
+    private final LongAdder compressedResponses = new LongAdder();
+    private final LongAdder precompressedResponses = new LongAdder();
+
+    public ContentEncoder(Config config) {
+        this.enabled = config.getBoolean(Constants.COMPRESSION_ENABLED);
+        this.precompressed = config.getBoolean(Constants.COMPRESSION_PRECOMPRESSED);
+        this.minSize = config.getBytes(Constants.COMPRESSION_MIN_SIZE);
+        this.maxSize = config.getBytes(Constants.COMPRESSION_MAX_SIZE);
+        if (minSize < 0 || maxSize < 0 || maxSize >= Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Invalid value for %s or %s: %d, %d".formatted(
+                    Constants.COMPRESSION_MIN_SIZE, Constants.COMPRESSION_MAX_SIZE, minSize, maxSize));
+        }
+        this.mimeTypes = config.getStringList(Constants.COMPRESSION_MIME_TYPES).stream()
+                .map(t -> t.toLowerCase(Locale.ROOT))
+                .toList();
+        this.variants = CacheBuilder.newBuilder()
+                .maximumWeight(config.getBytes(Constants.COMPRESSION_CACHE_SIZE))
+                // Count the size of the key as well, otherwise the entries of incompressible files would not count
+                .weigher((VariantKey key, byte[] content) -> content.length + ENTRY_OVERHEAD)
+                .recordStats()
+                .build();
+    }
+
+    /**
+     * Selects the content coding to use for a response, from the ones accepted in the Accept-Encoding header.
+     *
+     * @return The preferred coding, or null to send the response without encoding.
+     */
+    Encoding negotiate(RequestHeaders headers) {
+        var acceptEncoding = headers.get(HttpHeaders.ACCEPT_ENCODING);
+        if (!enabled || acceptEncoding == null) {
+            return null;
+        }
+        Encoding selected = null;
+        var selectedQuality = 0.0;
+        var wildcardQuality = -1.0;
+        var qualities = new double[Encoding.values().length];
+        Arrays.fill(qualities, -1);
+        for (var element : acceptEncoding.split(",")) {
+            var parameters = element.split(";");
+            var coding = parameters[0].trim().toLowerCase(Locale.ROOT);
+            var quality = 1.0;
+            for (int i = 1; i < parameters.length; i++) {
+                var parameter = parameters[i].trim();
+                if (parameter.startsWith("q=")) {
+                    try {
+                        quality = Double.parseDouble(parameter.substring(2));
+                    } catch (NumberFormatException e) {
+                        quality = 0;
+                    }
+                }
+            }
+            if (coding.equals("*")) {
+                wildcardQuality = quality;
+            }
+            for (var encoding : Encoding.values()) {
+                if (encoding.token.equals(coding)) {
+                    qualities[encoding.ordinal()] = quality;
+                }
+            }
+        }
+        for (var encoding : Encoding.values()) {
+            // Codings not listed explicitly get the quality of the wildcard, if present
+            var quality = qualities[encoding.ordinal()] >= 0 ? qualities[encoding.ordinal()] : wildcardQuality;
+            if (quality > selectedQuality) {
+                selected = encoding;
+                selectedQuality = quality;
+            }
+        }
+        return selected;
+    }
+
+    /**
+     * @return true if the responses for the given file may be encoded, so they must have a Vary header.
+     */
+    boolean isCompressible(FileStat stat) {
+        return enabled && stat.size() >= minSize && stat.size() <= maxSize && isCompressibleType(stat.contentType());
+    }
+
+    /**
+     * @return true if responses may be compressed
+     */
+    boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * @return true if pre-compressed files should be looked up
+     */
+    boolean usePrecompressed() {
+        return enabled && precompressed;
+    }
+
+    /**
+     * @return true if bodies of the given size should be compressed
+     */
+    boolean isCompressible(int size) {
+        return enabled && size >= minSize;
+    }
+
+    private boolean isCompressibleType(String contentType) {
+        if (contentType == null) {
+            return false;
+        }
+        var semicolon = contentType.indexOf(';');
+        var mimeType = (semicolon < 0 ? contentType : contentType.substring(0, semicolon)).trim().toLowerCase(Locale.ROOT);
+        for (var pattern : mimeTypes) {
+            if (pattern.endsWith("/*") ? mimeType.startsWith(pattern.substring(0, pattern.length() - 1)) : pattern.equals(mimeType)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the compressed contents of a file, compressing it if it is not cached.
+     *
+     * @param fileServer   Used to read the contents of the file, possibly from memory
+     * @param relativePath The path of the file
+     * @param stat         The metadata of the file, which must be compressible
+     * @param encoding     The content coding
+     * @return The compressed contents, or empty if the file does not compress well.
+     */
+    Optional<byte[]> getCompressed(FileServer fileServer, String relativePath, FileStat stat, Encoding encoding) throws IOException {
+        var key = new VariantKey(fileServer.getFile(relativePath).toAbsolutePath().normalize().toString(),
+                encoding, stat.size(), stat.lastModifiedNanos(), stat.fileKeyHash());
+        byte[] compressed;
+        try {
+            // Concurrent requests for the same file wait for a single compression
+            compressed = variants.get(key, () -> {
+                var content = fileServer.getContent(relativePath, stat).orElse(null);
+                if (content == null) {
+                    content = Files.readAllBytes(fileServer.getFile(relativePath));
+                }
+                var result = compress(content, encoding);
+                logger.debug("Compressed {} with {}, Size: {}, Compressed size: {}", relativePath, encoding.token, content.length, result.length);
+                return result.length > content.length * MAX_COMPRESSION_RATIO ? INCOMPRESSIBLE : result;
+            });
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException ioException) {
+                throw ioException;
+            }
+            throw new IOException(e.getCause());
+        } catch (UncheckedExecutionException e) {
+            throw new IOException(e.getCause());
+        }
+        if (compressed == INCOMPRESSIBLE) {
+            return Optional.empty();
+        }
+        compressedResponses.increment();
+        return Optional.of(compressed);
+    }
+
+    byte[] compress(byte[] content, Encoding encoding) throws IOException {
+        var compressed = new ByteArrayOutputStream(content.length / 2 + 64);
+        try (var os = compressingStream(compressed, encoding)) {
+            os.write(content);
+        }
+        return compressed.toByteArray();
+    }
+
+    /**
+     * @return A stream that compresses the data written to it. Closing it closes the given stream.
+     */
+    OutputStream compressingStream(OutputStream os, Encoding encoding) throws IOException {
+        return switch (encoding) {
+            case GZIP -> new GZIPOutputStream(os, 8192);
+            case DEFLATE -> new DeflaterOutputStream(os);
+        };
+    }
+
+    /**
+     * Counts a response sent from a pre-compressed file.
+     */
+    void recordPrecompressedResponse() {
+        precompressedResponses.increment();
+    }
+
+    /**
+     * @return Statistics of the cache of compressed files
+     */
+    CacheStats getCacheStats() {
+        return variants.stats();
+    }
+
+    /**
+     * @return The number of responses with files compressed on the fly, or retrieved from the cache of compressed files
+     */
+    long getCompressedResponses() {
+        return compressedResponses.sum();
+    }
+
+    /**
+     * @return The number of responses with pre-compressed files
+     */
+    long getPrecompressedResponses() {
+        return precompressedResponses.sum();
+    }
+}
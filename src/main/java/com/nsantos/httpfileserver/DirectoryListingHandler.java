@@ -0,0 +1,316 @@
+package com.nsantos.httpfileserver;
+
+import com.nsantos.httpfileserver.exceptions.ResponseAbortedException;
+import com.nsantos.httpfileserver.exceptions.WebServerException;
+import com.nsantos.httpfileserver.fileserver.FileServer;
+import com.nsantos.httpfileserver.fileserver.FileStat;
+import com.typesafe.config.Config;
+import org.apache.hc.core5.http.ContentType;
+import org.apache.hc.core5.http.HttpHeaders;
+import org.apache.hc.core5.http.HttpStatus;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+import static com.nsantos.httpfileserver.HttpConstants.TEXT_HTML_UTF8;
+
+/**
+ * Generates the listings of directories, in one of two formats:
+ * <ul>
+ * <li>An HTML page, to navigate the directories with a browser. Listings larger than the configured buffer size are
+ * streamed as the directory is read, with chunked transfer coding.</li>
+ * <li>A JSON document, when requested with "Accept: application/json". The entries are sorted by name and split in
+ * pages: the document has a cursor to request the next page with the query parameter "cursor". The number of entries
+ * per page can be reduced with the query parameter "limit".</li>
+ * </ul>
+ */
+class DirectoryListingHandler {
+    private static final Logger logger = LoggerFactory.getLogger(DirectoryListingHandler.class);
+
+    private static final String directoryListingLineTemplate = "<li><a href=\"%s\">%s</a></li>";
+
+    // The entries of the listing are written between the header and the footer
+    private static final String directoryListingHeaderTemplate = """
+            <!DOCTYPE HTML PUBLIC "-//W3C//DTD HTML 4.01//EN" "http://www.w3.org/TR/html4/strict.dtd">
+            <html>
+            <head>
+            <meta http-equiv="Content-Type" content="text/html; charset=utf-8">
+            <title>Directory listing for %s</title>
+            </head>
+            <body>
+            <h1>Directory listing for %s</h1>
+            <hr>
+            <ul>
+            """;
+
+    private static final String directoryListingFooter = """
+
+            </ul>
+            <hr>
+            </body>
+            </html>
+            """;
+
+    private static final String HTTP_1_1 = "HTTP/1.1";
+    private static final String LIMIT_PARAMETER = "limit";
+    private static final String CURSOR_PARAMETER = "cursor";
+
+    private final FileServer fileServer;
+    private final HttpResponseWriter httpResponseWriter;
+    private final ContentEncoder contentEncoder;
+    private final int bufferSize;
+    private final int pageSize;
+
+    /**
+     * @param fileServer         The file server used to read the directories
+     * @param httpResponseWriter Generates HTTP Responses
+     * @param contentEncoder     Compresses the listings
+     * @param config             Global configuration
+     */
+    public DirectoryListingHandler(FileServer fileServer, HttpResponseWriter httpResponseWriter, ContentEncoder contentEncoder, Config config) {
+        this.fileServer = fileServer;
+        this.httpResponseWriter = httpResponseWriter;
+        this.contentEncoder = contentEncoder;
+        var bufferSize = config.getBytes(Constants.LISTING_BUFFER_SIZE);
+        if (bufferSize < 0 || bufferSize > Integer.MAX_VALUE / 2) {
+            throw new IllegalArgumentException("Invalid value for %s: %d bytes".formatted(Constants.LISTING_BUFFER_SIZE, bufferSize));
+        }
+        this.bufferSize = bufferSize.intValue();
+        this.pageSize = config.getInt(Constants.LISTING_PAGE_SIZE);
+        if (pageSize <= 0) {
+            throw new IllegalArgumentException("Invalid value for %s: %d".formatted(Constants.LISTING_PAGE_SIZE, pageSize));
+        }
+    }
+
+    /**
+     * Sends the listing of a directory, in the format requested by the Accept header.
+     *
+     * @param request     The request
+     * @param os          Where to write the response
+     * @param requestPath The path of the directory, relative to the base path
+     * @param query       The query string of the request, or null if it has none
+     */
+    public void sendListing(HttpRequest request, OutputStream os, String requestPath, String query) throws IOException, WebServerException {
+        var accept = request.headers().get(HttpHeaders.ACCEPT);
+        if (accept != null && accept.contains(ContentType.APPLICATION_JSON.getMimeType())) {
+            sendJsonListing(request, os, requestPath, parseQuery(query));
+        } else {
+            sendHtmlListing(request, os, requestPath);
+        }
+    }
+
+    /**
+     * Sends an HTML listing. Small listings are sent with an entity tag computed from their contents, so that they can
+     * be requested conditionally. Once the listing exceeds the buffer size, it is sent with chunked transfer coding
+     * and the rest of the entries are sent as they are read.
+     */
+    private void sendHtmlListing(HttpRequest request, OutputStream os, String requestPath) throws IOException {
+        // Chunked transfer coding is not supported by HTTP/1.0 clients, these always receive a buffered listing
+        var canStream = HTTP_1_1.equals(request.httpVersion());
+        var buffer = new ByteArrayOutputStream();
+        OutputStream out = buffer;
+        ChunkedOutputStream chunked = null;
+        out.write(directoryListingHeaderTemplate.formatted("/" + requestPath, "/" + requestPath).getBytes(StandardCharsets.UTF_8));
+        try (var listing = fileServer.getDirectoryListing(requestPath)) {
+            var first = true;
+            for (var p : (Iterable<Path>) listing::iterator) {
+                var fileName = p.getFileName().toString();
+                // The metadata of the entries is cached, so that the following requests for them do not read it again
+                var entryPath = fileServer.getBasePath().relativize(p).toString();
+                if (fileServer.stat(entryPath).map(FileStat::isDirectory).orElse(false)) {
+                    fileName += "/";
+                }
+                var line = directoryListingLineTemplate.formatted(fileName, fileName);
+                out.write((first ? line : "\n" + line).getBytes(StandardCharsets.UTF_8));
+                first = false;
+                if (chunked == null && canStream && buffer.size() > bufferSize) {
+                    logger.debug("Streaming listing of {}", requestPath);
+                    var headers = listingHeaders();
+                    var encoding = contentEncoder.negotiate(request.headers());
+                    if (encoding != null) {
+                        headers.put(HttpHeaders.CONTENT_ENCODING, encoding.token);
+                    }
+                    chunked = httpResponseWriter.sendChunkedResponse(os, HttpStatus.SC_OK, headers, TEXT_HTML_UTF8);
+                    out = encoding == null ? chunked : contentEncoder.compressingStream(chunked, encoding);
+                    buffer.writeTo(out);
+                }
+            }
+            out.write(directoryListingFooter.getBytes(StandardCharsets.UTF_8));
+        } catch (IOException | UncheckedIOException e) {
+            if (chunked != null) {
+                throw new ResponseAbortedException("Error reading directory %s after sending part of the listing".formatted(requestPath), e);
+            }
+            throw e;
+        }
+
+        if (chunked != null) {
+            // Closes the compressing stream, if any, and then the chunked stream
+            out.close();
+        } else {
+            sendBuffered(request, os, buffer.toByteArray(), TEXT_HTML_UTF8);
+        }
+    }
+
+    /**
+     * Sends a page of a JSON listing. To keep the memory bounded independently of the size of the directory, a single
+     * pass is made over the directory keeping only the first entries after the cursor, in a priority queue.
+     */
+    private void sendJsonListing(HttpRequest request, OutputStream os, String requestPath, Map<String, String> query) throws IOException, WebServerException {
+        var limit = pageSize;
+        var limitParameter = query.get(LIMIT_PARAMETER);
+        if (limitParameter != null) {
+            try {
+                limit = Math.min(Integer.parseInt(limitParameter), pageSize);
+            } catch (NumberFormatException e) {
+                limit = 0;
+            }
+            if (limit <= 0) {
+                throw new WebServerException("Invalid limit: " + limitParameter, HttpStatus.SC_BAD_REQUEST);
+            }
+        }
+        var cursor = decodeCursor(query.get(CURSOR_PARAMETER));
+
+        // The last entry of the page is at the head of the queue
+        var page = new PriorityQueue<String>(limit + 1, Comparator.reverseOrder());
+        var hasMore = false;
+        try (var listing = fileServer.getDirectoryListing(requestPath)) {
+            for (var p : (Iterable<Path>) listing::iterator) {
+                var name = p.getFileName().toString();
+                if (cursor != null && name.compareTo(cursor) <= 0) {
+                    continue;
+                }
+                page.add(name);
+                if (page.size() > limit) {
+                    page.poll();
+                    hasMore = true;
+                }
+            }
+        }
+        List<String> names = new ArrayList<>(page);
+        Collections.sort(names);
+
+        var json = new StringBuilder();
+        json.append("{\"path\":");
+        appendJsonString(json, "/" + requestPath);
+        json.append(",\"entries\":[");
+        var directory = Path.of(requestPath);
+        for (int i = 0; i < names.size(); i++) {
+            var name = names.get(i);
+            var stat = fileServer.stat(directory.resolve(name).toString());
+            if (i > 0) {
+                json.append(',');
+            }
+            json.append("{\"name\":");
+            appendJsonString(json, name);
+            // The metadata is missing if the entry was removed after reading the directory
+            if (stat.isPresent()) {
+                json.append(",\"type\":\"").append(stat.get().type().name().toLowerCase(Locale.ROOT)).append('"');
+                json.append(",\"size\":").append(stat.get().size());
+                json.append(",\"lastModified\":\"").append(stat.get().lastModified()).append('"');
+            }
+            json.append('}');
+        }
+        json.append(']');
+        if (hasMore) {
+            json.append(",\"cursor\":");
+            appendJsonString(json, encodeCursor(names.get(names.size() - 1)));
+        }
+        json.append("}\n");
+        sendBuffered(request, os, json.toString().getBytes(StandardCharsets.UTF_8), ContentType.APPLICATION_JSON);
+    }
+
+    private void sendBuffered(HttpRequest request, OutputStream os, byte[] body, ContentType contentType) throws IOException {
+        var validators = Validators.forContent(body);
+        var headers = listingHeaders();
+        var encoding = contentEncoder.negotiate(request.headers());
+        if (encoding != null && contentEncoder.isCompressible(body.length)) {
+            validators = validators.withEncoding(encoding.token);
+            body = contentEncoder.compress(body, encoding);
+            headers.put(HttpHeaders.CONTENT_ENCODING, encoding.token);
+        }
+        validators.addTo(headers);
+        if (validators.isNotModified(request.headers())) {
+            httpResponseWriter.sendNotModified(os, headers);
+        } else {
+            httpResponseWriter.sendResponse(os, HttpStatus.SC_OK, headers, body, contentType);
+        }
+    }
+
+    private HashMap<String, String> listingHeaders() {
+        var headers = new HashMap<String, String>();
+        // The format depends on the Accept header, and the encoding on the Accept-Encoding header
+        headers.put(HttpHeaders.VARY, contentEncoder.isEnabled() ? HttpHeaders.ACCEPT + ", " + HttpHeaders.ACCEPT_ENCODING : HttpHeaders.ACCEPT);
+        return headers;
+    }
+
+    /**
+     * The cursor is the name of the last entry of the previous page, encoded to be opaque and safe to use in a URL.
+     */
+    private static String encodeCursor(String name) {
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(name.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String decodeCursor(String cursor) throws WebServerException {
+        if (cursor == null) {
+            return null;
+        }
+        try {
+            return new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8);
+        } catch (IllegalArgumentException e) {
+            throw new WebServerException("Invalid cursor: " + cursor, HttpStatus.SC_BAD_REQUEST);
+        }
+    }
+
+    private static Map<String, String> parseQuery(String query) {
+        var parameters = new HashMap<String, String>();
+        if (query == null) {
+            return parameters;
+        }
+        for (var parameter : query.split("&")) {
+            var equals = parameter.indexOf('=');
+            if (equals > 0) {
+                parameters.put(URLDecoder.decode(parameter.substring(0, equals), StandardCharsets.UTF_8),
+                        URLDecoder.decode(parameter.substring(equals + 1), StandardCharsets.UTF_8));
+            }
+        }
+        return parameters;
+    }
+
+    private static void appendJsonString(StringBuilder json, String value) {
+        json.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            var c = value.charAt(i);
+            switch (c) {
+                case '"' -> json.append("\\\"");
+                case '\\' -> json.append("\\\\");
+                case '\n' -> json.append("\\n");
+                case '\r' -> json.append("\\r");
+                case '\t' -> json.append("\\t");
+                default -> {
+                    if (c < 0x20) {
+                        json.append("\\u%04x".formatted((int) c));
+                    } else {
+                        json.append(c);
+                    }
+                }
+            }
+        }
+        json.append('"');
+    }
+}
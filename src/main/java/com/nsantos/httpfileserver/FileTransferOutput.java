@@ -0,0 +1,21 @@
+package com.nsantos.httpfileserver;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+/**
+ * Implemented by the output streams of connections that can send regions of a file by themselves, without the file
+ * contents being copied through the stream.
+ */
+interface FileTransferOutput {
+    /**
+     * Sends a region of a file, after any data previously written to the stream.
+     *
+     * @param file     The file to send
+     * @param position Offset in the file of the first byte to send
+     * @param count    Number of bytes to send
+     * @throws IOException If the output fails, or ResponseAbortedException if the file cannot be sent after the head
+     *                     of the response was written
+     */
+    void transferFile(Path file, long position, long count) throws IOException;
+}
@@ -0,0 +1,204 @@
+package com.nsantos.httpfileserver;
+
+import org.apache.hc.core5.http.HeaderElements;
+import org.apache.hc.core5.http.HttpHeaders;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.Clock;
+import java.time.Instant;
+import java.util.Map;
+
+import static com.nsantos.httpfileserver.HttpConstants.HTTP_DATE_FORMAT;
+
+/**
+ * Encodes the head of HTTP responses. The status lines and the headers that are the same in every response are encoded
+ * once, when the encoder is created, and the Date header once per second. The rest of the headers are encoded into a
+ * buffer that is reused by all the responses sent by a thread, so that sending a response head allocates no memory.
+ * <p>
+ * Whether the connection is kept alive after a response is also set per thread, before processing each request, as
+ * each request is processed by a single thread.
+ * <p>
+ * Header names and values must contain only US-ASCII characters: https://datatracker.ietf.org/doc/html/rfc7230#section-3.2
+ */
+class HeaderEncoder {
+    private static final Logger logger = LoggerFactory.getLogger(HeaderEncoder.class);
+    private static final int MAX_STATUS = 599;
+    private static final int INITIAL_BUFFER_SIZE = 1024;
+    private static final byte[] CRLF_BYTES = Constants.CRLF.getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] HEADER_SEPARATOR = ": ".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] CONTENT_LENGTH_PREFIX = (HttpHeaders.CONTENT_LENGTH + ": ").getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] CONNECTION_CLOSE = (HttpHeaders.CONNECTION + ": " + HeaderElements.CLOSE + Constants.CRLF)
+            .getBytes(StandardCharsets.US_ASCII);
+
+    /**
+     * The Date of a second, as the value of the header and as the encoded header line
+     */
+    private record CachedDate(long epochSecond, String value, byte[] header) {
+    }
+
+    // Shared by all the encoders and by the HTTP/2 connections
+    private static volatile CachedDate cachedDate = encodeDate(-1);
+
+    private final Clock clock;
+    // Indexed by status code, null for the codes without a reason phrase in HttpConstants.HTTP_STATUS
+    private final byte[][] statusLines = new byte[MAX_STATUS + 1][];
+    private final byte[] keepAliveHeaders;
+    private final ThreadLocal<HeaderBuffer> buffers = ThreadLocal.withInitial(HeaderBuffer::new);
+
+    /**
+     * @param keepAliveTimeoutSeconds Sent in the Keep-Alive header
+     * @param keepAliveMaxRequests    Sent in the Keep-Alive header
+     * @param clock                   Source of the Date header
+     */
+    HeaderEncoder(long keepAliveTimeoutSeconds, int keepAliveMaxRequests, Clock clock) {
+        this.clock = clock;
+        HttpConstants.HTTP_STATUS.forEach((status, reason) ->
+                statusLines[status] = ("HTTP/1.1 " + status + " " + reason + Constants.CRLF).getBytes(StandardCharsets.US_ASCII));
+        this.keepAliveHeaders = (HttpHeaders.CONNECTION + ": " + HeaderElements.KEEP_ALIVE + Constants.CRLF
+                + HttpHeaders.KEEP_ALIVE + ": timeout=%d, max=%d".formatted(keepAliveTimeoutSeconds, keepAliveMaxRequests) + Constants.CRLF)
+                .getBytes(StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Sets whether the responses sent by this thread, until it is set again, announce that the connection is closed
+     * after them.
+     *
+     * @param close true to send Connection: close, false to send Connection: keep-alive and the Keep-Alive header
+     */
+    void setConnectionClose(boolean close) {
+        buffers.get().connectionClose = close;
+    }
+
+    /**
+     * Writes the status line, the headers and the empty line that ends the head of a response, with a single write to
+     * the output stream.
+     *
+     * @param os            The output stream where to write the response
+     * @param status        The status to send in the response
+     * @param headers       The headers specific to this response
+     * @param contentLength Sent in the Content-Length header, or negative to send no Content-Length
+     * @return The size of the head
+     * @throws IOException
+     */
+    int writeHead(OutputStream os, int status, Map<String, String> headers, long contentLength) throws IOException {
+        var buffer = buffers.get();
+        buffer.reset();
+        buffer.put(statusLine(status));
+        buffer.put(date());
+        buffer.put(buffer.connectionClose ? CONNECTION_CLOSE : keepAliveHeaders);
+        if (contentLength >= 0) {
+            buffer.put(CONTENT_LENGTH_PREFIX);
+            buffer.putDecimal(contentLength);
+            buffer.put(CRLF_BYTES);
+        }
+        for (var entry : headers.entrySet()) {
+            buffer.putAscii(entry.getKey());
+            buffer.put(HEADER_SEPARATOR);
+            buffer.putAscii(entry.getValue());
+            buffer.put(CRLF_BYTES);
+        }
+        buffer.put(CRLF_BYTES);
+        os.write(buffer.bytes, 0, buffer.position);
+        return buffer.position;
+    }
+
+    private byte[] statusLine(int status) {
+        var statusLine = status >= 0 && status <= MAX_STATUS ? statusLines[status] : null;
+        if (statusLine == null) {
+            logger.warn("Missing status string for status {}", status);
+            return ("HTTP/1.1 " + status + " " + Constants.CRLF).getBytes(StandardCharsets.US_ASCII);
+        }
+        return statusLine;
+    }
+
+    /**
+     * @return The Date header line
+     */
+    private byte[] date() {
+        return cachedDate(clock.millis() / 1000).header();
+    }
+
+    /**
+     * @param epochSecond The current second
+     * @return The value of the Date header, also used by HTTP/2 responses
+     */
+    static String dateValue(long epochSecond) {
+        return cachedDate(epochSecond).value();
+    }
+
+    /**
+     * @return The Date of a second, formatted again only when the second changes.
+     * https://datatracker.ietf.org/doc/html/rfc7231#section-7.1.1.2
+     */
+    private static CachedDate cachedDate(long epochSecond) {
+        var date = cachedDate;
+        if (date.epochSecond() != epochSecond) {
+            // Concurrent threads may encode the same second, the result is the same
+            date = encodeDate(epochSecond);
+            cachedDate = date;
+        }
+        return date;
+    }
+
+    private static CachedDate encodeDate(long epochSecond) {
+        var value = HTTP_DATE_FORMAT.format(Instant.ofEpochSecond(epochSecond));
+        var header = HttpHeaders.DATE + ": " + value + Constants.CRLF;
+        return new CachedDate(epochSecond, value, header.getBytes(StandardCharsets.US_ASCII));
+    }
+
+    /**
+     * A growable buffer, reused for all the responses sent by the same thread.
+     */
+    private static class HeaderBuffer {
+        // Enough for the digits of Long.MAX_VALUE
+        private final byte[] digits = new byte[19];
+        private byte[] bytes = new byte[INITIAL_BUFFER_SIZE];
+        private int position = 0;
+        private boolean connectionClose = false;
+
+        void reset() {
+            position = 0;
+        }
+
+        void put(byte[] src) {
+            ensureCapacity(src.length);
+            System.arraycopy(src, 0, bytes, position, src.length);
+            position += src.length;
+        }
+
+        void putAscii(String s) {
+            var length = s.length();
+            ensureCapacity(length);
+            for (int i = 0; i < length; i++) {
+                bytes[position++] = (byte) s.charAt(i);
+            }
+        }
+
+        /**
+         * Writes a non-negative number as ASCII digits.
+         */
+        void putDecimal(long value) {
+            var count = 0;
+            do {
+                digits[count++] = (byte) ('0' + value % 10);
+                value /= 10;
+            } while (value > 0);
+            ensureCapacity(count);
+            while (count > 0) {
+                bytes[position++] = digits[--count];
+            }
+        }
+
+        private void ensureCapacity(int length) {
+            if (position + length > bytes.length) {
+                var newBuffer = new byte[Math.max(bytes.length * 2, position + length)];
+                System.arraycopy(bytes, 0, newBuffer, 0, position);
+                bytes = newBuffer;
+            }
+        }
+    }
+}
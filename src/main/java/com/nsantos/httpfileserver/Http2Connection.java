@@ -0,0 +1,853 @@
+package com.nsantos.httpfileserver;
+
+import com.nsantos.httpfileserver.exceptions.ResponseAbortedException;
+import org.apache.hc.core5.http.Header;
+import org.apache.hc.core5.http.HttpHeaders;
+import org.apache.hc.core5.http.message.BasicHeader;
+import org.apache.hc.core5.http2.H2ConnectionException;
+import org.apache.hc.core5.http2.H2Error;
+import org.apache.hc.core5.http2.H2PseudoRequestHeaders;
+import org.apache.hc.core5.http2.H2PseudoResponseHeaders;
+import org.apache.hc.core5.http2.config.H2Param;
+import org.apache.hc.core5.http2.frame.FrameConsts;
+import org.apache.hc.core5.http2.frame.FrameFlag;
+import org.apache.hc.core5.http2.frame.FrameType;
+import org.apache.hc.core5.http2.hpack.HPackDecoder;
+import org.apache.hc.core5.http2.hpack.HPackEncoder;
+import org.apache.hc.core5.http2.hpack.HPackException;
+import org.apache.hc.core5.util.ByteArrayBuffer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.SocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Serves a connection with HTTP/2 without TLS (h2c), once the client sent the HTTP/2 connection preface or upgraded the
+ * connection from HTTP/1.1. https://datatracker.ietf.org/doc/html/rfc7540
+ * <p>
+ * The thread serving the connection reads the frames sent by the client. The request of each stream is processed by a
+ * task of the stream executor, which writes the response as frames of up to 16 KiB, each one under the write lock of
+ * the connection. The lock is fair, so the frames of concurrent responses are interleaved, and a small file is not
+ * delayed until a large one is sent. DATA frames are sent within the flow control windows of the connection and of
+ * their stream, the tasks wait for the client to enlarge the windows when they are exhausted.
+ * <p>
+ * Only requests without a body are supported, the data received in streams is discarded. Priorities are ignored, and
+ * the server does not push responses.
+ */
+class Http2Connection {
+    private static final Logger logger = LoggerFactory.getLogger(Http2Connection.class);
+
+    static final String HTTP_2_0 = "HTTP/2.0";
+    // The connection preface of the client, the start of which is parsed as the request line of an HTTP/1.1 request
+    // https://datatracker.ietf.org/doc/html/rfc7540#section-3.5
+    private static final byte[] CLIENT_PREFACE = "PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+    private static final int PREFACE_REQUEST_LENGTH = "PRI * HTTP/2.0\r\n\r\n".length();
+    private static final byte[] SWITCHING_PROTOCOLS = ("HTTP/1.1 101 Switching Protocols" + Constants.CRLF
+            + HttpHeaders.CONNECTION + ": " + HttpHeaders.UPGRADE + Constants.CRLF
+            + HttpHeaders.UPGRADE + ": " + Http2ConnectionFactory.H2C + Constants.CRLF
+            + Constants.CRLF).getBytes(StandardCharsets.US_ASCII);
+    // Frames are never larger than the default maximum size, which all the peers support. Larger frames would not
+    // reduce the overhead much, and would interleave concurrent responses more coarsely.
+    private static final int FRAME_SIZE = FrameConsts.MIN_FRAME_SIZE;
+    private static final int DEFAULT_WINDOW_SIZE = 65535;
+    private static final long MAX_WINDOW_SIZE = Integer.MAX_VALUE;
+    // Default size of the dynamic table of HPACK, the largest used by the encoder
+    private static final int DEFAULT_HEADER_TABLE_SIZE = 4096;
+    // Headers specific to HTTP/1.1 connections, not allowed in HTTP/2
+    // https://datatracker.ietf.org/doc/html/rfc7540#section-8.1.2.2
+    private static final Set<String> CONNECTION_HEADERS = Set.of("connection", "keep-alive", "proxy-connection",
+            "transfer-encoding", "upgrade");
+
+    private static final int END_STREAM = FrameFlag.END_STREAM.getValue();
+    private static final int END_HEADERS = FrameFlag.END_HEADERS.getValue();
+    private static final int PADDED = FrameFlag.PADDED.getValue();
+    private static final int PRIORITY = FrameFlag.PRIORITY.getValue();
+    private static final int ACK = FrameFlag.ACK.getValue();
+
+    private final Http2ConnectionFactory factory;
+    private final InputStream in;
+    private final OutputStream out;
+    private final SocketAddress remoteAddress;
+    // The request that upgraded the connection from HTTP/1.1, which is answered in stream 1, and the settings of the
+    // client sent with it. Null if the client started the connection with prior knowledge.
+    private final HttpRequest upgradeRequest;
+    private final byte[] upgradeSettings;
+
+    // Only used by the thread reading the frames
+    private final HPackDecoder decoder = new HPackDecoder(StandardCharsets.ISO_8859_1);
+    private final byte[] frameHeader = new byte[FrameConsts.HEAD_LEN];
+    private final byte[] payload = new byte[FRAME_SIZE];
+    // Header block of the HEADERS frame being received, which may continue in CONTINUATION frames
+    private final ByteArrayBuffer receivedHeaderBlock = new ByteArrayBuffer(1024);
+    private int headersStreamId = 0;
+    private boolean headersComplete = true;
+    private int lastStreamId = 0;
+
+    // Everything written to the output is written under this lock, frames are written whole
+    private final ReentrantLock writeLock = new ReentrantLock(true);
+    // Guarded by writeLock, the encoder must encode the header blocks in the order they are sent
+    private final HPackEncoder encoder = new HPackEncoder(StandardCharsets.ISO_8859_1);
+    private final ByteArrayBuffer sentHeaderBlock = new ByteArrayBuffer(1024);
+    private final byte[] sentFrameHeader = new byte[FrameConsts.HEAD_LEN];
+    // Changes to the size of the dynamic table to signal at the start of the next header block, or -1
+    private int minTableSizeUpdate = -1;
+    private int tableSizeUpdate = -1;
+
+    // Guarded by this
+    private final Map<Integer, Http2StreamOutput> streams = new HashMap<>();
+    private long connectionSendWindow = DEFAULT_WINDOW_SIZE;
+    private long initialStreamWindow = DEFAULT_WINDOW_SIZE;
+    private boolean closed = false;
+
+    /**
+     * @param factory         Holds the dependencies and the settings shared by all the HTTP/2 connections
+     * @param in              The input of the connection, after the request that started HTTP/2
+     * @param out             The output of the connection
+     * @param remoteAddress   The address of the client, for the access log
+     * @param upgradeRequest  The request that upgraded the connection, or null with prior knowledge
+     * @param upgradeSettings The settings sent by the client with the upgrade request, or null with prior knowledge
+     */
+    Http2Connection(Http2ConnectionFactory factory, InputStream in, OutputStream out, SocketAddress remoteAddress,
+                    HttpRequest upgradeRequest, byte[] upgradeSettings) {
+        this.factory = factory;
+        this.in = new BufferedInputStream(in, FrameConsts.HEAD_LEN + FRAME_SIZE);
+        this.out = out;
+        this.remoteAddress = remoteAddress;
+        this.upgradeRequest = upgradeRequest;
+        this.upgradeSettings = upgradeSettings;
+        decoder.setMaxListSize(factory.getMaxHeaderListSize());
+    }
+
+    /**
+     * Serves the connection on the calling thread, until the client closes it, it is idle for longer than the timeout
+     * of the socket, or a connection error occurs. In the last two cases the client is sent a GOAWAY frame. The
+     * caller must close the connection afterwards, which aborts the responses still in progress. Nothing else is
+     * written to the output once this method returns.
+     *
+     * @throws IOException If the connection failed
+     */
+    void serve() throws IOException {
+        try {
+            if (upgradeRequest != null) {
+                // https://datatracker.ietf.org/doc/html/rfc7540#section-3.2
+                out.write(SWITCHING_PROTOCOLS);
+                applySettings(upgradeSettings, upgradeSettings.length);
+                sendSettings();
+                lastStreamId = 1;
+                startStream(1, upgradeRequest);
+                readPreface(0);
+            } else {
+                sendSettings();
+                readPreface(PREFACE_REQUEST_LENGTH);
+            }
+            readFrames();
+            // Closed by the client, or idle
+            goAway(H2Error.NO_ERROR.getCode());
+        } catch (H2ConnectionException e) {
+            logger.debug("Connection error with {}: {}", remoteAddress, e.getMessage());
+            goAway(e.getCode());
+        } finally {
+            synchronized (this) {
+                closed = true;
+                // Wakes up the streams waiting for the flow control windows
+                notifyAll();
+            }
+            // Waits for the frame being written, if any, the next ones will find the connection closed
+            writeLock.lock();
+            try {
+                out.flush();
+            } catch (IOException e) {
+                logger.debug("Suppressed error flushing connection: {}", e.toString());
+            } finally {
+                writeLock.unlock();
+            }
+        }
+    }
+
+    private void readPreface(int alreadyParsed) throws IOException {
+        var preface = new byte[CLIENT_PREFACE.length - alreadyParsed];
+        if (!readFully(preface, preface.length)
+                || !Arrays.equals(preface, 0, preface.length, CLIENT_PREFACE, alreadyParsed, CLIENT_PREFACE.length)) {
+            throw new H2ConnectionException(H2Error.PROTOCOL_ERROR, "Invalid connection preface");
+        }
+    }
+
+    /**
+     * Reads and processes frames until the end of the input, or until the connection is idle for longer than the
+     * timeout of the socket.
+     */
+    private void readFrames() throws IOException {
+        var settingsReceived = false;
+        while (readFully(frameHeader, frameHeader.length)) {
+            var length = (frameHeader[0] & 0xff) << 16 | (frameHeader[1] & 0xff) << 8 | frameHeader[2] & 0xff;
+            var type = FrameType.valueOf(frameHeader[3] & 0xff);
+            var flags = frameHeader[4] & 0xff;
+            var streamId = readInt(frameHeader, 5) & 0x7fffffff;
+            if (length > FRAME_SIZE) {
+                throw new H2ConnectionException(H2Error.FRAME_SIZE_ERROR, "Frame too large: " + length);
+            }
+            if (!readFully(payload, length)) {
+                throw new EOFException("Unexpected end of input reading frame");
+            }
+            // The preface of the client ends with a SETTINGS frame, and a header block must not be interrupted
+            if (!settingsReceived && type != FrameType.SETTINGS) {
+                throw new H2ConnectionException(H2Error.PROTOCOL_ERROR, "Expected SETTINGS, received " + type);
+            }
+            settingsReceived = true;
+            if (!headersComplete && type != FrameType.CONTINUATION) {
+                throw new H2ConnectionException(H2Error.PROTOCOL_ERROR, "Expected CONTINUATION, received " + type);
+            }
+            if (type == null) {
+                // Unknown frame types must be ignored
+                continue;
+            }
+            switch (type) {
+                case DATA -> onData(streamId, flags, length);
+                case HEADERS -> onHeaders(streamId, flags, length);
+                case CONTINUATION -> onContinuation(streamId, flags, length);
+                case RST_STREAM -> onResetStream(streamId, length);
+                case SETTINGS -> onSettings(streamId, flags, length);
+                case PING -> onPing(streamId, flags, length);
+                case WINDOW_UPDATE -> onWindowUpdate(streamId, length);
+                case GOAWAY -> logger.debug("Client {} is closing the connection", remoteAddress);
+                case PUSH_PROMISE -> throw new H2ConnectionException(H2Error.PROTOCOL_ERROR, "PUSH_PROMISE sent by a client");
+                case PRIORITY -> {
+                    // Priorities are not supported
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads a given number of bytes. While there are streams in progress, waits for them indefinitely, otherwise the
+     * timeout of the socket applies.
+     *
+     * @return false if the input ended, or the timeout expired, before the first byte
+     */
+    private boolean readFully(byte[] b, int length) throws IOException {
+        var read = 0;
+        while (read < length) {
+            int n;
+            try {
+                n = in.read(b, read, length - read);
+            } catch (SocketTimeoutException e) {
+                if (hasStreams()) {
+                    continue;
+                }
+                if (read == 0) {
+                    logger.debug("Timeout waiting for the next frame, closing connection");
+                    return false;
+                }
+                throw e;
+            }
+            if (n < 0) {
+                if (read == 0) {
+                    return false;
+                }
+                throw new EOFException("Unexpected end of input reading frame");
+            }
+            read += n;
+        }
+        return true;
+    }
+
+    /**
+     * Request bodies are not supported, their data is discarded. The flow control windows are enlarged right away, so
+     * that the client is not blocked.
+     */
+    private void onData(int streamId, int flags, int length) throws IOException {
+        if (streamId == 0) {
+            throw new H2ConnectionException(H2Error.PROTOCOL_ERROR, "DATA frame in stream 0");
+        }
+        if (length > 0) {
+            sendWindowUpdate(0, length);
+            if ((flags & END_STREAM) == 0 && hasStream(streamId)) {
+                sendWindowUpdate(streamId, length);
+            }
+        }
+    }
+
+    private void onHeaders(int streamId, int flags, int length) throws IOException {
+        if (streamId == 0 || streamId % 2 == 0) {
+            throw new H2ConnectionException(H2Error.PROTOCOL_ERROR, "HEADERS frame in invalid stream " + streamId);
+        }
+        var start = 0;
+        var end = length;
+        if ((flags & PADDED) != 0) {
+            start = 1;
+            end -= length > 0 ? payload[0] & 0xff : 0;
+        }
+        if ((flags & PRIORITY) != 0) {
+            // Stream dependency and weight
+            start += 5;
+        }
+        if (end < start) {
+            throw new H2ConnectionException(H2Error.PROTOCOL_ERROR, "Invalid padding or priority in HEADERS frame");
+        }
+        receivedHeaderBlock.clear();
+        headersStreamId = streamId;
+        appendHeaderBlock(start, end);
+        headersComplete = (flags & END_HEADERS) != 0;
+        if (headersComplete) {
+            onHeaderBlock();
+        }
+    }
+
+    private void onContinuation(int streamId, int flags, int length) throws IOException {
+        if (headersComplete || streamId != headersStreamId) {
+            throw new H2ConnectionException(H2Error.PROTOCOL_ERROR, "Unexpected CONTINUATION frame in stream " + streamId);
+        }
+        appendHeaderBlock(0, length);
+        headersComplete = (flags & END_HEADERS) != 0;
+        if (headersComplete) {
+            onHeaderBlock();
+        }
+    }
+
+    private void appendHeaderBlock(int start, int end) throws H2ConnectionException {
+        // The decoded headers are limited by the decoder, this limits the memory used by the encoded ones
+        if (receivedHeaderBlock.length() + end - start > factory.getMaxHeaderListSize()) {
+            throw new H2ConnectionException(H2Error.ENHANCE_YOUR_CALM, "Header block too large");
+        }
+        receivedHeaderBlock.append(payload, start, end - start);
+    }
+
+    /**
+     * Decodes a complete header block and starts the stream. The block must be decoded even if the stream is refused,
+     * to keep the state of the decoder in sync with the encoder of the client.
+     */
+    private void onHeaderBlock() throws IOException {
+        List<Header> headers;
+        try {
+            headers = decoder.decodeHeaders(ByteBuffer.wrap(receivedHeaderBlock.array(), 0, receivedHeaderBlock.length()));
+        } catch (HPackException e) {
+            throw new H2ConnectionException(H2Error.COMPRESSION_ERROR, "Invalid header block: " + e.getMessage());
+        }
+        var streamId = headersStreamId;
+        if (hasStream(streamId)) {
+            // Trailers of a request in progress, ignored like its body
+            return;
+        }
+        if (streamId <= lastStreamId) {
+            throw new H2ConnectionException(H2Error.STREAM_CLOSED, "HEADERS frame in closed stream " + streamId);
+        }
+        lastStreamId = streamId;
+        var request = toRequest(headers);
+        if (request == null) {
+            sendReset(streamId, H2Error.PROTOCOL_ERROR);
+        } else if (streamCount() >= factory.getMaxConcurrentStreams()) {
+            logger.debug("Refusing stream {}, too many concurrent streams", streamId);
+            factory.streamRefused();
+            sendReset(streamId, H2Error.REFUSED_STREAM);
+        } else {
+            startStream(streamId, request);
+        }
+    }
+
+    /**
+     * @return The request, with the Host header taken from the :authority pseudo-header, or null if it is malformed
+     * https://datatracker.ietf.org/doc/html/rfc7540#section-8.1.2.3
+     */
+    private HttpRequest toRequest(List<Header> headers) {
+        String method = null;
+        String path = null;
+        String authority = null;
+        var regular = new ArrayList<Header>(headers.size());
+        for (var header : headers) {
+            var name = header.getName();
+            if (name.startsWith(":")) {
+                if (!regular.isEmpty()) {
+                    // Pseudo-headers must come first
+                    return null;
+                }
+                switch (name) {
+                    case H2PseudoRequestHeaders.METHOD -> method = header.getValue();
+                    case H2PseudoRequestHeaders.PATH -> path = header.getValue();
+                    case H2PseudoRequestHeaders.AUTHORITY -> authority = header.getValue();
+                    case H2PseudoRequestHeaders.SCHEME -> {
+                        // Always http, the connection has no TLS
+                    }
+                    default -> {
+                        return null;
+                    }
+                }
+            } else {
+                regular.add(header);
+            }
+        }
+        if (method == null || path == null || !path.startsWith("/")) {
+            return null;
+        }
+        if (authority != null) {
+            regular.add(new BasicHeader(HttpHeaders.HOST, authority));
+        }
+        return new HttpRequest(method, path, HTTP_2_0, RequestHeaders.of(regular));
+    }
+
+    private void startStream(int streamId, HttpRequest request) throws IOException {
+        Http2StreamOutput stream;
+        synchronized (this) {
+            stream = new Http2StreamOutput(this, streamId, FRAME_SIZE, initialStreamWindow);
+            streams.put(streamId, stream);
+        }
+        factory.streamOpened();
+        try {
+            factory.getStreamExecutor().execute(() -> process(stream, request));
+        } catch (RejectedExecutionException e) {
+            // All the threads are busy and the queue is full, the client can retry the request
+            logger.debug("Refusing stream {}, no thread available", streamId);
+            removeStream(stream);
+            factory.streamRefused();
+            sendReset(streamId, H2Error.REFUSED_STREAM);
+        }
+    }
+
+    /**
+     * Processes the request of a stream, on a thread of the stream executor.
+     */
+    private void process(Http2StreamOutput stream, HttpRequest request) {
+        try {
+            factory.getRequestHandler().handle(request, stream, remoteAddress, false);
+            stream.finish();
+        } catch (IOException | RuntimeException e) {
+            logger.debug("Error sending response in stream {}: {}", stream.getStreamId(), e.toString());
+            if (!stream.isEnded() && !isClosedOrReset(stream)) {
+                try {
+                    sendReset(stream.getStreamId(), H2Error.INTERNAL_ERROR);
+                } catch (IOException ex) {
+                    logger.debug("Suppressed error resetting stream: {}", ex.toString());
+                }
+            }
+        } finally {
+            removeStream(stream);
+        }
+    }
+
+    private void onResetStream(int streamId, int length) throws IOException {
+        if (length != 4) {
+            throw new H2ConnectionException(H2Error.FRAME_SIZE_ERROR, "Invalid RST_STREAM frame length: " + length);
+        }
+        if (streamId == 0) {
+            throw new H2ConnectionException(H2Error.PROTOCOL_ERROR, "RST_STREAM frame in stream 0");
+        }
+        synchronized (this) {
+            var stream = streams.get(streamId);
+            if (stream != null) {
+                logger.debug("Stream {} reset by the client", streamId);
+                stream.reset = true;
+                notifyAll();
+            }
+        }
+    }
+
+    private void onSettings(int streamId, int flags, int length) throws IOException {
+        if (streamId != 0) {
+            throw new H2ConnectionException(H2Error.PROTOCOL_ERROR, "SETTINGS frame in stream " + streamId);
+        }
+        if ((flags & ACK) != 0) {
+            if (length != 0) {
+                throw new H2ConnectionException(H2Error.FRAME_SIZE_ERROR, "SETTINGS acknowledgement with payload");
+            }
+            return;
+        }
+        applySettings(payload, length);
+        sendFrame(FrameType.SETTINGS, ACK, 0, payload, 0);
+    }
+
+    /**
+     * Applies the settings of the client, which affect the frames sent by the server.
+     * https://datatracker.ietf.org/doc/html/rfc7540#section-6.5.2
+     */
+    private void applySettings(byte[] settings, int length) throws IOException {
+        if (length % 6 != 0) {
+            throw new H2ConnectionException(H2Error.FRAME_SIZE_ERROR, "Invalid SETTINGS frame length: " + length);
+        }
+        for (int i = 0; i < length; i += 6) {
+            var param = H2Param.valueOf((settings[i] & 0xff) << 8 | settings[i + 1] & 0xff);
+            var value = readInt(settings, i + 2) & 0xffffffffL;
+            if (param == null) {
+                // Unknown settings must be ignored
+                continue;
+            }
+            switch (param) {
+                case HEADER_TABLE_SIZE -> setHeaderTableSize((int) Math.min(value, DEFAULT_HEADER_TABLE_SIZE));
+                case ENABLE_PUSH -> {
+                    if (value > 1) {
+                        throw new H2ConnectionException(H2Error.PROTOCOL_ERROR, "Invalid ENABLE_PUSH: " + value);
+                    }
+                }
+                case INITIAL_WINDOW_SIZE -> {
+                    if (value > MAX_WINDOW_SIZE) {
+                        throw new H2ConnectionException(H2Error.FLOW_CONTROL_ERROR, "Invalid INITIAL_WINDOW_SIZE: " + value);
+                    }
+                    setInitialStreamWindow(value);
+                }
+                case MAX_FRAME_SIZE -> {
+                    if (value < FrameConsts.MIN_FRAME_SIZE || value > FrameConsts.MAX_FRAME_SIZE) {
+                        throw new H2ConnectionException(H2Error.PROTOCOL_ERROR, "Invalid MAX_FRAME_SIZE: " + value);
+                    }
+                    // The frames sent are never larger than the minimum
+                }
+                default -> {
+                    // The rest only limit what the server could send, but does not: pushed streams and header lists
+                    // larger than the maximum size of a request
+                }
+            }
+        }
+    }
+
+    /**
+     * Changes the maximum size of the dynamic table of the encoder, which must be signalled to the client in the next
+     * header block, including the smallest size if it changed more than once.
+     * https://datatracker.ietf.org/doc/html/rfc7541#section-4.2
+     */
+    private void setHeaderTableSize(int size) {
+        writeLock.lock();
+        try {
+            if (size != encoder.getMaxTableSize()) {
+                encoder.setMaxTableSize(size);
+                minTableSizeUpdate = minTableSizeUpdate < 0 ? size : Math.min(minTableSizeUpdate, size);
+                tableSizeUpdate = size;
+            }
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Changes the initial window size of the streams, which also changes the windows of the open streams by the same
+     * amount. They may become negative.
+     */
+    private synchronized void setInitialStreamWindow(long size) {
+        var delta = size - initialStreamWindow;
+        initialStreamWindow = size;
+        for (var stream : streams.values()) {
+            stream.sendWindow += delta;
+        }
+        notifyAll();
+    }
+
+    private void onPing(int streamId, int flags, int length) throws IOException {
+        if (length != 8) {
+            throw new H2ConnectionException(H2Error.FRAME_SIZE_ERROR, "Invalid PING frame length: " + length);
+        }
+        if (streamId != 0) {
+            throw new H2ConnectionException(H2Error.PROTOCOL_ERROR, "PING frame in stream " + streamId);
+        }
+        if ((flags & ACK) == 0) {
+            sendFrame(FrameType.PING, ACK, 0, payload, 8);
+        }
+    }
+
+    private void onWindowUpdate(int streamId, int length) throws IOException {
+        if (length != 4) {
+            throw new H2ConnectionException(H2Error.FRAME_SIZE_ERROR, "Invalid WINDOW_UPDATE frame length: " + length);
+        }
+        var increment = readInt(payload, 0) & 0x7fffffff;
+        if (increment == 0 && streamId == 0) {
+            throw new H2ConnectionException(H2Error.PROTOCOL_ERROR, "Invalid WINDOW_UPDATE increment: 0");
+        }
+        H2Error streamError = null;
+        synchronized (this) {
+            if (streamId == 0) {
+                connectionSendWindow += increment;
+                if (connectionSendWindow > MAX_WINDOW_SIZE) {
+                    throw new H2ConnectionException(H2Error.FLOW_CONTROL_ERROR, "Connection window too large");
+                }
+            } else {
+                var stream = streams.get(streamId);
+                if (stream != null) {
+                    stream.sendWindow += increment;
+                    if (increment == 0) {
+                        streamError = H2Error.PROTOCOL_ERROR;
+                    } else if (stream.sendWindow > MAX_WINDOW_SIZE) {
+                        streamError = H2Error.FLOW_CONTROL_ERROR;
+                    }
+                    if (streamError != null) {
+                        stream.reset = true;
+                    }
+                }
+            }
+            notifyAll();
+        }
+        if (streamError != null) {
+            sendReset(streamId, streamError);
+        }
+    }
+
+    /**
+     * Sends the head of a response in a HEADERS frame, followed by CONTINUATION frames if the header block is larger
+     * than a frame.
+     *
+     * @return The size of the header block
+     */
+    int sendHeaders(Http2StreamOutput stream, int status, Map<String, String> headers, long contentLength,
+                    boolean endStream) throws IOException {
+        var fields = new ArrayList<Header>(headers.size() + 3);
+        fields.add(new BasicHeader(H2PseudoResponseHeaders.STATUS, Integer.toString(status)));
+        fields.add(new BasicHeader("date", HeaderEncoder.dateValue(System.currentTimeMillis() / 1000)));
+        if (contentLength >= 0) {
+            fields.add(new BasicHeader("content-length", Long.toString(contentLength)));
+        }
+        for (var entry : headers.entrySet()) {
+            // Header names must be lowercase
+            var name = entry.getKey().toLowerCase(Locale.ROOT);
+            if (!CONNECTION_HEADERS.contains(name)) {
+                fields.add(new BasicHeader(name, entry.getValue()));
+            }
+        }
+        writeLock.lock();
+        try {
+            ensureOpen(stream);
+            sentHeaderBlock.clear();
+            if (tableSizeUpdate >= 0) {
+                if (minTableSizeUpdate < tableSizeUpdate) {
+                    encodeTableSizeUpdate(minTableSizeUpdate);
+                }
+                encodeTableSizeUpdate(tableSizeUpdate);
+                minTableSizeUpdate = -1;
+                tableSizeUpdate = -1;
+            }
+            encoder.encodeHeaders(sentHeaderBlock, fields, true);
+            var size = sentHeaderBlock.length();
+            var type = FrameType.HEADERS;
+            var offset = 0;
+            do {
+                var length = Math.min(size - offset, FRAME_SIZE);
+                var flags = offset + length == size ? END_HEADERS : 0;
+                if (type == FrameType.HEADERS && endStream) {
+                    flags |= END_STREAM;
+                }
+                writeFrame(type, flags, stream.getStreamId(), sentHeaderBlock.array(), offset, length);
+                type = FrameType.CONTINUATION;
+                offset += length;
+            } while (offset < size);
+            flushIfIdle();
+            return size;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Sends part of the body of a response in DATA frames, waiting for the flow control windows as needed. Direct and
+     * mapped buffers are written to the socket without copying them, if the output allows it.
+     *
+     * @param data      The data to send, from its position to its limit, which is consumed
+     * @param endStream Whether this is the end of the body, sent even if there is no data
+     */
+    void sendData(Http2StreamOutput stream, ByteBuffer data, boolean endStream) throws IOException {
+        do {
+            var n = reserveWindow(stream, Math.min(data.remaining(), FRAME_SIZE));
+            var last = n == data.remaining();
+            writeLock.lock();
+            try {
+                ensureOpen(stream);
+                writeFrameHeader(FrameType.DATA, endStream && last ? END_STREAM : 0, stream.getStreamId(), n);
+                ByteBufferOutput.write(out, data.slice(data.position(), n));
+                flushIfIdle();
+            } finally {
+                writeLock.unlock();
+            }
+            data.position(data.position() + n);
+        } while (data.hasRemaining());
+    }
+
+    /**
+     * Waits until the flow control windows of the connection and of the stream allow sending some data, and takes
+     * the space for it.
+     *
+     * @param length The length of the data to send
+     * @return The length of the data that can be sent, at least 1 unless the length is 0
+     */
+    private synchronized int reserveWindow(Http2StreamOutput stream, int length) throws IOException {
+        if (length == 0) {
+            return 0;
+        }
+        while (true) {
+            ensureOpen(stream);
+            var available = Math.min(stream.sendWindow, connectionSendWindow);
+            if (available > 0) {
+                var reserved = (int) Math.min(length, available);
+                stream.sendWindow -= reserved;
+                connectionSendWindow -= reserved;
+                return reserved;
+            }
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted waiting for the flow control window");
+            }
+        }
+    }
+
+    private void sendSettings() throws IOException {
+        var settings = new byte[12];
+        putSetting(settings, 0, H2Param.MAX_CONCURRENT_STREAMS, factory.getMaxConcurrentStreams());
+        putSetting(settings, 6, H2Param.MAX_HEADER_LIST_SIZE, factory.getMaxHeaderListSize());
+        sendFrame(FrameType.SETTINGS, 0, 0, settings, settings.length);
+    }
+
+    private void sendWindowUpdate(int streamId, int increment) throws IOException {
+        var data = new byte[4];
+        putInt(data, 0, increment);
+        sendFrame(FrameType.WINDOW_UPDATE, 0, streamId, data, data.length);
+    }
+
+    private void sendReset(int streamId, H2Error error) throws IOException {
+        var data = new byte[4];
+        putInt(data, 0, error.getCode());
+        sendFrame(FrameType.RST_STREAM, 0, streamId, data, data.length);
+    }
+
+    /**
+     * Tells the client that the connection is closing, and which is the last stream that was processed. Errors are not
+     * reported, the connection is closed anyway.
+     */
+    private void goAway(int errorCode) {
+        var data = new byte[8];
+        putInt(data, 0, lastStreamId);
+        putInt(data, 4, errorCode);
+        try {
+            sendFrame(FrameType.GOAWAY, 0, 0, data, data.length);
+        } catch (IOException e) {
+            logger.debug("Suppressed error sending GOAWAY: {}", e.toString());
+        }
+    }
+
+    /**
+     * Sends a frame that is not part of the response of a stream.
+     */
+    private void sendFrame(FrameType type, int flags, int streamId, byte[] data, int length) throws IOException {
+        writeLock.lock();
+        try {
+            ensureOpen(null);
+            writeFrame(type, flags, streamId, data, 0, length);
+            flushIfIdle();
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Writes a frame to the output. Must be called with the write lock held.
+     */
+    private void writeFrame(FrameType type, int flags, int streamId, byte[] data, int offset, int length) throws IOException {
+        writeFrameHeader(type, flags, streamId, length);
+        out.write(data, offset, length);
+    }
+
+    /**
+     * Writes the header of a frame, which must be followed by its payload. Must be called with the write lock held.
+     */
+    private void writeFrameHeader(FrameType type, int flags, int streamId, int length) throws IOException {
+        sentFrameHeader[0] = (byte) (length >>> 16);
+        sentFrameHeader[1] = (byte) (length >>> 8);
+        sentFrameHeader[2] = (byte) length;
+        sentFrameHeader[3] = (byte) type.getValue();
+        sentFrameHeader[4] = (byte) flags;
+        putInt(sentFrameHeader, 5, streamId);
+        out.write(sentFrameHeader);
+    }
+
+    /**
+     * Flushes the output unless other frames are waiting to be written, which will flush it after them. Must be called
+     * with the write lock held.
+     */
+    private void flushIfIdle() throws IOException {
+        if (!writeLock.hasQueuedThreads()) {
+            out.flush();
+        }
+    }
+
+    /**
+     * Encodes a dynamic table size update: https://datatracker.ietf.org/doc/html/rfc7541#section-6.3
+     */
+    private void encodeTableSizeUpdate(int size) {
+        // Integer with a 5-bit prefix: https://datatracker.ietf.org/doc/html/rfc7541#section-5.1
+        var prefixMax = 0x1f;
+        if (size < prefixMax) {
+            sentHeaderBlock.append(0x20 | size);
+            return;
+        }
+        sentHeaderBlock.append(0x20 | prefixMax);
+        size -= prefixMax;
+        while (size >= 0x80) {
+            sentHeaderBlock.append(size & 0x7f | 0x80);
+            size >>>= 7;
+        }
+        sentHeaderBlock.append(size);
+    }
+
+    /**
+     * @throws ResponseAbortedException If the connection is closed or, if a stream is given, the stream was reset by
+     *                                  the client. The response cannot be sent, not even an error response.
+     */
+    private synchronized void ensureOpen(Http2StreamOutput stream) throws IOException {
+        if (closed) {
+            throw new ResponseAbortedException("Connection closed", null);
+        }
+        if (stream != null && stream.reset) {
+            throw new ResponseAbortedException("Stream %d reset by the client".formatted(stream.getStreamId()), null);
+        }
+    }
+
+    private synchronized boolean isClosedOrReset(Http2StreamOutput stream) {
+        return closed || stream.reset;
+    }
+
+    private synchronized boolean hasStreams() {
+        return !streams.isEmpty();
+    }
+
+    private synchronized boolean hasStream(int streamId) {
+        return streams.containsKey(streamId);
+    }
+
+    private synchronized int streamCount() {
+        return streams.size();
+    }
+
+    private void removeStream(Http2StreamOutput stream) {
+        synchronized (this) {
+            streams.remove(stream.getStreamId());
+        }
+        factory.streamClosed();
+    }
+
+    private static void putSetting(byte[] b, int offset, H2Param param, int value) {
+        b[offset] = (byte) (param.getCode() >>> 8);
+        b[offset + 1] = (byte) param.getCode();
+        putInt(b, offset + 2, value);
+    }
+
+    private static void putInt(byte[] b, int offset, int value) {
+        b[offset] = (byte) (value >>> 24);
+        b[offset + 1] = (byte) (value >>> 16);
+        b[offset + 2] = (byte) (value >>> 8);
+        b[offset + 3] = (byte) value;
+    }
+
+    private static int readInt(byte[] b, int offset) {
+        return (b[offset] & 0xff) << 24 | (b[offset + 1] & 0xff) << 16 | (b[offset + 2] & 0xff) << 8 | b[offset + 3] & 0xff;
+    }
+}
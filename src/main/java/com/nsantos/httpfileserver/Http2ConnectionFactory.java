@@ -0,0 +1,200 @@
+package com.nsantos.httpfileserver;
+
+import com.nsantos.httpfileserver.metrics.ServerMetrics;
+import com.typesafe.config.Config;
+import org.apache.hc.core5.http.Header;
+import org.apache.hc.core5.http.HttpHeaders;
+import org.apache.hc.core5.http.message.BasicHeader;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.SocketAddress;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Starts HTTP/2 connections without TLS (h2c) in the connections of the blocking engine, and holds what is shared by
+ * all of them: the pool of threads that process their streams, their settings and their metrics.
+ * <p>
+ * A client can start HTTP/2 with prior knowledge that the server supports it, sending the HTTP/2 connection preface
+ * instead of its first request, or it can ask to upgrade an HTTP/1.1 connection with the Upgrade header, which is
+ * answered with 101 (Switching Protocols) and the response to the request in the first stream.
+ * https://datatracker.ietf.org/doc/html/rfc7540#section-3
+ */
+class Http2ConnectionFactory {
+    private static final Logger logger = LoggerFactory.getLogger(Http2ConnectionFactory.class);
+
+    /**
+     * How a client started HTTP/2
+     */
+    enum Start {
+        PRIOR_KNOWLEDGE,
+        UPGRADE
+    }
+
+    static final String H2C = "h2c";
+    private static final String HTTP2_SETTINGS = "HTTP2-Settings";
+    private static final String PRI = "PRI";
+
+    private final HttpRequestHandler requestHandler;
+    private final ExecutorService streamExecutor;
+    private final int maxConcurrentStreams;
+    private final int maxHeaderListSize;
+    private final LongAdder[] connections = new LongAdder[Start.values().length];
+    private final LongAdder refusedStreams = new LongAdder();
+    private final AtomicInteger openStreams = new AtomicInteger();
+
+    /**
+     * @param requestHandler Processes the requests received in the streams
+     * @param metrics        Where to register the metrics of the HTTP/2 connections
+     * @param config         Global configuration
+     */
+    Http2ConnectionFactory(HttpRequestHandler requestHandler, ServerMetrics metrics, Config config) {
+        this.requestHandler = requestHandler;
+        this.maxConcurrentStreams = config.getInt(Constants.HTTP2_MAX_CONCURRENT_STREAMS);
+        if (maxConcurrentStreams < 1) {
+            throw new IllegalArgumentException("Invalid value for %s: %d. Must be at least 1".formatted(Constants.HTTP2_MAX_CONCURRENT_STREAMS, maxConcurrentStreams));
+        }
+        var streamThreads = config.getInt(Constants.HTTP2_STREAM_THREADS);
+        if (streamThreads < 1) {
+            throw new IllegalArgumentException("Invalid value for %s: %d. Must be at least 1".formatted(Constants.HTTP2_STREAM_THREADS, streamThreads));
+        }
+        this.maxHeaderListSize = (int) Math.min(config.getBytes(Constants.MAX_HEADER_SIZE), Integer.MAX_VALUE);
+        this.streamExecutor = ThreadUtils.newBoundedThreadPool(streamThreads, config.getInt(Constants.ADMISSION_QUEUE_SIZE), "http2-stream");
+        for (var start : Start.values()) {
+            var adder = new LongAdder();
+            connections[start.ordinal()] = adder;
+            metrics.registerCounter("http2_connections_total", "start=\"%s\"".formatted(start.name().toLowerCase(Locale.ROOT)),
+                    "Connections served with HTTP/2, by how they were started", adder::sum);
+        }
+        metrics.registerGauge("http2_open_streams", "", "Streams of HTTP/2 connections being processed", openStreams::get);
+        metrics.registerCounter("http2_streams_refused_total", "",
+                "Streams of HTTP/2 connections refused, because of too many concurrent streams or no thread available", refusedStreams::sum);
+    }
+
+    /**
+     * @param request      A request received in an HTTP/1.1 connection
+     * @param firstRequest Whether it is the first request of the connection, the only one that may be the preface
+     * @return How the request starts HTTP/2, or null if it does not and it must be processed as HTTP/1.1
+     */
+    Start detectStart(HttpRequest request, boolean firstRequest) {
+        if (firstRequest && PRI.equals(request.method()) && Http2Connection.HTTP_2_0.equals(request.httpVersion())
+                && "*".equals(request.target())) {
+            return Start.PRIOR_KNOWLEDGE;
+        }
+        var headers = request.headers();
+        var upgrade = headers.get(HttpHeaders.UPGRADE);
+        if (upgrade == null || !containsToken(upgrade, H2C)) {
+            return null;
+        }
+        // An upgrade that cannot be served is ignored, and the request is processed as HTTP/1.1
+        // https://datatracker.ietf.org/doc/html/rfc7540#section-3.2
+        var connection = headers.get(HttpHeaders.CONNECTION);
+        if (connection == null || !containsToken(connection, HttpHeaders.UPGRADE) || !containsToken(connection, HTTP2_SETTINGS)
+                || decodeSettings(headers.get(HTTP2_SETTINGS)) == null) {
+            logger.debug("Ignoring invalid upgrade to h2c: {}", request);
+            return null;
+        }
+        var contentLength = headers.get(HttpHeaders.CONTENT_LENGTH);
+        if (headers.get(HttpHeaders.TRANSFER_ENCODING) != null || (contentLength != null && !contentLength.equals("0"))) {
+            // The body would have to be read before switching protocols, and requests with a body are not supported
+            logger.debug("Ignoring upgrade to h2c of a request with a body: {}", request);
+            return null;
+        }
+        return Start.UPGRADE;
+    }
+
+    /**
+     * Creates the HTTP/2 connection for a connection, once detectStart() returned how it starts.
+     *
+     * @param start         How the request starts HTTP/2
+     * @param request       The request that starts HTTP/2
+     * @param in            The input of the connection, after the request
+     * @param out           The output of the connection
+     * @param remoteAddress The address of the client
+     * @return The connection, which the caller must serve
+     */
+    Http2Connection createConnection(Start start, HttpRequest request, InputStream in, OutputStream out,
+                                     SocketAddress remoteAddress) {
+        logger.debug("Starting HTTP/2 with {}: {}", remoteAddress, start);
+        connections[start.ordinal()].increment();
+        if (start == Start.PRIOR_KNOWLEDGE) {
+            return new Http2Connection(this, in, out, remoteAddress, null, null);
+        }
+        // The headers of the request are only valid until the next one is parsed, so they are copied, without those
+        // of the upgrade itself
+        var headers = request.headers();
+        var copied = new ArrayList<Header>(headers.size());
+        for (int i = 0; i < headers.size(); i++) {
+            var name = headers.name(i);
+            if (!name.equalsIgnoreCase(HttpHeaders.UPGRADE) && !name.equalsIgnoreCase(HttpHeaders.CONNECTION)
+                    && !name.equalsIgnoreCase(HTTP2_SETTINGS)) {
+                copied.add(new BasicHeader(name, headers.value(i)));
+            }
+        }
+        var streamRequest = new HttpRequest(request.method(), request.target(), Http2Connection.HTTP_2_0, RequestHeaders.of(copied));
+        return new Http2Connection(this, in, out, remoteAddress, streamRequest, decodeSettings(headers.get(HTTP2_SETTINGS)));
+    }
+
+    HttpRequestHandler getRequestHandler() {
+        return requestHandler;
+    }
+
+    ExecutorService getStreamExecutor() {
+        return streamExecutor;
+    }
+
+    int getMaxConcurrentStreams() {
+        return maxConcurrentStreams;
+    }
+
+    int getMaxHeaderListSize() {
+        return maxHeaderListSize;
+    }
+
+    void streamOpened() {
+        openStreams.incrementAndGet();
+    }
+
+    void streamClosed() {
+        openStreams.decrementAndGet();
+    }
+
+    void streamRefused() {
+        refusedStreams.increment();
+    }
+
+    /**
+     * @return The payload of a SETTINGS frame, encoded in the HTTP2-Settings header with base64url, or null if it is
+     * invalid
+     */
+    private static byte[] decodeSettings(String value) {
+        if (value == null) {
+            return null;
+        }
+        try {
+            var settings = Base64.getUrlDecoder().decode(value.trim());
+            return settings.length % 6 == 0 ? settings : null;
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return Whether a comma-separated list of tokens contains a token, ignoring case
+     */
+    private static boolean containsToken(String list, String token) {
+        for (var element : list.split(",")) {
+            if (element.trim().equalsIgnoreCase(token)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
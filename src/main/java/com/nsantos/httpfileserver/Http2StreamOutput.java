@@ -0,0 +1,145 @@
+package com.nsantos.httpfileserver;
+
+import org.apache.hc.core5.http.HttpStatus;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Map;
+
+/**
+ * The output of the response to a request received in a stream of an HTTP/2 connection. The head of the response is
+ * sent in a HEADERS frame, and the body is buffered and sent in DATA frames of up to the size of the buffer. The stream
+ * is ended by finish(), once the whole response was written, or by the head of responses without a body.
+ * <p>
+ * Used only by the thread that processes the request of the stream, except for the fields guarded by the connection.
+ */
+class Http2StreamOutput extends OutputStream implements ResponseHeadOutput, ByteBufferOutput {
+    private final Http2Connection connection;
+    private final int streamId;
+    private final byte[] buffer;
+    private int count = 0;
+    private boolean headSent = false;
+    private boolean ended = false;
+
+    // Flow control state, guarded by the connection
+    // Bytes of DATA frames that can be sent before the client sends a WINDOW_UPDATE, may be negative after the client
+    // reduces its initial window size
+    long sendWindow;
+    // Reset by the client, which does not want the rest of the response
+    boolean reset = false;
+
+    /**
+     * @param connection The connection of the stream
+     * @param streamId   The identifier of the stream
+     * @param frameSize  Maximum size of the DATA frames
+     * @param sendWindow Initial size of the flow control window of the stream
+     */
+    Http2StreamOutput(Http2Connection connection, int streamId, int frameSize, long sendWindow) {
+        this.connection = connection;
+        this.streamId = streamId;
+        this.buffer = new byte[frameSize];
+        this.sendWindow = sendWindow;
+    }
+
+    int getStreamId() {
+        return streamId;
+    }
+
+    /**
+     * @return Whether the response was completely sent
+     */
+    boolean isEnded() {
+        return ended;
+    }
+
+    @Override
+    public int writeHead(int status, Map<String, String> headers, long contentLength) throws IOException {
+        if (headSent) {
+            throw new IOException("Response head already sent in stream %d".formatted(streamId));
+        }
+        headSent = true;
+        // Responses without a body end the stream with their head
+        ended = contentLength == 0 || status == HttpStatus.SC_NOT_MODIFIED;
+        return connection.sendHeaders(this, status, headers, contentLength, ended);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        ensureBody();
+        if (count == buffer.length) {
+            sendBuffer(false);
+        }
+        buffer[count++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        ensureBody();
+        if (count == 0 && len >= buffer.length) {
+            // Large writes are sent without copying, the connection splits them in frames
+            connection.sendData(this, ByteBuffer.wrap(b, off, len), false);
+            return;
+        }
+        while (len > 0) {
+            if (count == buffer.length) {
+                sendBuffer(false);
+            }
+            var n = Math.min(len, buffer.length - count);
+            System.arraycopy(b, off, buffer, count, n);
+            count += n;
+            off += n;
+            len -= n;
+        }
+    }
+
+    @Override
+    public void write(ByteBuffer src) throws IOException {
+        ensureBody();
+        if (count == 0 && src.remaining() >= buffer.length) {
+            connection.sendData(this, src, false);
+            return;
+        }
+        while (src.hasRemaining()) {
+            if (count == buffer.length) {
+                sendBuffer(false);
+            }
+            var n = Math.min(src.remaining(), buffer.length - count);
+            src.get(buffer, count, n);
+            count += n;
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        if (count > 0) {
+            sendBuffer(false);
+        }
+    }
+
+    /**
+     * Sends the rest of the body and ends the stream, after the whole response was written.
+     *
+     * @throws IOException If no response was written, or it could not be sent
+     */
+    void finish() throws IOException {
+        if (!headSent) {
+            throw new IOException("No response written to stream %d".formatted(streamId));
+        }
+        if (!ended) {
+            sendBuffer(true);
+            ended = true;
+        }
+    }
+
+    private void sendBuffer(boolean endStream) throws IOException {
+        connection.sendData(this, ByteBuffer.wrap(buffer, 0, count), endStream);
+        count = 0;
+    }
+
+    private void ensureBody() throws IOException {
+        if (!headSent || ended) {
+            throw new IOException("Unexpected body in stream %d".formatted(streamId));
+        }
+    }
+}
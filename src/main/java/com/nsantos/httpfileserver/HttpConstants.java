@@ -5,16 +5,31 @@ import org.apache.hc.core5.http.ContentType;
 import org.apache.hc.core5.http.HttpStatus;
 
 import java.nio.charset.StandardCharsets;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.Locale;
 import java.util.Map;
 
 public interface HttpConstants {
-    Map<Integer, String> HTTP_STATUS = Map.of(
-            HttpStatus.SC_OK, "OK",
-            HttpStatus.SC_BAD_REQUEST, "Bad Request",
-            HttpStatus.SC_FORBIDDEN, "Forbidden",
-            HttpStatus.SC_NOT_FOUND, "Not Found"
+    Map<Integer, String> HTTP_STATUS = Map.ofEntries(
+            Map.entry(HttpStatus.SC_OK, "OK"),
+            Map.entry(HttpStatus.SC_PARTIAL_CONTENT, "Partial Content"),
+            Map.entry(HttpStatus.SC_NOT_MODIFIED, "Not Modified"),
+            Map.entry(HttpStatus.SC_BAD_REQUEST, "Bad Request"),
+            Map.entry(HttpStatus.SC_FORBIDDEN, "Forbidden"),
+            Map.entry(HttpStatus.SC_NOT_FOUND, "Not Found"),
+            Map.entry(HttpStatus.SC_REQUEST_URI_TOO_LONG, "URI Too Long"),
+            Map.entry(HttpStatus.SC_REQUESTED_RANGE_NOT_SATISFIABLE, "Range Not Satisfiable"),
+            Map.entry(HttpStatus.SC_REQUEST_HEADER_FIELDS_TOO_LARGE, "Request Header Fields Too Large"),
+            Map.entry(HttpStatus.SC_INTERNAL_SERVER_ERROR, "Internal Server Error"),
+            Map.entry(HttpStatus.SC_SERVICE_UNAVAILABLE, "Service Unavailable")
     );
 
     ContentType TEXT_PLAIN_UTF8 = ContentType.TEXT_PLAIN.withCharset(StandardCharsets.UTF_8);
     ContentType TEXT_HTML_UTF8 = ContentType.TEXT_HTML.withCharset(StandardCharsets.UTF_8);
+
+    // IMF-fixdate, the preferred format of HTTP dates. DateTimeFormatter.RFC_1123_DATE_TIME does not pad the day.
+    // https://datatracker.ietf.org/doc/html/rfc7231#section-7.1.1.1
+    DateTimeFormatter HTTP_DATE_FORMAT = DateTimeFormatter.ofPattern("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US)
+            .withZone(ZoneOffset.UTC);
 }
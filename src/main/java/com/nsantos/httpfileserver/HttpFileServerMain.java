@@ -1,8 +1,10 @@
 package com.nsantos.httpfileserver;
 
+import com.nsantos.httpfileserver.accesslog.AccessLog;
 import com.nsantos.httpfileserver.exceptions.ExceptionHandler;
-import com.nsantos.httpfileserver.fileserver.FileServer;
+import com.nsantos.httpfileserver.fileserver.CachingFileServer;
 import com.nsantos.httpfileserver.fileserver.FileServerImpl;
+import com.nsantos.httpfileserver.metrics.ServerMetrics;
 import com.typesafe.config.Config;
 import com.typesafe.config.ConfigFactory;
 import org.slf4j.Logger;
@@ -70,16 +72,20 @@ public class HttpFileServerMain {
         // We should use a proper DI framework like Guice, which would facilitate management of dependencies and testing.
         // But for this simple example, we simulate DI by passing the dependencies explicitly in the constructors.
         Config conf = ConfigFactory.load();
-        FileServer fileServer = new FileServerImpl(conf);
-        HttpResponseWriter httpResponseWriter = new HttpResponseWriter(conf);
+        CachingFileServer fileServer = new CachingFileServer(new FileServerImpl(conf), conf);
+        ServerMetrics metrics = new ServerMetrics();
+        AccessLog accessLog = new AccessLog(conf);
+        HttpResponseWriter httpResponseWriter = new HttpResponseWriter(conf, metrics);
         ExceptionHandler exceptionHandler = new ExceptionHandler(httpResponseWriter);
-        ConnectionHandlerFactory fsc = new ConnectionHandlerFactory(fileServer, exceptionHandler, httpResponseWriter, conf);
+        ConnectionHandlerFactory fsc = new ConnectionHandlerFactory(fileServer, exceptionHandler, httpResponseWriter, metrics, accessLog, conf);
         var server = new HttpFileServerMain(fsc, conf);
         server.start();
         Runtime.getRuntime().addShutdownHook(new Thread(() -> {
             try {
                 logger.info("Shutting down");
                 server.stop();
+                fileServer.close();
+                accessLog.close();
             } catch (Throwable t) {
                 logger.warn("Error closing TCPServer", t);
             }
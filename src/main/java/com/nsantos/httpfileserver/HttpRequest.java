@@ -1,8 +1,12 @@
 package com.nsantos.httpfileserver;
 
-import java.net.URI;
-import java.util.Map;
-
-record HttpRequest(String method, URI uri, String httpVersion, Map<String, String> headers) {
+/**
+ * The head of an HTTP request.
+ *
+ * @param method      The method, interned if it is a standard method
+ * @param target      The request target, as received
+ * @param httpVersion The protocol version, interned if it is a known version
+ * @param headers     The headers, only valid until the next request of the same connection is parsed
+ */
+record HttpRequest(String method, String target, String httpVersion, RequestHeaders headers) {
 }
-
@@ -0,0 +1,263 @@
+package com.nsantos.httpfileserver;
+
+import com.nsantos.httpfileserver.accesslog.AccessLog;
+import com.nsantos.httpfileserver.exceptions.ExceptionHandler;
+import com.nsantos.httpfileserver.exceptions.ResponseAbortedException;
+import com.nsantos.httpfileserver.exceptions.WebServerException;
+import com.nsantos.httpfileserver.fileserver.FileServer;
+import com.nsantos.httpfileserver.fileserver.FileStat;
+import com.nsantos.httpfileserver.metrics.ServerMetrics;
+import com.nsantos.httpfileserver.metrics.ServerMetrics.PathClass;
+import com.typesafe.config.Config;
+import org.apache.hc.core5.http.ContentType;
+import org.apache.hc.core5.http.HttpHeaders;
+import org.apache.hc.core5.http.HttpStatus;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.SocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AccessDeniedException;
+import java.util.HashMap;
+import java.util.Locale;
+
+/**
+ * Processes a single HTTP request, writing the response to an OutputStream. This class holds no per-connection state,
+ * so a single instance is shared by all connections, independently of the engine used to serve them.
+ */
+class HttpRequestHandler {
+    private static final Logger logger = LoggerFactory.getLogger(HttpRequestHandler.class);
+    // https://prometheus.io/docs/instrumenting/exposition_formats/#basic-info
+    private static final ContentType PROMETHEUS_TEXT = ContentType.parse("text/plain; version=0.0.4; charset=utf-8");
+
+    private final FileServer fileServer;
+    private final ExceptionHandler exceptionHandler;
+    private final HttpResponseWriter httpResponseWriter;
+    private final ContentEncoder contentEncoder;
+    private final DirectoryListingHandler directoryListingHandler;
+    private final ServerMetrics metrics;
+    private final AccessLog accessLog;
+    // Path of the metrics, without the starting /, or null if they are not served
+    private final String metricsPath;
+
+    /**
+     * @param fileServer         The file server used to resolve the requested files
+     * @param exceptionHandler   Handler for exceptions that occur while processing the requests.
+     * @param httpResponseWriter Generates HTTP Responses
+     * @param metrics            Where to record the requests
+     * @param accessLog          Where to log the requests
+     * @param config             Global configuration
+     */
+    public HttpRequestHandler(FileServer fileServer, ExceptionHandler exceptionHandler, HttpResponseWriter httpResponseWriter,
+                              ServerMetrics metrics, AccessLog accessLog, Config config) {
+        this.fileServer = fileServer;
+        this.exceptionHandler = exceptionHandler;
+        this.httpResponseWriter = httpResponseWriter;
+        this.contentEncoder = new ContentEncoder(config);
+        this.directoryListingHandler = new DirectoryListingHandler(fileServer, httpResponseWriter, contentEncoder, config);
+        this.metrics = metrics;
+        this.accessLog = accessLog;
+        var path = config.getString(Constants.METRICS_PATH);
+        if (!path.isEmpty() && !path.startsWith("/")) {
+            throw new IllegalArgumentException("Invalid value for %s: %s. Must start with /".formatted(Constants.METRICS_PATH, path));
+        }
+        this.metricsPath = path.isEmpty() ? null : path.substring(1);
+        metrics.registerCacheStats("compression", contentEncoder::getCacheStats);
+        metrics.registerCounter("compressed_responses_total", "source=\"on_the_fly\"", "Responses sent compressed, by source of the compressed body",
+                contentEncoder::getCompressedResponses);
+        metrics.registerCounter("compressed_responses_total", "source=\"precompressed\"", "Responses sent compressed, by source of the compressed body",
+                contentEncoder::getPrecompressedResponses);
+    }
+
+    /**
+     * Processes a request, writing the response to the given output stream. Errors are converted to HTTP responses
+     * by the exception handler, only errors writing to the output stream are propagated to the caller.
+     *
+     * @param request       The request to process
+     * @param os            Where to write the response
+     * @param remoteAddress The address of the client, for the access log
+     * @param lastRequest   Whether the connection is closed after this request, which is announced in the response
+     * @throws IOException
+     */
+    public void handle(HttpRequest request, OutputStream os, SocketAddress remoteAddress, boolean lastRequest) throws IOException {
+        metrics.requestStarted();
+        httpResponseWriter.setConnectionClose(lastRequest);
+        try {
+            var method = request.method().toUpperCase(Locale.ROOT);
+            logger.debug("Request URI: {}, Method: {}", request.target(), method);
+            switch (method) {
+                case "GET" -> handleGet(request, os);
+                case "HEAD" -> handleHead(request, os);
+                default -> throw new UnsupportedOperationException();
+            }
+        } catch (ResponseAbortedException e) {
+            // Part of the response was already sent, the connection must be closed
+            throw e;
+        } catch (Throwable t) {
+            exceptionHandler.handleException(t, os);
+        } finally {
+            var exchange = metrics.requestCompleted(request.method());
+            accessLog.log(remoteAddress, request.method(), request.target(), request.httpVersion(),
+                    exchange.status(), exchange.bytesSent(), exchange.durationNanos(), exchange.storageWaitNanos(), exchange.networkWaitNanos());
+        }
+    }
+
+    /**
+     * Replies to a request that could not be parsed.
+     *
+     * @param ex            The error found parsing the request
+     * @param os            Where to write the response
+     * @param remoteAddress The address of the client, for the access log
+     * @throws IOException
+     */
+    public void handleMalformedRequest(WebServerException ex, OutputStream os, SocketAddress remoteAddress) throws IOException {
+        metrics.requestStarted();
+        // The rest of the input cannot be parsed, so the connection is always closed
+        httpResponseWriter.setConnectionClose(true);
+        try {
+            exceptionHandler.handleException(ex, os);
+            os.flush();
+        } finally {
+            var exchange = metrics.requestCompleted(null);
+            accessLog.log(remoteAddress, null, null, null, exchange.status(), exchange.bytesSent(), exchange.durationNanos(),
+                    exchange.storageWaitNanos(), exchange.networkWaitNanos());
+        }
+    }
+
+    private void handleHead(HttpRequest request, OutputStream os) {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * Sends a file, or the ranges of the file requested with the Range header. The validators, the size and the
+     * content type of the file all come from the same metadata, so that they are consistent with each other.
+     * <p>
+     * The file is sent compressed if the client accepts it, either from a pre-compressed file or compressed on the fly.
+     * Ranges are always served from the file without compression.
+     */
+    private void sendFile(HttpRequest request, OutputStream os, String requestPath, FileStat stat) throws IOException {
+        var file = fileServer.getFile(requestPath);
+        var headers = new HashMap<String, String>();
+        var rangeHeader = request.headers().get(HttpHeaders.RANGE);
+
+        var precompressed = contentEncoder.usePrecompressed() ? findPrecompressed(requestPath, stat) : null;
+        var compressible = contentEncoder.isCompressible(stat);
+        if (precompressed != null || compressible) {
+            headers.put(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING);
+            var encoding = rangeHeader == null ? contentEncoder.negotiate(request.headers()) : null;
+            if (encoding == ContentEncoder.Encoding.GZIP && precompressed != null) {
+                var validators = Validators.forFile(precompressed).withEncoding(encoding.token);
+                if (!sendNotModified(request, os, headers, validators)) {
+                    headers.put(HttpHeaders.CONTENT_ENCODING, encoding.token);
+                    httpResponseWriter.sendResponse(os, HttpStatus.SC_OK, headers,
+                            fileServer.getFile(requestPath + ContentEncoder.GZIP_EXTENSION), precompressed);
+                    contentEncoder.recordPrecompressedResponse();
+                }
+                return;
+            }
+            if (encoding != null && compressible) {
+                var compressed = contentEncoder.getCompressed(fileServer, requestPath, stat, encoding);
+                if (compressed.isPresent()) {
+                    var validators = Validators.forFile(stat).withEncoding(encoding.token);
+                    if (!sendNotModified(request, os, headers, validators)) {
+                        headers.put(HttpHeaders.CONTENT_ENCODING, encoding.token);
+                        httpResponseWriter.sendResponse(os, HttpStatus.SC_OK, headers, stat, compressed.get());
+                    }
+                    return;
+                }
+            }
+        }
+
+        var validators = Validators.forFile(stat);
+        if (sendNotModified(request, os, headers, validators)) {
+            return;
+        }
+        var ifRange = request.headers().get(HttpHeaders.IF_RANGE);
+        if (rangeHeader != null && (ifRange == null || validators.matchesIfRange(ifRange))) {
+            var ranges = ByteRange.parseRangeHeader(rangeHeader, stat.size());
+            if (ranges != null) {
+                if (ranges.isEmpty()) {
+                    logger.debug("Range not satisfiable: {}, File size: {}", rangeHeader, stat.size());
+                    httpResponseWriter.sendRangeNotSatisfiable(os, headers, stat.size());
+                } else {
+                    httpResponseWriter.sendPartialResponse(os, headers, file, stat, ranges);
+                }
+                return;
+            }
+            // Invalid or unsupported Range headers are ignored
+        }
+        var content = fileServer.getContent(requestPath, stat);
+        if (content.isPresent()) {
+            httpResponseWriter.sendResponse(os, HttpStatus.SC_OK, headers, stat, content.get());
+        } else {
+            httpResponseWriter.sendResponse(os, HttpStatus.SC_OK, headers, file, stat);
+        }
+    }
+
+    /**
+     * Adds the validators to the headers, and sends a 304 (Not Modified) response if the client has a valid copy.
+     *
+     * @return true if the response was sent
+     */
+    private boolean sendNotModified(HttpRequest request, OutputStream os, HashMap<String, String> headers, Validators validators) throws IOException {
+        validators.addTo(headers);
+        if (validators.isNotModified(request.headers())) {
+            logger.debug("Not modified: {}", request.target());
+            httpResponseWriter.sendNotModified(os, headers);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return The metadata of the pre-compressed version of a file, with the content type of the file, or null if there
+     * is no pre-compressed file or if it is older than the file.
+     */
+    private FileStat findPrecompressed(String requestPath, FileStat stat) throws IOException {
+        var precompressed = fileServer.stat(requestPath + ContentEncoder.GZIP_EXTENSION).orElse(null);
+        if (precompressed == null || !precompressed.isFile() || precompressed.lastModifiedNanos() < stat.lastModifiedNanos()) {
+            return null;
+        }
+        return precompressed.withContentType(stat.contentType());
+    }
+
+    private void handleGet(HttpRequest request, OutputStream os) throws IOException, WebServerException {
+        // Split the query from the path, and remove the starting /
+        var target = request.target();
+        var queryStart = target.indexOf('?');
+        var uri = queryStart < 0 ? target.substring(1) : target.substring(1, queryStart);
+        var query = queryStart < 0 ? null : target.substring(queryStart + 1);
+        // Support UTF_8 characters
+        var requestPath = URLDecoder.decode(uri, StandardCharsets.UTF_8);
+        if (requestPath.equals(metricsPath)) {
+            metrics.setPathClass(PathClass.METRICS);
+            httpResponseWriter.sendResponse(os, HttpStatus.SC_OK, new HashMap<>(),
+                    metrics.render().getBytes(StandardCharsets.UTF_8), PROMETHEUS_TEXT);
+            return;
+        }
+        try {
+            var stat = fileServer.stat(requestPath).orElse(null);
+            if (stat != null && stat.isFile()) {
+                // Send the file
+                metrics.setPathClass(PathClass.FILE);
+                sendFile(request, os, requestPath, stat);
+
+            } else if (stat != null && stat.isDirectory()) {
+                // Send a directory listing
+                metrics.setPathClass(PathClass.DIRECTORY);
+                directoryListingHandler.sendListing(request, os, requestPath, query);
+
+            } else {
+                logger.debug("File not found {}", requestPath);
+                metrics.setPathClass(PathClass.NOT_FOUND);
+                httpResponseWriter.sendResponse(os, HttpStatus.SC_NOT_FOUND, new HashMap<>());
+            }
+        } catch (AccessDeniedException ex) {
+            logger.debug("Access denied: {}", ex.toString());
+            httpResponseWriter.sendResponse(os, HttpStatus.SC_FORBIDDEN, new HashMap<>());
+        }
+    }
+}
@@ -0,0 +1,341 @@
+package com.nsantos.httpfileserver;
+
+import com.nsantos.httpfileserver.exceptions.WebServerException;
+import com.typesafe.config.Config;
+import org.apache.hc.core5.http.HttpStatus;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Parses HTTP requests directly from the bytes received in a connection. A single buffer is used for all the requests
+ * of the connection: data is read into the buffer with one of the fill methods and each call to parse() consumes the
+ * head (request line and headers) of one request. Any bytes after the head, like the body of the request or the next
+ * pipelined requests, are kept in the buffer.
+ * <p>
+ * The request returned by parse() refers to the buffer, so it is only valid until the next call to a fill method.
+ */
+class HttpRequestParser {
+    private static final int INITIAL_BUFFER_SIZE = 8 * 1024;
+
+    // Interned values of the request line
+    private static final String[] KNOWN_METHODS = {"GET", "HEAD", "POST", "PUT", "DELETE", "OPTIONS", "PATCH", "TRACE", "CONNECT", "PRI"};
+    private static final String[] KNOWN_VERSIONS = {"HTTP/1.1", "HTTP/1.0", "HTTP/2.0"};
+
+    private final int maxRequestLineSize;
+    private final int maxHeaderSize;
+    private final RequestHeaders headers = new RequestHeaders();
+
+    private byte[] buffer = new byte[INITIAL_BUFFER_SIZE];
+    // Wraps the buffer to read from channels
+    private ByteBuffer byteBuffer = ByteBuffer.wrap(buffer);
+    // The data not yet consumed is between start and end
+    private int start = 0;
+    private int end = 0;
+    // Position from where to continue searching for the end of the head, to avoid scanning the same bytes again
+    private int scanPosition = 0;
+
+    /**
+     * @param maxRequestLineSize Maximum size of the request line, larger ones are rejected with 414 (URI Too Long)
+     * @param maxHeaderSize      Maximum size of the headers, larger ones are rejected with 431 (Header Fields Too Large)
+     */
+    public HttpRequestParser(int maxRequestLineSize, int maxHeaderSize) {
+        this.maxRequestLineSize = maxRequestLineSize;
+        this.maxHeaderSize = maxHeaderSize;
+    }
+
+    public HttpRequestParser(Config config) {
+        this(toIntExact(config, Constants.MAX_REQUEST_LINE_SIZE), toIntExact(config, Constants.MAX_HEADER_SIZE));
+    }
+
+    private static int toIntExact(Config config, String path) {
+        var value = config.getBytes(path);
+        if (value <= 0 || value > Integer.MAX_VALUE / 4) {
+            throw new IllegalArgumentException("Invalid value for %s: %d bytes".formatted(path, value));
+        }
+        return value.intValue();
+    }
+
+    /**
+     * Reads more data from a stream into the buffer. Blocks until some data is available.
+     *
+     * @return The number of bytes read, or -1 if the end of the stream was reached.
+     */
+    public int fill(InputStream is) throws IOException, WebServerException {
+        ensureSpace();
+        var read = is.read(buffer, end, buffer.length - end);
+        if (read > 0) {
+            end += read;
+        }
+        return read;
+    }
+
+    /**
+     * Reads more data from a channel into the buffer. If the channel is in non-blocking mode, it may read nothing.
+     *
+     * @return The number of bytes read, or -1 if the end of the stream was reached.
+     */
+    public int fill(ReadableByteChannel channel) throws IOException, WebServerException {
+        ensureSpace();
+        byteBuffer.limit(buffer.length).position(end);
+        var read = channel.read(byteBuffer);
+        if (read > 0) {
+            end += read;
+        }
+        return read;
+    }
+
+    /**
+     * @return true if there is data in the buffer that was not yet consumed.
+     */
+    public boolean hasBufferedData() {
+        return end > start;
+    }
+
+    /**
+     * Parses the head of the next request in the buffer.
+     *
+     * @return The request, or null if the buffer does not contain a complete request yet.
+     * @throws WebServerException If the request is malformed or exceeds the configured limits.
+     */
+    public HttpRequest parse() throws WebServerException {
+        // Ignore empty lines before the request line, as per spec
+        while (start < end && (buffer[start] == '\r' || buffer[start] == '\n')) {
+            start++;
+        }
+        var headEnd = findEndOfHead();
+        if (headEnd < 0) {
+            checkLimitsOfIncompleteHead();
+            return null;
+        }
+
+        // Request line: method SP request-target SP HTTP-version CRLF
+        // https://datatracker.ietf.org/doc/html/rfc7230#section-3.1.1
+        var lineEnd = indexOf(start, headEnd, (byte) '\n');
+        var requestLineEnd = trimLineEnd(start, lineEnd);
+        if (requestLineEnd - start > maxRequestLineSize) {
+            throw new WebServerException("Request line too long", HttpStatus.SC_REQUEST_URI_TOO_LONG);
+        }
+        var methodEnd = indexOf(start, requestLineEnd, (byte) ' ');
+        var targetEnd = methodEnd < 0 ? -1 : indexOf(methodEnd + 1, requestLineEnd, (byte) ' ');
+        if (methodEnd <= start || targetEnd <= methodEnd + 1 || targetEnd + 1 >= requestLineEnd) {
+            throw new WebServerException("Malformed request line", HttpStatus.SC_BAD_REQUEST);
+        }
+        var method = intern(KNOWN_METHODS, start, methodEnd);
+        var target = new String(buffer, methodEnd + 1, targetEnd - methodEnd - 1, StandardCharsets.ISO_8859_1);
+        var httpVersion = intern(KNOWN_VERSIONS, targetEnd + 1, requestLineEnd);
+
+        // Headers: field-name ":" OWS field-value OWS CRLF, until an empty line
+        // https://datatracker.ietf.org/doc/html/rfc7230#section-3.2
+        if (headEnd - (lineEnd + 1) > maxHeaderSize) {
+            throw new WebServerException("Request headers too large", HttpStatus.SC_REQUEST_HEADER_FIELDS_TOO_LARGE);
+        }
+        headers.reset(buffer);
+        var lineStart = lineEnd + 1;
+        while (true) {
+            lineEnd = indexOf(lineStart, headEnd, (byte) '\n');
+            var contentEnd = trimLineEnd(lineStart, lineEnd);
+            if (contentEnd == lineStart) {
+                break;
+            }
+            var colon = indexOf(lineStart, contentEnd, (byte) ':');
+            if (colon <= lineStart) {
+                throw new WebServerException("Malformed header line", HttpStatus.SC_BAD_REQUEST);
+            }
+            var valueStart = colon + 1;
+            while (valueStart < contentEnd && isWhitespace(buffer[valueStart])) {
+                valueStart++;
+            }
+            var valueEnd = contentEnd;
+            while (valueEnd > valueStart && isWhitespace(buffer[valueEnd - 1])) {
+                valueEnd--;
+            }
+            headers.add(lineStart, colon, valueStart, valueEnd);
+            lineStart = lineEnd + 1;
+        }
+
+        start = headEnd;
+        scanPosition = start;
+        return new HttpRequest(method, target, httpVersion, headers);
+    }
+
+    /**
+     * Returns a stream to read a body of a given length that follows the head of the request just parsed. The bytes
+     * already in the buffer are read first, the rest is read from the given stream.
+     *
+     * @param is     The stream of the connection
+     * @param length The length of the body
+     */
+    public InputStream body(InputStream is, long length) {
+        return new InputStream() {
+            private long remaining = length;
+
+            @Override
+            public int read() throws IOException {
+                var b = new byte[1];
+                return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                if (remaining <= 0) {
+                    return -1;
+                }
+                len = (int) Math.min(len, remaining);
+                int read;
+                if (start < end) {
+                    read = Math.min(len, end - start);
+                    System.arraycopy(buffer, start, b, off, read);
+                    start += read;
+                    scanPosition = start;
+                } else {
+                    read = is.read(b, off, len);
+                    if (read < 0) {
+                        throw new IOException("Unexpected end of input reading request body");
+                    }
+                }
+                remaining -= read;
+                return read;
+            }
+        };
+    }
+
+    /**
+     * Returns a stream with the rest of the input of the connection, for connections that switch to another protocol
+     * after the request just parsed. The bytes already in the buffer are read first, the rest is read from the given
+     * stream. The parser must not be used afterwards.
+     *
+     * @param is The stream of the connection
+     */
+    public InputStream remainingInput(InputStream is) {
+        return new InputStream() {
+            @Override
+            public int read() throws IOException {
+                var b = new byte[1];
+                return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                if (start == end) {
+                    return is.read(b, off, len);
+                }
+                var read = Math.min(len, end - start);
+                System.arraycopy(buffer, start, b, off, read);
+                start += read;
+                return read;
+            }
+
+            @Override
+            public int available() throws IOException {
+                return end - start + is.available();
+            }
+        };
+    }
+
+    /**
+     * @return The position after the empty line that ends the head of the request at the start of the buffer, or -1
+     * if the buffer does not have a complete head yet.
+     */
+    private int findEndOfHead() {
+        // Clients may end lines with LF only, so look for LF followed by an optional CR and a second LF
+        for (int i = Math.max(scanPosition, start); i < end; i++) {
+            if (buffer[i] == '\n') {
+                var next = i + 1;
+                if (next < end && buffer[next] == '\r') {
+                    next++;
+                }
+                if (next < end && buffer[next] == '\n') {
+                    return next + 1;
+                }
+                if (next >= end) {
+                    // The end of the head may be split across reads, scan this line end again next time
+                    scanPosition = i;
+                    return -1;
+                }
+            }
+        }
+        scanPosition = end;
+        return -1;
+    }
+
+    private void checkLimitsOfIncompleteHead() throws WebServerException {
+        var lineEnd = indexOf(start, end, (byte) '\n');
+        if (lineEnd < 0) {
+            if (end - start > maxRequestLineSize) {
+                throw new WebServerException("Request line too long", HttpStatus.SC_REQUEST_URI_TOO_LONG);
+            }
+        } else if (end - lineEnd > maxHeaderSize) {
+            throw new WebServerException("Request headers too large", HttpStatus.SC_REQUEST_HEADER_FIELDS_TOO_LARGE);
+        }
+    }
+
+    /**
+     * Makes room in the buffer for more data, by discarding the consumed data or by growing the buffer.
+     */
+    private void ensureSpace() throws WebServerException {
+        if (end < buffer.length) {
+            return;
+        }
+        if (start > 0) {
+            System.arraycopy(buffer, start, buffer, 0, end - start);
+            end -= start;
+            scanPosition -= start;
+            start = 0;
+        } else {
+            // The limits are checked by parse() as data arrives, this is only a safeguard
+            var maxBufferSize = maxRequestLineSize + maxHeaderSize + 4;
+            if (buffer.length >= maxBufferSize) {
+                throw new WebServerException("Request headers too large", HttpStatus.SC_REQUEST_HEADER_FIELDS_TOO_LARGE);
+            }
+            var newBuffer = new byte[Math.min(buffer.length * 2, maxBufferSize)];
+            System.arraycopy(buffer, 0, newBuffer, 0, end);
+            buffer = newBuffer;
+            byteBuffer = ByteBuffer.wrap(buffer);
+        }
+    }
+
+    private int indexOf(int from, int to, byte b) {
+        for (int i = from; i < to; i++) {
+            if (buffer[i] == b) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return The end of the content of a line ending at lineEnd (the position of the LF), excluding the CR.
+     */
+    private int trimLineEnd(int lineStart, int lineEnd) {
+        return lineEnd > lineStart && buffer[lineEnd - 1] == '\r' ? lineEnd - 1 : lineEnd;
+    }
+
+    private static boolean isWhitespace(byte b) {
+        return b == ' ' || b == '\t';
+    }
+
+    /**
+     * @return The interned value among the known ones, if it matches one, otherwise a new string.
+     */
+    private String intern(String[] known, int from, int to) {
+        for (var value : known) {
+            if (value.length() == to - from && matches(value, from)) {
+                return value;
+            }
+        }
+        return new String(buffer, from, to - from, StandardCharsets.ISO_8859_1);
+    }
+
+    private boolean matches(String value, int from) {
+        for (int i = 0; i < value.length(); i++) {
+            if (buffer[from + i] != value.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
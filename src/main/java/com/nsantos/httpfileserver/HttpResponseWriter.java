@@ -1,54 +1,267 @@
 package com.nsantos.httpfileserver;
 
+import com.nsantos.httpfileserver.exceptions.ResponseAbortedException;
+import com.nsantos.httpfileserver.fileserver.FileStat;
+import com.nsantos.httpfileserver.metrics.ServerMetrics;
 import com.typesafe.config.Config;
 import org.apache.hc.core5.http.ContentType;
 import org.apache.hc.core5.http.HeaderElements;
 import org.apache.hc.core5.http.HttpHeaders;
+import org.apache.hc.core5.http.HttpStatus;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.io.OutputStream;
-import java.io.OutputStreamWriter;
-import java.net.URLConnection;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
-import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Clock;
 import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
- * Static utility methods to generate HTTP Responses
+ * Static utility methods to generate HTTP Responses. The responses are not flushed, the caller decides when to flush
+ * the output stream, so that the responses to pipelined requests can be sent together.
  */
 public class HttpResponseWriter {
     private static final Logger logger = LoggerFactory.getLogger(HttpResponseWriter.class);
-    private final long keepAliveTimeoutSeconds;
+    private static final String BYTES_RANGE_UNIT = "bytes";
+    private static final byte[] CRLF_BYTES = Constants.CRLF.getBytes(StandardCharsets.US_ASCII);
+    // Size of the buffer used to copy files when they cannot be transferred directly
+    private static final int COPY_BUFFER_SIZE = 64 * 1024;
+    // Maximum size of the chunks of bodies sent with chunked transfer coding
+    private static final int CHUNK_SIZE = 16 * 1024;
+    // Passed as the content length of responses that must not have a Content-Length header
+    private static final long NO_CONTENT_LENGTH = -1;
+    private final HeaderEncoder headerEncoder;
+    private final MappedFileCache mappedFileCache;
+    private final AsyncFileReader asyncFileReader;
+    private final ServerMetrics metrics;
+    // Bytes of file bodies sent without copying them through the Java heap, and bytes copied through streams.
+    private final LongAdder zeroCopyBytesSent = new LongAdder();
+    private final LongAdder copiedBytesSent = new LongAdder();
+    // Bytes of file bodies sent from contents cached in memory, and from files mapped in memory
+    private final LongAdder cachedBytesSent = new LongAdder();
+    private final LongAdder mappedBytesSent = new LongAdder();
+    // Bytes of file bodies read with asynchronous reads
+    private final LongAdder asyncBytesSent = new LongAdder();
 
-    public HttpResponseWriter(Config config) {
-        this.keepAliveTimeoutSeconds = config.getDuration("com.nsantos.httpfileserver.keep-alive-timeout", TimeUnit.SECONDS);
+    /**
+     * @param config  Global configuration
+     * @param metrics Where to record the responses
+     */
+    public HttpResponseWriter(Config config, ServerMetrics metrics) {
+        var keepAliveTimeoutSeconds = config.getDuration("com.nsantos.httpfileserver.keep-alive-timeout", TimeUnit.SECONDS);
+        var keepAliveMaxRequests = config.getInt(Constants.KEEP_ALIVE_MAX_REQUESTS);
+        if (keepAliveMaxRequests < 1) {
+            throw new IllegalArgumentException("Invalid value for %s: %d. Must be at least 1".formatted(
+                    Constants.KEEP_ALIVE_MAX_REQUESTS, keepAliveMaxRequests));
+        }
+        this.headerEncoder = new HeaderEncoder(keepAliveTimeoutSeconds, keepAliveMaxRequests, Clock.systemUTC());
+        this.mappedFileCache = new MappedFileCache(config);
+        this.asyncFileReader = new AsyncFileReader(config, metrics);
+        this.metrics = metrics;
+        mappedFileCache.registerMetrics(metrics);
+        metrics.registerCounter("file_sent_bytes_total", "transfer=\"zero_copy\"", "Bytes of file bodies, by how they were sent", this::getZeroCopyBytesSent);
+        metrics.registerCounter("file_sent_bytes_total", "transfer=\"copied\"", "Bytes of file bodies, by how they were sent", this::getCopiedBytesSent);
+        metrics.registerCounter("file_sent_bytes_total", "transfer=\"memory\"", "Bytes of file bodies, by how they were sent", this::getCachedBytesSent);
+        metrics.registerCounter("file_sent_bytes_total", "transfer=\"mapped\"", "Bytes of file bodies, by how they were sent", mappedBytesSent::sum);
+        metrics.registerCounter("file_sent_bytes_total", "transfer=\"async\"", "Bytes of file bodies, by how they were sent", this::getAsyncBytesSent);
+    }
+    /**
+     * Sets whether the responses sent by the calling thread announce that the connection is closed after them. Set
+     * before processing each request.
+     */
+    public void setConnectionClose(boolean close) {
+        headerEncoder.setConnectionClose(close);
     }
+
     /**
      * Writes an HTTP response with a given file as contents to an OutputStream
      *
+     * @param os       The output stream where to write the response
+     * @param status   The status to send in the response
+     * @param headers  The headers of the response
+     * @param file     The file to send as a body
+     * @param stat     The metadata of the file
+     * @throws IOException
+     */
+    public void sendResponse(OutputStream os, int status, HashMap<String, String> headers, Path file, FileStat stat) throws IOException {
+        logger.debug("Sending file in HTTP response. File {}, Content Type: {}, Size: {}", file, stat.contentType(), stat.size());
+        headers.put(HttpHeaders.CONTENT_TYPE, stat.contentType());
+        headers.put(HttpHeaders.ACCEPT_RANGES, BYTES_RANGE_UNIT);
+        sendHeader(os, status, headers, stat.size());
+        writeFileRegion(os, file, 0, stat.size());
+    }
+
+    /**
+     * Writes an HTTP response with the contents of a file that were already in memory.
+     *
      * @param os      The output stream where to write the response
      * @param status  The status to send in the response
      * @param headers The headers of the response
-     * @param file    The file to send as a body
+     * @param stat    The metadata of the file
+     * @param content The contents of the file
+     * @throws IOException
+     */
+    public void sendResponse(OutputStream os, int status, HashMap<String, String> headers, FileStat stat, byte[] content) throws IOException {
+        logger.debug("Sending cached file in HTTP response. Content Type: {}, Size: {}", stat.contentType(), content.length);
+        headers.put(HttpHeaders.CONTENT_TYPE, stat.contentType());
+        headers.put(HttpHeaders.ACCEPT_RANGES, BYTES_RANGE_UNIT);
+        sendHeader(os, status, headers, content.length);
+        os.write(content);
+        cachedBytesSent.add(content.length);
+    }
+
+    /**
+     * Writes a 206 (Partial Content) response with some ranges of a file. A single range is sent as the body, while
+     * multiple ranges are sent as a multipart/byteranges body.
+     * https://datatracker.ietf.org/doc/html/rfc7233#section-4.1
+     *
+     * @param os       The output stream where to write the response
+     * @param headers  The headers of the response
+     * @param file     The file
+     * @param stat     The metadata of the file
+     * @param ranges   The ranges to send, must not be empty.
+     * @throws IOException
+     */
+    public void sendPartialResponse(OutputStream os, HashMap<String, String> headers, Path file, FileStat stat, List<ByteRange> ranges) throws IOException {
+        var contentType = stat.contentType();
+        var fileSize = stat.size();
+        headers.put(HttpHeaders.ACCEPT_RANGES, BYTES_RANGE_UNIT);
+        if (ranges.size() == 1) {
+            var range = ranges.get(0);
+            logger.debug("Sending range of file in HTTP response. File {}, Range: {}", file, range);
+            headers.put(HttpHeaders.CONTENT_TYPE, contentType);
+            headers.put(HttpHeaders.CONTENT_RANGE, range.contentRange(fileSize));
+            sendHeader(os, HttpStatus.SC_PARTIAL_CONTENT, headers, range.length());
+            writeFileRegion(os, file, range.first(), range.length());
+            return;
+        }
+
+        logger.debug("Sending multiple ranges of file in HTTP response. File {}, Ranges: {}", file, ranges);
+        var boundary = Long.toHexString(ThreadLocalRandom.current().nextLong());
+        // Encode the headers of all the parts first, to compute the length of the body
+        var partHeaders = new byte[ranges.size()][];
+        var bodySize = 0L;
+        for (int i = 0; i < ranges.size(); i++) {
+            var range = ranges.get(i);
+            var partHeader = "--" + boundary + Constants.CRLF
+                    + HttpHeaders.CONTENT_TYPE + ": " + contentType + Constants.CRLF
+                    + HttpHeaders.CONTENT_RANGE + ": " + range.contentRange(fileSize) + Constants.CRLF
+                    + Constants.CRLF;
+            partHeaders[i] = partHeader.getBytes(StandardCharsets.US_ASCII);
+            bodySize += partHeaders[i].length + range.length() + Constants.CRLF.length();
+        }
+        var closeDelimiter = ("--" + boundary + "--" + Constants.CRLF).getBytes(StandardCharsets.US_ASCII);
+        bodySize += closeDelimiter.length;
+
+        headers.put(HttpHeaders.CONTENT_TYPE, "multipart/byteranges; boundary=" + boundary);
+        sendHeader(os, HttpStatus.SC_PARTIAL_CONTENT, headers, bodySize);
+        for (int i = 0; i < ranges.size(); i++) {
+            var range = ranges.get(i);
+            os.write(partHeaders[i]);
+            writeFileRegion(os, file, range.first(), range.length());
+            os.write(CRLF_BYTES);
+        }
+        os.write(closeDelimiter);
+    }
+
+    /**
+     * Writes a 416 (Range Not Satisfiable) response.
+     *
+     * @param os       The output stream where to write the response
+     * @param headers  The headers of the response
+     * @param fileSize The size of the file
      * @throws IOException
      */
-    public void sendResponse(OutputStream os, int status, HashMap<String, String> headers, Path file) throws IOException {
-        var contentType = URLConnection.guessContentTypeFromName(file.toString());
-        if (contentType == null) {
-            // Could not guess, default to a generic content type, just a series of bytes
-            contentType = ContentType.APPLICATION_OCTET_STREAM.toString();
+    public void sendRangeNotSatisfiable(OutputStream os, HashMap<String, String> headers, long fileSize) throws IOException {
+        headers.put(HttpHeaders.CONTENT_RANGE, "bytes */%d".formatted(fileSize));
+        sendResponse(os, HttpStatus.SC_REQUESTED_RANGE_NOT_SATISFIABLE, headers);
+    }
+
+    /**
+     * Writes a 304 (Not Modified) response. It has no body and no Content-Length, which would refer to the
+     * representation the client already has.
+     * https://datatracker.ietf.org/doc/html/rfc7232#section-4.1
+     *
+     * @param os      The output stream where to write the response
+     * @param headers The headers of the response, which should include the validators
+     * @throws IOException
+     */
+    public void sendNotModified(OutputStream os, HashMap<String, String> headers) throws IOException {
+        sendHeader(os, HttpStatus.SC_NOT_MODIFIED, headers, NO_CONTENT_LENGTH);
+    }
+
+    /**
+     * Writes a region of a file to the output stream, reading only that region from the file.
+     *
+     * @throws ResponseAbortedException If the file cannot be read. The head of the response was already written.
+     */
+    private void writeFileRegion(OutputStream os, Path file, long position, long count) throws IOException {
+        if (asyncFileReader.isEnabled()) {
+            // Slow storage, do not block on it with sendfile or page faults of mapped files
+            asyncFileReader.transfer(file, position, count, os);
+            asyncBytesSent.add(count);
+            return;
+        }
+        if (os instanceof FileTransferOutput fileTransferOutput) {
+            fileTransferOutput.transferFile(file, position, count);
+            zeroCopyBytesSent.add(count);
+            return;
+        }
+        MappedFileCache.Mapping mapping;
+        try {
+            mapping = mappedFileCache.acquire(file);
+        } catch (IOException e) {
+            throw new ResponseAbortedException("Error mapping %s".formatted(file), e);
+        }
+        if (mapping != null) {
+            try {
+                if (position + count > mapping.size()) {
+                    throw new ResponseAbortedException("File truncated while being sent: %s".formatted(file), null);
+                }
+                ByteBufferOutput.write(os, mapping.slice(position, count));
+                mappedBytesSent.add(count);
+                return;
+            } finally {
+                mapping.release();
+            }
+        }
+        // No channel available, copy the file through the output stream
+        try (var fileChannel = openForCopy(file)) {
+            var buffer = ByteBuffer.allocate((int) Math.min(COPY_BUFFER_SIZE, Math.max(count, 1)));
+            var end = position + count;
+            while (position < end) {
+                buffer.clear().limit((int) Math.min(buffer.capacity(), end - position));
+                int read;
+                try {
+                    read = fileChannel.read(buffer, position);
+                } catch (IOException e) {
+                    throw new ResponseAbortedException("Error reading %s".formatted(file), e);
+                }
+                if (read < 0) {
+                    throw new ResponseAbortedException("File truncated while being sent: %s".formatted(file), null);
+                }
+                os.write(buffer.array(), 0, read);
+                position += read;
+                copiedBytesSent.add(read);
+            }
+        }
+    }
+
+    private static FileChannel openForCopy(Path file) throws ResponseAbortedException {
+        try {
+            return FileChannel.open(file, StandardOpenOption.READ);
+        } catch (IOException e) {
+            throw new ResponseAbortedException("Error opening %s".formatted(file), e);
         }
-        var bodySize = Files.size(file);
-        logger.debug("Sending file in HTTP response. File {}, Content Type: {}, Size: {}", file, contentType, bodySize);
-        headers.put(HttpHeaders.CONTENT_LENGTH, Long.toString(bodySize));
-        headers.put(HttpHeaders.CONTENT_TYPE, contentType);
-        sendHeader(os, status, headers);
-        Files.copy(file, os);
-        os.flush();
     }
 
     /**
@@ -62,11 +275,28 @@ public class HttpResponseWriter {
      * @throws IOException
      */
     public void sendResponse(OutputStream os, int status, HashMap<String, String> headers, byte[] body, ContentType contentType) throws IOException {
-        headers.put(HttpHeaders.CONTENT_LENGTH, Integer.toString(body.length));
         headers.put(HttpHeaders.CONTENT_TYPE, contentType.toString());
-        sendHeader(os, status, headers);
+        sendHeader(os, status, headers, body.length);
         os.write(body);
-        os.flush();
+    }
+
+    /**
+     * Writes the head of an HTTP response whose body is sent with chunked transfer coding, for bodies produced
+     * incrementally. The body must be written to the returned stream, which must be closed to end the response.
+     * Requires an HTTP/1.1 client.
+     *
+     * @param os          The output stream where to write the response
+     * @param status      The status to send in the response
+     * @param headers     The headers of the response
+     * @param contentType The content type
+     * @return The stream where to write the body
+     * @throws IOException
+     */
+    public ChunkedOutputStream sendChunkedResponse(OutputStream os, int status, HashMap<String, String> headers, ContentType contentType) throws IOException {
+        headers.put(HttpHeaders.TRANSFER_ENCODING, HeaderElements.CHUNKED_ENCODING);
+        headers.put(HttpHeaders.CONTENT_TYPE, contentType.toString());
+        sendHeader(os, status, headers, NO_CONTENT_LENGTH);
+        return new ChunkedOutputStream(os, CHUNK_SIZE, metrics);
     }
 
     /**
@@ -78,35 +308,43 @@ public class HttpResponseWriter {
      * @throws IOException
      */
     public  void sendResponse(OutputStream os, int status, HashMap<String, String> headers) throws IOException {
-        headers.put(HttpHeaders.CONTENT_LENGTH, "0");
-        sendHeader(os, status, headers);
-    }
-
-    private void sendHeader(OutputStream os, int status, HashMap<String, String> headers) throws IOException {
-        // Use only US_ASCII characters: https://datatracker.ietf.org/doc/html/rfc7230#section-3
-        var writer = new OutputStreamWriter(os, StandardCharsets.US_ASCII);
-        // Write request header
-        var statusString = HttpConstants.HTTP_STATUS.get(status);
-        if (statusString == null) {
-            logger.warn("Missing status string for status {}", status);
-            statusString = "";
-        }
-        var statusLine = "HTTP/1.1 %d %s".formatted(status, statusString);
-        writer.write(statusLine);
-        writer.write(Constants.CRLF);
-
-        // Add generic headers
-        headers.put(HttpHeaders.CONNECTION, HeaderElements.KEEP_ALIVE);
-        headers.put(HttpHeaders.KEEP_ALIVE, "timeout=%d, max=10".formatted(keepAliveTimeoutSeconds));
-
-        // Send headers
-        for (java.util.Map.Entry<String, String> entry : headers.entrySet()) {
-            writer.write("%s: %s".formatted(entry.getKey(), entry.getValue()));
-            writer.write(Constants.CRLF);
-        }
-        writer.write(Constants.CRLF);
-        writer.flush();
+        sendHeader(os, status, headers, 0);
+    }
+
+    /**
+     * @return Total bytes of file bodies sent with zero-copy transfers
+     */
+    public long getZeroCopyBytesSent() {
+        return zeroCopyBytesSent.sum();
+    }
+
+    /**
+     * @return Total bytes of file bodies copied through output streams
+     */
+    public long getCopiedBytesSent() {
+        return copiedBytesSent.sum();
+    }
+
+    /**
+     * @return Total bytes of file bodies sent from memory
+     */
+    public long getCachedBytesSent() {
+        return cachedBytesSent.sum();
+    }
+
+    /**
+     * @return Total bytes of file bodies read with asynchronous reads
+     */
+    public long getAsyncBytesSent() {
+        return asyncBytesSent.sum();
+    }
+
+    private void sendHeader(OutputStream os, int status, HashMap<String, String> headers, long contentLength) throws IOException {
         // Do not close the output stream, this is the stream of the socket, we must keep it open to process further requests.
+        var headLength = os instanceof ResponseHeadOutput headOutput
+                ? headOutput.writeHead(status, headers, contentLength)
+                : headerEncoder.writeHead(os, status, headers, contentLength);
+        metrics.responseStarted(status, headLength + Math.max(contentLength, 0));
     }
 
 }
\ No newline at end of file
@@ -0,0 +1,236 @@
+package com.nsantos.httpfileserver;
+
+import com.nsantos.httpfileserver.metrics.ServerMetrics;
+import com.typesafe.config.Config;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A runnable that watches the idle keep-alive connections of the blocking engine, so that no thread is blocked on them
+ * while they wait for their next request. The connections are parked by the threads serving them, and handed back to
+ * be served once they become readable. Connections idle for longer than the keep-alive timeout are closed, and when
+ * there are more than the maximum number of idle connections, those idle for the longest time are closed first.
+ * <p>
+ * A single parker, on its own thread, is shared by all the acceptors. The channels are switched to non-blocking mode
+ * while parked, and back to blocking mode before being handed back, which requires deregistering them from the
+ * selector first.
+ */
+class IdleConnectionParker implements Runnable {
+    private static final Logger logger = LoggerFactory.getLogger(IdleConnectionParker.class);
+
+    // How often to check for connections that exceeded the keep-alive timeout
+    private static final long IDLE_CHECK_INTERVAL_MILLIS = 1000;
+
+    /**
+     * A parked connection.
+     *
+     * @param channel     The channel of the connection
+     * @param onReadable  Called, on the thread of the parker, once the channel is readable and back in blocking mode
+     * @param onClose     Called, on the thread of the parker, to close the connection
+     * @param parkedNanos When the connection was parked
+     */
+    private record Parked(SocketChannel channel, Runnable onReadable, Runnable onClose, long parkedNanos) {
+    }
+
+    // Enforces lifecycle, prevents callers from using this instance after being closed.
+    private final AtomicBoolean closed = new AtomicBoolean(false);
+
+    private final Selector selector;
+    private final long keepAliveTimeoutNanos;
+    private final int maxIdleConnections;
+    // Connections handed over by the serving threads, to be registered by the thread of the parker
+    private final Queue<Parked> newlyParked = new ConcurrentLinkedQueue<>();
+    // Registered connections in the order they were parked, so the one idle for the longest time is the first.
+    // Only accessed by the thread of the parker.
+    private final LinkedHashSet<Parked> parked = new LinkedHashSet<>();
+    // Readable connections whose keys were cancelled, waiting to be deregistered from the selector
+    private final List<Parked> readable = new ArrayList<>();
+    private volatile int parkedCount = 0;
+    private final LongAdder timedOut = new LongAdder();
+    private final LongAdder evicted = new LongAdder();
+
+    /**
+     * @param config  Global configuration
+     * @param metrics Where to register the number of parked connections
+     * @throws IOException
+     */
+    public IdleConnectionParker(Config config, ServerMetrics metrics) throws IOException {
+        this.keepAliveTimeoutNanos = config.getDuration(Constants.KEEP_ALIVE_TIMEOUT, TimeUnit.NANOSECONDS);
+        this.maxIdleConnections = config.getInt(Constants.IDLE_CONNECTIONS_MAX);
+        if (maxIdleConnections < 0) {
+            throw new IllegalArgumentException("Invalid value for %s: %d. Must not be negative".formatted(
+                    Constants.IDLE_CONNECTIONS_MAX, maxIdleConnections));
+        }
+        this.selector = Selector.open();
+        metrics.registerGauge("parked_connections", "", "Idle connections waiting for their next request without a thread",
+                () -> parkedCount);
+        metrics.registerCounter("parked_connections_closed_total", "reason=\"timeout\"",
+                "Parked connections closed before their next request, by reason", timedOut::sum);
+        metrics.registerCounter("parked_connections_closed_total", "reason=\"evicted\"",
+                "Parked connections closed before their next request, by reason", evicted::sum);
+    }
+
+    /**
+     * Parks a connection until it is readable. Can be called from any thread, which must not use the channel
+     * afterwards, until onReadable is called.
+     *
+     * @param channel    The channel of the connection, in blocking mode
+     * @param onReadable Called once the channel is readable and back in blocking mode. Must not block, it is called on
+     *                   the thread of the parker.
+     * @param onClose    Called to close the connection, when it is idle for too long or the parker is stopped. Must not
+     *                   block.
+     * @return false if the parker is stopped, in which case the connection is not parked
+     */
+    public boolean park(SocketChannel channel, Runnable onReadable, Runnable onClose) {
+        if (closed.get()) {
+            return false;
+        }
+        newlyParked.add(new Parked(channel, onReadable, onClose, System.nanoTime()));
+        selector.wakeup();
+        return true;
+    }
+
+    @Override
+    public void run() {
+        logger.info("Parking idle connections, up to {}", maxIdleConnections);
+        var lastIdleCheck = System.nanoTime();
+        try {
+            while (!closed.get()) {
+                selector.select(this::onReady, IDLE_CHECK_INTERVAL_MILLIS);
+                resumeReadable();
+                registerNewlyParked();
+                var now = System.nanoTime();
+                if (now - lastIdleCheck > TimeUnit.MILLISECONDS.toNanos(IDLE_CHECK_INTERVAL_MILLIS)) {
+                    closeTimedOut(now);
+                    lastIdleCheck = now;
+                }
+                parkedCount = parked.size();
+            }
+        } catch (IOException e) {
+            logger.warn("Error in idle connection parker, shutting down: {}", e.toString());
+        } finally {
+            closed.set(true);
+            closeAll();
+        }
+    }
+
+    private void onReady(SelectionKey key) {
+        var connection = (Parked) key.attachment();
+        key.cancel();
+        parked.remove(connection);
+        readable.add(connection);
+    }
+
+    /**
+     * Hands back the readable connections. Their keys were cancelled, but the channels can only be put back in blocking
+     * mode after the keys are deregistered, in the next selection operation, which may find more readable connections.
+     */
+    private void resumeReadable() throws IOException {
+        while (!readable.isEmpty()) {
+            var resumed = new ArrayList<>(readable);
+            readable.clear();
+            selector.selectNow(this::onReady);
+            for (var connection : resumed) {
+                try {
+                    connection.channel().configureBlocking(true);
+                } catch (IOException e) {
+                    logger.debug("Error resuming connection, closing it: {}", e.toString());
+                    close(connection);
+                    continue;
+                }
+                connection.onReadable().run();
+            }
+        }
+    }
+
+    private void registerNewlyParked() {
+        Parked connection;
+        while ((connection = newlyParked.poll()) != null) {
+            try {
+                connection.channel().configureBlocking(false);
+                connection.channel().register(selector, SelectionKey.OP_READ, connection);
+                parked.add(connection);
+            } catch (IOException e) {
+                logger.debug("Error parking connection, closing it: {}", e.toString());
+                close(connection);
+            }
+        }
+        // Evict the connections idle for the longest time
+        var iterator = parked.iterator();
+        while (parked.size() > maxIdleConnections && iterator.hasNext()) {
+            var oldest = iterator.next();
+            iterator.remove();
+            evicted.increment();
+            close(oldest);
+        }
+    }
+
+    private void closeTimedOut(long nowNanos) {
+        var iterator = parked.iterator();
+        while (iterator.hasNext()) {
+            var connection = iterator.next();
+            if (!connection.channel().isOpen()) {
+                // Closed by someone else, like the acceptor when stopped
+                iterator.remove();
+            } else if (nowNanos - connection.parkedNanos() > keepAliveTimeoutNanos) {
+                iterator.remove();
+                timedOut.increment();
+                logger.debug("Connection idle for longer than the keep-alive timeout, closing it: {}", connection.channel());
+                close(connection);
+            } else {
+                // The rest were parked later
+                break;
+            }
+        }
+    }
+
+    private void close(Parked connection) {
+        try {
+            connection.onClose().run();
+        } catch (Throwable t) {
+            logger.warn("Error closing connection", t);
+        }
+    }
+
+    private void closeAll() {
+        parked.forEach(this::close);
+        parked.clear();
+        readable.forEach(this::close);
+        readable.clear();
+        Parked connection;
+        while ((connection = newlyParked.poll()) != null) {
+            close(connection);
+        }
+        parkedCount = 0;
+        try {
+            selector.close();
+        } catch (IOException e) {
+            logger.debug("Suppressed error closing selector", e);
+        }
+    }
+
+    /**
+     * Stops the parker, closing all the parked connections. The connections are closed by the thread of the parker, as
+     * it terminates.
+     */
+    public void stop() {
+        if (closed.compareAndSet(false, true)) {
+            selector.wakeup();
+        } else {
+            logger.warn("Already closed");
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package com.nsantos.httpfileserver;
+
+import com.nsantos.httpfileserver.metrics.ServerMetrics;
+import com.nsantos.httpfileserver.metrics.ServerMetrics.ShedReason;
+import com.typesafe.config.Config;
+import org.apache.hc.core5.http.HeaderElements;
+import org.apache.hc.core5.http.HttpHeaders;
+import org.apache.hc.core5.http.HttpStatus;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Answers the connections that the server has no capacity to serve with a 503 (Service Unavailable) and closes them.
+ * <p>
+ * The response is encoded once, when the shedder is created, so shedding a connection is a single write of a few
+ * bytes, which fits in the send buffer of a newly accepted socket and therefore does not block. This allows shedding
+ * connections on the thread that accepts them. The response has no Date header, which is optional in 5xx responses:
+ * https://datatracker.ietf.org/doc/html/rfc7231#section-7.1.1.2
+ */
+class LoadShedder {
+    private static final Logger logger = LoggerFactory.getLogger(LoadShedder.class);
+
+    private final ServerMetrics metrics;
+    private final byte[] response;
+
+    LoadShedder(Config config, ServerMetrics metrics) {
+        this.metrics = metrics;
+        var retryAfter = config.getDuration(Constants.ADMISSION_RETRY_AFTER).toSeconds();
+        if (retryAfter < 0) {
+            throw new IllegalArgumentException("Invalid value for %s: %d seconds. Must not be negative".formatted(
+                    Constants.ADMISSION_RETRY_AFTER, retryAfter));
+        }
+        var status = HttpStatus.SC_SERVICE_UNAVAILABLE;
+        this.response = ("HTTP/1.1 " + status + " " + HttpConstants.HTTP_STATUS.get(status) + Constants.CRLF
+                + HttpHeaders.RETRY_AFTER + ": " + retryAfter + Constants.CRLF
+                + HttpHeaders.CONTENT_LENGTH + ": 0" + Constants.CRLF
+                + HttpHeaders.CONNECTION + ": " + HeaderElements.CLOSE + Constants.CRLF
+                + Constants.CRLF).getBytes(StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Sends the 503 response and closes the connection. Errors are not reported, the connection is closed anyway.
+     *
+     * @param socket A connection whose requests were not read
+     * @param reason Why the connection is not served
+     */
+    void shed(Socket socket, ShedReason reason) {
+        metrics.connectionShed(reason);
+        logger.debug("Shedding connection from {}: {}", socket.getRemoteSocketAddress(), reason);
+        try (socket) {
+            socket.getOutputStream().write(response);
+            socket.shutdownOutput();
+            // Closing a socket with unread data resets the connection, and the client may then discard the response
+            // before reading it. Discard what the client already sent, without waiting for more.
+            var in = socket.getInputStream();
+            var available = in.available();
+            if (available > 0) {
+                in.skip(available);
+            }
+        } catch (IOException e) {
+            logger.debug("Error shedding connection: {}", e.toString());
+        }
+    }
+}
@@ -0,0 +1,232 @@
+package com.nsantos.httpfileserver;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalNotification;
+import com.nsantos.httpfileserver.metrics.ServerMetrics;
+import com.typesafe.config.Config;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * Keeps large files mapped in memory, so that concurrent and repeated requests for the same file share one mapping
+ * and send it without reading the file again. Used for outputs that cannot transfer files directly from the file
+ * system cache to the socket, like the streams of HTTP/2 connections.
+ * <p>
+ * Each mapping belongs to a version of a file, identified by its size and modification time. A request for a file that
+ * changed since it was mapped drops the old mapping and is served without one, the next request maps the new version.
+ * Mappings are reference counted: a mapping evicted from the cache, because it was not used for longer than the idle
+ * TTL or to make room for others within the budget, is unmapped only once the last request that uses it releases it.
+ */
+class MappedFileCache {
+    private static final Logger logger = LoggerFactory.getLogger(MappedFileCache.class);
+
+    // Unmaps a mapped buffer right away, instead of waiting for the garbage collector to collect it
+    private static final Consumer<ByteBuffer> UNMAPPER = findUnmapper();
+
+    /**
+     * A file mapped in memory. Must be released after use, and not used afterwards.
+     */
+    static final class Mapping {
+        private final MappedFileCache cache;
+        private final MappedByteBuffer buffer;
+        private final long size;
+        private final FileTime lastModified;
+        // Guarded by this
+        private int references = 0;
+        private boolean evicted = false;
+
+        private Mapping(MappedFileCache cache, MappedByteBuffer buffer, long size, FileTime lastModified) {
+            this.cache = cache;
+            this.buffer = buffer;
+            this.size = size;
+            this.lastModified = lastModified;
+        }
+
+        /**
+         * @return The size of the version of the file mapped
+         */
+        long size() {
+            return size;
+        }
+
+        /**
+         * @return A buffer with a region of the file, valid until the mapping is released
+         */
+        ByteBuffer slice(long position, long count) {
+            return buffer.slice((int) position, (int) count);
+        }
+
+        void release() {
+            synchronized (this) {
+                if (--references > 0 || !evicted) {
+                    return;
+                }
+            }
+            cache.unmap(this);
+        }
+
+        private boolean isVersion(long size, FileTime lastModified) {
+            return this.size == size && this.lastModified.equals(lastModified);
+        }
+
+        /**
+         * @return false if the mapping was evicted, and must not be used by new requests
+         */
+        private synchronized boolean retain() {
+            if (evicted) {
+                return false;
+            }
+            references++;
+            return true;
+        }
+
+        private void evict() {
+            synchronized (this) {
+                evicted = true;
+                if (references > 0) {
+                    // Unmapped on the last release
+                    return;
+                }
+            }
+            cache.unmap(this);
+        }
+    }
+
+    private final long minFileSize;
+    private final long maxSize;
+    private final Cache<Path, Mapping> mappings;
+    // Includes the mappings evicted but still in use
+    private final AtomicLong mappedBytes = new AtomicLong();
+    private final LongAdder bypassed = new LongAdder();
+    private final LongAdder stale = new LongAdder();
+
+    /**
+     * @param config Global configuration
+     */
+    MappedFileCache(Config config) {
+        this.minFileSize = config.getBytes(Constants.MAPPED_FILES_MIN_FILE_SIZE);
+        this.maxSize = config.getBoolean(Constants.MAPPED_FILES_ENABLED) ? config.getBytes(Constants.MAPPED_FILES_MAX_SIZE) : 0;
+        if (minFileSize < 0 || maxSize < 0) {
+            throw new IllegalArgumentException("Invalid value for %s or %s: %d, %d".formatted(
+                    Constants.MAPPED_FILES_MIN_FILE_SIZE, Constants.MAPPED_FILES_MAX_SIZE, minFileSize, maxSize));
+        }
+        var idleTtl = config.getDuration(Constants.MAPPED_FILES_IDLE_TTL, TimeUnit.MILLISECONDS);
+        this.mappings = CacheBuilder.newBuilder()
+                // A single segment, so that the budget applies to all the mappings and not to each segment
+                .concurrencyLevel(1)
+                .maximumWeight(maxSize)
+                .weigher((Path path, Mapping mapping) -> (int) mapping.size)
+                .expireAfterAccess(idleTtl, TimeUnit.MILLISECONDS)
+                .removalListener((RemovalNotification<Path, Mapping> notification) -> notification.getValue().evict())
+                .recordStats()
+                .build();
+    }
+
+    void registerMetrics(ServerMetrics metrics) {
+        metrics.registerCacheStats("mapped_files", mappings::stats);
+        metrics.registerGauge("mapped_files_bytes", "", "Size of the files mapped in memory, including those evicted but still in use", mappedBytes::get);
+        metrics.registerCounter("mapped_files_bypassed_total", "", "Large files sent without a mapping, because they changed or did not fit the budget", bypassed::sum);
+        metrics.registerCounter("mapped_files_stale_total", "", "Mapped files found to have changed when requested", stale::sum);
+    }
+
+    /**
+     * Gets the mapping of the current version of a file, mapping it if needed. The mapping must be released after use.
+     *
+     * @param file The file to send
+     * @return The mapping, or null if the file must be sent without one: the cache is disabled, the file is too small
+     * or too large, or it changed since it was mapped
+     * @throws IOException If the file cannot be read
+     */
+    Mapping acquire(Path file) throws IOException {
+        if (maxSize == 0) {
+            return null;
+        }
+        var attributes = Files.readAttributes(file, BasicFileAttributes.class);
+        var size = attributes.size();
+        if (size < minFileSize) {
+            return null;
+        }
+        if (size > maxSize || size > Integer.MAX_VALUE) {
+            bypassed.increment();
+            return null;
+        }
+        var lastModified = attributes.lastModifiedTime();
+        while (true) {
+            Mapping mapping;
+            try {
+                mapping = mappings.get(file, () -> map(file));
+            } catch (ExecutionException e) {
+                throw new IOException("Error mapping %s".formatted(file), e.getCause());
+            }
+            if (!mapping.isVersion(size, lastModified)) {
+                // Changed since it was mapped, or while it was being mapped
+                logger.debug("Mapped file changed, dropping its mapping: {}", file);
+                mappings.asMap().remove(file, mapping);
+                stale.increment();
+                bypassed.increment();
+                return null;
+            }
+            if (mapping.retain()) {
+                return mapping;
+            }
+            // Evicted concurrently, get a new one
+        }
+    }
+
+    private Mapping map(Path file) throws IOException {
+        try (var channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            var size = channel.size();
+            var buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            // Read after mapping, if the file changed since its attributes were read the mapping is not used
+            var lastModified = Files.getLastModifiedTime(file);
+            mappedBytes.addAndGet(size);
+            logger.debug("Mapped {}, {} bytes", file, size);
+            return new Mapping(this, buffer, size, lastModified);
+        }
+    }
+
+    private void unmap(Mapping mapping) {
+        mappedBytes.addAndGet(-mapping.size);
+        UNMAPPER.accept(mapping.buffer);
+    }
+
+    /**
+     * Finds the method of the JDK that unmaps a mapped buffer, which has no public API before Java 19.
+     */
+    private static Consumer<ByteBuffer> findUnmapper() {
+        try {
+            var unsafeClass = Class.forName("sun.misc.Unsafe");
+            var field = unsafeClass.getDeclaredField("theUnsafe");
+            field.setAccessible(true);
+            var unsafe = field.get(null);
+            var invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+            return buffer -> {
+                try {
+                    invokeCleaner.invoke(unsafe, buffer);
+                } catch (ReflectiveOperationException e) {
+                    logger.warn("Error unmapping buffer: {}", e.toString());
+                }
+            };
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            logger.info("Mapped files will be unmapped by the garbage collector: {}", e.toString());
+            return buffer -> {
+            };
+        }
+    }
+}
@@ -0,0 +1,126 @@
+package com.nsantos.httpfileserver;
+
+import com.typesafe.config.Config;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static com.nsantos.httpfileserver.ThreadUtils.newThreadFactory;
+
+/**
+ * A runnable that accepts new connections in a ServerSocketChannel and distributes them among a fixed set of event
+ * loops, which serve them with non-blocking I/O.
+ */
+class NioConnectionAcceptor implements ConnectionAcceptor {
+    private static final Logger logger = LoggerFactory.getLogger(NioConnectionAcceptor.class);
+
+    // Enforces lifecycle, prevents callers from using this instance after being closed.
+    private final AtomicBoolean closed = new AtomicBoolean(false);
+
+    private final ServerSocketChannel ssc;
+    private final NioEventLoop[] eventLoops;
+    // Thread pool with one thread for each event loop.
+    private final ExecutorService eventLoopThreadPool;
+
+    /**
+     * @param connectionHandlerFactory
+     * @param config
+     * @throws IOException
+     */
+    public NioConnectionAcceptor(ConnectionHandlerFactory connectionHandlerFactory, Config config) throws IOException {
+        var eventLoopThreads = config.getInt(Constants.EVENT_LOOP_THREADS);
+        if (eventLoopThreads <= 0) {
+            eventLoopThreads = Runtime.getRuntime().availableProcessors();
+        }
+        this.eventLoops = new NioEventLoop[eventLoopThreads];
+        for (int i = 0; i < eventLoopThreads; i++) {
+            eventLoops[i] = new NioEventLoop(connectionHandlerFactory);
+        }
+        this.eventLoopThreadPool = Executors.newFixedThreadPool(eventLoopThreads, newThreadFactory("nio-event-loop", true));
+        this.ssc = SocketUtils.bindToConfiguredPort(config, SocketUtils::openServerSocketChannel);
+    }
+
+    @Override
+    public int getLocalPort() {
+        return ssc.socket().getLocalPort();
+    }
+
+    @Override
+    public void run() {
+        ensureOpen();
+        for (var eventLoop : eventLoops) {
+            eventLoopThreadPool.submit(eventLoop);
+        }
+        logger.info("Accepting new connections at port {} with {} event loops", getLocalPort(), eventLoops.length);
+        var next = 0;
+        try {
+            while (!closed.get()) {
+                var channel = ssc.accept();
+                try {
+                    logger.debug("Received new connection from: {}", channel.getRemoteAddress());
+                    channel.configureBlocking(false);
+                } catch (IOException e) {
+                    // Failure of a single connection, keep accepting new ones
+                    logger.warn("Error setting up connection: {}", e.toString());
+                    channel.close();
+                    continue;
+                }
+                // Distribute connections in round-robin
+                eventLoops[next].register(channel);
+                next = (next + 1) % eventLoops.length;
+            }
+        } catch (ClosedChannelException e) {
+            // If someone called stop(), this exception is expected so do not log it
+            if (!closed.get()) {
+                logger.warn("Error accepting new connections, shutting down: {}", e.toString());
+            }
+        } catch (IOException e) {
+            logger.warn("Error accepting new connections, shutting down: {}", e.toString());
+        } finally {
+            // Close the socket only if we are terminating because of an error. If someone called stop(), do call it again
+            if (!closed.get()) {
+                try {
+                    stop();
+                } catch (Throwable t) {
+                    logger.debug("Suppressed error closing socket", t);
+                }
+            }
+        }
+    }
+
+    /**
+     * Stops the task accepting new connections and all the event loops.
+     *
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    @Override
+    public void stop() throws IOException, InterruptedException {
+        if (closed.compareAndSet(false, true)) {
+            logger.debug("Closing NIO connection acceptor");
+            ssc.close();
+            for (var eventLoop : eventLoops) {
+                eventLoop.stop();
+            }
+            eventLoopThreadPool.shutdown();
+            if (!eventLoopThreadPool.awaitTermination(2, TimeUnit.SECONDS)) {
+                eventLoopThreadPool.shutdownNow();
+            }
+        } else {
+            logger.warn("Already closed");
+        }
+    }
+
+    private void ensureOpen() {
+        if (closed.get()) {
+            throw new IllegalStateException("Already closed");
+        }
+    }
+}
@@ -0,0 +1,181 @@
+package com.nsantos.httpfileserver;
+
+import com.nsantos.httpfileserver.exceptions.WebServerException;
+import com.nsantos.httpfileserver.metrics.ServerMetrics;
+import com.typesafe.config.Config;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Processes a sequence of HTTP requests received in a non-blocking channel. All methods are called by the thread of the
+ * event loop that owns the connection, which parses requests as data arrives and writes the responses as the channel
+ * becomes writable, so the connection only occupies a thread while there is work to do.
+ * <p>
+ * The requests are processed on the event loop too, so the file system calls of the request handler, like reading the
+ * metadata of files, loading them into the content cache, compressing them or listing directories, block the other
+ * connections of the event loop while they run.
+ */
+class NioConnectionHandler {
+    private static final Logger logger = LoggerFactory.getLogger(NioConnectionHandler.class);
+
+    // Stop processing further requests while the responses waiting to be written exceed this size.
+    private static final int MAX_PENDING_OUTPUT = 256 * 1024;
+
+    private final HttpRequestHandler requestHandler;
+    private final ServerMetrics metrics;
+    private final SocketChannel channel;
+    private final SelectionKey key;
+    private final SocketAddress remoteAddress;
+    private final long keepAliveTimeoutNanos;
+    private final int keepAliveMaxRequests;
+    private final NioResponseOutput output;
+    private final HttpRequestParser parser;
+
+    private long lastActivityNanos = System.nanoTime();
+    // Requests received in this connection
+    private int requests = 0;
+    // Set after a malformed request or the last request allowed, the connection is closed once the response is written.
+    private boolean closeAfterWrite = false;
+    private boolean closed = false;
+
+    /**
+     * @param requestHandler Processes the requests received in this connection
+     * @param bufferPool     Where the buffers of the queued output are borrowed from
+     * @param metrics        Where to record the connection
+     * @param config         The global configuration
+     * @param channel        The channel of the connection, in non-blocking mode
+     * @param key            The key of the channel in the selector of the event loop
+     */
+    public NioConnectionHandler(HttpRequestHandler requestHandler, BufferPool bufferPool, ServerMetrics metrics, Config config,
+                                SocketChannel channel, SelectionKey key) {
+        this.requestHandler = requestHandler;
+        this.output = new NioResponseOutput(bufferPool);
+        this.metrics = metrics;
+        this.channel = channel;
+        this.key = key;
+        this.remoteAddress = channel.socket().getRemoteSocketAddress();
+        this.keepAliveTimeoutNanos = config.getDuration(Constants.KEEP_ALIVE_TIMEOUT, TimeUnit.NANOSECONDS);
+        this.keepAliveMaxRequests = config.getInt(Constants.KEEP_ALIVE_MAX_REQUESTS);
+        this.parser = new HttpRequestParser(config);
+        metrics.connectionOpened();
+    }
+
+    /**
+     * Called when the channel has data to be read.
+     */
+    void onReadable() throws IOException {
+        int read;
+        try {
+            read = parser.fill(channel);
+        } catch (WebServerException ex) {
+            rejectMalformedRequest(ex);
+            processRequests();
+            return;
+        }
+        if (read < 0) {
+            // Client closed the connection
+            close();
+            return;
+        }
+        lastActivityNanos = System.nanoTime();
+        processRequests();
+    }
+
+    /**
+     * Called when the channel can accept more data after a write was incomplete.
+     */
+    void onWritable() throws IOException {
+        lastActivityNanos = System.nanoTime();
+        processRequests();
+    }
+
+    /**
+     * @return true if the connection has not sent or received data for longer than the keep-alive timeout.
+     */
+    boolean isIdle(long nowNanos) {
+        return output.pendingBytes() == 0 && nowNanos - lastActivityNanos > keepAliveTimeoutNanos;
+    }
+
+    /**
+     * Processes the complete requests in the read buffer and writes as much of the responses as possible.
+     */
+    private void processRequests() throws IOException {
+        while (output.writeTo(channel) && !closeAfterWrite && handleBufferedRequests()) {
+            // Stopped because too much output was queued, but it was written, so continue with the next requests.
+        }
+        if (closeAfterWrite && output.pendingBytes() == 0) {
+            close();
+            return;
+        }
+        // While there is output pending, do not read further requests, only wait for the channel to be writable.
+        key.interestOps(output.pendingBytes() == 0 ? SelectionKey.OP_READ : SelectionKey.OP_WRITE);
+    }
+
+    /**
+     * Handles the complete requests in the read buffer, queueing the responses in the output.
+     *
+     * @return true if it stopped because of the amount of output queued, while there may be more requests to handle.
+     */
+    private boolean handleBufferedRequests() throws IOException {
+        try {
+            HttpRequest request;
+            while ((request = parser.parse()) != null) {
+                logger.debug("Received request: {}", request);
+                requests++;
+                var lastRequest = requests >= keepAliveMaxRequests;
+                requestHandler.handle(request, output, remoteAddress, lastRequest);
+                if (lastRequest) {
+                    // Ignore any further pipelined requests
+                    closeAfterWrite = true;
+                    return false;
+                }
+                if (output.pendingBytes() >= MAX_PENDING_OUTPUT) {
+                    return true;
+                }
+            }
+        } catch (WebServerException ex) {
+            rejectMalformedRequest(ex);
+        }
+        return false;
+    }
+
+    /**
+     * Replies with an error to a request that could not be parsed, and closes the connection after sending it, as the
+     * rest of the input cannot be parsed.
+     */
+    private void rejectMalformedRequest(WebServerException ex) throws IOException {
+        requestHandler.handleMalformedRequest(ex, output, remoteAddress);
+        closeAfterWrite = true;
+    }
+
+    /**
+     * Closes the connection, discarding any pending output.
+     */
+    void close() {
+        if (!closed) {
+            closed = true;
+            metrics.connectionClosed();
+            logger.debug("Closing {}", channel);
+            key.cancel();
+            output.discard();
+            try {
+                channel.close();
+            } catch (IOException e) {
+                logger.warn("Suppressing error closing channel: {}", e.toString());
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "NioConnectionHandler{" +
+                "channel=" + channel +
+                '}';
+    }
+}
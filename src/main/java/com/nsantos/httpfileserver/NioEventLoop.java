@@ -0,0 +1,147 @@
+package com.nsantos.httpfileserver;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A runnable that serves a set of connections from a single thread, using a Selector to multiplex between them.
+ */
+class NioEventLoop implements Runnable {
+    private static final Logger logger = LoggerFactory.getLogger(NioEventLoop.class);
+
+    // How often to check for connections that exceeded the keep-alive timeout
+    private static final long IDLE_CHECK_INTERVAL_MILLIS = 1000;
+
+    // Enforces lifecycle, prevents callers from using this instance after being closed.
+    private final AtomicBoolean closed = new AtomicBoolean(false);
+
+    private final ConnectionHandlerFactory connectionHandlerFactory;
+    private final Selector selector;
+    // Connections handed over by the acceptor thread, to be registered by the event loop thread.
+    private final Queue<SocketChannel> newConnections = new ConcurrentLinkedQueue<>();
+
+    public NioEventLoop(ConnectionHandlerFactory connectionHandlerFactory) throws IOException {
+        this.connectionHandlerFactory = connectionHandlerFactory;
+        this.selector = Selector.open();
+    }
+
+    /**
+     * Adds a new connection to this event loop. Can be called from any thread.
+     *
+     * @param channel A connected channel, in non-blocking mode
+     */
+    public void register(SocketChannel channel) {
+        newConnections.add(channel);
+        selector.wakeup();
+    }
+
+    @Override
+    public void run() {
+        var lastIdleCheck = System.nanoTime();
+        try {
+            while (!closed.get()) {
+                selector.select(this::processReadyKey, IDLE_CHECK_INTERVAL_MILLIS);
+                registerNewConnections();
+                var now = System.nanoTime();
+                if (now - lastIdleCheck > TimeUnit.MILLISECONDS.toNanos(IDLE_CHECK_INTERVAL_MILLIS)) {
+                    closeIdleConnections(now);
+                    lastIdleCheck = now;
+                }
+            }
+        } catch (IOException e) {
+            logger.warn("Error in event loop, shutting down: {}", e.toString());
+        } finally {
+            closeAllConnections();
+        }
+    }
+
+    private void processReadyKey(SelectionKey key) {
+        var handler = (NioConnectionHandler) key.attachment();
+        try {
+            if (key.isReadable()) {
+                handler.onReadable();
+            } else if (key.isWritable()) {
+                handler.onWritable();
+            }
+        } catch (CancelledKeyException e) {
+            handler.close();
+        } catch (IOException e) {
+            logger.warn("Exception serving connection, closing it: {}", e.toString());
+            handler.close();
+        } catch (Throwable t) {
+            logger.warn("Error", t);
+            handler.close();
+        }
+    }
+
+    private void registerNewConnections() {
+        SocketChannel channel;
+        while ((channel = newConnections.poll()) != null) {
+            try {
+                var key = channel.register(selector, SelectionKey.OP_READ);
+                var handler = connectionHandlerFactory.createNioHandler(channel, key);
+                key.attach(handler);
+                logger.trace("Connection handler starting: {}", handler);
+            } catch (IOException e) {
+                logger.warn("Error registering connection: {}", e.toString());
+                try {
+                    channel.close();
+                } catch (IOException ex) {
+                    logger.debug("Suppressed error closing channel", ex);
+                }
+            }
+        }
+    }
+
+    private void closeIdleConnections(long nowNanos) {
+        for (var key : selector.keys()) {
+            if (key.attachment() instanceof NioConnectionHandler handler && handler.isIdle(nowNanos)) {
+                logger.debug("Connection idle for longer than the keep-alive timeout, closing it: {}", handler);
+                handler.close();
+            }
+        }
+    }
+
+    private void closeAllConnections() {
+        for (var key : selector.keys()) {
+            if (key.attachment() instanceof NioConnectionHandler handler) {
+                handler.close();
+            }
+        }
+        SocketChannel channel;
+        while ((channel = newConnections.poll()) != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                logger.debug("Suppressed error closing channel", e);
+            }
+        }
+        try {
+            selector.close();
+        } catch (IOException e) {
+            logger.debug("Suppressed error closing selector", e);
+        }
+    }
+
+    /**
+     * Stops the event loop, closing all its connections. The connections are closed by the event loop thread, as it
+     * terminates.
+     */
+    public void stop() {
+        if (closed.compareAndSet(false, true)) {
+            selector.wakeup();
+        } else {
+            logger.warn("Already closed");
+        }
+    }
+}
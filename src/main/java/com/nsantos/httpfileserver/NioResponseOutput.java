@@ -0,0 +1,199 @@
+package com.nsantos.httpfileserver;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+
+/**
+ * Output stream used by the NIO engine to collect responses. Written data is queued in memory and files are queued as
+ * references to be sent later, so that the event loop can write everything to the channel as it becomes writable,
+ * without ever blocking. The buffers of the queued data are borrowed from the buffer pool until they are written.
+ */
+class NioResponseOutput extends OutputStream implements FileTransferOutput {
+    // Minimum size of the buffers allocated to queue written data.
+    private static final int SEGMENT_SIZE = 16 * 1024;
+
+    private final BufferPool bufferPool;
+    private final ArrayDeque<Segment> segments = new ArrayDeque<>();
+    // Total number of bytes queued and not yet written to the channel.
+    private long pendingBytes = 0;
+
+    /**
+     * @param bufferPool Where to borrow the buffers of the queued data from
+     */
+    NioResponseOutput(BufferPool bufferPool) {
+        this.bufferPool = bufferPool;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+        pendingBytes += len;
+        while (len > 0) {
+            // Append to the last buffer, if there is room, to coalesce small writes
+            BufferSegment bufferSegment;
+            if (segments.peekLast() instanceof BufferSegment last && last.freeSpace() > 0) {
+                bufferSegment = last;
+            } else {
+                bufferSegment = new BufferSegment(bufferPool, Math.max(SEGMENT_SIZE, len));
+                segments.add(bufferSegment);
+            }
+            var written = bufferSegment.append(b, off, len);
+            off += written;
+            len -= written;
+        }
+    }
+
+    @Override
+    public void transferFile(Path file, long position, long count) {
+        if (count > 0) {
+            pendingBytes += count;
+            segments.add(new FileSegment(file, position, count));
+        }
+    }
+
+    /**
+     * @return Number of bytes queued and not yet written to the channel
+     */
+    long pendingBytes() {
+        return pendingBytes;
+    }
+
+    /**
+     * Writes as much of the queued data as possible without blocking.
+     *
+     * @param channel A channel in non-blocking mode
+     * @return true if all queued data was written, false if the channel cannot accept more data for now.
+     * @throws IOException
+     */
+    boolean writeTo(SocketChannel channel) throws IOException {
+        while (!segments.isEmpty()) {
+            var segment = segments.peek();
+            var written = segment.writeTo(channel);
+            pendingBytes -= written;
+            if (segment.remaining() > 0) {
+                return false;
+            }
+            segments.poll().close();
+        }
+        return true;
+    }
+
+    /**
+     * Discards all queued data, releasing any open file.
+     */
+    void discard() {
+        Segment segment;
+        while ((segment = segments.poll()) != null) {
+            try {
+                segment.close();
+            } catch (IOException ignored) {
+                // Nothing else to do, the connection is being closed
+            }
+        }
+        pendingBytes = 0;
+    }
+
+    private interface Segment {
+        long writeTo(SocketChannel channel) throws IOException;
+
+        long remaining();
+
+        void close() throws IOException;
+    }
+
+    private static class BufferSegment implements Segment {
+        private final BufferPool bufferPool;
+        // In read mode: the data between position and limit is pending, new data is appended after the limit.
+        private final ByteBuffer buffer;
+
+        BufferSegment(BufferPool bufferPool, int size) {
+            this.bufferPool = bufferPool;
+            this.buffer = bufferPool.acquire(size).limit(0);
+        }
+
+        int freeSpace() {
+            return buffer.capacity() - buffer.limit();
+        }
+
+        int append(byte[] b, int off, int len) {
+            var count = Math.min(len, freeSpace());
+            var limit = buffer.limit();
+            buffer.limit(limit + count).put(limit, b, off, count);
+            return count;
+        }
+
+        @Override
+        public long writeTo(SocketChannel channel) throws IOException {
+            return channel.write(buffer);
+        }
+
+        @Override
+        public long remaining() {
+            return buffer.remaining();
+        }
+
+        @Override
+        public void close() {
+            bufferPool.release(buffer);
+        }
+    }
+
+    private static class FileSegment implements Segment {
+        private final Path file;
+        private long position;
+        private long remaining;
+        // Opened only when the segment reaches the head of the queue
+        private FileChannel fileChannel;
+
+        FileSegment(Path file, long position, long count) {
+            this.file = file;
+            this.position = position;
+            this.remaining = count;
+        }
+
+        @Override
+        public long writeTo(SocketChannel channel) throws IOException {
+            if (fileChannel == null) {
+                fileChannel = FileChannel.open(file, StandardOpenOption.READ);
+            }
+            var total = 0L;
+            while (remaining > 0) {
+                var written = fileChannel.transferTo(position, remaining, channel);
+                if (written == 0) {
+                    if (position >= fileChannel.size()) {
+                        // Written by the event loop after the request was handled, which closes the connection
+                        throw new IOException("File truncated while being sent: %s".formatted(file));
+                    }
+                    // The socket buffer is full
+                    break;
+                }
+                position += written;
+                remaining -= written;
+                total += written;
+            }
+            return total;
+        }
+
+        @Override
+        public long remaining() {
+            return remaining;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (fileChannel != null) {
+                fileChannel.close();
+            }
+        }
+    }
+}
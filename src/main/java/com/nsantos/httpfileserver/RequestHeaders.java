@@ -0,0 +1,191 @@
+package com.nsantos.httpfileserver;
+
+import org.apache.hc.core5.http.Header;
+import org.apache.hc.core5.http.HttpHeaders;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The headers of a request, kept as offsets into the buffer of the parser that read them. Header names that are known
+ * to the server are identified by an index into a table of interned names, values are decoded to strings only when
+ * requested.
+ * <p>
+ * An instance is reused for all the requests of a connection, so it is only valid until the next request is parsed.
+ */
+class RequestHeaders {
+    /**
+     * Interned names of the headers used by the server or commonly sent by clients.
+     */
+    static final String[] KNOWN_NAMES = {
+            HttpHeaders.HOST,
+            HttpHeaders.CONNECTION,
+            HttpHeaders.KEEP_ALIVE,
+            HttpHeaders.ACCEPT,
+            HttpHeaders.ACCEPT_ENCODING,
+            HttpHeaders.ACCEPT_LANGUAGE,
+            HttpHeaders.USER_AGENT,
+            HttpHeaders.RANGE,
+            HttpHeaders.IF_RANGE,
+            HttpHeaders.IF_NONE_MATCH,
+            HttpHeaders.IF_MODIFIED_SINCE,
+            HttpHeaders.CONTENT_LENGTH,
+            HttpHeaders.CONTENT_TYPE,
+            HttpHeaders.TRANSFER_ENCODING,
+            HttpHeaders.UPGRADE,
+            HttpHeaders.EXPECT,
+            HttpHeaders.CACHE_CONTROL,
+            HttpHeaders.PRAGMA,
+            HttpHeaders.REFERER,
+            HttpHeaders.AUTHORIZATION,
+            "HTTP2-Settings",
+            "Cookie",
+            "Origin",
+    };
+
+    private static final int INITIAL_CAPACITY = 16;
+
+    private byte[] buffer;
+    private int size = 0;
+    // For each header: index in KNOWN_NAMES or -1, and the offsets of its name and value in the buffer.
+    private int[] knownNames = new int[INITIAL_CAPACITY];
+    private int[] nameOffsets = new int[INITIAL_CAPACITY * 2];
+    private int[] valueOffsets = new int[INITIAL_CAPACITY * 2];
+    // Values already decoded
+    private String[] values = new String[INITIAL_CAPACITY];
+
+    /**
+     * Creates the headers of a request that was not parsed from HTTP/1.1, like the requests received in HTTP/2 streams.
+     * The headers are copied to a buffer of their own, so they stay valid independently of any connection.
+     */
+    static RequestHeaders of(List<? extends Header> headers) {
+        var buffer = new ByteArrayOutputStream();
+        var offsets = new int[headers.size() * 4];
+        for (int i = 0; i < headers.size(); i++) {
+            offsets[i * 4] = buffer.size();
+            buffer.writeBytes(headers.get(i).getName().getBytes(StandardCharsets.ISO_8859_1));
+            offsets[i * 4 + 1] = buffer.size();
+            offsets[i * 4 + 2] = buffer.size();
+            buffer.writeBytes(headers.get(i).getValue().getBytes(StandardCharsets.ISO_8859_1));
+            offsets[i * 4 + 3] = buffer.size();
+        }
+        var requestHeaders = new RequestHeaders();
+        requestHeaders.reset(buffer.toByteArray());
+        for (int i = 0; i < headers.size(); i++) {
+            requestHeaders.add(offsets[i * 4], offsets[i * 4 + 1], offsets[i * 4 + 2], offsets[i * 4 + 3]);
+        }
+        return requestHeaders;
+    }
+
+    void reset(byte[] buffer) {
+        this.buffer = buffer;
+        Arrays.fill(values, 0, size, null);
+        size = 0;
+    }
+
+    void add(int nameStart, int nameEnd, int valueStart, int valueEnd) {
+        if (size == knownNames.length) {
+            var capacity = size * 2;
+            knownNames = Arrays.copyOf(knownNames, capacity);
+            nameOffsets = Arrays.copyOf(nameOffsets, capacity * 2);
+            valueOffsets = Arrays.copyOf(valueOffsets, capacity * 2);
+            values = Arrays.copyOf(values, capacity);
+        }
+        knownNames[size] = findKnownName(buffer, nameStart, nameEnd);
+        nameOffsets[size * 2] = nameStart;
+        nameOffsets[size * 2 + 1] = nameEnd;
+        valueOffsets[size * 2] = valueStart;
+        valueOffsets[size * 2 + 1] = valueEnd;
+        size++;
+    }
+
+    /**
+     * @return The number of headers
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return The name of the i-th header. Known names are returned in their interned, canonical form.
+     */
+    public String name(int i) {
+        var known = knownNames[i];
+        if (known >= 0) {
+            return KNOWN_NAMES[known];
+        }
+        var start = nameOffsets[i * 2];
+        return new String(buffer, start, nameOffsets[i * 2 + 1] - start, StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * @return The value of the i-th header
+     */
+    public String value(int i) {
+        var value = values[i];
+        if (value == null) {
+            var start = valueOffsets[i * 2];
+            value = new String(buffer, start, valueOffsets[i * 2 + 1] - start, StandardCharsets.ISO_8859_1);
+            values[i] = value;
+        }
+        return value;
+    }
+
+    /**
+     * @param name The name of the header, case-insensitive
+     * @return The value of the first header with the given name, or null if there is no such header.
+     */
+    public String get(String name) {
+        for (int i = 0; i < size; i++) {
+            var known = knownNames[i];
+            var matches = known >= 0
+                    ? KNOWN_NAMES[known] == name || KNOWN_NAMES[known].equalsIgnoreCase(name)
+                    : equalsIgnoreCase(buffer, nameOffsets[i * 2], nameOffsets[i * 2 + 1], name);
+            if (matches) {
+                return value(i);
+            }
+        }
+        return null;
+    }
+
+    private static int findKnownName(byte[] buffer, int start, int end) {
+        for (int i = 0; i < KNOWN_NAMES.length; i++) {
+            if (equalsIgnoreCase(buffer, start, end, KNOWN_NAMES[i])) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static boolean equalsIgnoreCase(byte[] buffer, int start, int end, String name) {
+        if (end - start != name.length()) {
+            return false;
+        }
+        for (int i = 0; i < name.length(); i++) {
+            var b = buffer[start + i];
+            var c = name.charAt(i);
+            // Header names are ASCII, so ASCII case folding is enough
+            if (b != c && (b | 0x20) != (c | 0x20)) {
+                return false;
+            }
+            if (b != c && ((b | 0x20) < 'a' || (b | 0x20) > 'z')) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public String toString() {
+        var sb = new StringBuilder("{");
+        for (int i = 0; i < size; i++) {
+            if (i > 0) {
+                sb.append(", ");
+            }
+            sb.append(name(i)).append('=').append(value(i));
+        }
+        return sb.append('}').toString();
+    }
+}
@@ -0,0 +1,21 @@
+package com.nsantos.httpfileserver;
+
+import java.io.IOException;
+import java.util.Map;
+
+/**
+ * Implemented by the output streams of connections that do not send responses in the HTTP/1.1 format, which encode the
+ * head of the responses by themselves. The body is written to the stream as usual.
+ */
+interface ResponseHeadOutput {
+    /**
+     * Sends the head of a response, before its body.
+     *
+     * @param status        The status to send in the response
+     * @param headers       The headers specific to this response
+     * @param contentLength Sent in the Content-Length header, or negative to send no Content-Length
+     * @return The size of the encoded head
+     * @throws IOException
+     */
+    int writeHead(int status, Map<String, String> headers, long contentLength) throws IOException;
+}
@@ -0,0 +1,103 @@
+package com.nsantos.httpfileserver;
+
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * An executor service that limits how many tasks run concurrently on an unbounded delegate executor, like one that
+ * starts a new thread per task. While the limit is reached, up to a maximum number of tasks wait for a free slot on
+ * their own thread, and further tasks are rejected, so submitting a task never blocks.
+ */
+public class SemaphoreBoundedExecutor extends AbstractExecutorService {
+    private final ExecutorService delegate;
+    private final int maxConcurrency;
+    private final int maxWaiting;
+    // Tasks running
+    private final Semaphore permits;
+    // Tasks running or waiting for a permit
+    private final Semaphore slots;
+
+    /**
+     * @param delegate       The executor that runs the tasks
+     * @param maxConcurrency Maximum number of tasks running at the same time
+     * @param maxWaiting     Maximum number of tasks waiting to run
+     */
+    public SemaphoreBoundedExecutor(ExecutorService delegate, int maxConcurrency, int maxWaiting) {
+        this.delegate = delegate;
+        this.maxConcurrency = maxConcurrency;
+        this.maxWaiting = maxWaiting;
+        this.permits = new Semaphore(maxConcurrency);
+        this.slots = new Semaphore(maxConcurrency + maxWaiting);
+    }
+
+    /**
+     * @throws RejectedExecutionException If the maximum number of tasks are already running and waiting
+     */
+    @Override
+    public void execute(Runnable command) {
+        if (!slots.tryAcquire()) {
+            throw new RejectedExecutionException("Too many tasks waiting to run");
+        }
+        try {
+            delegate.execute(() -> {
+                // Not interruptible, so that once submitted a task always runs, even if the executor is shut down
+                permits.acquireUninterruptibly();
+                try {
+                    command.run();
+                } finally {
+                    permits.release();
+                    slots.release();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            slots.release();
+            throw e;
+        }
+    }
+
+    /**
+     * @return Number of tasks that can still be started without waiting
+     */
+    public int availablePermits() {
+        return permits.availablePermits();
+    }
+
+    /**
+     * @return Number of tasks waiting for a free slot
+     */
+    public int waitingTasks() {
+        // Read without synchronization, so a task may be counted as waiting when it has just started running
+        var submitted = maxConcurrency + maxWaiting - slots.availablePermits();
+        var running = maxConcurrency - permits.availablePermits();
+        return Math.max(0, submitted - running);
+    }
+
+    @Override
+    public void shutdown() {
+        delegate.shutdown();
+    }
+
+    @Override
+    public List<Runnable> shutdownNow() {
+        return delegate.shutdownNow();
+    }
+
+    @Override
+    public boolean isShutdown() {
+        return delegate.isShutdown();
+    }
+
+    @Override
+    public boolean isTerminated() {
+        return delegate.isTerminated();
+    }
+
+    @Override
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        return delegate.awaitTermination(timeout, unit);
+    }
+}
@@ -0,0 +1,92 @@
+package com.nsantos.httpfileserver;
+
+import com.typesafe.config.Config;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.BindException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ServerSocketChannel;
+import java.util.Random;
+
+public class SocketUtils {
+    private static final Logger logger = LoggerFactory.getLogger(SocketUtils.class);
+
+    /**
+     * Creates a server socket bound to a port.
+     */
+    @FunctionalInterface
+    public interface Binder<T> {
+        T bind(int port) throws IOException;
+    }
+
+    /**
+     * Binds a server socket to the port given in the configuration. If the port is 0, tries random ports within the
+     * pre-defined random port range until one is available.
+     *
+     * @param config The global configuration
+     * @param binder Creates the server socket bound to a given port
+     * @return The bound server socket
+     * @throws IOException
+     */
+    public static <T> T bindToConfiguredPort(Config config, Binder<T> binder) throws IOException {
+        var port = config.getInt(Constants.WEBSERVER_PORT);
+        if (port < 0 || port > 65_535) {
+            throw new IllegalArgumentException("Invalid port number: %d, must be between 0 and 65535".formatted(port));
+        }
+        if (port == 0) { // Choose a random port within the pre-defined random port range
+            var r = new Random();
+            for (int i = 1; i <= Constants.RANDOM_PORT_MAX_ATTEMPTS; i++) {
+                var randomPort = Constants.RANDOM_PORT_RANGE_LOWER + r.nextInt(Constants.RANDOM_PORT_RANGE_UPPER - Constants.RANDOM_PORT_RANGE_LOWER + 1);
+                try {
+                    logger.debug("Trying to bind at port {}, Attempt {}", randomPort, i);
+                    return binder.bind(randomPort);
+                } catch (BindException ex) {
+                    logger.debug("Failed to bind at port {}. Error: {}", randomPort, ex.toString());
+                }
+            }
+            throw new BindException("Could not find an available random port to bind to after %d attempts".formatted(Constants.RANDOM_PORT_MAX_ATTEMPTS));
+        } else {
+            return binder.bind(port);
+        }
+    }
+
+    /**
+     * Opens a ServerSocketChannel bound to a port. The sockets accepted by its ServerSocket adaptor also have an
+     * associated channel, which allows sending files with zero-copy transfers.
+     *
+     * @param port The port to bind to
+     * @return The bound channel
+     * @throws IOException
+     */
+    public static ServerSocketChannel openServerSocketChannel(int port) throws IOException {
+        return openServerSocketChannel(port, false);
+    }
+
+    /**
+     * Opens a ServerSocketChannel bound to a port, optionally with SO_REUSEPORT, so that several channels can be bound
+     * to the same port. The kernel then distributes the incoming connections among them.
+     *
+     * @param port      The port to bind to
+     * @param reusePort Whether to set SO_REUSEPORT before binding
+     * @return The bound channel
+     * @throws IOException If the channel cannot be bound, or reusePort is true and SO_REUSEPORT is not supported
+     */
+    public static ServerSocketChannel openServerSocketChannel(int port, boolean reusePort) throws IOException {
+        var channel = ServerSocketChannel.open();
+        try {
+            if (reusePort) {
+                if (!channel.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT)) {
+                    throw new IOException("SO_REUSEPORT is not supported on this platform");
+                }
+                channel.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+            }
+            return channel.bind(new InetSocketAddress(port));
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+}
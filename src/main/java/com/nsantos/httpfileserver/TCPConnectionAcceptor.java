@@ -1,27 +1,45 @@
 package com.nsantos.httpfileserver;
 
+import com.nsantos.httpfileserver.metrics.ServerMetrics.ShedReason;
 import com.typesafe.config.Config;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
-import java.net.BindException;
 import java.net.ServerSocket;
+import java.net.Socket;
 import java.net.SocketException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
 import java.util.Collections;
 import java.util.IdentityHashMap;
-import java.util.Random;
 import java.util.Set;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
 
-import static com.nsantos.httpfileserver.ThreadUtils.newBoundedCachedThreadPool;
+import static com.nsantos.httpfileserver.ThreadUtils.newBoundedThreadPool;
+import static com.nsantos.httpfileserver.ThreadUtils.newVirtualThreadPerTaskExecutor;
 
 /**
  * A runnable that accepts new connections in a TCP Socket and dispatches them to a thread pool.
+ * <p>
+ * When all the threads are busy, new connections wait for a thread in the bounded queue of the executor. Connections
+ * that find the queue full, or that waited too long for a thread, are shed: answered with 503 (Service Unavailable)
+ * and closed, without reading their requests. This keeps the time that clients wait bounded, and the server keeps
+ * accepting connections under any load.
+ * <p>
+ * There may be several acceptors listening on the same port, the shards, each with its own socket and executor.
+ * <p>
+ * Connections waiting for their next request can be parked, so that they do not hold a thread while idle. Once the
+ * next request arrives, they are served again by a thread of the executor, or closed if the queue is full.
+ * <p>
+ * With TLS, new connections are first handed to the TLS handshaker, and dispatched to the executor once established.
  */
-class TCPConnectionAcceptor implements Runnable {
+class TCPConnectionAcceptor implements ConnectionAcceptor {
     private static final Logger logger = LoggerFactory.getLogger(TCPServer.class);
 
     // Enforces lifecycle, prevents callers from using this instance after being closed.
@@ -29,10 +47,21 @@ class TCPConnectionAcceptor implements Runnable {
 
     private final ConnectionHandlerFactory connectionHandler;
     private final Config config;
+    // Index of this acceptor among the acceptors listening on the same port
+    private final int shard;
+    private final LongAdder acceptedConnections = new LongAdder();
+    private final LongAdder resumeRejected = new LongAdder();
 
     private final ServerSocket ss;
     // Thread pool used to process incoming connections.
     private final ExecutorService connectionHandlerThreadPool;
+    // Connections that waited longer than this for a thread are shed
+    private final long queueTimeoutNanos;
+    private final LoadShedder loadShedder;
+    // Where to park idle connections, or null to keep them on their threads
+    private final IdleConnectionParker parker;
+    // Establishes TLS in new connections, or null to serve plain HTTP
+    private final TlsHandshaker tls;
     // List of active connection handlers. This is used to gracefully close all the connection handlers by calling
     // close on the underlying socket. We could keep only the futures returned when we submit the new handler to the
     // thread pool, but calling Future.cancel() is not very reliable, in particular it will not immediately interrupt
@@ -45,39 +74,80 @@ class TCPConnectionAcceptor implements Runnable {
     /**
      * @param connectionHandler
      * @param config
-     * @throws IOException
+     * @param ssc               The bound channel where to accept connections, closed when this acceptor is stopped
+     * @param shard             Index of this acceptor among the acceptors listening on the same port
+     * @param parker            Where to park idle connections, or null to keep them on their threads
+     * @param tls               Establishes TLS in new connections, or null to serve plain HTTP
      */
-    public TCPConnectionAcceptor(ConnectionHandlerFactory connectionHandler, Config config) throws IOException {
+    public TCPConnectionAcceptor(ConnectionHandlerFactory connectionHandler, Config config, ServerSocketChannel ssc, int shard,
+                                 IdleConnectionParker parker, TlsHandshaker tls) {
         this.connectionHandler = connectionHandler;
         this.config = config;
-        // Creates the thread pool for incoming connections
-        var threadPoolSize = config.getInt(Constants.WEBSERVER_THREAD_POOL_SIZE);
-        this.connectionHandlerThreadPool = newBoundedCachedThreadPool(1, threadPoolSize, "http-handler");
-        this.ss = createAndBindServerSocket();
+        this.shard = shard;
+        this.parker = parker;
+        this.tls = tls;
+        this.queueTimeoutNanos = config.getDuration(Constants.ADMISSION_QUEUE_TIMEOUT).toNanos();
+        this.loadShedder = new LoadShedder(config, connectionHandler.getMetrics());
+        this.connectionHandlerThreadPool = createConnectionHandlerExecutor();
+        this.ss = ssc.socket();
+        registerMetrics();
     }
 
-    private ServerSocket createAndBindServerSocket() throws IOException {
-        var port = config.getInt(Constants.WEBSERVER_PORT);
-        if (port < 0 || port > 65_535) {
-            throw new IllegalArgumentException("Invalid port number: %d, must be between 0 and 65535".formatted(port));
+    private void registerMetrics() {
+        var metrics = connectionHandler.getMetrics();
+        var shardLabel = "shard=\"%d\"".formatted(shard);
+        metrics.registerCounter("accepted_connections_total", shardLabel, "Connections accepted, by acceptor shard", acceptedConnections::sum);
+        metrics.registerCounter("resumed_connections_rejected_total", shardLabel,
+                "Parked connections closed when their next request arrived, because the queue was full, by acceptor shard",
+                resumeRejected::sum);
+        var threadsHelp = "Threads serving connections, by acceptor shard and state";
+        var queuedHelp = "Connections waiting for a thread, by acceptor shard";
+        if (connectionHandlerThreadPool instanceof ThreadPoolExecutor threadPool) {
+            metrics.registerGauge("executor_threads", shardLabel + ",state=\"busy\"", threadsHelp, threadPool::getActiveCount);
+            metrics.registerGauge("executor_threads", shardLabel + ",state=\"max\"", threadsHelp, threadPool::getMaximumPoolSize);
+            metrics.registerGauge("executor_queued_connections", shardLabel, queuedHelp, () -> threadPool.getQueue().size());
+        } else if (connectionHandlerThreadPool instanceof SemaphoreBoundedExecutor bounded) {
+            var maxConnections = config.getInt(Constants.VIRTUAL_THREAD_MAX_CONNECTIONS);
+            metrics.registerGauge("executor_threads", shardLabel + ",state=\"busy\"", threadsHelp,
+                    () -> maxConnections - bounded.availablePermits());
+            metrics.registerGauge("executor_threads", shardLabel + ",state=\"max\"", threadsHelp, () -> maxConnections);
+            metrics.registerGauge("executor_queued_connections", shardLabel, queuedHelp, bounded::waitingTasks);
         }
-        if (port == 0) { // Choose a random port within the pre-defined random port range
-            var r = new Random();
-            for (int i = 1; i <= Constants.RANDOM_PORT_MAX_ATTEMPTS; i++) {
-                var randomPort = Constants.RANDOM_PORT_RANGE_LOWER + r.nextInt(Constants.RANDOM_PORT_RANGE_UPPER - Constants.RANDOM_PORT_RANGE_LOWER + 1);
-                try {
-                    logger.debug("Trying to bind at port {}, Attempt {}", randomPort, i);
-                    return new ServerSocket(randomPort);
-                } catch (BindException ex) {
-                    logger.debug("Failed to bind at port {}. Error: {}", randomPort, ex.toString());
+    }
+
+    /**
+     * Creates the executor for incoming connections, according to the configured strategy.
+     */
+    private ExecutorService createConnectionHandlerExecutor() {
+        var executor = config.getString(Constants.CONNECTION_EXECUTOR);
+        var threadName = "http-handler-" + shard;
+        var queueSize = config.getInt(Constants.ADMISSION_QUEUE_SIZE);
+        if (queueSize < 0) {
+            throw new IllegalArgumentException("Invalid value for %s: %d. Must not be negative".formatted(
+                    Constants.ADMISSION_QUEUE_SIZE, queueSize));
+        }
+        switch (executor) {
+            case Constants.EXECUTOR_VIRTUAL -> {
+                var maxConnections = config.getInt(Constants.VIRTUAL_THREAD_MAX_CONNECTIONS);
+                var virtualThreadExecutor = newVirtualThreadPerTaskExecutor(threadName);
+                if (virtualThreadExecutor.isPresent()) {
+                    logger.info("Serving each connection on a virtual thread, up to {} concurrent connections", maxConnections);
+                    return new SemaphoreBoundedExecutor(virtualThreadExecutor.get(), maxConnections, queueSize);
                 }
+                logger.warn("Virtual threads are not supported by this runtime (Java {}), using a pool of platform threads",
+                        Runtime.version().feature());
             }
-            throw new BindException("Could not find an available random port to bind to after %d attempts".formatted(Constants.RANDOM_PORT_MAX_ATTEMPTS));
-        } else {
-            return new ServerSocket(port);
+            case Constants.EXECUTOR_PLATFORM -> {
+                // Handled below, as it is also the fallback for virtual threads
+            }
+            default -> throw new IllegalArgumentException("Invalid value for %s: %s. Must be one of: %s, %s".formatted(
+                    Constants.CONNECTION_EXECUTOR, executor, Constants.EXECUTOR_PLATFORM, Constants.EXECUTOR_VIRTUAL));
         }
+        var threadPoolSize = config.getInt(Constants.WEBSERVER_THREAD_POOL_SIZE);
+        return newBoundedThreadPool(threadPoolSize, queueSize, threadName);
     }
 
+    @Override
     public int getLocalPort() {
         return ss.getLocalPort();
     }
@@ -85,31 +155,20 @@ class TCPConnectionAcceptor implements Runnable {
     @Override
     public void run() {
         ensureOpen();
-        logger.info("Accepting new connections at port {}", ss.getLocalPort());
+        logger.info("Accepting new connections at port {} (shard {})", ss.getLocalPort(), shard);
         try {
             while (!closed.get()) {
                 var socket = ss.accept();
-                logger.info("Received new connection from: {}", socket.getRemoteSocketAddress());
-                // Dispatch the new connection to the thread pool
-                connectionHandlerThreadPool.submit(() -> {
-                    var handler = connectionHandler.createHandler(socket);
-                    synchronized (activeHandlersLock) {
-                        activeHandlers.add(handler);
-                    }
-                    logger.trace("Connection handler starting: {}", handler);
-                    try {
-                        handler.handleRequests();
-                    } catch (Throwable t) {
-                        logger.warn("Error", t);
-                    } finally {
-                        logger.trace("Handler terminating: {}", handler);
-                        synchronized (activeHandlersLock) {
-                            activeHandlers.remove(handler);
-                        }
-                    }
-                });
+                acceptedConnections.increment();
+                logger.debug("Received new connection from: {}", socket.getRemoteSocketAddress());
+                if (tls != null) {
+                    // Dispatched by the handshake thread once TLS is established
+                    tls.handshake(socket, this::dispatchOrShed);
+                } else {
+                    dispatchOrShed(socket);
+                }
             }
-        } catch (SocketException e) {
+        } catch (SocketException | ClosedChannelException e) {
             // If someone called stop(), this exception is expected so do not log it
             if (!closed.get()) {
                 logger.warn("Error accepting new connections, shutting down: {}", e.toString());
@@ -128,12 +187,116 @@ class TCPConnectionAcceptor implements Runnable {
         }
     }
 
+    /**
+     * Dispatches a new connection to the thread pool, or sheds it if there is no capacity to serve it.
+     */
+    private void dispatchOrShed(Socket socket) {
+        try {
+            dispatch(socket);
+        } catch (RejectedExecutionException e) {
+            // All the threads are busy and the queue is full, or the executor is shutting down. Keep accepting new
+            // connections unless the acceptor was stopped.
+            if (closed.get()) {
+                closeQuietly(socket);
+            } else {
+                loadShedder.shed(socket, ShedReason.QUEUE_FULL);
+            }
+        }
+    }
+
+    /**
+     * Runs the handler of a new connection on the executor, unless the connection waited too long for a thread.
+     *
+     * @throws RejectedExecutionException If the executor cannot run the handler
+     */
+    private void dispatch(Socket socket) {
+        var acceptedNanos = System.nanoTime();
+        connectionHandlerThreadPool.execute(() -> {
+            if (closed.get()) {
+                // Waited for a thread while the acceptor was stopped
+                closeQuietly(socket);
+                return;
+            }
+            if (System.nanoTime() - acceptedNanos > queueTimeoutNanos) {
+                loadShedder.shed(socket, ShedReason.QUEUE_TIMEOUT);
+                return;
+            }
+            var handler = connectionHandler.createHandler(socket);
+            synchronized (activeHandlersLock) {
+                activeHandlers.add(handler);
+            }
+            logger.trace("Connection handler starting: {}", handler);
+            serve(handler);
+        });
+    }
+
+    /**
+     * Serves a connection on the calling thread, until it is closed or parked.
+     */
+    private void serve(ConnectionHandler handler) {
+        var parked = false;
+        try {
+            if (handler.handleRequests(parker != null)) {
+                parked = parker.park(handler.getChannel(), () -> resume(handler), () -> stopHandler(handler));
+                if (!parked) {
+                    // The parker was stopped
+                    stopHandler(handler);
+                }
+            }
+        } catch (Throwable t) {
+            logger.warn("Error", t);
+        } finally {
+            if (!parked) {
+                logger.trace("Handler terminating: {}", handler);
+                synchronized (activeHandlersLock) {
+                    activeHandlers.remove(handler);
+                }
+            }
+        }
+    }
+
+    /**
+     * Serves a parked connection again, once its next request arrives. Called by the thread of the parker.
+     */
+    private void resume(ConnectionHandler handler) {
+        try {
+            connectionHandlerThreadPool.execute(() -> serve(handler));
+        } catch (RejectedExecutionException e) {
+            // All the threads are busy and the queue is full, or the executor is shutting down. The thread of the
+            // parker must not block, so the connection is closed without the 503 response of the load shedder, which
+            // may block writing to the socket.
+            if (!closed.get()) {
+                resumeRejected.increment();
+                logger.debug("No thread to serve the next request of {}, closing connection", handler);
+            }
+            stopHandler(handler);
+        }
+    }
+
+    /**
+     * Closes a connection that is not being served by any thread.
+     */
+    private void stopHandler(ConnectionHandler handler) {
+        try {
+            if (handler.isOpen()) {
+                handler.stop();
+            }
+        } catch (IOException e) {
+            logger.debug("Suppressed error closing connection", e);
+        } finally {
+            synchronized (activeHandlersLock) {
+                activeHandlers.remove(handler);
+            }
+        }
+    }
+
     /**
      * Stops the task accepting new connections and all active connection handlers.
      *
      * @throws IOException
      * @throws InterruptedException
      */
+    @Override
     public void stop() throws IOException, InterruptedException {
         if (closed.compareAndSet(false, true)) {
             // This is called from a different thread than the one executing the run method.
@@ -142,7 +305,10 @@ class TCPConnectionAcceptor implements Runnable {
             // Stop all connection handlers
             synchronized (activeHandlersLock) {
                 for (ConnectionHandler activeHandler : activeHandlers) {
-                    activeHandler.stop();
+                    // Parked connections may be closed concurrently by the parker
+                    if (activeHandler.isOpen()) {
+                        activeHandler.stop();
+                    }
                 }
             }
             connectionHandlerThreadPool.shutdown();
@@ -156,6 +322,14 @@ class TCPConnectionAcceptor implements Runnable {
         }
     }
 
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            logger.debug("Suppressed error closing socket", e);
+        }
+    }
+
     private void ensureOpen() {
         if (closed.get()) {
             throw new IllegalStateException("Already closed");
@@ -5,32 +5,43 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 import static com.nsantos.httpfileserver.ThreadUtils.newSingleThreadExecutor;
+import static com.nsantos.httpfileserver.ThreadUtils.newThreadFactory;
 
 /**
  * Listens for new TCP Connections and dispatches them to a new connection handler.
  */
 public class TCPServer {
-    // This class only handles the lifecycle of an instance of TCPConnectionAcceptor, that is, it starts it in a
-    // background task and stops when required
+    // This class only handles the lifecycle of the instances of ConnectionAcceptor, that is, it starts them in
+    // background tasks and stops them when required
     private static final Logger logger = LoggerFactory.getLogger(TCPServer.class);
     private final AtomicBoolean closed = new AtomicBoolean(false);
 
     private final ConnectionHandlerFactory connectionHandlerFactory;
     private final Config config;
 
-    // Thread pool (single threaded) used to run the task that accepts new connections
-    private ExecutorService acceptorThread;
-    // The task to accept new connections.
-    private Future<?> acceptorTask;
-    // The object the implements the logic of accepting new connections.
-    private TCPConnectionAcceptor tcpConnectionAcceptor;
+    // Thread pool used to run the tasks that accept new connections, one thread for each acceptor
+    private ExecutorService acceptorThreads;
+    // Runs the parker of idle connections, if any
+    private ExecutorService parkerThread;
+    // The tasks to accept new connections.
+    private final List<Future<?>> acceptorTasks = new ArrayList<>();
+    // The objects that implement the logic of accepting new connections, for the configured engine. All of them
+    // listen on the same port.
+    private List<ConnectionAcceptor> connectionAcceptors;
+    // Parks the idle connections of all the acceptors of the blocking engine, or null if they are not parked
+    private IdleConnectionParker parker;
+    // Establishes TLS in the connections of all the acceptors, or null to serve plain HTTP
+    private TlsHandshaker tls;
 
     /**
      * @param connectionHandlerFactory Handler for received connections
@@ -42,36 +53,121 @@ public class TCPServer {
     }
 
     public int getLocalPort() {
-        return tcpConnectionAcceptor.getLocalPort();
+        return connectionAcceptors.get(0).getLocalPort();
     }
 
     /**
-     * Starts a new task in a background thread to accept new TCP connections.
-     * This method returns once the task is submitted to a thread pool.
+     * Starts new tasks in background threads to accept new TCP connections, one for each acceptor.
+     * This method returns once the tasks are submitted to a thread pool.
      *
      * @throws IOException
      */
     public void start() throws IOException {
         ensureOpen();
-        if (this.acceptorThread != null) {
+        if (this.acceptorThreads != null) {
             throw new IllegalStateException("Already started");
         }
         logger.info("Starting HTTP Server");
-        this.acceptorThread = newSingleThreadExecutor("acceptor");
-        this.tcpConnectionAcceptor = new TCPConnectionAcceptor(connectionHandlerFactory, config);
-        logger.info("Bound HTTP Server to port {}", tcpConnectionAcceptor.getLocalPort());
-        this.acceptorTask = acceptorThread.submit(tcpConnectionAcceptor);
+        this.connectionAcceptors = createConnectionAcceptors();
+        logger.info("Bound HTTP Server to port {}", getLocalPort());
+        this.acceptorThreads = Executors.newFixedThreadPool(connectionAcceptors.size(), newThreadFactory("acceptor", true));
+        for (var connectionAcceptor : connectionAcceptors) {
+            acceptorTasks.add(acceptorThreads.submit(connectionAcceptor));
+        }
+        if (parker != null) {
+            this.parkerThread = newSingleThreadExecutor("idle-connection-parker");
+            parkerThread.submit(parker);
+        }
+    }
+
+    private List<ConnectionAcceptor> createConnectionAcceptors() throws IOException {
+        var engine = config.getString(Constants.SERVER_ENGINE);
+        logger.info("Using {} engine", engine);
+        return switch (engine) {
+            case Constants.ENGINE_BLOCKING -> createShardedAcceptors();
+            case Constants.ENGINE_NIO -> {
+                if (config.getBoolean(Constants.TLS_ENABLED)) {
+                    throw new IllegalArgumentException("%s requires the %s engine".formatted(Constants.TLS_ENABLED, Constants.ENGINE_BLOCKING));
+                }
+                // Waiting for the reads would block the event loops, and all the connections they serve
+                if (config.getBoolean(Constants.ASYNC_FILE_READS_ENABLED)) {
+                    throw new IllegalArgumentException("%s requires the %s engine".formatted(Constants.ASYNC_FILE_READS_ENABLED, Constants.ENGINE_BLOCKING));
+                }
+                if (config.getInt(Constants.ACCEPTOR_SHARDS) != 1) {
+                    logger.warn("Ignoring {}, the {} engine uses a single acceptor", Constants.ACCEPTOR_SHARDS, engine);
+                }
+                yield List.of(new NioConnectionAcceptor(connectionHandlerFactory, config));
+            }
+            default -> throw new IllegalArgumentException("Invalid value for %s: %s. Must be one of: %s, %s".formatted(
+                    Constants.SERVER_ENGINE, engine, Constants.ENGINE_BLOCKING, Constants.ENGINE_NIO));
+        };
+    }
+
+    /**
+     * Creates the acceptors of the blocking engine. With more than one shard, each acceptor binds its own channel to
+     * the same port with SO_REUSEPORT. The first one binds to the configured port, or to a random port, and the others
+     * to the port of the first one.
+     */
+    private List<ConnectionAcceptor> createShardedAcceptors() throws IOException {
+        var shards = config.getInt(Constants.ACCEPTOR_SHARDS);
+        if (shards < 1) {
+            throw new IllegalArgumentException("Invalid value for %s: %d. Must be at least 1".formatted(Constants.ACCEPTOR_SHARDS, shards));
+        }
+        var reusePort = shards > 1;
+        var acceptors = new ArrayList<ConnectionAcceptor>(shards);
+        if (config.getBoolean(Constants.IDLE_CONNECTIONS_PARK)) {
+            parker = new IdleConnectionParker(config, connectionHandlerFactory.getMetrics());
+        }
+        if (config.getBoolean(Constants.TLS_ENABLED)) {
+            tls = new TlsHandshaker(config, connectionHandlerFactory.getMetrics());
+        }
+        try {
+            // Bind through a channel, so that the accepted sockets have a channel that supports zero-copy file transfers
+            var first = SocketUtils.bindToConfiguredPort(config, port -> SocketUtils.openServerSocketChannel(port, reusePort));
+            acceptors.add(new TCPConnectionAcceptor(connectionHandlerFactory, config, first, 0, parker, tls));
+            for (int shard = 1; shard < shards; shard++) {
+                var channel = SocketUtils.openServerSocketChannel(first.socket().getLocalPort(), true);
+                acceptors.add(new TCPConnectionAcceptor(connectionHandlerFactory, config, channel, shard, parker, tls));
+            }
+        } catch (IOException | RuntimeException e) {
+            for (var acceptor : acceptors) {
+                stopQuietly(acceptor);
+            }
+            if (parker != null) {
+                parker.stop();
+            }
+            if (tls != null) {
+                tls.stop();
+            }
+            throw e;
+        }
+        if (reusePort) {
+            logger.info("Accepting connections with {} acceptor shards", shards);
+        }
+        return acceptors;
+    }
+
+    private static void stopQuietly(ConnectionAcceptor acceptor) {
+        try {
+            acceptor.stop();
+        } catch (IOException e) {
+            logger.debug("Suppressed error stopping acceptor", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
     }
 
     /**
-     * Blocks until the terminates
+     * Blocks until all the acceptors terminate
      *
      * @throws ExecutionException
      * @throws InterruptedException
      */
     public void join() throws ExecutionException, InterruptedException {
         ensureOpen();
-        acceptorTask.get();
+        for (var acceptorTask : acceptorTasks) {
+            acceptorTask.get();
+        }
     }
 
     /**
@@ -83,12 +179,34 @@ public class TCPServer {
     public void stop() throws IOException, InterruptedException {
         if (closed.compareAndSet(false, true)) {
             logger.info("Closing TPCServer");
-            tcpConnectionAcceptor.stop();
-            acceptorThread.shutdown();
-            // The socket acceptor task should terminate gracefully in response to the server socket being closed.
-            if (!acceptorThread.awaitTermination(5, TimeUnit.SECONDS)) {
-                // It did not terminate gracefully, interrupt it.
-                acceptorThread.shutdownNow();
+            // Stop all the shards, even if stopping one of them fails
+            IOException error = null;
+            for (var connectionAcceptor : connectionAcceptors) {
+                try {
+                    connectionAcceptor.stop();
+                } catch (IOException e) {
+                    if (error == null) {
+                        error = e;
+                    } else {
+                        error.addSuppressed(e);
+                    }
+                }
+            }
+            if (parker != null) {
+                parker.stop();
+                parkerThread.shutdown();
+            }
+            if (tls != null) {
+                tls.stop();
+            }
+            acceptorThreads.shutdown();
+            // The socket acceptor tasks should terminate gracefully in response to the server sockets being closed.
+            if (!acceptorThreads.awaitTermination(5, TimeUnit.SECONDS)) {
+                // They did not terminate gracefully, interrupt them.
+                acceptorThreads.shutdownNow();
+            }
+            if (error != null) {
+                throw error;
             }
         } else {
             logger.warn("Already closed");
@@ -4,10 +4,16 @@ import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.Optional;
 import java.util.concurrent.*;
 
 public class ThreadUtils {
     private static final Logger logger = LoggerFactory.getLogger(TCPServer.class);
+    // Thread.isVirtual(), or null if the runtime has no virtual threads
+    private static final MethodHandle IS_VIRTUAL = findIsVirtual();
 
     public static ExecutorService newSingleThreadExecutor(String name) {
         return Executors.newSingleThreadExecutor(r -> {
@@ -17,15 +23,70 @@ public class ThreadUtils {
         });
     }
 
-    public static ExecutorService newBoundedCachedThreadPool(int minSize, int maxSize, String name) {
-        return new ThreadPoolExecutor(
-                minSize,
+    /**
+     * Creates a pool of up to maxSize threads, which are started as tasks are submitted and stopped after being idle
+     * for a while. When all the threads are busy, up to queueSize tasks wait for a free thread, and further tasks are
+     * rejected.
+     *
+     * @param queueSize Tasks that can wait for a thread. If 0, tasks are rejected as soon as all the threads are busy.
+     */
+    public static ThreadPoolExecutor newBoundedThreadPool(int maxSize, int queueSize, String name) {
+        BlockingQueue<Runnable> queue = queueSize > 0 ? new ArrayBlockingQueue<>(queueSize) : new SynchronousQueue<>();
+        // Tasks are queued only when there are maxSize threads, so all the threads are core threads
+        var executor = new ThreadPoolExecutor(
+                maxSize,
                 maxSize,
                 60L,
                 TimeUnit.SECONDS,
-                new SynchronousQueue<>(),
+                queue,
                 newThreadFactory(name, true)
         );
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    /**
+     * Creates an executor that starts a new virtual thread for each task. Virtual threads are only available from
+     * Java 21, so they are looked up by reflection to keep the code compatible with Java 17.
+     *
+     * @param name Prefix of the names of the threads
+     * @return The executor, or empty if the runtime does not support virtual threads.
+     */
+    public static Optional<ExecutorService> newVirtualThreadPerTaskExecutor(String name) {
+        try {
+            var builderClass = Class.forName("java.lang.Thread$Builder");
+            var builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, name + "-", 0L);
+            var threadFactory = (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+            var executor = Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class).invoke(null, threadFactory);
+            return Optional.of((ExecutorService) executor);
+        } catch (ReflectiveOperationException e) {
+            // Not available in this runtime or, in Java 19 and 20, a preview feature that was not enabled
+            logger.debug("Virtual threads not supported: {}", e.toString());
+            return Optional.empty();
+        }
+    }
+
+    /**
+     * @return true if the thread is a virtual thread. Looked up by reflection, like the executor of virtual threads.
+     */
+    public static boolean isVirtual(Thread thread) {
+        if (IS_VIRTUAL == null) {
+            return false;
+        }
+        try {
+            return (boolean) IS_VIRTUAL.invokeExact(thread);
+        } catch (Throwable t) {
+            throw new IllegalStateException("Error calling Thread.isVirtual", t);
+        }
+    }
+
+    private static MethodHandle findIsVirtual() {
+        try {
+            return MethodHandles.publicLookup().findVirtual(Thread.class, "isVirtual", MethodType.methodType(boolean.class));
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
     }
 
     public static ThreadFactory newThreadFactory(String name, Boolean daemon) {
@@ -0,0 +1,229 @@
+package com.nsantos.httpfileserver;
+
+import com.nsantos.httpfileserver.metrics.ServerMetrics;
+import com.typesafe.config.Config;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSocket;
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * Establishes TLS in the connections accepted by the blocking engine, which are then served as usual over the
+ * SSLSocket. The handshakes are performed by a pool of threads separate from those that serve the requests, so that
+ * a burst of new connections, or clients that stall during the handshake, cannot take the threads of the established
+ * connections. When the pool and its bounded queue are full, new connections are closed.
+ * <p>
+ * Reconnecting clients resume their sessions with an abbreviated handshake, from the session cache of the server or
+ * from session tickets. The protocol of the connection is negotiated with ALPN: h2 if HTTP/2 is enabled, or http/1.1.
+ * https://datatracker.ietf.org/doc/html/rfc7301
+ */
+class TlsHandshaker {
+    private static final Logger logger = LoggerFactory.getLogger(TlsHandshaker.class);
+
+    static final String ALPN_H2 = "h2";
+    static final String ALPN_HTTP_1_1 = "http/1.1";
+    private static final String SESSION_TICKETS_PROPERTY = "jdk.tls.server.enableSessionTicketExtension";
+
+    /**
+     * How a handshake ended, counted in the metrics
+     */
+    private enum Result {
+        FULL,
+        RESUMED,
+        FAILED,
+        // No thread was free and the queue was full
+        REJECTED
+    }
+
+    /**
+     * The handshake of a connection, queued until a thread is free
+     */
+    private record Handshake(Socket socket, Consumer<SSLSocket> onEstablished, TlsHandshaker handshaker) implements Runnable {
+        @Override
+        public void run() {
+            handshaker.perform(socket, onEstablished);
+        }
+    }
+
+    private final SSLContext sslContext;
+    private final SSLParameters parameters;
+    private final int handshakeTimeoutMillis;
+    private final ThreadPoolExecutor executor;
+    // Connections in the middle of a handshake, closed when the handshaker is stopped
+    private final Set<Socket> handshaking = ConcurrentHashMap.newKeySet();
+    private final LongAdder[] handshakes = new LongAdder[Result.values().length];
+    private final LongAdder h2Negotiated = new LongAdder();
+    private volatile boolean stopped = false;
+
+    /**
+     * @param config  Global configuration
+     * @param metrics Where to register the metrics of the handshakes
+     * @throws IOException If the keystore cannot be read
+     */
+    TlsHandshaker(Config config, ServerMetrics metrics) throws IOException {
+        var sessionCacheSize = config.getInt(Constants.TLS_SESSION_CACHE_SIZE);
+        var sessionTimeout = config.getDuration(Constants.TLS_SESSION_TIMEOUT, TimeUnit.SECONDS);
+        if (sessionCacheSize < 0 || sessionTimeout < 0 || sessionTimeout > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Invalid value for %s or %s: %d, %d seconds".formatted(
+                    Constants.TLS_SESSION_CACHE_SIZE, Constants.TLS_SESSION_TIMEOUT, sessionCacheSize, sessionTimeout));
+        }
+        var handshakeTimeout = config.getDuration(Constants.TLS_HANDSHAKE_TIMEOUT, TimeUnit.MILLISECONDS);
+        if (handshakeTimeout <= 0 || handshakeTimeout > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Invalid value for %s: %d millis".formatted(Constants.TLS_HANDSHAKE_TIMEOUT, handshakeTimeout));
+        }
+        this.handshakeTimeoutMillis = (int) handshakeTimeout;
+        var threads = config.getInt(Constants.TLS_HANDSHAKE_THREADS);
+        var queueSize = config.getInt(Constants.TLS_HANDSHAKE_QUEUE_SIZE);
+        if (threads < 0 || queueSize < 0) {
+            throw new IllegalArgumentException("Invalid value for %s or %s: %d, %d".formatted(
+                    Constants.TLS_HANDSHAKE_THREADS, Constants.TLS_HANDSHAKE_QUEUE_SIZE, threads, queueSize));
+        }
+        if (System.getProperty(SESSION_TICKETS_PROPERTY) == null) {
+            // Read by the JDK when TLS is first used, so it only applies if no TLS context was created before
+            System.setProperty(SESSION_TICKETS_PROPERTY, Boolean.toString(config.getBoolean(Constants.TLS_SESSION_TICKETS)));
+        }
+        this.sslContext = createContext(config);
+        var sessionContext = sslContext.getServerSessionContext();
+        sessionContext.setSessionCacheSize(sessionCacheSize);
+        sessionContext.setSessionTimeout((int) sessionTimeout);
+
+        this.parameters = sslContext.getDefaultSSLParameters();
+        parameters.setProtocols(config.getStringList(Constants.TLS_PROTOCOLS).toArray(String[]::new));
+        parameters.setUseCipherSuitesOrder(true);
+        parameters.setApplicationProtocols(config.getBoolean(Constants.HTTP2_ENABLED)
+                ? new String[]{ALPN_H2, ALPN_HTTP_1_1} : new String[]{ALPN_HTTP_1_1});
+
+        threads = threads == 0 ? Runtime.getRuntime().availableProcessors() : threads;
+        this.executor = ThreadUtils.newBoundedThreadPool(threads, queueSize, "tls-handshake");
+        for (var result : Result.values()) {
+            var adder = new LongAdder();
+            handshakes[result.ordinal()] = adder;
+            metrics.registerCounter("tls_handshakes_total", "result=\"%s\"".formatted(result.name().toLowerCase(Locale.ROOT)),
+                    "TLS handshakes of new connections, by result", adder::sum);
+        }
+        metrics.registerCounter("tls_h2_negotiated_total", "", "TLS connections that negotiated HTTP/2 with ALPN", h2Negotiated::sum);
+        metrics.registerGauge("tls_handshakes_in_progress", "", "TLS handshakes being performed", handshaking::size);
+        metrics.registerGauge("tls_handshakes_queued", "", "New connections waiting for a handshake thread", () -> executor.getQueue().size());
+        logger.info("Serving HTTPS. Protocols: {}, ALPN: {}, Handshake threads: {}", parameters.getProtocols(),
+                parameters.getApplicationProtocols(), threads);
+    }
+
+    private static SSLContext createContext(Config config) throws IOException {
+        var path = config.getString(Constants.TLS_KEYSTORE_PATH);
+        if (path.isEmpty()) {
+            throw new IllegalArgumentException("Invalid value for %s: must be set when TLS is enabled".formatted(Constants.TLS_KEYSTORE_PATH));
+        }
+        var password = config.getString(Constants.TLS_KEYSTORE_PASSWORD).toCharArray();
+        try (var in = Files.newInputStream(Path.of(path))) {
+            var keyStore = KeyStore.getInstance(config.getString(Constants.TLS_KEYSTORE_TYPE));
+            keyStore.load(in, password);
+            var keyManagerFactory = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+            keyManagerFactory.init(keyStore, password);
+            var context = SSLContext.getInstance("TLS");
+            context.init(keyManagerFactory.getKeyManagers(), null, null);
+            return context;
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Error loading keystore %s".formatted(path), e);
+        }
+    }
+
+    /**
+     * Performs the handshake of a new connection on a handshake thread. The connection is closed if the handshake
+     * fails, or if there is no thread available.
+     *
+     * @param socket        A connection just accepted
+     * @param onEstablished Receives the connection once TLS is established, on the handshake thread
+     */
+    void handshake(Socket socket, Consumer<SSLSocket> onEstablished) {
+        try {
+            executor.execute(new Handshake(socket, onEstablished, this));
+        } catch (RejectedExecutionException e) {
+            handshakes[Result.REJECTED.ordinal()].increment();
+            logger.debug("No thread for the TLS handshake with {}, closing connection", socket.getRemoteSocketAddress());
+            closeQuietly(socket);
+        }
+    }
+
+    private void perform(Socket socket, Consumer<SSLSocket> onEstablished) {
+        handshaking.add(socket);
+        SSLSocket sslSocket = null;
+        // Sessions created before the handshake started were resumed
+        var startMillis = System.currentTimeMillis();
+        try {
+            if (stopped) {
+                // Checked after adding the socket, so that stop() closes it otherwise
+                throw new IOException("Server stopped");
+            }
+            sslSocket = (SSLSocket) sslContext.getSocketFactory().createSocket(socket, null, socket.getPort(), true);
+            sslSocket.setUseClientMode(false);
+            sslSocket.setSSLParameters(parameters);
+            sslSocket.setSoTimeout(handshakeTimeoutMillis);
+            sslSocket.startHandshake();
+        } catch (IOException e) {
+            handshakes[Result.FAILED.ordinal()].increment();
+            logger.debug("TLS handshake with {} failed: {}", socket.getRemoteSocketAddress(), e.toString());
+            closeQuietly(sslSocket != null ? sslSocket : socket);
+            return;
+        } finally {
+            handshaking.remove(socket);
+        }
+        var resumed = sslSocket.getSession().getCreationTime() < startMillis;
+        handshakes[(resumed ? Result.RESUMED : Result.FULL).ordinal()].increment();
+        if (ALPN_H2.equals(sslSocket.getApplicationProtocol())) {
+            h2Negotiated.increment();
+        }
+        onEstablished.accept(sslSocket);
+    }
+
+    /**
+     * Creates an engine with the same context and parameters as the connections, to measure handshakes without
+     * sockets.
+     */
+    SSLEngine createEngine() {
+        var engine = sslContext.createSSLEngine();
+        engine.setUseClientMode(false);
+        engine.setSSLParameters(parameters);
+        return engine;
+    }
+
+    /**
+     * Stops performing handshakes, and closes the connections waiting for one or in the middle of one.
+     */
+    void stop() {
+        stopped = true;
+        for (var pending : executor.shutdownNow()) {
+            if (pending instanceof Handshake handshake) {
+                closeQuietly(handshake.socket());
+            }
+        }
+        for (var socket : handshaking) {
+            closeQuietly(socket);
+        }
+    }
+
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            logger.debug("Suppressed error closing socket", e);
+        }
+    }
+}
@@ -0,0 +1,126 @@
+package com.nsantos.httpfileserver;
+
+import com.google.common.hash.Hashing;
+import com.nsantos.httpfileserver.fileserver.FileStat;
+import org.apache.hc.core5.http.HttpHeaders;
+
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+import java.time.temporal.ChronoUnit;
+import java.util.HashMap;
+
+import static com.nsantos.httpfileserver.HttpConstants.HTTP_DATE_FORMAT;
+
+/**
+ * The validators of a representation, used to evaluate conditional requests.
+ * https://datatracker.ietf.org/doc/html/rfc7232
+ *
+ * @param etag         The entity tag, including the quotes
+ * @param lastModified The modification time, truncated to seconds as it is sent in HTTP dates, or null if unknown
+ */
+record Validators(String etag, Instant lastModified) {
+
+    /**
+     * Validators of a file, derived from its size, modification time and file key (the inode, in Unix systems).
+     */
+    static Validators forFile(FileStat stat) {
+        var etag = "\"" + Long.toHexString(stat.size())
+                + "-" + Long.toHexString(stat.lastModifiedNanos())
+                + "-" + Integer.toHexString(stat.fileKeyHash())
+                + "\"";
+        return new Validators(etag, stat.lastModified().truncatedTo(ChronoUnit.SECONDS));
+    }
+
+    /**
+     * Validators of a generated representation, derived from its contents.
+     */
+    static Validators forContent(byte[] content) {
+        return new Validators("\"" + Hashing.murmur3_128().hashBytes(content) + "\"", null);
+    }
+
+    /**
+     * Validators of an encoded representation. Its entity tag must be different from the one of the representation
+     * without encoding, as they are not byte-for-byte equal.
+     *
+     * @param encoding The content coding
+     */
+    Validators withEncoding(String encoding) {
+        return new Validators(etag.substring(0, etag.length() - 1) + "-" + encoding + "\"", lastModified);
+    }
+
+    /**
+     * Adds the ETag and Last-Modified headers to a response.
+     */
+    void addTo(HashMap<String, String> headers) {
+        headers.put(HttpHeaders.ETAG, etag);
+        if (lastModified != null) {
+            headers.put(HttpHeaders.LAST_MODIFIED, HTTP_DATE_FORMAT.format(lastModified));
+        }
+    }
+
+    /**
+     * Evaluates the If-None-Match and If-Modified-Since preconditions of a GET or HEAD request.
+     * https://datatracker.ietf.org/doc/html/rfc7232#section-6
+     *
+     * @return true if the client has a valid copy, so the response should be 304 (Not Modified)
+     */
+    boolean isNotModified(RequestHeaders headers) {
+        var ifNoneMatch = headers.get(HttpHeaders.IF_NONE_MATCH);
+        if (ifNoneMatch != null) {
+            // If-Modified-Since is ignored if If-None-Match is present
+            return ifNoneMatch.trim().equals("*") || containsWeakMatch(ifNoneMatch);
+        }
+        var ifModifiedSince = headers.get(HttpHeaders.IF_MODIFIED_SINCE);
+        if (ifModifiedSince != null && lastModified != null) {
+            var date = parseHttpDate(ifModifiedSince);
+            return date != null && !lastModified.isAfter(date);
+        }
+        return false;
+    }
+
+    /**
+     * Evaluates the If-Range precondition, which requires a strong match of the entity tag or an exact match of the
+     * modification date.
+     * https://datatracker.ietf.org/doc/html/rfc7233#section-3.2
+     *
+     * @return true if the ranges should be sent, false to send the whole representation.
+     */
+    boolean matchesIfRange(String ifRange) {
+        ifRange = ifRange.trim();
+        if (ifRange.startsWith("\"") || ifRange.startsWith("W/")) {
+            return ifRange.equals(etag);
+        }
+        var date = parseHttpDate(ifRange);
+        return date != null && date.equals(lastModified);
+    }
+
+    /**
+     * @param list A list of entity tags, as in the If-None-Match header
+     * @return true if the list contains our entity tag, ignoring the weakness indicator.
+     */
+    private boolean containsWeakMatch(String list) {
+        var pos = 0;
+        while (pos < list.length()) {
+            var comma = list.indexOf(',', pos);
+            var end = comma < 0 ? list.length() : comma;
+            var tag = list.substring(pos, end).trim();
+            if (tag.startsWith("W/")) {
+                tag = tag.substring(2);
+            }
+            if (tag.equals(etag)) {
+                return true;
+            }
+            pos = end + 1;
+        }
+        return false;
+    }
+
+    private static Instant parseHttpDate(String date) {
+        try {
+            return Instant.from(HTTP_DATE_FORMAT.parse(date.trim()));
+        } catch (DateTimeParseException e) {
+            // Invalid dates are ignored
+            return null;
+        }
+    }
+}
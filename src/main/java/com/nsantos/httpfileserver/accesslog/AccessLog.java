@@ -0,0 +1,253 @@
+package com.nsantos.httpfileserver.accesslog;
+
+import com.nsantos.httpfileserver.Constants;
+import com.nsantos.httpfileserver.ThreadUtils;
+import com.nsantos.httpfileserver.metrics.ServerMetrics;
+import com.typesafe.config.Config;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Writes a line for each request to a file, in the Common Log Format followed by the duration of the request in
+ * microseconds: {@code 127.0.0.1 - - [17/Oct/2026:10:15:32 +0000] "GET /index.html HTTP/1.1" 200 2326 154}
+ * <p>
+ * Requests whose body was read with asynchronous file reads have two more fields: the time spent waiting for the
+ * storage and the time spent writing to the client, in microseconds.
+ * <p>
+ * The threads that serve the requests only add a record to a lock-free buffer, without formatting anything. A
+ * background thread formats the records and writes them in batches, flushing the file when the buffer is empty. When
+ * the buffer is full, the record is either dropped or the request waits until there is space, as configured.
+ */
+public class AccessLog implements Closeable {
+    private static final Logger logger = LoggerFactory.getLogger(AccessLog.class);
+    // Records formatted before writing them to the file
+    private static final int BATCH_SIZE = 256;
+    private static final long IDLE_WAIT_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+    private static final long BLOCK_WAIT_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+    private static final DateTimeFormatter TIMESTAMP_FORMAT =
+            DateTimeFormatter.ofPattern("dd/MMM/yyyy:HH:mm:ss Z", Locale.US).withZone(ZoneId.systemDefault());
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    private final boolean enabled;
+    private final boolean blockWhenFull;
+    private final AccessLogBuffer buffer;
+    private final RollingFile file;
+    private final Thread writerThread;
+    private volatile boolean closed = false;
+    private final LongAdder written = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder writeErrors = new LongAdder();
+
+    // Only accessed by the writer thread
+    private final StringBuilder batch = new StringBuilder(BATCH_SIZE * 128);
+    private byte[] batchBytes = new byte[BATCH_SIZE * 128];
+    private long cachedSecond = Long.MIN_VALUE;
+    private String cachedTimestamp;
+
+    public AccessLog(Config config) throws IOException {
+        this.enabled = config.getBoolean(Constants.ACCESS_LOG_ENABLED);
+        var policy = config.getString(Constants.ACCESS_LOG_OVERFLOW_POLICY);
+        this.blockWhenFull = switch (policy) {
+            case Constants.OVERFLOW_DROP -> false;
+            case Constants.OVERFLOW_BLOCK -> true;
+            default -> throw new IllegalArgumentException("Invalid value for %s: %s. Must be one of: %s, %s".formatted(
+                    Constants.ACCESS_LOG_OVERFLOW_POLICY, policy, Constants.OVERFLOW_DROP, Constants.OVERFLOW_BLOCK));
+        };
+        if (!enabled) {
+            this.buffer = null;
+            this.file = null;
+            this.writerThread = null;
+            return;
+        }
+        var bufferSize = config.getInt(Constants.ACCESS_LOG_BUFFER_SIZE);
+        if (bufferSize <= 0 || bufferSize > 1 << 30) {
+            throw new IllegalArgumentException("Invalid value for %s: %d".formatted(Constants.ACCESS_LOG_BUFFER_SIZE, bufferSize));
+        }
+        var maxFileSize = config.getBytes(Constants.ACCESS_LOG_MAX_FILE_SIZE);
+        var maxFiles = config.getInt(Constants.ACCESS_LOG_MAX_FILES);
+        if (maxFileSize <= 0 || maxFiles < 0) {
+            throw new IllegalArgumentException("Invalid value for %s or %s: %d, %d".formatted(
+                    Constants.ACCESS_LOG_MAX_FILE_SIZE, Constants.ACCESS_LOG_MAX_FILES, maxFileSize, maxFiles));
+        }
+        var path = Path.of(config.getString(Constants.ACCESS_LOG_FILE));
+        this.buffer = new AccessLogBuffer(bufferSize);
+        this.file = new RollingFile(path, maxFileSize, maxFiles);
+        this.writerThread = ThreadUtils.newThreadFactory("access-log", true).newThread(this::writeRecords);
+        writerThread.start();
+        logger.info("Writing access log to {}. Buffer size: {}, Overflow policy: {}", path.toAbsolutePath(), buffer.capacity(), policy);
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Adds a request to the log. The request is written to the file later, by the writer thread.
+     *
+     * @param remoteAddress The address of the client
+     * @param method        The method of the request, or null if it could not be parsed
+     * @param target        The target of the request, or null if it could not be parsed
+     * @param httpVersion   The version of the request, or null if it could not be parsed
+     * @param status        The status of the response
+     * @param bytes         The bytes sent in the response, including the head
+     * @param durationNanos The time to serve the request
+     * @param storageWaitNanos The time spent waiting for the storage, or -1 if not measured
+     * @param networkWaitNanos The time spent writing the body read from the storage, or -1 if not measured
+     */
+    public void log(SocketAddress remoteAddress, String method, String target, String httpVersion, int status, long bytes,
+                    long durationNanos, long storageWaitNanos, long networkWaitNanos) {
+        if (!enabled) {
+            return;
+        }
+        var timestamp = System.currentTimeMillis();
+        while (!buffer.offer(timestamp, remoteAddress, method, target, httpVersion, status, bytes, durationNanos,
+                storageWaitNanos, networkWaitNanos)) {
+            LockSupport.unpark(writerThread);
+            if (!blockWhenFull || closed) {
+                dropped.increment();
+                return;
+            }
+            LockSupport.parkNanos(BLOCK_WAIT_NANOS);
+        }
+    }
+
+    public void registerMetrics(ServerMetrics metrics) {
+        if (!enabled) {
+            return;
+        }
+        metrics.registerCounter("access_log_records_total", "result=\"written\"", "Records of the access log, by result", written::sum);
+        metrics.registerCounter("access_log_records_total", "result=\"dropped\"", "Records of the access log, by result", dropped::sum);
+        metrics.registerCounter("access_log_records_total", "result=\"failed\"", "Records of the access log, by result", writeErrors::sum);
+    }
+
+    /**
+     * @return The records dropped because the buffer was full
+     */
+    public long getDroppedCount() {
+        return dropped.sum();
+    }
+
+    private void writeRecords() {
+        while (true) {
+            // Read before draining, so that all the records added before closing are written
+            var done = closed;
+            var count = buffer.drain(this::format, BATCH_SIZE);
+            if (count > 0) {
+                writeBatch(count);
+            } else {
+                try {
+                    file.flush();
+                } catch (IOException e) {
+                    logger.warn("Error flushing access log: {}", e.toString());
+                }
+                if (done) {
+                    return;
+                }
+                LockSupport.parkNanos(IDLE_WAIT_NANOS);
+            }
+        }
+    }
+
+    private void writeBatch(int count) {
+        var length = batch.length();
+        if (batchBytes.length < length) {
+            batchBytes = new byte[Math.max(length, batchBytes.length * 2)];
+        }
+        // Only ASCII characters, the rest were escaped
+        for (int i = 0; i < length; i++) {
+            batchBytes[i] = (byte) batch.charAt(i);
+        }
+        batch.setLength(0);
+        try {
+            file.write(batchBytes, length);
+            written.add(count);
+        } catch (IOException e) {
+            // Log only the first error, a full disk would fail every batch
+            if (writeErrors.sum() == 0) {
+                logger.warn("Error writing access log, dropping records: {}", e.toString());
+            }
+            writeErrors.add(count);
+        }
+    }
+
+    private void format(long timestampMillis, SocketAddress remoteAddress, String method, String target, String httpVersion,
+                        int status, long bytes, long durationNanos, long storageWaitNanos, long networkWaitNanos) {
+        if (remoteAddress instanceof InetSocketAddress inetAddress && inetAddress.getAddress() != null) {
+            batch.append(inetAddress.getAddress().getHostAddress());
+        } else {
+            batch.append('-');
+        }
+        batch.append(" - - [").append(timestamp(timestampMillis)).append("] \"");
+        if (method == null) {
+            batch.append('-');
+        } else {
+            appendEscaped(method);
+            batch.append(' ');
+            appendEscaped(target);
+            batch.append(' ');
+            appendEscaped(httpVersion);
+        }
+        batch.append("\" ").append(status).append(' ').append(bytes).append(' ')
+                .append(TimeUnit.NANOSECONDS.toMicros(durationNanos));
+        if (storageWaitNanos >= 0) {
+            batch.append(' ').append(TimeUnit.NANOSECONDS.toMicros(storageWaitNanos))
+                    .append(' ').append(TimeUnit.NANOSECONDS.toMicros(networkWaitNanos));
+        }
+        batch.append('\n');
+    }
+
+    private String timestamp(long timestampMillis) {
+        var second = timestampMillis / 1000;
+        if (second != cachedSecond) {
+            cachedSecond = second;
+            cachedTimestamp = TIMESTAMP_FORMAT.format(Instant.ofEpochSecond(second));
+        }
+        return cachedTimestamp;
+    }
+
+    /**
+     * Appends a value received from the client, escaping quotes, backslashes and non-printable characters as \xHH,
+     * so that a line cannot be split or forged.
+     */
+    private void appendEscaped(String value) {
+        for (int i = 0; i < value.length(); i++) {
+            var c = value.charAt(i);
+            if (c < 0x20 || c >= 0x7f || c == '"' || c == '\\') {
+                batch.append("\\x").append(HEX_DIGITS[(c >> 4) & 0xf]).append(HEX_DIGITS[c & 0xf]);
+            } else {
+                batch.append(c);
+            }
+        }
+    }
+
+    /**
+     * Writes the records in the buffer and closes the file.
+     */
+    @Override
+    public void close() throws IOException {
+        if (!enabled || closed) {
+            return;
+        }
+        closed = true;
+        LockSupport.unpark(writerThread);
+        try {
+            writerThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        file.close();
+    }
+}
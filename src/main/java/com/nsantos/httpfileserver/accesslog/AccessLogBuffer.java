@@ -0,0 +1,135 @@
+package com.nsantos.httpfileserver.accesslog;
+
+import java.net.SocketAddress;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A bounded, lock-free ring buffer of access log records, written by many threads and read by a single one. The
+ * records have a fixed layout, stored in preallocated arrays, so adding a record allocates no memory.
+ * <p>
+ * Each slot has a sequence number that tells whether it is free for the record at a given position or holds a record
+ * ready to be read (Dmitry Vyukov's bounded MPMC queue, with a single consumer). Writers claim a position with a CAS
+ * on the tail and publish the record by updating the sequence of the slot, so the reader never sees partial records.
+ */
+class AccessLogBuffer {
+
+    /**
+     * Receives the records read from the buffer.
+     */
+    interface RecordConsumer {
+        void accept(long timestampMillis, SocketAddress remoteAddress, String method, String target, String httpVersion,
+                    int status, long bytes, long durationNanos, long storageWaitNanos, long networkWaitNanos);
+    }
+
+    private final int mask;
+    private final AtomicLongArray sequences;
+    private final AtomicLong tail = new AtomicLong();
+    // Only accessed by the reader
+    private long head = 0;
+
+    private final long[] timestamps;
+    private final SocketAddress[] remoteAddresses;
+    private final String[] methods;
+    private final String[] targets;
+    private final String[] httpVersions;
+    private final int[] statuses;
+    private final long[] bytes;
+    private final long[] durations;
+    private final long[] storageWaits;
+    private final long[] networkWaits;
+
+    /**
+     * @param capacity The number of records, rounded up to a power of two
+     */
+    AccessLogBuffer(int capacity) {
+        if (capacity <= 0 || capacity > 1 << 30) {
+            throw new IllegalArgumentException("Invalid capacity: " + capacity);
+        }
+        var size = Integer.highestOneBit(capacity * 2 - 1);
+        this.mask = size - 1;
+        this.sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            sequences.set(i, i);
+        }
+        this.timestamps = new long[size];
+        this.remoteAddresses = new SocketAddress[size];
+        this.methods = new String[size];
+        this.targets = new String[size];
+        this.httpVersions = new String[size];
+        this.statuses = new int[size];
+        this.bytes = new long[size];
+        this.durations = new long[size];
+        this.storageWaits = new long[size];
+        this.networkWaits = new long[size];
+    }
+
+    int capacity() {
+        return mask + 1;
+    }
+
+    /**
+     * Adds a record, if there is space.
+     *
+     * @return false if the buffer is full
+     */
+    boolean offer(long timestampMillis, SocketAddress remoteAddress, String method, String target, String httpVersion,
+                  int status, long bytesSent, long durationNanos, long storageWaitNanos, long networkWaitNanos) {
+        var position = tail.get();
+        while (true) {
+            var slot = (int) position & mask;
+            var difference = sequences.get(slot) - position;
+            if (difference == 0) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    timestamps[slot] = timestampMillis;
+                    remoteAddresses[slot] = remoteAddress;
+                    methods[slot] = method;
+                    targets[slot] = target;
+                    httpVersions[slot] = httpVersion;
+                    statuses[slot] = status;
+                    bytes[slot] = bytesSent;
+                    durations[slot] = durationNanos;
+                    storageWaits[slot] = storageWaitNanos;
+                    networkWaits[slot] = networkWaitNanos;
+                    // Publishes the record to the reader
+                    sequences.set(slot, position + 1);
+                    return true;
+                }
+                position = tail.get();
+            } else if (difference < 0) {
+                // The slot still holds the record of the previous lap, not read yet
+                return false;
+            } else {
+                // Another writer claimed this position
+                position = tail.get();
+            }
+        }
+    }
+
+    /**
+     * Reads the records in the order they were added, until the buffer is empty or the limit is reached. Must be
+     * called by a single thread.
+     *
+     * @return The number of records read
+     */
+    int drain(RecordConsumer consumer, int limit) {
+        var count = 0;
+        while (count < limit) {
+            var slot = (int) head & mask;
+            if (sequences.get(slot) != head + 1) {
+                // Empty, or the next record is not published yet
+                break;
+            }
+            consumer.accept(timestamps[slot], remoteAddresses[slot], methods[slot], targets[slot], httpVersions[slot],
+                    statuses[slot], bytes[slot], durations[slot], storageWaits[slot], networkWaits[slot]);
+            // Do not retain the objects of the request
+            remoteAddresses[slot] = null;
+            targets[slot] = null;
+            // Frees the slot for the next lap
+            sequences.set(slot, head + mask + 1);
+            head++;
+            count++;
+        }
+        return count;
+    }
+}
@@ -0,0 +1,84 @@
+package com.nsantos.httpfileserver.accesslog;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * A file that is rotated when it reaches a maximum size: the file is renamed with the suffix .1, the previous .1
+ * becomes .2, and so on, deleting the oldest. Appends to the file if it already exists. Not thread safe.
+ */
+class RollingFile implements Closeable {
+    private final Path file;
+    private final long maxFileSize;
+    private final int maxFiles;
+    private OutputStream os;
+    private long size;
+
+    /**
+     * @param file        The file to write
+     * @param maxFileSize The file is rotated once it reaches this size
+     * @param maxFiles    The number of rotated files to keep
+     */
+    RollingFile(Path file, long maxFileSize, int maxFiles) throws IOException {
+        this.file = file;
+        this.maxFileSize = maxFileSize;
+        this.maxFiles = maxFiles;
+        var parent = file.toAbsolutePath().getParent();
+        if (parent != null) {
+            Files.createDirectories(parent);
+        }
+        open();
+    }
+
+    private void open() throws IOException {
+        os = Files.newOutputStream(file, StandardOpenOption.CREATE, StandardOpenOption.APPEND, StandardOpenOption.WRITE);
+        size = Files.size(file);
+    }
+
+    /**
+     * Writes a batch of records. The file is only rotated between batches, so it may exceed the maximum size by the
+     * size of a batch.
+     */
+    void write(byte[] bytes, int length) throws IOException {
+        if (size > 0 && size + length > maxFileSize) {
+            rotate();
+        }
+        os.write(bytes, 0, length);
+        size += length;
+    }
+
+    void flush() throws IOException {
+        os.flush();
+    }
+
+    private void rotate() throws IOException {
+        os.close();
+        if (maxFiles == 0) {
+            Files.delete(file);
+        } else {
+            Files.deleteIfExists(rotated(maxFiles));
+            for (int i = maxFiles - 1; i >= 1; i--) {
+                var source = rotated(i);
+                if (Files.exists(source)) {
+                    Files.move(source, rotated(i + 1), StandardCopyOption.REPLACE_EXISTING);
+                }
+            }
+            Files.move(file, rotated(1), StandardCopyOption.REPLACE_EXISTING);
+        }
+        open();
+    }
+
+    private Path rotated(int index) {
+        return file.resolveSibling(file.getFileName() + "." + index);
+    }
+
+    @Override
+    public void close() throws IOException {
+        os.close();
+    }
+}
@@ -0,0 +1,13 @@
+package com.nsantos.httpfileserver.exceptions;
+
+import java.io.IOException;
+
+/**
+ * An error that occurred after part of the response was sent, so it cannot be transformed in an HTTP Response. The
+ * connection must be closed, which tells the client that the response is incomplete.
+ */
+public class ResponseAbortedException extends IOException {
+    public ResponseAbortedException(String message, Throwable cause) {
+        super(message, cause);
+    }
+}
@@ -0,0 +1,263 @@
+package com.nsantos.httpfileserver.fileserver;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import com.nsantos.httpfileserver.metrics.ServerMetrics;
+import com.typesafe.config.Config;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Optional;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Stream;
+
+import static com.nsantos.httpfileserver.Constants.CONTENT_CACHE_ENABLED;
+import static com.nsantos.httpfileserver.Constants.CONTENT_CACHE_MAX_FILE_SIZE;
+import static com.nsantos.httpfileserver.Constants.CONTENT_CACHE_MAX_SIZE;
+import static com.nsantos.httpfileserver.Constants.METADATA_CACHE_MAX_ENTRIES;
+import static com.nsantos.httpfileserver.Constants.METADATA_CACHE_TTL;
+import static com.nsantos.httpfileserver.Constants.WATCH_FILES;
+
+/**
+ * A file server that keeps in memory the metadata of files and the contents of small, frequently requested files.
+ * All other operations are delegated to another file server.
+ * <p>
+ * The metadata of a file is read once and then served from memory until it expires or the WatchService reports a
+ * change to the file. Files not found are cached as well, so that repeated requests for them do not reach the file
+ * system.
+ * <p>
+ * The contents cache is bounded by the total size of the contents, evicting the least recently used files first.
+ * Lookups do not take locks. The cached contents of a file are served only if they were read from the same version of
+ * the file described by its metadata.
+ */
+public class CachingFileServer implements FileServer, Closeable {
+    private static final Logger logger = LoggerFactory.getLogger(CachingFileServer.class);
+
+    // Cached in place of the metadata of files that do not exist
+    private static final FileStat NOT_FOUND = new FileStat(FileStat.Type.OTHER, -1, 0, 0, null);
+
+    /**
+     * The contents of a file and the metadata of the version of the file they were read from.
+     */
+    private record CachedContent(byte[] content, FileStat stat) {
+        boolean isValidFor(FileStat other) {
+            return content.length == other.size() && stat.isSameVersion(other);
+        }
+    }
+
+    /**
+     * Thrown by the loader of the cache when the file cannot be cached.
+     */
+    private static class NotCacheableException extends Exception {
+        NotCacheableException() {
+            super(null, null, false, false);
+        }
+    }
+
+    private final FileServer delegate;
+    private final Path absoluteBasePath;
+    private final boolean contentCacheEnabled;
+    private final long maxFileSize;
+    // Both caches are keyed by the absolute, normalized path of the file, which is what the file watcher reports
+    private final Cache<String, CachedContent> contents;
+    private final Cache<String, FileStat> stats;
+    private final FileWatcher fileWatcher;
+    // Cached contents found to be out of date when requested
+    private final LongAdder staleCount = new LongAdder();
+
+    public CachingFileServer(FileServer delegate, Config conf) throws IOException {
+        this.delegate = delegate;
+        this.absoluteBasePath = delegate.getBasePath().toAbsolutePath().normalize();
+        this.contentCacheEnabled = conf.getBoolean(CONTENT_CACHE_ENABLED);
+        var maxSize = conf.getBytes(CONTENT_CACHE_MAX_SIZE);
+        this.maxFileSize = conf.getBytes(CONTENT_CACHE_MAX_FILE_SIZE);
+        if (maxSize < 0 || maxFileSize < 0 || maxFileSize >= Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Invalid value for %s or %s: %d, %d".formatted(
+                    CONTENT_CACHE_MAX_SIZE, CONTENT_CACHE_MAX_FILE_SIZE, maxSize, maxFileSize));
+        }
+        var maxEntries = conf.getLong(METADATA_CACHE_MAX_ENTRIES);
+        var ttl = conf.getDuration(METADATA_CACHE_TTL, TimeUnit.MILLISECONDS);
+        if (maxEntries < 0) {
+            throw new IllegalArgumentException("Invalid value for %s: %d".formatted(METADATA_CACHE_MAX_ENTRIES, maxEntries));
+        }
+        this.contents = CacheBuilder.newBuilder()
+                .maximumWeight(maxSize)
+                .weigher((String path, CachedContent content) -> content.content().length)
+                .recordStats()
+                .build();
+        this.stats = CacheBuilder.newBuilder()
+                .maximumSize(maxEntries)
+                .expireAfterWrite(ttl, TimeUnit.MILLISECONDS)
+                .recordStats()
+                .build();
+        if ((contentCacheEnabled || maxEntries > 0) && conf.getBoolean(WATCH_FILES)) {
+            this.fileWatcher = new FileWatcher(absoluteBasePath, new FileWatcher.Listener() {
+                @Override
+                public void onChange(Path path, boolean deleted) {
+                    invalidate(path.toString(), deleted);
+                }
+
+                @Override
+                public void onOverflow() {
+                    contents.invalidateAll();
+                    stats.invalidateAll();
+                }
+            });
+        } else {
+            this.fileWatcher = null;
+        }
+        logger.info("Content cache enabled: {}, Max size: {}, Max file size: {}. Metadata cache max entries: {}, TTL: {} ms. Watching: {}",
+                contentCacheEnabled, maxSize, maxFileSize, maxEntries, ttl, fileWatcher != null);
+    }
+
+    @Override
+    public Path getBasePath() {
+        return delegate.getBasePath();
+    }
+
+    @Override
+    public boolean isFile(String relativePath) {
+        return delegate.isFile(relativePath);
+    }
+
+    @Override
+    public boolean isDirectory(String relativePath) {
+        return delegate.isDirectory(relativePath);
+    }
+
+    @Override
+    public Path getFile(String relativePath) {
+        return delegate.getFile(relativePath);
+    }
+
+    @Override
+    public Optional<FileStat> stat(String relativePath) throws IOException {
+        var key = key(relativePath);
+        var stat = stats.getIfPresent(key);
+        if (stat == null) {
+            // Not loaded with Cache.get(), which would wrap the IOExceptions. Concurrent misses may read the metadata
+            // more than once, which is harmless.
+            stat = delegate.stat(relativePath).orElse(NOT_FOUND);
+            stats.put(key, stat);
+        }
+        return stat == NOT_FOUND ? Optional.empty() : Optional.of(stat);
+    }
+
+    @Override
+    public Stream<Path> getDirectoryListing(String relativePath) throws IOException {
+        return delegate.getDirectoryListing(relativePath);
+    }
+
+    @Override
+    public Optional<byte[]> getContent(String relativePath, FileStat stat) throws IOException {
+        if (!contentCacheEnabled || !stat.isFile() || stat.size() > maxFileSize) {
+            return Optional.empty();
+        }
+        var key = key(relativePath);
+        var cached = contents.getIfPresent(key);
+        if (cached != null) {
+            if (cached.isValidFor(stat)) {
+                return Optional.of(cached.content());
+            }
+            staleCount.increment();
+            contents.asMap().remove(key, cached);
+        }
+        try {
+            // Concurrent requests for the same file wait for a single load
+            cached = contents.get(key, () -> load(relativePath, stat));
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException ioException) {
+                throw ioException;
+            }
+            return Optional.empty();
+        } catch (UncheckedExecutionException e) {
+            return Optional.empty();
+        }
+        // Another request may have loaded a different version of the file
+        return cached.isValidFor(stat) ? Optional.of(cached.content()) : Optional.empty();
+    }
+
+    /**
+     * Reads a file into memory, if it is still the version described by the given metadata.
+     */
+    private CachedContent load(String relativePath, FileStat stat) throws IOException, NotCacheableException {
+        var content = Files.readAllBytes(delegate.getFile(relativePath));
+        var cached = new CachedContent(content, stat);
+        // The file may have been modified while being read
+        var current = delegate.stat(relativePath);
+        if (current.isEmpty() || !cached.isValidFor(current.get())) {
+            throw new NotCacheableException();
+        }
+        logger.debug("Cached contents of {}, Size: {}", relativePath, content.length);
+        return cached;
+    }
+
+    private String key(String relativePath) {
+        return absoluteBasePath.resolve(relativePath).normalize().toString();
+    }
+
+    private void invalidate(String key, boolean deleted) {
+        contents.invalidate(key);
+        stats.invalidate(key);
+        if (deleted) {
+            // It may have been a directory
+            var prefix = key + File.separator;
+            contents.asMap().keySet().removeIf(k -> k.startsWith(prefix));
+            stats.asMap().keySet().removeIf(k -> k.startsWith(prefix));
+        }
+    }
+
+    /**
+     * @return Statistics of hits, misses and evictions of the contents cache
+     */
+    public CacheStats getContentCacheStats() {
+        return contents.stats();
+    }
+
+    /**
+     * @return Statistics of hits, misses and evictions of the metadata cache
+     */
+    public CacheStats getMetadataCacheStats() {
+        return stats.stats();
+    }
+
+    /**
+     * @return The number of files whose cached contents were out of date when requested
+     */
+    public long getStaleCount() {
+        return staleCount.sum();
+    }
+
+    /**
+     * @return The total size of the cached contents
+     */
+    public long getCachedBytes() {
+        return contents.asMap().values().stream().mapToLong(c -> c.content().length).sum();
+    }
+
+    @Override
+    public void registerMetrics(ServerMetrics metrics) {
+        metrics.registerCacheStats("content", this::getContentCacheStats);
+        metrics.registerCacheStats("metadata", this::getMetadataCacheStats);
+        metrics.registerCounter("content_cache_stale_total", "", "Cached contents that were out of date when requested", this::getStaleCount);
+        metrics.registerGauge("content_cache_bytes", "", "Total size of the cached contents", this::getCachedBytes);
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (fileWatcher != null) {
+            fileWatcher.close();
+        }
+        contents.invalidateAll();
+        stats.invalidateAll();
+    }
+}
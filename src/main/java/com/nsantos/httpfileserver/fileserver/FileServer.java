@@ -1,7 +1,10 @@
 package com.nsantos.httpfileserver.fileserver;
 
+import com.nsantos.httpfileserver.metrics.ServerMetrics;
+
 import java.io.IOException;
 import java.nio.file.Path;
+import java.util.Optional;
 import java.util.stream.Stream;
 
 /**
@@ -16,5 +19,28 @@ public interface FileServer {
 
     Path getFile(String relativePath);
 
+    /**
+     * Reads the metadata of a file or directory in a single operation. Implementations may return cached metadata.
+     *
+     * @return The metadata, or empty if the file does not exist.
+     */
+    Optional<FileStat> stat(String relativePath) throws IOException;
+
     Stream<Path> getDirectoryListing(String relativePath) throws IOException;
+
+    /**
+     * Returns the contents of a file if they can be served from memory.
+     *
+     * @param stat The metadata of the file, used to check that the contents in memory are up-to-date
+     * @return The contents of the file, or empty if the file must be read from disk.
+     */
+    default Optional<byte[]> getContent(String relativePath, FileStat stat) throws IOException {
+        return Optional.empty();
+    }
+
+    /**
+     * Registers the metrics of this file server, if it has any.
+     */
+    default void registerMetrics(ServerMetrics metrics) {
+    }
 }
@@ -7,7 +7,10 @@ import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Optional;
 import java.util.stream.Stream;
 
 import static com.nsantos.httpfileserver.Constants.FILE_SERVER_BASE_PATH;
@@ -23,9 +26,11 @@ public class FileServerImpl implements FileServer {
      */
     @Getter
     private final Path basePath;
+    private final MimeTypes mimeTypes;
 
     public FileServerImpl(Config conf) {
         this.basePath = Path.of(conf.getString(FILE_SERVER_BASE_PATH));
+        this.mimeTypes = new MimeTypes(conf);
         logger.info("Serving from directory: {}", basePath);
     }
 
@@ -44,6 +49,17 @@ public class FileServerImpl implements FileServer {
         return basePath.resolve(relativePath);
     }
 
+    @Override
+    public Optional<FileStat> stat(String relativePath) throws IOException {
+        var path = basePath.resolve(relativePath);
+        try {
+            var attributes = Files.readAttributes(path, BasicFileAttributes.class);
+            return Optional.of(FileStat.of(attributes, attributes.isRegularFile() ? mimeTypes.getContentType(relativePath) : null));
+        } catch (NoSuchFileException e) {
+            return Optional.empty();
+        }
+    }
+
     @Override
     public Stream<Path> getDirectoryListing(String relativePath) throws IOException {
         return Files.list(basePath.resolve(relativePath));
@@ -0,0 +1,62 @@
+package com.nsantos.httpfileserver.fileserver;
+
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.Instant;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The metadata of a file needed to serve it, read from the file system in a single operation. It holds only primitive
+ * values and a shared content type string, so that millions of them can be cached.
+ *
+ * @param type              The type of file
+ * @param size              The size of the file, in bytes
+ * @param lastModifiedNanos The modification time, in nanoseconds since the epoch
+ * @param fileKeyHash       A hash of the key that identifies the file in the file system (the device and inode, in
+ *                          Unix systems), or 0 if not available
+ * @param contentType       The MIME type of the file, or null if it is not a regular file
+ */
+public record FileStat(Type type, long size, long lastModifiedNanos, int fileKeyHash, String contentType) {
+    public enum Type {
+        FILE, DIRECTORY, OTHER
+    }
+
+    /**
+     * @param attributes  The attributes read from the file system
+     * @param contentType The MIME type of the file, ignored if it is not a regular file
+     */
+    public static FileStat of(BasicFileAttributes attributes, String contentType) {
+        var type = attributes.isRegularFile() ? Type.FILE : attributes.isDirectory() ? Type.DIRECTORY : Type.OTHER;
+        var fileKey = attributes.fileKey();
+        return new FileStat(type,
+                attributes.size(),
+                attributes.lastModifiedTime().to(TimeUnit.NANOSECONDS),
+                fileKey == null ? 0 : fileKey.hashCode(),
+                type == Type.FILE ? contentType : null);
+    }
+
+    public boolean isFile() {
+        return type == Type.FILE;
+    }
+
+    public boolean isDirectory() {
+        return type == Type.DIRECTORY;
+    }
+
+    public Instant lastModified() {
+        return Instant.EPOCH.plusNanos(lastModifiedNanos);
+    }
+
+    /**
+     * @return The same metadata with another content type, for files that are sent as representations of another file
+     */
+    public FileStat withContentType(String contentType) {
+        return new FileStat(type, size, lastModifiedNanos, fileKeyHash, contentType);
+    }
+
+    /**
+     * @return true if both refer to the same version of the same file.
+     */
+    public boolean isSameVersion(FileStat other) {
+        return size == other.size && lastModifiedNanos == other.lastModifiedNanos && fileKeyHash == other.fileKeyHash;
+    }
+}
@@ -0,0 +1,138 @@
+package com.nsantos.httpfileserver.fileserver;
+
+import com.nsantos.httpfileserver.ThreadUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Watches a directory tree for changes with a WatchService, notifying a listener from a background thread.
+ * <p>
+ * The WatchService may miss events, or deliver them with some delay, so the listeners should use the notifications
+ * only to discard stale data early, not as the only means to detect changes.
+ */
+class FileWatcher implements Closeable {
+    private static final Logger logger = LoggerFactory.getLogger(FileWatcher.class);
+
+    interface Listener {
+        /**
+         * A file or directory was created, modified or deleted.
+         *
+         * @param path    The absolute, normalized path of the file
+         * @param deleted Whether the file was deleted. If it was a directory, its contents were deleted as well.
+         */
+        void onChange(Path path, boolean deleted);
+
+        /**
+         * Some events were lost, so any file may have changed.
+         */
+        void onOverflow();
+    }
+
+    private final AtomicBoolean closed = new AtomicBoolean(false);
+    private final WatchService watchService;
+    private final Listener listener;
+
+    /**
+     * Starts watching the given directory and all its subdirectories.
+     *
+     * @param root     The directory to watch
+     * @param listener Notified of the changes
+     * @throws IOException If the watch service cannot be created
+     */
+    FileWatcher(Path root, Listener listener) throws IOException {
+        this.watchService = root.getFileSystem().newWatchService();
+        this.listener = listener;
+        try {
+            registerTree(root.toAbsolutePath().normalize());
+        } catch (IOException e) {
+            watchService.close();
+            throw e;
+        }
+        ThreadUtils.newThreadFactory("file-watcher", true).newThread(this::run).start();
+    }
+
+    private void registerTree(Path root) throws IOException {
+        Files.walkFileTree(root, new SimpleFileVisitor<>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                dir.register(watchService,
+                        StandardWatchEventKinds.ENTRY_CREATE,
+                        StandardWatchEventKinds.ENTRY_MODIFY,
+                        StandardWatchEventKinds.ENTRY_DELETE);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException exc) {
+                // Directories that cannot be read are not watched
+                logger.debug("Cannot watch {}: {}", file, exc.toString());
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    private void run() {
+        try {
+            while (!closed.get()) {
+                var key = watchService.take();
+                processEvents(key);
+                key.reset();
+            }
+        } catch (ClosedWatchServiceException e) {
+            // Closed while waiting, terminate
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        logger.debug("File watcher terminated");
+    }
+
+    private void processEvents(WatchKey key) {
+        var dir = (Path) key.watchable();
+        for (var event : key.pollEvents()) {
+            var kind = event.kind();
+            if (kind == StandardWatchEventKinds.OVERFLOW) {
+                logger.debug("Events lost watching {}", dir);
+                listener.onOverflow();
+                continue;
+            }
+            var path = dir.resolve((Path) event.context());
+            if (kind == StandardWatchEventKinds.ENTRY_CREATE && Files.isDirectory(path)) {
+                try {
+                    registerTree(path);
+                } catch (IOException e) {
+                    logger.warn("Error watching new directory {}", path, e);
+                }
+            }
+            notifyChange(event, path);
+        }
+    }
+
+    private void notifyChange(WatchEvent<?> event, Path path) {
+        try {
+            listener.onChange(path, event.kind() == StandardWatchEventKinds.ENTRY_DELETE);
+        } catch (RuntimeException e) {
+            logger.warn("Error processing change of {}", path, e);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed.compareAndSet(false, true)) {
+            watchService.close();
+        }
+    }
+}
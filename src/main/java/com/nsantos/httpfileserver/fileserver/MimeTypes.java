@@ -0,0 +1,148 @@
+package com.nsantos.httpfileserver.fileserver;
+
+import com.nsantos.httpfileserver.Constants;
+import com.typesafe.config.Config;
+import org.apache.hc.core5.http.ContentType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Resolves the MIME type of files from their extension. The types are loaded once, from the bundled mime.types file,
+ * then from the file configured by the administrator, if any, and finally from the overrides in the configuration.
+ * Later sources replace the types of the same extension.
+ * <p>
+ * Lookups are made directly on the file name, without extracting nor lower-casing the extension, using an open
+ * addressing hash table. Extensions with several parts, like tar.gz, take precedence over the last part alone. The
+ * returned strings are shared by all the files of the same type.
+ */
+class MimeTypes {
+    private static final Logger logger = LoggerFactory.getLogger(MimeTypes.class);
+    private static final String BUNDLED_MIME_TYPES = "/mime.types";
+    // For files without extension or with an unknown extension, just a series of bytes
+    static final String DEFAULT_CONTENT_TYPE = ContentType.APPLICATION_OCTET_STREAM.toString();
+
+    // Extensions in lower case, and their types. Empty slots are null.
+    private final String[] extensions;
+    private final String[] types;
+    private final int mask;
+
+    MimeTypes(Config config) {
+        var mappings = new HashMap<String, String>();
+        try (var reader = MimeTypes.class.getResourceAsStream(BUNDLED_MIME_TYPES)) {
+            if (reader == null) {
+                throw new IllegalStateException("Missing resource " + BUNDLED_MIME_TYPES);
+            }
+            parse(new InputStreamReader(reader, StandardCharsets.UTF_8), mappings);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        var file = config.getString(Constants.MIME_TYPES_FILE);
+        if (!file.isEmpty()) {
+            try (var reader = Files.newBufferedReader(Path.of(file), StandardCharsets.UTF_8)) {
+                parse(reader, mappings);
+            } catch (IOException e) {
+                throw new IllegalArgumentException("Invalid value for %s: %s".formatted(Constants.MIME_TYPES_FILE, file), e);
+            }
+        }
+        for (var entry : config.getObject(Constants.MIME_TYPES_OVERRIDES).unwrapped().entrySet()) {
+            if (!(entry.getValue() instanceof String type)) {
+                // Extensions with several parts must be quoted, otherwise they are read as nested objects
+                throw new IllegalArgumentException("Invalid value for %s: %s = %s".formatted(
+                        Constants.MIME_TYPES_OVERRIDES, entry.getKey(), entry.getValue()));
+            }
+            put(mappings, entry.getKey(), type, Constants.MIME_TYPES_OVERRIDES);
+        }
+
+        // At most half full, so that the probe sequences are short
+        var capacity = Integer.highestOneBit(Math.max(mappings.size(), 1) * 4 - 1);
+        this.extensions = new String[capacity];
+        this.types = new String[capacity];
+        this.mask = capacity - 1;
+        // Share a single instance of each type
+        var interned = new HashMap<String, String>();
+        mappings.forEach((extension, type) -> {
+            var slot = hash(extension, 0, extension.length()) & mask;
+            while (extensions[slot] != null) {
+                slot = (slot + 1) & mask;
+            }
+            extensions[slot] = extension;
+            types[slot] = interned.computeIfAbsent(type, t -> t);
+        });
+        logger.info("Loaded {} MIME type mappings", mappings.size());
+    }
+
+    /**
+     * Reads a file in the mime.types format: each line has a MIME type followed by its extensions, and # starts a
+     * comment.
+     */
+    private static void parse(Reader reader, Map<String, String> mappings) throws IOException {
+        var lines = new BufferedReader(reader).lines().iterator();
+        while (lines.hasNext()) {
+            var line = lines.next();
+            var comment = line.indexOf('#');
+            var fields = (comment < 0 ? line : line.substring(0, comment)).trim().split("\\s+");
+            for (int i = 1; i < fields.length; i++) {
+                put(mappings, fields[i], fields[0], "mime.types");
+            }
+        }
+    }
+
+    private static void put(Map<String, String> mappings, String extension, String type, String source) {
+        var normalized = extension.toLowerCase(Locale.ROOT);
+        if (normalized.startsWith(".")) {
+            normalized = normalized.substring(1);
+        }
+        if (normalized.isEmpty() || type.indexOf('/') <= 0) {
+            throw new IllegalArgumentException("Invalid value for %s: %s %s".formatted(source, type, extension));
+        }
+        mappings.put(normalized, type);
+    }
+
+    /**
+     * @param path The path or the name of a file
+     * @return The MIME type of the file, or application/octet-stream if the extension is not known
+     */
+    String getContentType(String path) {
+        var nameStart = Math.max(path.lastIndexOf('/'), path.lastIndexOf('\\')) + 1;
+        // Try the longest extension first. A dot at the start of the name does not start an extension.
+        for (int dot = path.indexOf('.', nameStart + 1); dot >= 0; dot = path.indexOf('.', dot + 1)) {
+            var type = get(path, dot + 1, path.length());
+            if (type != null) {
+                return type;
+            }
+        }
+        return DEFAULT_CONTENT_TYPE;
+    }
+
+    private String get(String s, int start, int end) {
+        var length = end - start;
+        for (int slot = hash(s, start, end) & mask; extensions[slot] != null; slot = (slot + 1) & mask) {
+            var extension = extensions[slot];
+            if (extension.length() == length && extension.regionMatches(true, 0, s, start, length)) {
+                return types[slot];
+            }
+        }
+        return null;
+    }
+
+    private static int hash(String s, int start, int end) {
+        var h = 0;
+        for (int i = start; i < end; i++) {
+            h = 31 * h + Character.toLowerCase(s.charAt(i));
+        }
+        // Spread the high bits, the table uses only the low bits
+        return h ^ (h >>> 16);
+    }
+}
@@ -0,0 +1,109 @@
+package com.nsantos.httpfileserver.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A histogram of non-negative values with bounded relative error, in the style of HdrHistogram. Each power of two is
+ * divided in a fixed number of linear sub-buckets, so the bucket of a value is computed with a few bit operations and
+ * values are recorded with a single increment of a striped counter, without locks.
+ */
+public class Histogram {
+    // Each power of two is divided in 2^SUB_BUCKET_BITS buckets, for a relative error of at most 1/8
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    private final long maxValue;
+    private final LongAdder[] counts;
+    private final LongAdder sum = new LongAdder();
+
+    /**
+     * @param maxValue Larger values are recorded as this value
+     */
+    public Histogram(long maxValue) {
+        if (maxValue < 1) {
+            throw new IllegalArgumentException("Invalid maximum value: " + maxValue);
+        }
+        this.maxValue = maxValue;
+        this.counts = new LongAdder[bucketIndex(maxValue) + 1];
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = new LongAdder();
+        }
+    }
+
+    public void record(long value) {
+        var v = Math.max(0, Math.min(value, maxValue));
+        counts[bucketIndex(v)].increment();
+        sum.add(v);
+    }
+
+    static int bucketIndex(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        var exponent = 63 - Long.numberOfLeadingZeros(value);
+        var subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    /**
+     * @return The smallest value recorded in the given bucket
+     */
+    static long lowestValue(int bucketIndex) {
+        if (bucketIndex < SUB_BUCKETS) {
+            return bucketIndex;
+        }
+        var exponent = bucketIndex / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        var subBucket = bucketIndex % SUB_BUCKETS;
+        return (long) (SUB_BUCKETS + subBucket) << (exponent - SUB_BUCKET_BITS);
+    }
+
+    /**
+     * @return A copy of the counts, which is consistent only if no values are recorded concurrently
+     */
+    public Snapshot snapshot() {
+        var snapshotCounts = new long[counts.length];
+        var total = 0L;
+        for (int i = 0; i < counts.length; i++) {
+            snapshotCounts[i] = counts[i].sum();
+            total += snapshotCounts[i];
+        }
+        return new Snapshot(snapshotCounts, total, sum.sum());
+    }
+
+    /**
+     * The counts of a histogram at some point in time.
+     *
+     * @param counts The count of each bucket
+     * @param count  The number of values recorded
+     * @param sum    The sum of the values recorded
+     */
+    public record Snapshot(long[] counts, long count, long sum) {
+        /**
+         * @return The number of values smaller than the given value, exact if it is a power of two
+         */
+        public long countBelow(long value) {
+            var end = Math.min(bucketIndex(value), counts.length);
+            var result = 0L;
+            for (int i = 0; i < end; i++) {
+                result += counts[i];
+            }
+            return result;
+        }
+
+        /**
+         * @param quantile Between 0 and 1
+         * @return An upper bound of the value at the given quantile, or 0 if no values were recorded
+         */
+        public long valueAtQuantile(double quantile) {
+            var target = Math.max(1, (long) Math.ceil(quantile * count));
+            var seen = 0L;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= target) {
+                    return lowestValue(i + 1) - 1;
+                }
+            }
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,352 @@
+package com.nsantos.httpfileserver.metrics;
+
+import com.google.common.cache.CacheStats;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+
+/**
+ * Metrics of the server, exposed in the Prometheus text format.
+ * https://prometheus.io/docs/instrumenting/exposition_formats/
+ * <p>
+ * Recording is cheap enough to be always enabled: the counters are striped, and the state of the request being
+ * processed is kept in a per-thread object, which is possible because both engines process each request on a single
+ * thread, from the moment it is parsed until the response is written to the output buffer. Times are measured from
+ * the moment the request is parsed.
+ * <p>
+ * Other components register the values they already keep, like the statistics of the caches, which are read only when
+ * the metrics are rendered.
+ */
+public class ServerMetrics {
+    private static final String PREFIX = "httpfileserver_";
+    private static final int MAX_STATUS = 599;
+    // Latencies are recorded in nanoseconds up to this value
+    private static final long MAX_LATENCY_NANOS = TimeUnit.MINUTES.toNanos(10);
+    // Bounds of the buckets of the latency histograms, from 2^10 ns (~1 us) to 2^36 ns (~69 s), every 4x
+    private static final int MIN_BUCKET_EXPONENT = 10;
+    private static final int MAX_BUCKET_EXPONENT = 36;
+    private static final int BUCKET_EXPONENT_STEP = 2;
+
+    public enum Method {
+        GET, HEAD, OTHER;
+
+        static Method of(String method) {
+            return switch (method) {
+                case "GET" -> GET;
+                case "HEAD" -> HEAD;
+                default -> OTHER;
+            };
+        }
+    }
+
+    /**
+     * What the path of a request refers to
+     */
+    public enum PathClass {
+        FILE, DIRECTORY, NOT_FOUND, METRICS, OTHER
+    }
+
+    /**
+     * Why a connection was answered with 503 (Service Unavailable) instead of being served
+     */
+    public enum ShedReason {
+        // No thread was free and the queue of connections waiting for one was full
+        QUEUE_FULL,
+        // The connection waited longer than allowed for a thread
+        QUEUE_TIMEOUT
+    }
+
+    /**
+     * The request being processed by a thread. The same instance is reused for all the requests of the thread.
+     */
+    public static final class Exchange {
+        private long startNanos;
+        private long durationNanos;
+        private boolean headWritten;
+        private int status;
+        private long bytesSent;
+        private PathClass pathClass;
+        private long storageWaitNanos;
+        private long networkWaitNanos;
+
+        /**
+         * @return The status of the response, or 0 if no response was sent
+         */
+        public int status() {
+            return status;
+        }
+
+        /**
+         * @return The bytes sent in the response, including the head
+         */
+        public long bytesSent() {
+            return bytesSent;
+        }
+
+        /**
+         * @return The time from the moment the request was parsed until the response was written, once completed
+         */
+        public long durationNanos() {
+            return durationNanos;
+        }
+
+        /**
+         * @return The time spent waiting for the storage to read the body, or -1 if it was not measured
+         */
+        public long storageWaitNanos() {
+            return storageWaitNanos;
+        }
+
+        /**
+         * @return The time spent writing the body read from the storage to the client, or -1 if it was not measured
+         */
+        public long networkWaitNanos() {
+            return networkWaitNanos;
+        }
+    }
+
+    private final ThreadLocal<Exchange> exchanges = ThreadLocal.withInitial(Exchange::new);
+    // Indexed by method, path class and status, created on first use
+    private final AtomicReferenceArray<LongAdder> requests =
+            new AtomicReferenceArray<>(Method.values().length * PathClass.values().length * (MAX_STATUS + 1));
+    private final Histogram timeToFirstByte = new Histogram(MAX_LATENCY_NANOS);
+    private final Histogram responseTime = new Histogram(MAX_LATENCY_NANOS);
+    private final LongAdder bytesSent = new LongAdder();
+    private final LongAdder openConnections = new LongAdder();
+    private final LongAdder activeRequests = new LongAdder();
+    // Indexed by reason
+    private final LongAdder[] shedConnections = new LongAdder[ShedReason.values().length];
+
+    private record Sample(String labels, LongSupplier value) {
+    }
+
+    private record Family(String type, String help, List<Sample> samples) {
+    }
+
+    // Values registered by other components, by metric name
+    private final Map<String, Family> registered = new TreeMap<>();
+
+    public ServerMetrics() {
+        for (int i = 0; i < shedConnections.length; i++) {
+            shedConnections[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * Starts recording a request, on the thread that processes it.
+     */
+    public void requestStarted() {
+        var exchange = exchanges.get();
+        exchange.startNanos = System.nanoTime();
+        exchange.durationNanos = 0;
+        exchange.headWritten = false;
+        exchange.status = 0;
+        exchange.bytesSent = 0;
+        exchange.pathClass = PathClass.OTHER;
+        exchange.storageWaitNanos = -1;
+        exchange.networkWaitNanos = -1;
+        activeRequests.increment();
+    }
+
+    /**
+     * @param pathClass What the path of the request being processed by this thread refers to
+     */
+    public void setPathClass(PathClass pathClass) {
+        exchanges.get().pathClass = pathClass;
+    }
+
+    /**
+     * Records the head of the response to the request being processed by this thread.
+     *
+     * @param status The status of the response
+     * @param bytes  The bytes of the head and, if known, of the body
+     */
+    public void responseStarted(int status, long bytes) {
+        var exchange = exchanges.get();
+        if (!exchange.headWritten) {
+            exchange.headWritten = true;
+            timeToFirstByte.record(System.nanoTime() - exchange.startNanos);
+        }
+        exchange.status = status;
+        exchange.bytesSent += bytes;
+    }
+
+    /**
+     * Records bytes of a body whose length was not known when the head was sent.
+     */
+    public void bodyBytesSent(long bytes) {
+        exchanges.get().bytesSent += bytes;
+    }
+
+    /**
+     * Records the time that the request being processed by this thread waited for the storage and for the client
+     * while sending a body read from a file. Added up over all the parts of the body.
+     */
+    public void bodyTransferWaited(long storageNanos, long networkNanos) {
+        var exchange = exchanges.get();
+        exchange.storageWaitNanos = Math.max(exchange.storageWaitNanos, 0) + storageNanos;
+        exchange.networkWaitNanos = Math.max(exchange.networkWaitNanos, 0) + networkNanos;
+    }
+
+    /**
+     * Ends recording the request being processed by this thread.
+     *
+     * @param method The method of the request, or null if it could not be parsed
+     * @return The recorded request, valid until this thread starts recording the next one
+     */
+    public Exchange requestCompleted(String method) {
+        var exchange = exchanges.get();
+        exchange.durationNanos = System.nanoTime() - exchange.startNanos;
+        responseTime.record(exchange.durationNanos);
+        bytesSent.add(exchange.bytesSent);
+        activeRequests.decrement();
+        var status = exchange.status >= 0 && exchange.status <= MAX_STATUS ? exchange.status : 0;
+        var index = ((method == null ? Method.OTHER : Method.of(method)).ordinal() * PathClass.values().length
+                + exchange.pathClass.ordinal()) * (MAX_STATUS + 1) + status;
+        var counter = requests.get(index);
+        if (counter == null) {
+            requests.compareAndSet(index, null, new LongAdder());
+            counter = requests.get(index);
+        }
+        counter.increment();
+        return exchange;
+    }
+
+    public void connectionOpened() {
+        openConnections.increment();
+    }
+
+    public void connectionClosed() {
+        openConnections.decrement();
+    }
+
+    /**
+     * Records a connection that was answered with 503 (Service Unavailable) and closed, without being served.
+     */
+    public void connectionShed(ShedReason reason) {
+        shedConnections[reason.ordinal()].increment();
+    }
+
+    /**
+     * Registers a value that only increases. Registering the same name and labels again replaces the previous value.
+     *
+     * @param name   The name of the metric, without prefix
+     * @param labels The labels, in the Prometheus format without braces, like {@code cache="content"}, or empty
+     * @param help   The description of the metric
+     * @param value  Supplies the value when the metrics are rendered
+     */
+    public void registerCounter(String name, String labels, String help, LongSupplier value) {
+        register(name, "counter", labels, help, value);
+    }
+
+    /**
+     * Registers a value that may increase and decrease. Registering the same name and labels again replaces the
+     * previous value.
+     *
+     * @see #registerCounter(String, String, String, LongSupplier)
+     */
+    public void registerGauge(String name, String labels, String help, LongSupplier value) {
+        register(name, "gauge", labels, help, value);
+    }
+
+    /**
+     * Registers the hits, misses and evictions of a cache.
+     *
+     * @param cache The name of the cache, used as the value of the cache label
+     * @param stats Supplies the statistics of the cache
+     */
+    public void registerCacheStats(String cache, Supplier<CacheStats> stats) {
+        var labels = "cache=\"%s\"".formatted(cache);
+        registerCounter("cache_hits_total", labels, "Cache lookups that found the value", () -> stats.get().hitCount());
+        registerCounter("cache_misses_total", labels, "Cache lookups that did not find the value", () -> stats.get().missCount());
+        registerCounter("cache_evictions_total", labels, "Values evicted from the cache", () -> stats.get().evictionCount());
+    }
+
+    private synchronized void register(String name, String type, String labels, String help, LongSupplier value) {
+        var family = registered.computeIfAbsent(name, n -> new Family(type, help, new ArrayList<>()));
+        if (!family.type().equals(type)) {
+            throw new IllegalArgumentException("Metric %s already registered as %s".formatted(name, family.type()));
+        }
+        family.samples().removeIf(sample -> sample.labels().equals(labels));
+        family.samples().add(new Sample(labels, value));
+    }
+
+    /**
+     * @return All the metrics, in the Prometheus text format
+     */
+    public String render() {
+        var out = new StringBuilder(8192);
+        writeHeader(out, "requests_total", "counter", "Requests served, by method, status and path class");
+        var pathClasses = PathClass.values();
+        for (int i = 0; i < requests.length(); i++) {
+            var counter = requests.get(i);
+            if (counter != null) {
+                var status = i % (MAX_STATUS + 1);
+                var pathClass = pathClasses[(i / (MAX_STATUS + 1)) % pathClasses.length];
+                var method = Method.values()[i / (MAX_STATUS + 1) / pathClasses.length];
+                writeSample(out, "requests_total", "method=\"%s\",status=\"%d\",path_class=\"%s\"".formatted(
+                        method, status, pathClass.name().toLowerCase(Locale.ROOT)), counter.sum());
+            }
+        }
+        writeHistogram(out, "time_to_first_byte_seconds", "Time from the request until the head of the response is written", timeToFirstByte);
+        writeHistogram(out, "response_time_seconds", "Time from the request until the whole response is written", responseTime);
+        writeHeader(out, "sent_bytes_total", "counter", "Bytes of responses, including the heads");
+        writeSample(out, "sent_bytes_total", "", bytesSent.sum());
+        var open = openConnections.sum();
+        var active = activeRequests.sum();
+        writeHeader(out, "connections", "gauge", "Open connections, by state");
+        writeSample(out, "connections", "state=\"active\"", active);
+        writeSample(out, "connections", "state=\"idle\"", Math.max(0, open - active));
+        writeHeader(out, "connections_shed_total", "counter", "Connections answered with 503 because there was no thread to serve them, by reason");
+        for (var reason : ShedReason.values()) {
+            writeSample(out, "connections_shed_total", "reason=\"%s\"".formatted(reason.name().toLowerCase(Locale.ROOT)),
+                    shedConnections[reason.ordinal()].sum());
+        }
+        synchronized (this) {
+            registered.forEach((name, family) -> {
+                writeHeader(out, name, family.type(), family.help());
+                for (var sample : family.samples()) {
+                    writeSample(out, name, sample.labels(), sample.value().getAsLong());
+                }
+            });
+        }
+        return out.toString();
+    }
+
+    private static void writeHeader(StringBuilder out, String name, String type, String help) {
+        out.append("# HELP ").append(PREFIX).append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(PREFIX).append(name).append(' ').append(type).append('\n');
+    }
+
+    private static void writeSample(StringBuilder out, String name, String labels, Object value) {
+        out.append(PREFIX).append(name);
+        if (!labels.isEmpty()) {
+            out.append('{').append(labels).append('}');
+        }
+        out.append(' ').append(value).append('\n');
+    }
+
+    private static void writeHistogram(StringBuilder out, String name, String help, Histogram histogram) {
+        var snapshot = histogram.snapshot();
+        writeHeader(out, name, "histogram", help);
+        for (int exponent = MIN_BUCKET_EXPONENT; exponent <= MAX_BUCKET_EXPONENT; exponent += BUCKET_EXPONENT_STEP) {
+            var bound = 1L << exponent;
+            writeSample(out, name + "_bucket", "le=\"%s\"".formatted(toSeconds(bound)), snapshot.countBelow(bound));
+        }
+        writeSample(out, name + "_bucket", "le=\"+Inf\"", snapshot.count());
+        writeSample(out, name + "_sum", "", toSeconds(snapshot.sum()));
+        writeSample(out, name + "_count", "", snapshot.count());
+    }
+
+    private static String toSeconds(long nanos) {
+        return Double.toString(nanos / 1e9);
+    }
+}
@@ -0,0 +1,78 @@
+package com.nsantos.httpfileserver;
+
+import com.nsantos.httpfileserver.accesslog.AccessLog;
+import com.nsantos.httpfileserver.exceptions.ExceptionHandler;
+import com.nsantos.httpfileserver.fileserver.CachingFileServer;
+import com.nsantos.httpfileserver.fileserver.FileServerImpl;
+import com.nsantos.httpfileserver.metrics.ServerMetrics;
+import com.typesafe.config.ConfigFactory;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests responses that fail after their head was sent, which must be aborted by closing the connection, instead of
+ * being followed by an error response the client would take as part of the body.
+ */
+public class AbortedResponseTest {
+    @TempDir
+    Path basePath;
+    private HttpFileServerMain webServer;
+
+    private void startServer(String engine) throws IOException {
+        var settings = new HashMap<String, Object>();
+        settings.put(Constants.FILE_SERVER_BASE_PATH, basePath.toString());
+        settings.put(Constants.WEBSERVER_PORT, 0);
+        // The metadata of the file stays cached after it is truncated
+        settings.put(Constants.WATCH_FILES, false);
+        settings.put(Constants.CONTENT_CACHE_MAX_FILE_SIZE, 512);
+        settings.put(Constants.SERVER_ENGINE, engine);
+        var conf = ConfigFactory.parseMap(settings).withFallback(ConfigFactory.load());
+        var metrics = new ServerMetrics();
+        var httpResponseWriter = new HttpResponseWriter(conf, metrics);
+        webServer = new HttpFileServerMain(new ConnectionHandlerFactory(new CachingFileServer(new FileServerImpl(conf), conf),
+                new ExceptionHandler(httpResponseWriter), httpResponseWriter, metrics, new AccessLog(conf), conf), conf);
+        webServer.start();
+    }
+
+    @AfterEach
+    void stopServer() throws IOException, InterruptedException {
+        webServer.stop();
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {Constants.ENGINE_BLOCKING, Constants.ENGINE_NIO})
+    void truncatedFileClosesConnection(String engine) throws IOException {
+        var file = Files.write(basePath.resolve("large.bin"), new byte[64 * 1024]);
+        startServer(engine);
+        try (var socket = new Socket("localhost", webServer.getPort())) {
+            // Caches the metadata of the file, without sending it
+            socket.getOutputStream().write("GET /large.bin HTTP/1.1\r\nHost: localhost\r\nIf-None-Match: *\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+            var head = new StringBuilder();
+            while (!head.toString().endsWith("\r\n\r\n")) {
+                var read = socket.getInputStream().read();
+                assertNotEquals(-1, read, head::toString);
+                head.append((char) read);
+            }
+            assertTrue(head.toString().startsWith("HTTP/1.1 304"), head::toString);
+            Files.write(file, new byte[4 * 1024]);
+            socket.getOutputStream().write("GET /large.bin HTTP/1.1\r\nHost: localhost\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+            socket.setSoTimeout(5000);
+            var response = new String(socket.getInputStream().readAllBytes(), StandardCharsets.ISO_8859_1);
+            assertTrue(response.startsWith("HTTP/1.1 200"), response);
+            assertTrue(response.contains("Content-Length: 65536"), response);
+            assertFalse(response.contains("HTTP/1.1 500"), response);
+        }
+    }
+}
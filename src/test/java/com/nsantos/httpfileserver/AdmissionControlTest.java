@@ -0,0 +1,100 @@
+package com.nsantos.httpfileserver;
+
+import com.nsantos.httpfileserver.accesslog.AccessLog;
+import com.nsantos.httpfileserver.exceptions.ExceptionHandler;
+import com.nsantos.httpfileserver.fileserver.FileServerImpl;
+import com.nsantos.httpfileserver.metrics.ServerMetrics;
+import com.typesafe.config.ConfigFactory;
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests the shedding of connections when all the threads of the blocking engine are busy, with a server that has a
+ * single thread and lets a single connection wait for it.
+ */
+public class AdmissionControlTest {
+    private static final String SHED_RESPONSE = "HTTP/1.1 503 Service Unavailable\r\nRetry-After: 2\r\nContent-Length: 0\r\n"
+            + "Connection: close\r\n\r\n";
+
+    @ParameterizedTest
+    @ValueSource(strings = {Constants.EXECUTOR_PLATFORM, Constants.EXECUTOR_VIRTUAL})
+    void shedWhenSaturated(String executor, @TempDir Path basePath) throws IOException, InterruptedException {
+        var conf = ConfigFactory.parseMap(Map.of(
+                Constants.FILE_SERVER_BASE_PATH, basePath.toString(),
+                Constants.WEBSERVER_PORT, 0,
+                Constants.WEBSERVER_THREAD_POOL_SIZE, 1,
+                Constants.CONNECTION_EXECUTOR, executor,
+                Constants.VIRTUAL_THREAD_MAX_CONNECTIONS, 1,
+                Constants.ADMISSION_QUEUE_SIZE, 1,
+                Constants.ADMISSION_QUEUE_TIMEOUT, "200 ms",
+                Constants.ADMISSION_RETRY_AFTER, "2 seconds",
+                // Idle connections keep their threads
+                Constants.IDLE_CONNECTIONS_PARK, false,
+                Constants.WATCH_FILES, false
+        )).withFallback(ConfigFactory.load());
+        var metrics = new ServerMetrics();
+        var httpResponseWriter = new HttpResponseWriter(conf, metrics);
+        var webServer = new HttpFileServerMain(new ConnectionHandlerFactory(new FileServerImpl(conf),
+                new ExceptionHandler(httpResponseWriter), httpResponseWriter, metrics, new AccessLog(conf), conf), conf);
+        webServer.start();
+        try {
+            // Takes the only thread, which is kept waiting for the next request on the connection
+            var busy = connect(webServer);
+            busy.getOutputStream().write("GET /missing HTTP/1.1\r\nHost: localhost\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+            assertTrue(readHead(busy.getInputStream()).startsWith("HTTP/1.1 404 "));
+
+            try (var queued = connect(webServer); var rejected = connect(webServer)) {
+                // The queue is full, so the second connection is answered immediately
+                assertEquals(SHED_RESPONSE, new String(rejected.getInputStream().readAllBytes(), StandardCharsets.US_ASCII));
+
+                // Frees the thread after the queued connection waited longer than the queue timeout
+                Thread.sleep(400);
+                busy.close();
+                assertEquals(SHED_RESPONSE, new String(queued.getInputStream().readAllBytes(), StandardCharsets.US_ASCII));
+            }
+
+            var rendered = metrics.render();
+            assertTrue(rendered.contains("httpfileserver_connections_shed_total{reason=\"queue_full\"} 1\n"), rendered);
+            assertTrue(rendered.contains("httpfileserver_connections_shed_total{reason=\"queue_timeout\"} 1\n"), rendered);
+
+            // Once the thread is free, connections are served again
+            try (var socket = connect(webServer)) {
+                socket.getOutputStream().write("GET /missing HTTP/1.1\r\nHost: localhost\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+                assertTrue(readHead(socket.getInputStream()).startsWith("HTTP/1.1 404 "));
+            }
+        } finally {
+            webServer.stop();
+        }
+    }
+
+    private static Socket connect(HttpFileServerMain webServer) throws IOException {
+        var socket = new Socket("localhost", webServer.getPort());
+        socket.setSoTimeout(5000);
+        return socket;
+    }
+
+    private static String readHead(InputStream in) throws IOException {
+        var head = new ByteArrayOutputStream();
+        var matched = 0;
+        while (matched < 4) {
+            var b = in.read();
+            if (b < 0) {
+                throw new IOException("Connection closed before the end of the head");
+            }
+            head.write(b);
+            matched = b == "\r\n\r\n".charAt(matched) ? matched + 1 : (b == '\r' ? 1 : 0);
+        }
+        return head.toString(StandardCharsets.US_ASCII);
+    }
+}
@@ -0,0 +1,61 @@
+package com.nsantos.httpfileserver;
+
+import com.nsantos.httpfileserver.exceptions.ResponseAbortedException;
+import com.nsantos.httpfileserver.metrics.ServerMetrics;
+import com.typesafe.config.ConfigFactory;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class AsyncFileReaderTest {
+
+    @TempDir
+    Path dir;
+
+    private static AsyncFileReader reader() {
+        var conf = ConfigFactory.parseMap(Map.of(
+                Constants.ASYNC_FILE_READS_ENABLED, true,
+                Constants.ASYNC_FILE_READS_THREADS, 1,
+                Constants.ASYNC_FILE_READS_CHUNK_SIZE, 100
+        )).withFallback(ConfigFactory.load());
+        return new AsyncFileReader(conf, new ServerMetrics());
+    }
+
+    private Path createFile(int size) throws Exception {
+        var contents = new byte[size];
+        Arrays.fill(contents, (byte) 'a');
+        return Files.write(dir.resolve("file"), contents);
+    }
+
+    @Test
+    void regionSentInChunks() throws Exception {
+        var file = createFile(1000);
+        var os = new ByteArrayOutputStream();
+        reader().transfer(file, 50, 901, os);
+        assertEquals(901, os.size());
+        assertEquals('a', os.toByteArray()[900]);
+    }
+
+    @Test
+    void truncatedFileAbortsResponse() throws Exception {
+        var file = createFile(250);
+        var os = new ByteArrayOutputStream();
+        // The head of the response was already sent, so an error response cannot be written instead
+        assertThrows(ResponseAbortedException.class, () -> reader().transfer(file, 0, 1000, os));
+        assertTrue(os.size() < 1000);
+    }
+
+    @Test
+    void missingFileAbortsResponse() {
+        var os = new ByteArrayOutputStream();
+        assertThrows(ResponseAbortedException.class, () -> reader().transfer(dir.resolve("missing"), 0, 100, os));
+        assertEquals(0, os.size());
+    }
+}
@@ -0,0 +1,57 @@
+package com.nsantos.httpfileserver;
+
+import com.nsantos.httpfileserver.accesslog.AccessLog;
+import com.nsantos.httpfileserver.exceptions.ExceptionHandler;
+import com.nsantos.httpfileserver.fileserver.FileServerImpl;
+import com.nsantos.httpfileserver.metrics.ServerMetrics;
+import com.typesafe.config.ConfigFactory;
+import org.apache.hc.core5.http.ContentType;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.nio.file.Files;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Runs the web server tests with files read asynchronously, in chunks smaller than the test files so that they are
+ * read ahead.
+ */
+public class AsyncFileReadsWebServerTest extends WebServerTest {
+    @Override
+    protected Map<String, Object> testConfigOverrides() {
+        return Map.of(
+                Constants.ASYNC_FILE_READS_ENABLED, true,
+                Constants.ASYNC_FILE_READS_THREADS, 2,
+                Constants.ASYNC_FILE_READS_CHUNK_SIZE, 128
+        );
+    }
+
+    @Override
+    @Test
+    void fileSentWithZeroCopy() throws URISyntaxException, IOException, InterruptedException {
+        // Never sent with sendfile, the storage is read by the pool of the asynchronous reads instead
+        var zeroCopyBytesBefore = httpResponseWriter.getZeroCopyBytesSent();
+        var asyncBytesBefore = httpResponseWriter.getAsyncBytesSent();
+        testFile("image.png", ContentType.IMAGE_PNG);
+        var fileSize = Files.size(getTestPath("files/image.png"));
+        awaitCounter(httpResponseWriter::getAsyncBytesSent, asyncBytesBefore + fileSize);
+        assertEquals(zeroCopyBytesBefore, httpResponseWriter.getZeroCopyBytesSent());
+    }
+
+    @Test
+    void nioEngineRejected() throws URISyntaxException, IOException {
+        var conf = ConfigFactory.parseMap(Map.of(
+                Constants.FILE_SERVER_BASE_PATH, getTestPath("files").toString(),
+                Constants.WEBSERVER_PORT, 0,
+                Constants.SERVER_ENGINE, Constants.ENGINE_NIO
+        )).withFallback(ConfigFactory.parseMap(testConfigOverrides())).withFallback(ConfigFactory.load());
+        var metrics = new ServerMetrics();
+        var writer = new HttpResponseWriter(conf, metrics);
+        var server = new HttpFileServerMain(new ConnectionHandlerFactory(new FileServerImpl(conf),
+                new ExceptionHandler(writer), writer, metrics, new AccessLog(conf), conf), conf);
+        assertThrows(IllegalArgumentException.class, server::start);
+    }
+}
@@ -0,0 +1,129 @@
+package com.nsantos.httpfileserver;
+
+import com.nsantos.httpfileserver.metrics.ServerMetrics;
+import com.typesafe.config.ConfigFactory;
+import org.junit.jupiter.api.Test;
+
+import java.util.Map;
+import java.util.concurrent.Executors;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+public class BufferPoolTest {
+
+    private static BufferPool pool(String maxDirectMemory) {
+        var conf = ConfigFactory.parseMap(Map.of(
+                Constants.BUFFER_POOL_MAX_DIRECT_MEMORY, maxDirectMemory,
+                Constants.BUFFER_POOL_THREAD_CACHE_SIZE, 1,
+                Constants.BUFFER_POOL_LEAK_DETECTION, true
+        )).withFallback(ConfigFactory.load());
+        return new BufferPool(conf);
+    }
+
+    @Test
+    void sizeClasses() {
+        var pool = pool("1 MiB");
+        var small = pool.acquire(1);
+        assertTrue(small.isDirect());
+        assertEquals(4096, small.capacity());
+        assertEquals(0, small.position());
+        assertEquals(small.capacity(), small.limit());
+        var medium = pool.acquire(4097);
+        assertEquals(16 * 1024, medium.capacity());
+        // Larger than the largest class
+        var large = pool.acquire(BufferPool.MAX_BUFFER_SIZE + 1);
+        assertFalse(large.isDirect());
+        assertEquals(BufferPool.MAX_BUFFER_SIZE + 1, large.capacity());
+        pool.release(small);
+        pool.release(medium);
+        pool.release(large);
+        assertEquals(0, pool.outstanding());
+    }
+
+    @Test
+    void reusedByTheSameThreadAndOthers() throws Exception {
+        var pool = pool("1 MiB");
+        var first = pool.acquire(4096);
+        var second = pool.acquire(4096);
+        assertNotSame(first, second);
+        // The first stays in the cache of this thread, the second goes to the shared pool
+        pool.release(first);
+        pool.release(second);
+        var reused = pool.acquire(4096);
+        assertSame(first, reused);
+        var executor = Executors.newSingleThreadExecutor();
+        try {
+            var fromOtherThread = executor.submit(() -> pool.acquire(4096)).get();
+            assertSame(second, fromOtherThread);
+            pool.release(fromOtherThread);
+        } finally {
+            executor.shutdown();
+        }
+        pool.release(reused);
+
+        var metrics = new ServerMetrics();
+        pool.registerMetrics(metrics);
+        var rendered = metrics.render();
+        assertTrue(rendered.contains("httpfileserver_buffer_pool_acquired_total{source=\"allocated\"} 2"), rendered);
+        assertTrue(rendered.contains("httpfileserver_buffer_pool_acquired_total{source=\"thread_cache\"} 1"), rendered);
+        assertTrue(rendered.contains("httpfileserver_buffer_pool_acquired_total{source=\"shared\"} 1"), rendered);
+        assertTrue(rendered.contains("httpfileserver_buffer_pool_direct_bytes{state=\"allocated\"} 8192"), rendered);
+        assertTrue(rendered.contains("httpfileserver_buffer_pool_direct_bytes{state=\"in_use\"} 0"), rendered);
+    }
+
+    @Test
+    void heapBuffersBeyondBudget() {
+        var pool = pool("8 KiB");
+        var first = pool.acquire(4096);
+        var second = pool.acquire(4096);
+        var third = pool.acquire(4096);
+        assertTrue(first.isDirect());
+        assertTrue(second.isDirect());
+        assertFalse(third.isDirect());
+        pool.release(third);
+        pool.release(first);
+        // Released direct buffers are reused before falling back to the heap
+        assertSame(first, pool.acquire(4096));
+    }
+
+    @Test
+    void leaksAndDoubleReleasesDetected() {
+        var pool = pool("1 MiB");
+        var released = pool.acquire(100);
+        pool.acquire(100);
+        pool.release(released);
+        assertThrows(IllegalStateException.class, () -> pool.release(released));
+        assertEquals(1, pool.outstanding());
+        assertEquals(1, pool.reportLeaks());
+    }
+
+    @Test
+    void virtualThreadsReleaseToSharedPool() throws Exception {
+        var executor = ThreadUtils.newVirtualThreadPerTaskExecutor("buffer-pool-test");
+        assumeTrue(executor.isPresent(), "Virtual threads not supported by this runtime");
+        var pool = pool("1 MiB");
+        try {
+            // Each task runs on a new virtual thread, which must not keep the buffer after it ends
+            var released = executor.get().submit(() -> {
+                var buffer = pool.acquire(4096);
+                pool.release(buffer);
+                return buffer;
+            }).get();
+            var reused = executor.get().submit(() -> {
+                var buffer = pool.acquire(4096);
+                pool.release(buffer);
+                return buffer;
+            }).get();
+            assertSame(released, reused);
+        } finally {
+            executor.get().shutdown();
+        }
+        var metrics = new ServerMetrics();
+        pool.registerMetrics(metrics);
+        var rendered = metrics.render();
+        assertTrue(rendered.contains("httpfileserver_buffer_pool_acquired_total{source=\"allocated\"} 1"), rendered);
+        assertTrue(rendered.contains("httpfileserver_buffer_pool_acquired_total{source=\"shared\"} 1"), rendered);
+        assertTrue(rendered.contains("httpfileserver_buffer_pool_acquired_total{source=\"thread_cache\"} 0"), rendered);
+    }
+}
@@ -0,0 +1,130 @@
+package com.nsantos.httpfileserver;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class HeaderEncoderTest {
+
+    /**
+     * A clock whose time is set by the test.
+     */
+    private static class TestClock extends Clock {
+        private final AtomicLong millis = new AtomicLong();
+
+        @Override
+        public ZoneOffset getZone() {
+            return ZoneOffset.UTC;
+        }
+
+        @Override
+        public Clock withZone(ZoneId zone) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public long millis() {
+            return millis.get();
+        }
+
+        @Override
+        public Instant instant() {
+            return Instant.ofEpochMilli(millis());
+        }
+    }
+
+    private static String writeHead(HeaderEncoder encoder, int status, Map<String, String> headers, long contentLength) throws IOException {
+        var os = new ByteArrayOutputStream();
+        encoder.writeHead(os, status, headers, contentLength);
+        return os.toString(StandardCharsets.US_ASCII);
+    }
+
+    @Test
+    void responseHead() throws IOException {
+        var clock = new TestClock();
+        clock.millis.set(784111777_000L);
+        var encoder = new HeaderEncoder(30, 10, clock);
+        var headers = new LinkedHashMap<String, String>();
+        headers.put("Content-Type", "text/plain");
+        headers.put("ETag", "\"abc\"");
+        assertEquals("HTTP/1.1 200 OK\r\n"
+                + "Date: Sun, 06 Nov 1994 08:49:37 GMT\r\n"
+                + "Connection: keep-alive\r\n"
+                + "Keep-Alive: timeout=30, max=10\r\n"
+                + "Content-Length: 1234567890123\r\n"
+                + "Content-Type: text/plain\r\n"
+                + "ETag: \"abc\"\r\n"
+                + "\r\n", writeHead(encoder, 200, headers, 1234567890123L));
+
+        // No Content-Length
+        assertEquals("HTTP/1.1 304 Not Modified\r\n"
+                + "Date: Sun, 06 Nov 1994 08:49:37 GMT\r\n"
+                + "Connection: keep-alive\r\n"
+                + "Keep-Alive: timeout=30, max=10\r\n"
+                + "\r\n", writeHead(encoder, 304, Map.of(), -1));
+
+        assertTrue(writeHead(encoder, 404, Map.of(), 0).contains("\r\nContent-Length: 0\r\n"));
+    }
+
+    @Test
+    void connectionClose() throws IOException {
+        var encoder = new HeaderEncoder(30, 10, Clock.systemUTC());
+        encoder.setConnectionClose(true);
+        var head = writeHead(encoder, 200, Map.of(), 0);
+        assertTrue(head.contains("\r\nConnection: close\r\n"));
+        assertFalse(head.contains("Keep-Alive"));
+        // Set per thread
+        var otherThread = new AtomicReference<String>();
+        var thread = new Thread(() -> {
+            try {
+                otherThread.set(writeHead(encoder, 200, Map.of(), 0));
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+        thread.start();
+        assertDoesNotThrow(() -> thread.join());
+        assertTrue(otherThread.get().contains("\r\nConnection: keep-alive\r\nKeep-Alive: timeout=30, max=10\r\n"));
+        encoder.setConnectionClose(false);
+        assertTrue(writeHead(encoder, 200, Map.of(), 0).contains("\r\nConnection: keep-alive\r\n"));
+    }
+
+    @Test
+    void dateChangesEverySecond() throws IOException {
+        var clock = new TestClock();
+        clock.millis.set(784111777_000L);
+        var encoder = new HeaderEncoder(30, 10, clock);
+        clock.millis.set(784111777_999L);
+        assertTrue(writeHead(encoder, 200, Map.of(), 0).contains("\r\nDate: Sun, 06 Nov 1994 08:49:37 GMT\r\n"));
+        clock.millis.set(784111778_000L);
+        assertTrue(writeHead(encoder, 200, Map.of(), 0).contains("\r\nDate: Sun, 06 Nov 1994 08:49:38 GMT\r\n"));
+    }
+
+    @Test
+    void largeHeaders() throws IOException {
+        var encoder = new HeaderEncoder(30, 10, Clock.systemUTC());
+        var value = "x".repeat(5000);
+        // The buffer grows, and is reused by the following responses
+        assertTrue(writeHead(encoder, 200, Map.of("X-Large", value), 0).contains("\r\nX-Large: " + value + "\r\n"));
+        assertFalse(writeHead(encoder, 200, Map.of(), 0).contains("X-Large"));
+    }
+
+    @Test
+    void unknownStatus() throws IOException {
+        var encoder = new HeaderEncoder(30, 10, Clock.systemUTC());
+        assertTrue(writeHead(encoder, 299, Map.of(), 0).startsWith("HTTP/1.1 299 \r\n"));
+    }
+}
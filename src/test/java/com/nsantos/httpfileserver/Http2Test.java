@@ -0,0 +1,277 @@
+package com.nsantos.httpfileserver;
+
+import com.nsantos.httpfileserver.accesslog.AccessLog;
+import com.nsantos.httpfileserver.exceptions.ExceptionHandler;
+import com.nsantos.httpfileserver.fileserver.FileServerImpl;
+import com.nsantos.httpfileserver.metrics.ServerMetrics;
+import com.typesafe.config.ConfigFactory;
+import org.apache.hc.core5.http.Header;
+import org.apache.hc.core5.http.message.BasicHeader;
+import org.apache.hc.core5.http2.H2Error;
+import org.apache.hc.core5.http2.config.H2Param;
+import org.apache.hc.core5.http2.frame.FrameFlag;
+import org.apache.hc.core5.http2.frame.FrameType;
+import org.apache.hc.core5.http2.hpack.HPackDecoder;
+import org.apache.hc.core5.http2.hpack.HPackEncoder;
+import org.apache.hc.core5.http2.hpack.HPackException;
+import org.apache.hc.core5.util.ByteArrayBuffer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests HTTP/2 without TLS, started with prior knowledge by a minimal client that reads the frames, and by upgrade with
+ * the HTTP client of the JDK.
+ */
+public class Http2Test {
+    private static final byte[] PREFACE = "PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+    private static final int DEFAULT_WINDOW_SIZE = 65535;
+
+    @TempDir
+    Path basePath;
+    private byte[] small;
+    private byte[] large;
+    private HttpFileServerMain webServer;
+    private ServerMetrics metrics;
+
+    private void startServer(Map<String, Object> overrides) throws IOException {
+        small = "Hello, HTTP/2".getBytes(StandardCharsets.US_ASCII);
+        large = new byte[1024 * 1024];
+        new Random(42).nextBytes(large);
+        Files.write(basePath.resolve("small.txt"), small);
+        Files.write(basePath.resolve("large.bin"), large);
+        var settings = new HashMap<String, Object>(overrides);
+        settings.put(Constants.FILE_SERVER_BASE_PATH, basePath.toString());
+        settings.put(Constants.WEBSERVER_PORT, 0);
+        settings.put(Constants.WATCH_FILES, false);
+        var conf = ConfigFactory.parseMap(settings).withFallback(ConfigFactory.load());
+        metrics = new ServerMetrics();
+        var httpResponseWriter = new HttpResponseWriter(conf, metrics);
+        webServer = new HttpFileServerMain(new ConnectionHandlerFactory(new FileServerImpl(conf),
+                new ExceptionHandler(httpResponseWriter), httpResponseWriter, metrics, new AccessLog(conf), conf), conf);
+        webServer.start();
+    }
+
+    @AfterEach
+    void stopServer() throws IOException, InterruptedException {
+        webServer.stop();
+    }
+
+    @Test
+    void smallResponseNotBlockedByLargeOne() throws IOException {
+        startServer(Map.of());
+        try (var client = new Client(webServer.getPort())) {
+            // Only the window of the connection is enlarged, so the large response stops after the initial window of
+            // its stream, while the small one completes
+            client.writeFrame(FrameType.WINDOW_UPDATE, 0, 0, intBytes(large.length));
+            client.sendRequest(1, "/large.bin");
+            client.sendRequest(3, "/small.txt");
+            var responses = new HashMap<Integer, Response>();
+            while (!responses.containsKey(3) || !responses.get(3).ended) {
+                client.readResponseFrame(responses);
+            }
+            assertEquals(200, responses.get(3).status());
+            assertArrayEquals(small, responses.get(3).body.toByteArray());
+            while (!responses.containsKey(1) || responses.get(1).body.size() < DEFAULT_WINDOW_SIZE) {
+                client.readResponseFrame(responses);
+            }
+            assertEquals(DEFAULT_WINDOW_SIZE, responses.get(1).body.size());
+            assertFalse(responses.get(1).ended);
+
+            client.writeFrame(FrameType.WINDOW_UPDATE, 0, 1, intBytes(large.length));
+            while (!responses.get(1).ended) {
+                client.readResponseFrame(responses);
+            }
+            assertEquals(200, responses.get(1).status());
+            assertEquals(Integer.toString(large.length), responses.get(1).header("content-length"));
+            assertArrayEquals(large, responses.get(1).body.toByteArray());
+        }
+    }
+
+    @Test
+    void streamsAboveLimitRefused() throws IOException {
+        startServer(Map.of(Constants.HTTP2_MAX_CONCURRENT_STREAMS, 1));
+        try (var client = new Client(webServer.getPort())) {
+            // Stalled by flow control, so the stream stays open
+            client.sendRequest(1, "/large.bin");
+            client.sendRequest(3, "/small.txt");
+            while (true) {
+                var frame = client.readFrame();
+                if (frame.type() == FrameType.RST_STREAM.getValue()) {
+                    assertEquals(3, frame.streamId());
+                    assertEquals(H2Error.REFUSED_STREAM.getCode(), ByteBuffer.wrap(frame.payload()).getInt());
+                    break;
+                }
+            }
+        }
+    }
+
+    @Test
+    void upgradeFromHttp11() throws IOException, InterruptedException {
+        startServer(Map.of());
+        var client = HttpClient.newBuilder().version(HttpClient.Version.HTTP_2).build();
+        var response = client.send(request("small.txt"), HttpResponse.BodyHandlers.ofByteArray());
+        assertEquals(HttpClient.Version.HTTP_2, response.version());
+        assertEquals(200, response.statusCode());
+        assertArrayEquals(small, response.body());
+
+        // Concurrent requests multiplexed in the upgraded connection
+        var futures = new ArrayList<CompletableFuture<HttpResponse<byte[]>>>();
+        for (int i = 0; i < 20; i++) {
+            futures.add(client.sendAsync(request(i % 2 == 0 ? "large.bin" : "small.txt"), HttpResponse.BodyHandlers.ofByteArray()));
+        }
+        for (int i = 0; i < futures.size(); i++) {
+            var concurrent = futures.get(i).join();
+            assertEquals(HttpClient.Version.HTTP_2, concurrent.version());
+            assertEquals(200, concurrent.statusCode());
+            assertArrayEquals(i % 2 == 0 ? large : small, concurrent.body());
+        }
+        // The large file is sent from a single mapping shared by the streams
+        var rendered = metrics.render();
+        assertTrue(rendered.contains("httpfileserver_file_sent_bytes_total{transfer=\"mapped\"} %d".formatted(10L * large.length)), rendered);
+        assertTrue(rendered.contains("httpfileserver_mapped_files_bytes %d".formatted(large.length)), rendered);
+
+        var missing = client.send(request("missing"), HttpResponse.BodyHandlers.ofString());
+        assertEquals(404, missing.statusCode());
+    }
+
+    @Test
+    void upgradeIgnoredWhenDisabled() throws IOException, InterruptedException {
+        startServer(Map.of(Constants.HTTP2_ENABLED, false));
+        var client = HttpClient.newBuilder().version(HttpClient.Version.HTTP_2).build();
+        var response = client.send(request("small.txt"), HttpResponse.BodyHandlers.ofByteArray());
+        assertEquals(HttpClient.Version.HTTP_1_1, response.version());
+        assertArrayEquals(small, response.body());
+    }
+
+    private HttpRequest request(String path) {
+        return HttpRequest.newBuilder().uri(URI.create("http://localhost:%d/%s".formatted(webServer.getPort(), path))).GET().build();
+    }
+
+    private static byte[] intBytes(int value) {
+        return ByteBuffer.allocate(4).putInt(value).array();
+    }
+
+    private record Frame(int type, int flags, int streamId, byte[] payload) {
+    }
+
+    private static class Response {
+        private List<Header> headers = List.of();
+        private final ByteArrayOutputStream body = new ByteArrayOutputStream();
+        private boolean ended = false;
+
+        String header(String name) {
+            return headers.stream().filter(h -> h.getName().equals(name)).map(Header::getValue).findFirst().orElse(null);
+        }
+
+        /**
+         * @return The status, or 0 if the stream was refused
+         */
+        int status() {
+            var status = header(":status");
+            return status == null ? 0 : Integer.parseInt(status);
+        }
+    }
+
+    /**
+     * Client that starts HTTP/2 with prior knowledge, and sends requests in frames of its own.
+     */
+    private static class Client implements AutoCloseable {
+        private final Socket socket;
+        private final OutputStream out;
+        private final DataInputStream in;
+        private final HPackEncoder encoder = new HPackEncoder(StandardCharsets.ISO_8859_1);
+        private final HPackDecoder decoder = new HPackDecoder(StandardCharsets.ISO_8859_1);
+
+        Client(int port) throws IOException {
+            socket = new Socket("localhost", port);
+            socket.setSoTimeout(10_000);
+            out = socket.getOutputStream();
+            in = new DataInputStream(socket.getInputStream());
+            out.write(PREFACE);
+            var settings = ByteBuffer.allocate(6).putShort((short) H2Param.ENABLE_PUSH.getCode()).putInt(0).array();
+            writeFrame(FrameType.SETTINGS, 0, 0, settings);
+        }
+
+        void sendRequest(int streamId, String path) throws IOException {
+            var block = new ByteArrayBuffer(256);
+            encoder.encodeHeaders(block, List.of(new BasicHeader(":method", "GET"), new BasicHeader(":scheme", "http"),
+                    new BasicHeader(":authority", "localhost"), new BasicHeader(":path", path)), true);
+            writeFrame(FrameType.HEADERS, FrameFlag.END_HEADERS.getValue() | FrameFlag.END_STREAM.getValue(), streamId,
+                    block.toByteArray());
+        }
+
+        void writeFrame(FrameType type, int flags, int streamId, byte[] payload) throws IOException {
+            var frame = ByteBuffer.allocate(9 + payload.length);
+            frame.put((byte) (payload.length >>> 16)).putShort((short) payload.length).put((byte) type.getValue())
+                    .put((byte) flags).putInt(streamId).put(payload);
+            out.write(frame.array());
+            out.flush();
+        }
+
+        Frame readFrame() throws IOException {
+            var length = in.readUnsignedByte() << 16 | in.readUnsignedShort();
+            var type = in.readUnsignedByte();
+            var flags = in.readUnsignedByte();
+            var streamId = in.readInt() & 0x7fffffff;
+            var payload = new byte[length];
+            in.readFully(payload);
+            if (type == FrameType.SETTINGS.getValue() && (flags & FrameFlag.ACK.getValue()) == 0) {
+                writeFrame(FrameType.SETTINGS, FrameFlag.ACK.getValue(), 0, new byte[0]);
+            }
+            return new Frame(type, flags, streamId, payload);
+        }
+
+        /**
+         * Reads a frame, and adds it to the response of its stream
+         */
+        void readResponseFrame(Map<Integer, Response> responses) throws IOException {
+            var frame = readFrame();
+            if (frame.streamId() == 0) {
+                return;
+            }
+            var response = responses.computeIfAbsent(frame.streamId(), id -> new Response());
+            var endStream = (frame.flags() & FrameFlag.END_STREAM.getValue()) != 0;
+            if (frame.type() == FrameType.HEADERS.getValue()) {
+                assertNotEquals(0, frame.flags() & FrameFlag.END_HEADERS.getValue());
+                try {
+                    response.headers = decoder.decodeHeaders(ByteBuffer.wrap(frame.payload()));
+                } catch (HPackException e) {
+                    throw new IOException(e);
+                }
+            } else if (frame.type() == FrameType.DATA.getValue()) {
+                response.body.write(frame.payload());
+            } else if (frame.type() == FrameType.RST_STREAM.getValue()) {
+                endStream = true;
+            }
+            response.ended |= endStream;
+        }
+
+        @Override
+        public void close() throws IOException {
+            socket.close();
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package com.nsantos.httpfileserver;
+
+import com.nsantos.httpfileserver.exceptions.WebServerException;
+import org.apache.hc.core5.http.HttpStatus;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class HttpRequestParserTest {
+
+    private static HttpRequestParser parserWith(String data) throws IOException, WebServerException {
+        var parser = new HttpRequestParser(64, 256);
+        var is = new ByteArrayInputStream(data.getBytes(StandardCharsets.ISO_8859_1));
+        while (parser.fill(is) > 0) {
+            // Read everything
+        }
+        return parser;
+    }
+
+    @Test
+    void requestLineAndHeaders() throws IOException, WebServerException {
+        var parser = parserWith("GET /dir1/a HTTP/1.1\r\nhost: localhost\r\nX-Custom:  some value \r\n\r\n");
+        var request = parser.parse();
+        assertNotNull(request);
+        assertSame("GET", request.method());
+        assertEquals("/dir1/a", request.target());
+        assertSame("HTTP/1.1", request.httpVersion());
+        assertEquals(2, request.headers().size());
+        assertSame("Host", request.headers().name(0));
+        assertEquals("localhost", request.headers().get("Host"));
+        assertEquals("some value", request.headers().get("x-custom"));
+        assertNull(request.headers().get("Range"));
+        assertFalse(parser.hasBufferedData());
+    }
+
+    @Test
+    void incompleteRequest() throws IOException, WebServerException {
+        var parser = parserWith("GET / HTTP/1.1\r\nHost: localhost\r\n");
+        assertNull(parser.parse());
+        assertTrue(parser.hasBufferedData());
+    }
+
+    @Test
+    void pipelinedRequestsWithBareLineFeeds() throws IOException, WebServerException {
+        var parser = parserWith("\r\nGET /a HTTP/1.1\n\nHEAD /b HTTP/1.0\nHost: x\n\n");
+        assertEquals("/a", parser.parse().target());
+        var second = parser.parse();
+        assertSame("HEAD", second.method());
+        assertEquals("x", second.headers().get("host"));
+        assertNull(parser.parse());
+    }
+
+    @Test
+    void bodyKeptInBuffer() throws IOException, WebServerException {
+        var parser = parserWith("PUT /a HTTP/1.1\r\nContent-Length: 5\r\n\r\nhelloGET /b HTTP/1.1\r\n\r\n");
+        var request = parser.parse();
+        var length = Long.parseLong(request.headers().get("Content-Length"));
+        var body = parser.body(inputStreamOf(""), length).readAllBytes();
+        assertEquals("hello", new String(body, StandardCharsets.ISO_8859_1));
+        assertEquals("/b", parser.parse().target());
+    }
+
+    @Test
+    void requestLineTooLong() throws IOException, WebServerException {
+        var parser = parserWith("GET /" + "a".repeat(100));
+        var ex = assertThrows(WebServerException.class, parser::parse);
+        assertEquals(HttpStatus.SC_REQUEST_URI_TOO_LONG, ex.getStatusCode());
+    }
+
+    @Test
+    void headersTooLarge() throws IOException, WebServerException {
+        var parser = parserWith("GET / HTTP/1.1\r\nX-Large: " + "a".repeat(300));
+        var ex = assertThrows(WebServerException.class, parser::parse);
+        assertEquals(HttpStatus.SC_REQUEST_HEADER_FIELDS_TOO_LARGE, ex.getStatusCode());
+    }
+
+    @Test
+    void malformedRequestLine() throws IOException, WebServerException {
+        var parser = parserWith("GARBAGE\r\n\r\n");
+        var ex = assertThrows(WebServerException.class, parser::parse);
+        assertEquals(HttpStatus.SC_BAD_REQUEST, ex.getStatusCode());
+    }
+
+    private static ByteArrayInputStream inputStreamOf(String s) {
+        return new ByteArrayInputStream(s.getBytes(StandardCharsets.ISO_8859_1));
+    }
+}
@@ -0,0 +1,154 @@
+package com.nsantos.httpfileserver;
+
+import com.nsantos.httpfileserver.accesslog.AccessLog;
+import com.nsantos.httpfileserver.exceptions.ExceptionHandler;
+import com.nsantos.httpfileserver.fileserver.FileServerImpl;
+import com.nsantos.httpfileserver.metrics.ServerMetrics;
+import com.typesafe.config.ConfigFactory;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests the parking of idle keep-alive connections of the blocking engine, with servers that have fewer threads than
+ * connections.
+ */
+public class IdleConnectionParkingTest {
+    private static final String REQUEST = "GET /missing HTTP/1.1\r\nHost: localhost\r\n\r\n";
+
+    @TempDir
+    Path basePath;
+    private ServerMetrics metrics;
+    private HttpFileServerMain webServer;
+
+    private void startServer(Map<String, Object> overrides) throws IOException {
+        var settings = new HashMap<String, Object>(overrides);
+        settings.put(Constants.FILE_SERVER_BASE_PATH, basePath.toString());
+        settings.put(Constants.WEBSERVER_PORT, 0);
+        settings.put(Constants.WATCH_FILES, false);
+        var conf = ConfigFactory.parseMap(settings).withFallback(ConfigFactory.load());
+        metrics = new ServerMetrics();
+        var httpResponseWriter = new HttpResponseWriter(conf, metrics);
+        webServer = new HttpFileServerMain(new ConnectionHandlerFactory(new FileServerImpl(conf),
+                new ExceptionHandler(httpResponseWriter), httpResponseWriter, metrics, new AccessLog(conf), conf), conf);
+        webServer.start();
+    }
+
+    @AfterEach
+    void stopServer() throws IOException, InterruptedException {
+        webServer.stop();
+    }
+
+    @Test
+    void idleConnectionsDoNotHoldThreads() throws IOException, InterruptedException {
+        // If the first connection kept the only thread, the second one would wait for it until the keep-alive timeout
+        startServer(Map.of(Constants.WEBSERVER_THREAD_POOL_SIZE, 1, Constants.ADMISSION_QUEUE_SIZE, 1,
+                Constants.KEEP_ALIVE_TIMEOUT, "30 seconds"));
+        try (var first = connect(); var second = connect()) {
+            assertEquals(404, send(first));
+            assertEquals(404, send(second));
+            // Both are parked, and served again by the same thread
+            assertEquals(404, send(first));
+            assertEquals(404, send(second));
+            awaitMetric("httpfileserver_parked_connections 2");
+        }
+    }
+
+    @Test
+    void oldestIdleConnectionClosedFirst() throws IOException, InterruptedException {
+        startServer(Map.of(Constants.WEBSERVER_THREAD_POOL_SIZE, 2, Constants.IDLE_CONNECTIONS_MAX, 1));
+        try (var first = connect(); var second = connect()) {
+            assertEquals(404, send(first));
+            awaitMetric("httpfileserver_parked_connections 1");
+            assertEquals(404, send(second));
+            // Parking the second connection exceeds the maximum, so the first one is closed
+            assertEquals(-1, first.getInputStream().read());
+            assertEquals(404, send(second));
+            awaitMetric("httpfileserver_parked_connections_closed_total{reason=\"evicted\"} 1");
+        }
+    }
+
+    @Test
+    void idleTimeout() throws IOException, InterruptedException {
+        startServer(Map.of(Constants.KEEP_ALIVE_TIMEOUT, "500 ms"));
+        try (var socket = connect()) {
+            assertEquals(404, send(socket));
+            // Closed by the parker, which checks the timeouts every second
+            assertEquals(-1, socket.getInputStream().read());
+            awaitMetric("httpfileserver_parked_connections_closed_total{reason=\"timeout\"} 1");
+        }
+    }
+
+    @Test
+    void resumedConnectionClosedWhenQueueFull() throws IOException, InterruptedException {
+        startServer(Map.of(Constants.WEBSERVER_THREAD_POOL_SIZE, 1, Constants.ADMISSION_QUEUE_SIZE, 0));
+        try (var first = connect()) {
+            assertEquals(404, send(first));
+            awaitMetric("httpfileserver_parked_connections 1");
+            var second = connect();
+            // Takes the only thread, waiting for the rest of its request
+            second.getOutputStream().write("GET /missing HTTP/1.1\r\n".getBytes(StandardCharsets.US_ASCII));
+            awaitMetric("httpfileserver_executor_threads{shard=\"0\",state=\"busy\"} 1");
+            // Closed by the parker without a response, which resets the connection, since its request was not read
+            first.getOutputStream().write(REQUEST.getBytes(StandardCharsets.US_ASCII));
+            assertThrows(SocketException.class, () -> first.getInputStream().read());
+            awaitMetric("httpfileserver_resumed_connections_rejected_total{shard=\"0\"} 1");
+            second.getOutputStream().write("Host: localhost\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+            assertEquals(404, WebServerTest.readRawResponse(second.getInputStream()).status());
+            second.close();
+        }
+    }
+
+    @Test
+    void parkingDisabled() throws IOException, InterruptedException {
+        startServer(Map.of(Constants.WEBSERVER_THREAD_POOL_SIZE, 1, Constants.ADMISSION_QUEUE_SIZE, 1,
+                Constants.ADMISSION_QUEUE_TIMEOUT, "100 ms", Constants.IDLE_CONNECTIONS_PARK, false));
+        try (var first = connect(); var second = connect()) {
+            assertEquals(404, send(first));
+            // The first connection keeps the only thread until it is closed, after the queue timeout of the second one
+            Thread.sleep(200);
+            first.close();
+            assertEquals(503, WebServerTest.readRawResponse(second.getInputStream()).status());
+        }
+    }
+
+    private Socket connect() throws IOException {
+        var socket = new Socket("localhost", webServer.getPort());
+        socket.setSoTimeout(5000);
+        return socket;
+    }
+
+    /**
+     * Sends a request and reads its response.
+     *
+     * @return The status of the response
+     */
+    private static int send(Socket socket) throws IOException {
+        socket.getOutputStream().write(REQUEST.getBytes(StandardCharsets.US_ASCII));
+        // Not buffered, so that no bytes of the following responses are consumed
+        return WebServerTest.readRawResponse(socket.getInputStream()).status();
+    }
+
+    /**
+     * Waits for a sample of the metrics, which are updated asynchronously by the parker.
+     */
+    private void awaitMetric(String sample) throws InterruptedException {
+        var deadline = System.nanoTime() + 5_000_000_000L;
+        while (!metrics.render().contains(sample + "\n")) {
+            if (System.nanoTime() > deadline) {
+                fail("Missing metric %s in:%n%s".formatted(sample, metrics.render()));
+            }
+            Thread.sleep(10);
+        }
+    }
+}
@@ -0,0 +1,156 @@
+package com.nsantos.httpfileserver;
+
+import com.nsantos.httpfileserver.accesslog.AccessLog;
+import com.nsantos.httpfileserver.exceptions.ExceptionHandler;
+import com.nsantos.httpfileserver.fileserver.CachingFileServer;
+import com.nsantos.httpfileserver.fileserver.FileServerImpl;
+import com.nsantos.httpfileserver.loadtest.LoadGenerator;
+import com.nsantos.httpfileserver.loadtest.LoadOptions;
+import com.nsantos.httpfileserver.loadtest.LoadReport;
+import com.nsantos.httpfileserver.metrics.ServerMetrics;
+import com.typesafe.config.ConfigFactory;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.TestInstance;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Load tests of an embedded server over loopback, run in the integration test phase. Each test writes its results as
+ * JSON to the directory given by the loadtest.output-dir property.
+ * <p>
+ * The load is configured with the system properties in {@link LoadOptions}, which each test varies in one aspect. If
+ * the loadtest.baseline-dir property names a directory with the results of a previous run, the results are compared
+ * with them, and the tests fail if the throughput dropped by more than the fraction in loadtest.max-regression.
+ */
+@TestInstance(TestInstance.Lifecycle.PER_CLASS)
+public class LoadTestIT {
+    private static final Logger logger = LoggerFactory.getLogger(LoadTestIT.class);
+    private static final String OUTPUT_DIR = "loadtest.output-dir";
+    private static final String BASELINE_DIR = "loadtest.baseline-dir";
+    private static final String MAX_REGRESSION = "loadtest.max-regression";
+    private static final int PIPELINE_DEPTH = 8;
+    private static final double REQUEST_RATE = 2000;
+
+    private final LoadOptions options = LoadOptions.fromSystemProperties();
+    private Path baseDir;
+    private CachingFileServer fileServer;
+    private AccessLog accessLog;
+    private HttpFileServerMain webServer;
+    private List<String> targets;
+
+    /**
+     * Configuration properties that take precedence over the defaults of the test server. Allows subclasses to run
+     * the same tests against a server configured differently.
+     */
+    protected Map<String, Object> testConfigOverrides() {
+        return Map.of();
+    }
+
+    /**
+     * Identifies the server configuration in the names of the results.
+     */
+    protected String serverName() {
+        return Constants.ENGINE_BLOCKING;
+    }
+
+    @BeforeAll
+    void init() throws IOException {
+        baseDir = Files.createTempDirectory("loadtest");
+        targets = new ArrayList<>();
+        for (var fileSize : options.fileSizes()) {
+            var name = "file-%d.bin".formatted(fileSize.size());
+            var content = new byte[Math.toIntExact(fileSize.size())];
+            ThreadLocalRandom.current().nextBytes(content);
+            Files.write(baseDir.resolve(name), content);
+            targets.add("/" + name);
+        }
+        var properties = new HashMap<String, Object>(Map.of(
+                Constants.FILE_SERVER_BASE_PATH, baseDir.toString(),
+                Constants.WEBSERVER_PORT, 0,
+                Constants.WEBSERVER_THREAD_POOL_SIZE, options.connections() * 2,
+                Constants.WATCH_FILES, false
+        ));
+        properties.putAll(testConfigOverrides());
+        var conf = ConfigFactory.parseMap(properties).withFallback(ConfigFactory.load());
+        fileServer = new CachingFileServer(new FileServerImpl(conf), conf);
+        var metrics = new ServerMetrics();
+        accessLog = new AccessLog(conf);
+        var httpResponseWriter = new HttpResponseWriter(conf, metrics);
+        var exceptionHandler = new ExceptionHandler(httpResponseWriter);
+        var fsc = new ConnectionHandlerFactory(fileServer, exceptionHandler, httpResponseWriter, metrics, accessLog, conf);
+        webServer = new HttpFileServerMain(fsc, conf);
+        webServer.start();
+    }
+
+    @AfterAll
+    void shutdown() throws IOException, InterruptedException {
+        webServer.stop();
+        fileServer.close();
+        accessLog.close();
+        try (var paths = Files.walk(baseDir)) {
+            for (var path : paths.sorted(Comparator.reverseOrder()).toList()) {
+                Files.delete(path);
+            }
+        }
+    }
+
+    @Test
+    void keepAlive() throws IOException, InterruptedException {
+        runLoadTest("keep-alive", options);
+    }
+
+    @Test
+    void noKeepAlive() throws IOException, InterruptedException {
+        runLoadTest("no-keep-alive", options.withKeepAlive(false));
+    }
+
+    @Test
+    void pipelined() throws IOException, InterruptedException {
+        runLoadTest("pipelined", options.withKeepAlive(true).withPipelineDepth(Math.max(options.pipelineDepth(), PIPELINE_DEPTH)));
+    }
+
+    @Test
+    void openLoop() throws IOException, InterruptedException {
+        runLoadTest("open-loop", options.withRequestRate(options.isOpenLoop() ? options.requestRate() : REQUEST_RATE));
+    }
+
+    private void runLoadTest(String scenario, LoadOptions scenarioOptions) throws IOException, InterruptedException {
+        var name = serverName() + "-" + scenario;
+        var address = new InetSocketAddress("localhost", webServer.getPort());
+        var report = new LoadGenerator(address, targets, scenarioOptions).run(name);
+        var resultFile = Path.of(System.getProperty(OUTPUT_DIR, "target/load-tests"), name + ".json");
+        report.write(resultFile);
+        logger.info("Results of {} written to {}", name, resultFile);
+
+        assertEquals(0, report.errorCount(), report::toJson);
+        assertTrue(report.requests() > 0, report::toJson);
+
+        var baselineDir = System.getProperty(BASELINE_DIR);
+        var baselineFile = baselineDir == null ? null : Path.of(baselineDir, name + ".json");
+        if (baselineFile != null && Files.exists(baselineFile)) {
+            var baseline = LoadReport.readMetrics(baselineFile);
+            logger.info("Results of {} compared with {}:\n{}", name, baselineFile, report.compare(baseline));
+            var maxRegression = System.getProperty(MAX_REGRESSION);
+            if (maxRegression != null) {
+                var minimum = baseline.get("requestsPerSecond") * (1 - Double.parseDouble(maxRegression));
+                assertTrue(report.requestsPerSecond() >= minimum, () -> "Throughput of %s dropped from %.1f to %.1f requests/s"
+                        .formatted(name, baseline.get("requestsPerSecond"), report.requestsPerSecond()));
+            }
+        }
+    }
+}
@@ -0,0 +1,106 @@
+package com.nsantos.httpfileserver;
+
+import com.nsantos.httpfileserver.metrics.ServerMetrics;
+import com.typesafe.config.ConfigFactory;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class MappedFileCacheTest {
+
+    @TempDir
+    Path dir;
+
+    private static MappedFileCache cache(String maxSize) {
+        var conf = ConfigFactory.parseMap(Map.of(
+                Constants.MAPPED_FILES_ENABLED, true,
+                Constants.MAPPED_FILES_MIN_FILE_SIZE, "1 KiB",
+                Constants.MAPPED_FILES_MAX_SIZE, maxSize
+        )).withFallback(ConfigFactory.load());
+        return new MappedFileCache(conf);
+    }
+
+    private Path createFile(String name, int size) throws Exception {
+        var contents = new byte[size];
+        Arrays.fill(contents, (byte) name.charAt(0));
+        return Files.write(dir.resolve(name), contents);
+    }
+
+    @Test
+    void sharedAcrossRequests() throws Exception {
+        var cache = cache("1 MiB");
+        var file = createFile("a", 4096);
+        var first = cache.acquire(file);
+        var second = cache.acquire(file);
+        assertNotNull(first);
+        assertSame(first, second);
+        assertEquals(4096, first.size());
+
+        var os = new ByteArrayOutputStream();
+        ByteBufferOutput.write(os, first.slice(100, 200));
+        assertEquals(200, os.size());
+        assertEquals('a', os.toByteArray()[0]);
+        first.release();
+        second.release();
+
+        var metrics = new ServerMetrics();
+        cache.registerMetrics(metrics);
+        var rendered = metrics.render();
+        assertTrue(rendered.contains("httpfileserver_mapped_files_bytes 4096"), rendered);
+    }
+
+    @Test
+    void smallAndOversizedFilesNotMapped() throws Exception {
+        var cache = cache("8 KiB");
+        assertNull(cache.acquire(createFile("small", 100)));
+        assertNull(cache.acquire(createFile("large", 16 * 1024)));
+        var metrics = new ServerMetrics();
+        cache.registerMetrics(metrics);
+        var rendered = metrics.render();
+        assertTrue(rendered.contains("httpfileserver_mapped_files_bypassed_total 1"), rendered);
+        assertTrue(rendered.contains("httpfileserver_mapped_files_bytes 0"), rendered);
+    }
+
+    @Test
+    void changedFileNotServedFromOldMapping() throws Exception {
+        var cache = cache("1 MiB");
+        var file = createFile("a", 4096);
+        cache.acquire(file).release();
+        Files.setLastModifiedTime(file, FileTime.from(Instant.now().plusSeconds(60)));
+        // The old mapping is dropped, the next request maps the new version
+        assertNull(cache.acquire(file));
+        var mapping = cache.acquire(file);
+        assertNotNull(mapping);
+        mapping.release();
+        var metrics = new ServerMetrics();
+        cache.registerMetrics(metrics);
+        assertTrue(metrics.render().contains("httpfileserver_mapped_files_stale_total 1"), metrics.render());
+    }
+
+    @Test
+    void evictedMappingUnmappedOnLastRelease() throws Exception {
+        var cache = cache("6 KiB");
+        var metrics = new ServerMetrics();
+        cache.registerMetrics(metrics);
+        var first = cache.acquire(createFile("a", 4096));
+        // Does not fit with the first one, which is evicted but still in use
+        var second = cache.acquire(createFile("b", 4096));
+        assertNotNull(second);
+        assertTrue(metrics.render().contains("httpfileserver_mapped_files_bytes 8192"), metrics.render());
+        var os = new ByteArrayOutputStream();
+        ByteBufferOutput.write(os, first.slice(0, 4096));
+        assertEquals('a', os.toByteArray()[4095]);
+        first.release();
+        assertTrue(metrics.render().contains("httpfileserver_mapped_files_bytes 4096"), metrics.render());
+        second.release();
+    }
+}
@@ -0,0 +1,21 @@
+package com.nsantos.httpfileserver;
+
+import java.util.Map;
+
+/**
+ * Runs the load tests against the nio engine.
+ */
+public class NioLoadTestIT extends LoadTestIT {
+    @Override
+    protected Map<String, Object> testConfigOverrides() {
+        return Map.of(
+                Constants.SERVER_ENGINE, Constants.ENGINE_NIO,
+                Constants.EVENT_LOOP_THREADS, 2
+        );
+    }
+
+    @Override
+    protected String serverName() {
+        return Constants.ENGINE_NIO;
+    }
+}
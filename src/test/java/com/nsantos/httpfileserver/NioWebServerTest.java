@@ -0,0 +1,16 @@
+package com.nsantos.httpfileserver;
+
+import java.util.Map;
+
+/**
+ * Runs the web server tests against the nio engine.
+ */
+public class NioWebServerTest extends WebServerTest {
+    @Override
+    protected Map<String, Object> testConfigOverrides() {
+        return Map.of(
+                Constants.SERVER_ENGINE, Constants.ENGINE_NIO,
+                Constants.EVENT_LOOP_THREADS, 2
+        );
+    }
+}
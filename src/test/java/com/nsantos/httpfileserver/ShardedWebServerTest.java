@@ -0,0 +1,52 @@
+package com.nsantos.httpfileserver;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Runs the web server tests with several acceptor shards listening on the same port.
+ */
+public class ShardedWebServerTest extends WebServerTest {
+    private static final int SHARDS = 4;
+    private static final Pattern ACCEPTED_CONNECTIONS = Pattern.compile("httpfileserver_accepted_connections_total\\{shard=\"(\\d+)\"} (\\d+)");
+
+    @Override
+    protected Map<String, Object> testConfigOverrides() {
+        return Map.of(Constants.ACCEPTOR_SHARDS, SHARDS);
+    }
+
+    @Test
+    void connectionsSpreadAcrossShards() throws IOException, InterruptedException {
+        var connections = 40;
+        var address = fileServerPath("");
+        for (int i = 0; i < connections; i++) {
+            try (var socket = new Socket(address.getHost(), address.getPort())) {
+                socket.getOutputStream().write("GET /foo HTTP/1.1\r\nHost: localhost\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+                // The response has started, so the connection was accepted
+                assertNotEquals(-1, socket.getInputStream().read());
+            }
+        }
+        var metrics = HttpClient.newHttpClient().send(HttpRequest.newBuilder().uri(fileServerPath("_metrics")).GET().build(),
+                HttpResponse.BodyHandlers.ofString()).body();
+        var perShard = new long[SHARDS];
+        var matcher = ACCEPTED_CONNECTIONS.matcher(metrics);
+        while (matcher.find()) {
+            perShard[Integer.parseInt(matcher.group(1))] = Long.parseLong(matcher.group(2));
+        }
+        assertTrue(Arrays.stream(perShard).sum() >= connections, metrics);
+        // The kernel distributes the connections by hashing their addresses, so they are very unlikely to all land on
+        // the same shard
+        assertTrue(Arrays.stream(perShard).filter(count -> count > 0).count() > 1, metrics);
+    }
+}
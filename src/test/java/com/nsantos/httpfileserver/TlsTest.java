@@ -0,0 +1,239 @@
+package com.nsantos.httpfileserver;
+
+import com.nsantos.httpfileserver.accesslog.AccessLog;
+import com.nsantos.httpfileserver.exceptions.ExceptionHandler;
+import com.nsantos.httpfileserver.fileserver.CachingFileServer;
+import com.nsantos.httpfileserver.fileserver.FileServerImpl;
+import com.nsantos.httpfileserver.metrics.ServerMetrics;
+import com.typesafe.config.ConfigFactory;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.TrustManagerFactory;
+import java.io.IOException;
+import java.net.Socket;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests HTTPS with a self-signed certificate for localhost, trusted by the clients of the tests.
+ */
+public class TlsTest {
+    private static final String KEYSTORE_PASSWORD = "changeit";
+    private static final byte[] REQUEST = "GET /small.txt HTTP/1.1\r\nHost: localhost\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+
+    @TempDir
+    Path basePath;
+    private byte[] small;
+    private HttpFileServerMain webServer;
+    private ServerMetrics metrics;
+
+    private void startServer(Map<String, Object> overrides) throws IOException, URISyntaxException {
+        small = "Hello, TLS".getBytes(StandardCharsets.US_ASCII);
+        Files.write(basePath.resolve("small.txt"), small);
+        var settings = new HashMap<String, Object>(overrides);
+        settings.put(Constants.FILE_SERVER_BASE_PATH, basePath.toString());
+        settings.put(Constants.WEBSERVER_PORT, 0);
+        settings.put(Constants.WATCH_FILES, false);
+        settings.put(Constants.TLS_ENABLED, true);
+        settings.put(Constants.TLS_KEYSTORE_PATH, keystorePath().toString());
+        settings.put(Constants.TLS_KEYSTORE_PASSWORD, KEYSTORE_PASSWORD);
+        var conf = ConfigFactory.parseMap(settings).withFallback(ConfigFactory.load());
+        metrics = new ServerMetrics();
+        var httpResponseWriter = new HttpResponseWriter(conf, metrics);
+        webServer = new HttpFileServerMain(new ConnectionHandlerFactory(new CachingFileServer(new FileServerImpl(conf), conf),
+                new ExceptionHandler(httpResponseWriter), httpResponseWriter, metrics, new AccessLog(conf), conf), conf);
+        webServer.start();
+    }
+
+    @AfterEach
+    void stopServer() throws IOException, InterruptedException {
+        webServer.stop();
+    }
+
+    @Test
+    void http11() throws Exception {
+        startServer(Map.of(Constants.HTTP2_ENABLED, false));
+        var client = HttpClient.newBuilder().sslContext(clientContext()).version(HttpClient.Version.HTTP_2).build();
+        var response = client.send(request("small.txt"), HttpResponse.BodyHandlers.ofByteArray());
+        // h2 is not offered with ALPN
+        assertEquals(HttpClient.Version.HTTP_1_1, response.version());
+        assertEquals(200, response.statusCode());
+        assertArrayEquals(small, response.body());
+        assertMetric("httpfileserver_tls_handshakes_total{result=\"full\"} 1");
+    }
+
+    @Test
+    void http2NegotiatedWithAlpn() throws Exception {
+        startServer(Map.of());
+        var client = HttpClient.newBuilder().sslContext(clientContext()).version(HttpClient.Version.HTTP_2).build();
+        for (int i = 0; i < 3; i++) {
+            var response = client.send(request("small.txt"), HttpResponse.BodyHandlers.ofByteArray());
+            assertEquals(HttpClient.Version.HTTP_2, response.version());
+            assertEquals(200, response.statusCode());
+            assertArrayEquals(small, response.body());
+        }
+        // A single connection, multiplexing the requests
+        assertMetric("httpfileserver_tls_h2_negotiated_total 1");
+        assertMetric("httpfileserver_http2_connections_total{start=\"prior_knowledge\"} 1");
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {"TLSv1.3", "TLSv1.2"})
+    void sessionsResumed(String protocol) throws Exception {
+        startServer(Map.of());
+        var context = clientContext();
+        for (int i = 0; i < 3; i++) {
+            try (var socket = (SSLSocket) context.getSocketFactory().createSocket("localhost", webServer.getPort())) {
+                socket.setEnabledProtocols(new String[]{protocol});
+                socket.getOutputStream().write(REQUEST);
+                // Reading the response also processes the session tickets sent after the handshake
+                var response = readResponse(socket);
+                assertTrue(response.startsWith("HTTP/1.1 200"), response);
+                assertEquals(protocol, socket.getSession().getProtocol());
+            }
+        }
+        assertMetric("httpfileserver_tls_handshakes_total{result=\"full\"} 1");
+        assertMetric("httpfileserver_tls_handshakes_total{result=\"resumed\"} 2");
+    }
+
+    @Test
+    void idleConnectionsParked() throws Exception {
+        startServer(Map.of(
+                Constants.WEBSERVER_THREAD_POOL_SIZE, 1,
+                Constants.KEEP_ALIVE_TIMEOUT, "2 seconds"
+        ));
+        try (var idle = (SSLSocket) clientContext().getSocketFactory().createSocket("localhost", webServer.getPort())) {
+            idle.getOutputStream().write(REQUEST);
+            readResponse(idle);
+            awaitMetric("httpfileserver_parked_connections 1");
+            // The only thread is free to serve another connection
+            try (var other = (SSLSocket) clientContext().getSocketFactory().createSocket("localhost", webServer.getPort())) {
+                other.getOutputStream().write(REQUEST);
+                assertTrue(readResponse(other).startsWith("HTTP/1.1 200"));
+            }
+            // The parked connection is served again once its next request arrives
+            idle.getOutputStream().write(REQUEST);
+            assertTrue(readResponse(idle).startsWith("HTTP/1.1 200"));
+            // And closed if idle for longer than the keep-alive timeout
+            awaitMetric("httpfileserver_parked_connections_closed_total{reason=\"timeout\"} 1");
+        }
+    }
+
+    @Test
+    void stalledHandshakesDoNotTakeRequestThreads() throws Exception {
+        startServer(Map.of(
+                Constants.WEBSERVER_THREAD_POOL_SIZE, 1,
+                Constants.ADMISSION_QUEUE_SIZE, 0,
+                Constants.TLS_HANDSHAKE_THREADS, 2,
+                Constants.TLS_HANDSHAKE_TIMEOUT, "500 ms"
+        ));
+        try (var stalled = new Socket("localhost", webServer.getPort())) {
+            // Never sends the client hello, so its handshake holds a handshake thread until the timeout
+            var client = HttpClient.newBuilder().sslContext(clientContext()).version(HttpClient.Version.HTTP_1_1).build();
+            var response = client.send(request("small.txt"), HttpResponse.BodyHandlers.ofByteArray());
+            assertEquals(200, response.statusCode());
+            // Closed by the server, after a TLS alert
+            stalled.setSoTimeout(5000);
+            stalled.getInputStream().readAllBytes();
+        }
+        assertMetric("httpfileserver_tls_handshakes_total{result=\"failed\"} 1");
+    }
+
+    @ParameterizedTest
+    @ValueSource(booleans = {true, false})
+    void truncatedFileClosesConnection(boolean mapped) throws Exception {
+        var file = Files.write(basePath.resolve("large.bin"), new byte[64 * 1024]);
+        // Without a mapping, the file is copied through the output of the connection
+        startServer(Map.of(
+                Constants.MAPPED_FILES_MIN_FILE_SIZE, mapped ? "1 KiB" : "1 MiB",
+                Constants.CONTENT_CACHE_MAX_FILE_SIZE, 512
+        ));
+        try (var socket = (SSLSocket) clientContext().getSocketFactory().createSocket("localhost", webServer.getPort())) {
+            // Caches the metadata of the file, without mapping it
+            socket.getOutputStream().write("GET /large.bin HTTP/1.1\r\nHost: localhost\r\nIf-None-Match: *\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+            var head = new StringBuilder();
+            while (!head.toString().endsWith("\r\n\r\n")) {
+                var read = socket.getInputStream().read();
+                assertNotEquals(-1, read, head::toString);
+                head.append((char) read);
+            }
+            assertTrue(head.toString().startsWith("HTTP/1.1 304"), head::toString);
+            // Truncated after the head of the next response is produced from the cached metadata
+            Files.write(file, new byte[4 * 1024]);
+            socket.getOutputStream().write("GET /large.bin HTTP/1.1\r\nHost: localhost\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+            // The response is aborted by closing the connection, not completed with an error response
+            socket.setSoTimeout(5000);
+            var response = new String(socket.getInputStream().readAllBytes(), StandardCharsets.ISO_8859_1);
+            assertFalse(response.contains("HTTP/1.1 500"), response);
+        }
+    }
+
+    /**
+     * Reads the response to a request for small.txt, which ends with its contents
+     */
+    private String readResponse(Socket socket) throws IOException {
+        var response = new StringBuilder();
+        var buffer = new byte[1024];
+        while (!response.toString().endsWith(new String(small, StandardCharsets.US_ASCII))) {
+            var read = socket.getInputStream().read(buffer);
+            assertNotEquals(-1, read, response::toString);
+            response.append(new String(buffer, 0, read, StandardCharsets.US_ASCII));
+        }
+        return response.toString();
+    }
+
+    private void assertMetric(String line) {
+        var rendered = metrics.render();
+        assertTrue(rendered.lines().anyMatch(line::equals), rendered);
+    }
+
+    private void awaitMetric(String line) throws InterruptedException {
+        var deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (metrics.render().lines().noneMatch(line::equals) && System.nanoTime() < deadline) {
+            Thread.sleep(20);
+        }
+        assertMetric(line);
+    }
+
+    private HttpRequest request(String path) {
+        return HttpRequest.newBuilder().uri(URI.create("https://localhost:%d/%s".formatted(webServer.getPort(), path))).GET().build();
+    }
+
+    private static Path keystorePath() throws URISyntaxException {
+        return Path.of(TlsTest.class.getResource("/tls/server.p12").toURI());
+    }
+
+    /**
+     * @return A context that trusts the certificate of the test server
+     */
+    private static SSLContext clientContext() throws IOException, GeneralSecurityException, URISyntaxException {
+        var trustStore = KeyStore.getInstance("PKCS12");
+        try (var in = Files.newInputStream(keystorePath())) {
+            trustStore.load(in, KEYSTORE_PASSWORD.toCharArray());
+        }
+        var trustManagerFactory = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+        trustManagerFactory.init(trustStore);
+        var context = SSLContext.getInstance("TLS");
+        context.init(null, trustManagerFactory.getTrustManagers(), null);
+        return context;
+    }
+}
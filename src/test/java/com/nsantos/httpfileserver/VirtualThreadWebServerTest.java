@@ -0,0 +1,17 @@
+package com.nsantos.httpfileserver;
+
+import java.util.Map;
+
+/**
+ * Runs the web server tests with the virtual thread connection executor. On runtimes without virtual threads, this
+ * exercises the fallback to the platform thread pool.
+ */
+public class VirtualThreadWebServerTest extends WebServerTest {
+    @Override
+    protected Map<String, Object> testConfigOverrides() {
+        return Map.of(
+                Constants.CONNECTION_EXECUTOR, Constants.EXECUTOR_VIRTUAL,
+                Constants.VIRTUAL_THREAD_MAX_CONNECTIONS, 100
+        );
+    }
+}
@@ -1,8 +1,10 @@
 package com.nsantos.httpfileserver;
 
+import com.nsantos.httpfileserver.accesslog.AccessLog;
 import com.nsantos.httpfileserver.exceptions.ExceptionHandler;
-import com.nsantos.httpfileserver.fileserver.FileServer;
+import com.nsantos.httpfileserver.fileserver.CachingFileServer;
 import com.nsantos.httpfileserver.fileserver.FileServerImpl;
+import com.nsantos.httpfileserver.metrics.ServerMetrics;
 import com.typesafe.config.Config;
 import com.typesafe.config.ConfigFactory;
 import org.apache.hc.core5.http.ContentType;
@@ -17,17 +19,31 @@ import org.junit.jupiter.params.provider.MethodSource;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.http.HttpClient;
 import java.net.http.HttpRequest;
 import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Map;
+import java.util.TreeMap;
 import java.util.concurrent.*;
+import java.util.function.LongSupplier;
 import java.util.stream.Stream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.InflaterInputStream;
 
 import static com.nsantos.httpfileserver.HttpConstants.TEXT_HTML_UTF8;
 import static org.junit.jupiter.api.Assertions.*;
@@ -42,29 +58,56 @@ public class WebServerTest {
     private static final Logger logger = LoggerFactory.getLogger(WebServerTest.class);
 
     private HttpFileServerMain webServer = null;
+    protected HttpResponseWriter httpResponseWriter = null;
+    private CachingFileServer fileServer = null;
+    private AccessLog accessLog = null;
+    private Path accessLogFile = null;
     private HttpClient httpClient = null;
+    private BufferPool bufferPool = null;
 
-    private static Config createTestConfig(Map<String, Object> testOverrides) {
-        var testConfig = ConfigFactory.parseMap(testOverrides);
+    private Config createTestConfig(Map<String, Object> testOverrides) {
+        // Tracks the buffers borrowed from the pool, to check that they are all given back
+        var testConfig = ConfigFactory.parseMap(testOverrides)
+                .withFallback(ConfigFactory.parseMap(Map.of(Constants.BUFFER_POOL_LEAK_DETECTION, true)));
         var systemConfig = ConfigFactory.load();
-        return testConfig.withFallback(systemConfig);
+        return ConfigFactory.parseMap(testConfigOverrides()).withFallback(testConfig).withFallback(systemConfig);
+    }
+
+    /**
+     * Configuration properties that take precedence over the defaults of the test server. Allows subclasses to run
+     * the same tests against a server configured differently.
+     */
+    protected Map<String, Object> testConfigOverrides() {
+        return Map.of();
     }
 
     private HttpFileServerMain createTestServer() throws URISyntaxException, IOException {
         var basePath = getTestPath("files").toString();
         logger.info("Creating web server serving from {}", basePath);
+        accessLogFile = Files.createTempDirectory("access-log").resolve("access.log");
         // Set the configuration properties for the test File Server instance
         var conf = createTestConfig(Map.of(
                 Constants.FILE_SERVER_BASE_PATH, basePath,
                 Constants.WEBSERVER_PORT, 0, // Select a random port
                 Constants.WEBSERVER_THREAD_POOL_SIZE, 8,
-                Constants.KEEP_ALIVE_TIMEOUT, "5 seconds"
-
+                Constants.KEEP_ALIVE_TIMEOUT, "5 seconds",
+                // Only the smallest test files are cached, the others are sent from disk
+                Constants.CONTENT_CACHE_MAX_FILE_SIZE, 512,
+                // The listing of the root directory is larger, so it is streamed, while the listing of dir1 is not
+                Constants.LISTING_BUFFER_SIZE, 400,
+                // The test files have no extension, so they are served as application/octet-stream
+                Constants.COMPRESSION_MIME_TYPES, List.of("text/*", "application/octet-stream"),
+                Constants.COMPRESSION_MIN_SIZE, 100,
+                Constants.ACCESS_LOG_ENABLED, true,
+                Constants.ACCESS_LOG_FILE, accessLogFile.toString()
         ));
-        FileServer fileServer = new FileServerImpl(conf);
-        HttpResponseWriter httpResponseWriter = new HttpResponseWriter(conf);
+        fileServer = new CachingFileServer(new FileServerImpl(conf), conf);
+        var metrics = new ServerMetrics();
+        accessLog = new AccessLog(conf);
+        httpResponseWriter = new HttpResponseWriter(conf, metrics);
         ExceptionHandler exceptionHandler = new ExceptionHandler(httpResponseWriter);
-        ConnectionHandlerFactory fsc = new ConnectionHandlerFactory(fileServer, exceptionHandler, httpResponseWriter, conf);
+        ConnectionHandlerFactory fsc = new ConnectionHandlerFactory(fileServer, exceptionHandler, httpResponseWriter, metrics, accessLog, conf);
+        bufferPool = fsc.getBufferPool();
         webServer = new HttpFileServerMain(fsc, conf);
         webServer.start();
         return webServer;
@@ -87,6 +130,16 @@ public class WebServerTest {
     void shutdown() throws IOException, InterruptedException {
         logger.info("Shutting down web server");
         this.webServer.stop();
+        // Every connection gives its buffers back when it is closed, which may finish after the server stopped
+        var deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (bufferPool.outstanding() > 0 && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(0, bufferPool.reportLeaks(), "Buffers not released, see the log for where they were acquired");
+        this.fileServer.close();
+        this.accessLog.close();
+        Files.deleteIfExists(accessLogFile);
+        Files.deleteIfExists(accessLogFile.getParent());
     }
 
     @Test
@@ -145,7 +198,7 @@ public class WebServerTest {
         testFile(filePath, expectedContentType);
     }
 
-    private void testFile(String filePath, ContentType expectedContentType) throws IOException, InterruptedException, URISyntaxException {
+    protected void testFile(String filePath, ContentType expectedContentType) throws IOException, InterruptedException, URISyntaxException {
         var requestedFile = getTestPath("files/" + filePath);
         var request = HttpRequest.newBuilder()
                 .uri(fileServerPath(filePath))
@@ -170,6 +223,373 @@ public class WebServerTest {
         assertArrayEquals(expectedContent, httpResponse.body());
     }
 
+    @Test
+    void fileSentFromCache() throws URISyntaxException, IOException, InterruptedException {
+        testFile("cs_quotes", ContentType.APPLICATION_OCTET_STREAM);
+        var hitsBefore = fileServer.getContentCacheStats().hitCount();
+        var cachedBytesBefore = httpResponseWriter.getCachedBytesSent();
+        testFile("cs_quotes", ContentType.APPLICATION_OCTET_STREAM);
+        assertEquals(hitsBefore + 1, fileServer.getContentCacheStats().hitCount());
+        assertEquals(Files.size(getTestPath("files/cs_quotes")), httpResponseWriter.getCachedBytesSent() - cachedBytesBefore);
+    }
+
+    @Test
+    void fileSentWithZeroCopy() throws URISyntaxException, IOException, InterruptedException {
+        var zeroCopyBytesBefore = httpResponseWriter.getZeroCopyBytesSent();
+        testFile("image.png", ContentType.IMAGE_PNG);
+        var fileSize = Files.size(getTestPath("files/image.png"));
+        awaitCounter(httpResponseWriter::getZeroCopyBytesSent, zeroCopyBytesBefore + fileSize);
+    }
+
+    @Test
+    void singleRange() throws IOException, InterruptedException, URISyntaxException {
+        var content = Files.readAllBytes(getTestPath("files/carl_sagan_quotes"));
+        var httpResponse = sendWithRange("carl_sagan_quotes", "bytes=10-19");
+        assertEquals(206, httpResponse.statusCode());
+        assertEquals("bytes 10-19/%d".formatted(content.length), httpResponse.headers().firstValue(HttpHeaders.CONTENT_RANGE).orElseThrow());
+        assertArrayEquals(Arrays.copyOfRange(content, 10, 20), httpResponse.body());
+
+        // Suffix range, the last 5 bytes
+        httpResponse = sendWithRange("carl_sagan_quotes", "bytes=-5");
+        assertEquals(206, httpResponse.statusCode());
+        assertArrayEquals(Arrays.copyOfRange(content, content.length - 5, content.length), httpResponse.body());
+    }
+
+    @Test
+    void multipleRanges() throws IOException, InterruptedException, URISyntaxException {
+        var content = Files.readAllBytes(getTestPath("files/carl_sagan_quotes"));
+        var httpResponse = sendWithRange("carl_sagan_quotes", "bytes=0-4, 100-");
+        assertEquals(206, httpResponse.statusCode());
+        var contentType = httpResponse.headers().firstValue(HttpHeaders.CONTENT_TYPE).orElseThrow();
+        assertTrue(contentType.startsWith("multipart/byteranges; boundary="));
+        var boundary = contentType.substring(contentType.indexOf('=') + 1);
+        var body = new String(httpResponse.body(), StandardCharsets.ISO_8859_1);
+        var expectedBody = "--%s\r\nContent-Type: application/octet-stream\r\nContent-Range: bytes 0-4/%d\r\n\r\n%s\r\n".formatted(
+                boundary, content.length, new String(content, 0, 5, StandardCharsets.ISO_8859_1))
+                + "--%s\r\nContent-Type: application/octet-stream\r\nContent-Range: bytes 100-%d/%d\r\n\r\n%s\r\n".formatted(
+                boundary, content.length - 1, content.length, new String(content, 100, content.length - 100, StandardCharsets.ISO_8859_1))
+                + "--%s--\r\n".formatted(boundary);
+        assertEquals(expectedBody, body);
+    }
+
+    @Test
+    void rangeNotSatisfiable() throws IOException, InterruptedException, URISyntaxException {
+        var size = Files.size(getTestPath("files/carl_sagan_quotes"));
+        var httpResponse = sendWithRange("carl_sagan_quotes", "bytes=%d-".formatted(size));
+        assertEquals(416, httpResponse.statusCode());
+        assertEquals("bytes */%d".formatted(size), httpResponse.headers().firstValue(HttpHeaders.CONTENT_RANGE).orElseThrow());
+
+        // Invalid ranges are ignored
+        httpResponse = sendWithRange("carl_sagan_quotes", "bytes=abc");
+        assertEquals(200, httpResponse.statusCode());
+        assertEquals(size, httpResponse.body().length);
+    }
+
+    private HttpResponse<byte[]> sendWithRange(String filePath, String range) throws IOException, InterruptedException {
+        return sendWithHeaders(filePath, HttpHeaders.RANGE, range);
+    }
+
+    private HttpResponse<byte[]> sendWithHeaders(String filePath, String... headers) throws IOException, InterruptedException {
+        var builder = HttpRequest.newBuilder()
+                .uri(fileServerPath(filePath))
+                .GET();
+        if (headers.length > 0) {
+            builder.headers(headers);
+        }
+        return httpClient.send(builder.build(), HttpResponse.BodyHandlers.ofByteArray());
+    }
+
+    @Test
+    void conditionalGet() throws IOException, InterruptedException {
+        var httpResponse = sendWithHeaders("carl_sagan_quotes");
+        assertEquals(200, httpResponse.statusCode());
+        var etag = httpResponse.headers().firstValue(HttpHeaders.ETAG).orElseThrow();
+        var lastModified = httpResponse.headers().firstValue(HttpHeaders.LAST_MODIFIED).orElseThrow();
+
+        httpResponse = sendWithHeaders("carl_sagan_quotes", HttpHeaders.IF_NONE_MATCH, "\"other\", " + etag);
+        assertEquals(304, httpResponse.statusCode());
+        assertEquals(0, httpResponse.body().length);
+        assertEquals(etag, httpResponse.headers().firstValue(HttpHeaders.ETAG).orElseThrow());
+
+        httpResponse = sendWithHeaders("carl_sagan_quotes", HttpHeaders.IF_MODIFIED_SINCE, lastModified);
+        assertEquals(304, httpResponse.statusCode());
+
+        // If-None-Match takes precedence over If-Modified-Since
+        httpResponse = sendWithHeaders("carl_sagan_quotes", HttpHeaders.IF_NONE_MATCH, "\"other\"", HttpHeaders.IF_MODIFIED_SINCE, lastModified);
+        assertEquals(200, httpResponse.statusCode());
+
+        httpResponse = sendWithHeaders("carl_sagan_quotes", HttpHeaders.IF_MODIFIED_SINCE, "Thu, 01 Jan 1970 00:00:00 GMT");
+        assertEquals(200, httpResponse.statusCode());
+    }
+
+    @Test
+    void conditionalDirectoryListing() throws IOException, InterruptedException {
+        var httpResponse = sendWithHeaders("dir1/");
+        assertEquals(200, httpResponse.statusCode());
+        var etag = httpResponse.headers().firstValue(HttpHeaders.ETAG).orElseThrow();
+        assertTrue(httpResponse.headers().firstValue(HttpHeaders.LAST_MODIFIED).isEmpty());
+
+        httpResponse = sendWithHeaders("dir1/", HttpHeaders.IF_NONE_MATCH, etag);
+        assertEquals(304, httpResponse.statusCode());
+    }
+
+    @Test
+    void ifRange() throws IOException, InterruptedException {
+        var etag = sendWithHeaders("carl_sagan_quotes").headers().firstValue(HttpHeaders.ETAG).orElseThrow();
+        var httpResponse = sendWithHeaders("carl_sagan_quotes", HttpHeaders.RANGE, "bytes=0-9", HttpHeaders.IF_RANGE, etag);
+        assertEquals(206, httpResponse.statusCode());
+        assertEquals(10, httpResponse.body().length);
+
+        // Weak entity tags never match for If-Range, the whole file is sent
+        httpResponse = sendWithHeaders("carl_sagan_quotes", HttpHeaders.RANGE, "bytes=0-9", HttpHeaders.IF_RANGE, "W/" + etag);
+        assertEquals(200, httpResponse.statusCode());
+    }
+
+    @Test
+    void pipelinedRequests() throws IOException, URISyntaxException {
+        var files = new String[]{"cs_quotes", "image.png", "dir1/a", "carl_sagan_quotes", "cs_quotes"};
+        try (var socket = new Socket("localhost", webServer.getPort())) {
+            // Send all the requests at once, before reading any response
+            var requests = new StringBuilder();
+            for (var file : files) {
+                requests.append("GET /%s HTTP/1.1\r\nHost: localhost\r\n\r\n".formatted(file));
+            }
+            socket.getOutputStream().write(requests.toString().getBytes(StandardCharsets.US_ASCII));
+            socket.getOutputStream().flush();
+
+            // The responses must arrive in the order of the requests
+            var in = new BufferedInputStream(socket.getInputStream());
+            for (var file : files) {
+                var response = readRawResponse(in);
+                assertEquals(200, response.status());
+                assertArrayEquals(Files.readAllBytes(getTestPath("files/" + file)), response.body());
+            }
+        }
+    }
+
+    @Test
+    void maxRequestsPerConnection() throws IOException {
+        var maxRequests = ConfigFactory.load().getInt(Constants.KEEP_ALIVE_MAX_REQUESTS);
+        try (var socket = new Socket("localhost", webServer.getPort())) {
+            // One request more than allowed, which is ignored
+            var request = "GET /foo HTTP/1.1\r\nHost: localhost\r\n\r\n";
+            socket.getOutputStream().write(request.repeat(maxRequests + 1).getBytes(StandardCharsets.US_ASCII));
+            var in = new BufferedInputStream(socket.getInputStream());
+            for (int i = 1; i <= maxRequests; i++) {
+                var response = readRawResponse(in);
+                assertEquals(404, response.status());
+                if (i < maxRequests) {
+                    assertEquals("keep-alive", response.headers().get(HttpHeaders.CONNECTION));
+                    assertEquals("timeout=5, max=%d".formatted(maxRequests), response.headers().get(HttpHeaders.KEEP_ALIVE));
+                } else {
+                    assertEquals("close", response.headers().get(HttpHeaders.CONNECTION));
+                    assertNull(response.headers().get(HttpHeaders.KEEP_ALIVE));
+                }
+            }
+            assertEquals(-1, in.read());
+        }
+    }
+
+    @Test
+    void streamedListing() throws IOException, InterruptedException {
+        var expected = httpClient.send(HttpRequest.newBuilder().uri(fileServerAddress()).GET().build(),
+                HttpResponse.BodyHandlers.ofByteArray()).body();
+        try (var socket = new Socket("localhost", webServer.getPort())) {
+            var in = new BufferedInputStream(socket.getInputStream());
+            socket.getOutputStream().write("GET / HTTP/1.1\r\nHost: localhost\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+            var response = readRawResponse(in);
+            assertEquals(200, response.status());
+            assertEquals("chunked", response.headers().get(HttpHeaders.TRANSFER_ENCODING));
+            assertNull(response.headers().get(HttpHeaders.ETAG));
+            assertArrayEquals(expected, response.body());
+
+            // HTTP/1.0 clients do not support chunked transfer coding
+            socket.getOutputStream().write("GET / HTTP/1.0\r\nHost: localhost\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+            response = readRawResponse(in);
+            assertEquals(Integer.toString(expected.length), response.headers().get(HttpHeaders.CONTENT_LENGTH));
+            assertArrayEquals(expected, response.body());
+        }
+    }
+
+    @Test
+    void jsonListing() throws IOException, InterruptedException, URISyntaxException {
+        List<String> expected;
+        try (var files = Files.list(getTestPath("files"))) {
+            expected = files.map(p -> p.getFileName().toString()).sorted().toList();
+        }
+        // Walk the listing in pages of 4 entries
+        var names = new ArrayList<String>();
+        String cursor = null;
+        do {
+            var uri = fileServerAddress() + "/?limit=4" + (cursor == null ? "" : "&cursor=" + cursor);
+            var request = HttpRequest.newBuilder()
+                    .uri(URI.create(uri))
+                    .header(HttpHeaders.ACCEPT, "application/json")
+                    .GET()
+                    .build();
+            var httpResponse = httpClient.send(request, HttpResponse.BodyHandlers.ofString());
+            assertEquals(200, httpResponse.statusCode());
+            assertEquals(HttpHeaders.ACCEPT + ", " + HttpHeaders.ACCEPT_ENCODING, httpResponse.headers().firstValue(HttpHeaders.VARY).orElseThrow());
+            // JSON is valid HOCON
+            var page = ConfigFactory.parseString(httpResponse.body());
+            for (var entry : page.getConfigList("entries")) {
+                names.add(entry.getString("name"));
+                if (entry.getString("name").equals("dir1")) {
+                    assertEquals("directory", entry.getString("type"));
+                }
+            }
+            cursor = page.hasPath("cursor") ? page.getString("cursor") : null;
+        } while (cursor != null);
+        assertEquals(expected, names);
+    }
+
+    @Test
+    void compressedFile() throws IOException, InterruptedException, URISyntaxException {
+        var content = Files.readAllBytes(getTestPath("files/carl_sagan_quotes"));
+        var identityEtag = sendWithHeaders("carl_sagan_quotes").headers().firstValue(HttpHeaders.ETAG).orElseThrow();
+
+        var httpResponse = sendWithHeaders("carl_sagan_quotes", HttpHeaders.ACCEPT_ENCODING, "gzip, deflate");
+        assertEquals(200, httpResponse.statusCode());
+        assertEquals("gzip", httpResponse.headers().firstValue(HttpHeaders.CONTENT_ENCODING).orElseThrow());
+        assertEquals(HttpHeaders.ACCEPT_ENCODING, httpResponse.headers().firstValue(HttpHeaders.VARY).orElseThrow());
+        assertTrue(httpResponse.body().length < content.length);
+        assertArrayEquals(content, decode(httpResponse));
+        // Each encoding is a different representation, with its own entity tag
+        var etag = httpResponse.headers().firstValue(HttpHeaders.ETAG).orElseThrow();
+        assertNotEquals(identityEtag, etag);
+        httpResponse = sendWithHeaders("carl_sagan_quotes", HttpHeaders.ACCEPT_ENCODING, "gzip", HttpHeaders.IF_NONE_MATCH, etag);
+        assertEquals(304, httpResponse.statusCode());
+
+        httpResponse = sendWithHeaders("carl_sagan_quotes", HttpHeaders.ACCEPT_ENCODING, "gzip;q=0.5, deflate");
+        assertEquals("deflate", httpResponse.headers().firstValue(HttpHeaders.CONTENT_ENCODING).orElseThrow());
+        assertArrayEquals(content, decode(httpResponse));
+
+        httpResponse = sendWithHeaders("carl_sagan_quotes", HttpHeaders.ACCEPT_ENCODING, "gzip;q=0, deflate;q=0");
+        assertTrue(httpResponse.headers().firstValue(HttpHeaders.CONTENT_ENCODING).isEmpty());
+        assertArrayEquals(content, httpResponse.body());
+
+        // Ranges refer to the file without encoding
+        httpResponse = sendWithHeaders("carl_sagan_quotes", HttpHeaders.ACCEPT_ENCODING, "gzip", HttpHeaders.RANGE, "bytes=0-9");
+        assertEquals(206, httpResponse.statusCode());
+        assertTrue(httpResponse.headers().firstValue(HttpHeaders.CONTENT_ENCODING).isEmpty());
+        assertArrayEquals(Arrays.copyOfRange(content, 0, 10), httpResponse.body());
+
+        // Files with other content types are never compressed
+        httpResponse = sendWithHeaders("image.png", HttpHeaders.ACCEPT_ENCODING, "gzip");
+        assertTrue(httpResponse.headers().firstValue(HttpHeaders.CONTENT_ENCODING).isEmpty());
+        assertTrue(httpResponse.headers().firstValue(HttpHeaders.VARY).isEmpty());
+    }
+
+    @Test
+    void precompressedFile() throws IOException, InterruptedException, URISyntaxException {
+        var precompressedFile = getTestPath("files").resolve("carl_sagan_quotes.gz");
+        // Different from the file, to tell which one was sent
+        var precompressedContent = "Pre-compressed".getBytes(StandardCharsets.UTF_8);
+        try (var os = new GZIPOutputStream(Files.newOutputStream(precompressedFile))) {
+            os.write(precompressedContent);
+        }
+        try {
+            // The metadata of the file is cached until the file watcher notices it
+            var httpResponse = awaitResponse("carl_sagan_quotes", r -> Arrays.equals(precompressedContent, decode(r)),
+                    HttpHeaders.ACCEPT_ENCODING, "gzip");
+            assertEquals("gzip", httpResponse.headers().firstValue(HttpHeaders.CONTENT_ENCODING).orElseThrow());
+            assertEquals(ContentType.APPLICATION_OCTET_STREAM.toString(), httpResponse.headers().firstValue(HttpHeaders.CONTENT_TYPE).orElseThrow());
+
+            // Pre-compressed files are only looked up for gzip
+            httpResponse = sendWithHeaders("carl_sagan_quotes", HttpHeaders.ACCEPT_ENCODING, "deflate");
+            assertArrayEquals(Files.readAllBytes(getTestPath("files/carl_sagan_quotes")), decode(httpResponse));
+        } finally {
+            Files.delete(precompressedFile);
+        }
+        awaitResponse("carl_sagan_quotes", r -> !Arrays.equals(precompressedContent, decode(r)), HttpHeaders.ACCEPT_ENCODING, "gzip");
+    }
+
+    @Test
+    void compressedListing() throws IOException, InterruptedException {
+        // dir1 is sent from the buffer, the root directory is streamed
+        for (var path : List.of("dir1/", "")) {
+            var expected = sendWithHeaders(path).body();
+            var httpResponse = sendWithHeaders(path, HttpHeaders.ACCEPT_ENCODING, "gzip");
+            assertEquals(200, httpResponse.statusCode());
+            assertEquals("gzip", httpResponse.headers().firstValue(HttpHeaders.CONTENT_ENCODING).orElseThrow());
+            assertEquals(HttpHeaders.ACCEPT + ", " + HttpHeaders.ACCEPT_ENCODING, httpResponse.headers().firstValue(HttpHeaders.VARY).orElseThrow());
+            assertArrayEquals(expected, decode(httpResponse));
+        }
+    }
+
+    /**
+     * @return The body of the response, decoded according to its Content-Encoding header
+     */
+    private static byte[] decode(HttpResponse<byte[]> httpResponse) throws IOException {
+        var encoding = httpResponse.headers().firstValue(HttpHeaders.CONTENT_ENCODING).orElse(null);
+        if (encoding == null) {
+            return httpResponse.body();
+        }
+        var in = new ByteArrayInputStream(httpResponse.body());
+        try (var decoded = encoding.equals("gzip") ? new GZIPInputStream(in) : new InflaterInputStream(in)) {
+            return decoded.readAllBytes();
+        }
+    }
+
+    interface ResponseCondition {
+        boolean test(HttpResponse<byte[]> httpResponse) throws IOException;
+    }
+
+    /**
+     * Repeats a request until the response satisfies a condition, for changes that take effect asynchronously. Until
+     * then, the responses may be sent from files that no longer exist, so errors are retried as well.
+     */
+    private HttpResponse<byte[]> awaitResponse(String filePath, ResponseCondition condition, String... headers) throws InterruptedException {
+        var deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (true) {
+            try {
+                var httpResponse = sendWithHeaders(filePath, headers);
+                if (condition.test(httpResponse)) {
+                    return httpResponse;
+                }
+            } catch (IOException e) {
+                logger.debug("Error waiting for the response of {}: {}", filePath, e.toString());
+            }
+            assertTrue(System.nanoTime() < deadline, "Timeout waiting for the response of " + filePath);
+            Thread.sleep(50);
+        }
+    }
+
+    @Test
+    void metrics() throws IOException, InterruptedException {
+        assertEquals(200, sendWithHeaders("cs_quotes").statusCode());
+        assertEquals(404, sendWithHeaders("foo").statusCode());
+        var httpResponse = httpClient.send(HttpRequest.newBuilder().uri(fileServerPath("_metrics")).GET().build(),
+                HttpResponse.BodyHandlers.ofString());
+        assertEquals(200, httpResponse.statusCode());
+        assertTrue(httpResponse.headers().firstValue(HttpHeaders.CONTENT_TYPE).orElseThrow().startsWith("text/plain"));
+        var lines = httpResponse.body().lines().toList();
+        assertTrue(lines.contains("# TYPE httpfileserver_requests_total counter"));
+        assertTrue(lines.stream().anyMatch(l -> l.startsWith("httpfileserver_requests_total{method=\"GET\",status=\"200\",path_class=\"file\"} ")));
+        assertTrue(lines.stream().anyMatch(l -> l.startsWith("httpfileserver_requests_total{method=\"GET\",status=\"404\",path_class=\"not_found\"} ")));
+        assertTrue(lines.stream().anyMatch(l -> l.startsWith("httpfileserver_response_time_seconds_bucket{le=\"+Inf\"} ")));
+        assertTrue(lines.stream().anyMatch(l -> l.startsWith("httpfileserver_time_to_first_byte_seconds_count ")));
+        assertTrue(lines.stream().anyMatch(l -> l.startsWith("httpfileserver_cache_hits_total{cache=\"content\"} ")));
+        // The request for the metrics is being processed
+        assertTrue(lines.contains("httpfileserver_connections{state=\"active\"} 1"));
+    }
+
+    @Test
+    void accessLog() throws IOException, InterruptedException {
+        assertEquals(200, sendWithHeaders("cs_quotes?access-log").statusCode());
+        assertEquals(404, sendWithHeaders("foo?access-log").statusCode());
+        // Written in the background
+        var deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        List<String> lines;
+        do {
+            Thread.sleep(20);
+            lines = Files.readAllLines(accessLogFile, StandardCharsets.US_ASCII);
+        } while (lines.stream().noneMatch(l -> l.contains("/foo?access-log")) && System.nanoTime() < deadline);
+        var linePattern = "[0-9a-f.:]+ - - \\[\\d{2}/\\w{3}/\\d{4}:\\d{2}:\\d{2}:\\d{2} [+-]\\d{4}] \"GET %s HTTP/1\\.1\" %d \\d+ \\d+";
+        assertTrue(lines.stream().anyMatch(l -> l.matches(linePattern.formatted("/cs_quotes\\?access-log", 200))), lines::toString);
+        assertTrue(lines.stream().anyMatch(l -> l.matches(linePattern.formatted("/foo\\?access-log", 404))), lines::toString);
+    }
+
     @Test
     void consecutiveRequests() throws URISyntaxException, IOException, InterruptedException {
         var a = provideArgsForGetFile().toArray(Arguments[]::new);
@@ -206,18 +626,75 @@ public class WebServerTest {
         }
     }
 
+    record RawResponse(int status, Map<String, String> headers, byte[] body) {
+    }
+
+    /**
+     * Reads an HTTP response from a raw socket stream, for tests that cannot use the HTTP client.
+     */
+    static RawResponse readRawResponse(InputStream in) throws IOException {
+        var statusLine = readLine(in);
+        assertNotNull(statusLine, "Connection closed before the response");
+        var status = Integer.parseInt(statusLine.split(" ")[1]);
+        var headers = new TreeMap<String, String>(String.CASE_INSENSITIVE_ORDER);
+        String line;
+        while (!(line = readLine(in)).isEmpty()) {
+            var colon = line.indexOf(':');
+            headers.put(line.substring(0, colon), line.substring(colon + 1).trim());
+        }
+        if ("chunked".equals(headers.get(HttpHeaders.TRANSFER_ENCODING))) {
+            var body = new ByteArrayOutputStream();
+            int chunkSize;
+            while ((chunkSize = Integer.parseInt(readLine(in), 16)) > 0) {
+                body.write(in.readNBytes(chunkSize));
+                assertEquals("", readLine(in));
+            }
+            // Empty line after the last chunk, there are no trailers
+            assertEquals("", readLine(in));
+            return new RawResponse(status, headers, body.toByteArray());
+        }
+        var contentLength = Integer.parseInt(headers.getOrDefault(HttpHeaders.CONTENT_LENGTH, "0"));
+        return new RawResponse(status, headers, in.readNBytes(contentLength));
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        var line = new StringBuilder();
+        int c;
+        while ((c = in.read()) != '\n') {
+            if (c < 0) {
+                return line.length() == 0 ? null : line.toString();
+            }
+            if (c != '\r') {
+                line.append((char) c);
+            }
+        }
+        return line.toString();
+    }
+
     private URI fileServerAddress() {
         return URI.create("http://localhost:%d".formatted(webServer.getPort()));
     }
 
-    private URI fileServerPath(String segment) {
+    /**
+     * Waits for a counter to reach a value. Counters of the bytes sent are updated after the bytes are on the wire, so
+     * the client may have read the whole response before.
+     */
+    protected static void awaitCounter(LongSupplier counter, long expected) throws InterruptedException {
+        var deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (counter.getAsLong() < expected && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        assertTrue(counter.getAsLong() >= expected, () -> "Expected at least %d, was %d".formatted(expected, counter.getAsLong()));
+    }
+
+    protected URI fileServerPath(String segment) {
         return URI.create("http://localhost:%d/%s".formatted(webServer.getPort(), segment));
     }
 
     /**
      *
      */
-    private static Path getTestPath(String path) throws URISyntaxException {
+    protected static Path getTestPath(String path) throws URISyntaxException {
         var url = WebServerTest.class.getClassLoader().getResource(path);
         if (url == null) {
             throw new IllegalArgumentException("Resource not found in classpath: " + path);
@@ -0,0 +1,147 @@
+package com.nsantos.httpfileserver.accesslog;
+
+import com.nsantos.httpfileserver.Constants;
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class AccessLogTest {
+    private static final InetSocketAddress CLIENT = new InetSocketAddress("127.0.0.1", 50000);
+
+    private static Config createConfig(Path file, Map<String, Object> overrides) {
+        var properties = new HashMap<>(overrides);
+        properties.put(Constants.ACCESS_LOG_ENABLED, true);
+        properties.put(Constants.ACCESS_LOG_FILE, file.toString());
+        return ConfigFactory.parseMap(properties).withFallback(ConfigFactory.load());
+    }
+
+    @Test
+    void bufferFull() {
+        var buffer = new AccessLogBuffer(3);
+        assertEquals(4, buffer.capacity());
+        for (int i = 0; i < 4; i++) {
+            assertTrue(buffer.offer(i, CLIENT, "GET", "/" + i, "HTTP/1.1", 200, i, i, -1, -1));
+        }
+        assertFalse(buffer.offer(4, CLIENT, "GET", "/4", "HTTP/1.1", 200, 4, 4, -1, -1));
+        var targets = new ArrayList<String>();
+        assertEquals(2, buffer.drain((timestamp, address, method, target, version, status, bytes, duration, storageWait, networkWait) -> targets.add(target), 2));
+        assertTrue(buffer.offer(5, CLIENT, "GET", "/5", "HTTP/1.1", 200, 5, 5, -1, -1));
+        assertEquals(3, buffer.drain((timestamp, address, method, target, version, status, bytes, duration, storageWait, networkWait) -> targets.add(target), 10));
+        assertEquals(List.of("/0", "/1", "/2", "/3", "/5"), targets);
+        assertEquals(0, buffer.drain((timestamp, address, method, target, version, status, bytes, duration, storageWait, networkWait) -> fail(), 10));
+    }
+
+    @Test
+    void concurrentWriters() throws InterruptedException {
+        var buffer = new AccessLogBuffer(64);
+        var writers = 4;
+        var recordsPerWriter = 20000;
+        var threads = new ArrayList<Thread>();
+        for (int w = 0; w < writers; w++) {
+            var writer = w;
+            var thread = new Thread(() -> {
+                for (int i = 0; i < recordsPerWriter; i++) {
+                    while (!buffer.offer(i, CLIENT, "GET", "/", "HTTP/1.1", writer, i, i, -1, -1)) {
+                        Thread.onSpinWait();
+                    }
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+        // The records of each writer are read in the order they were written
+        var next = new long[writers];
+        var read = 0;
+        var deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+        while (read < writers * recordsPerWriter && System.nanoTime() < deadline) {
+            read += buffer.drain((timestamp, address, method, target, version, status, bytes, duration, storageWait, networkWait) -> {
+                assertEquals(next[status], bytes);
+                assertEquals(bytes, timestamp);
+                assertEquals(bytes, duration);
+                next[status]++;
+            }, 100);
+        }
+        for (var thread : threads) {
+            thread.join();
+        }
+        assertEquals(writers * recordsPerWriter, read);
+    }
+
+    @Test
+    void format(@TempDir Path tempDir) throws IOException {
+        var file = tempDir.resolve("logs/access.log");
+        var accessLog = new AccessLog(createConfig(file, Map.of()));
+        accessLog.log(CLIENT, "GET", "/dir/file.txt?a=b", "HTTP/1.1", 200, 1234, TimeUnit.MICROSECONDS.toNanos(567), -1, -1);
+        // A target cannot add lines nor end the quoted request
+        accessLog.log(CLIENT, "GET", "/\"\n\\é", "HTTP/1.1", 404, 10, 0, -1, -1);
+        // A request that could not be parsed
+        accessLog.log(null, null, null, null, 400, 20, 0, -1, -1);
+        // A body read with asynchronous file reads
+        accessLog.log(CLIENT, "GET", "/slow.bin", "HTTP/1.1", 200, 100, TimeUnit.MICROSECONDS.toNanos(900),
+                TimeUnit.MICROSECONDS.toNanos(600), TimeUnit.MICROSECONDS.toNanos(250));
+        accessLog.close();
+        var lines = Files.readAllLines(file, StandardCharsets.US_ASCII);
+        assertEquals(4, lines.size(), lines::toString);
+        var timestamp = "\\[\\d{2}/\\w{3}/\\d{4}:\\d{2}:\\d{2}:\\d{2} [+-]\\d{4}]";
+        assertTrue(lines.get(0).matches("127\\.0\\.0\\.1 - - " + timestamp + " \"GET /dir/file.txt\\?a=b HTTP/1\\.1\" 200 1234 567"), lines.get(0));
+        assertTrue(lines.get(1).endsWith(" \"GET /\\x22\\x0a\\x5c\\xe9 HTTP/1.1\" 404 10 0"), lines.get(1));
+        assertTrue(lines.get(2).matches("- - - " + timestamp + " \"-\" 400 20 0"), lines.get(2));
+        assertTrue(lines.get(3).endsWith(" \"GET /slow.bin HTTP/1.1\" 200 100 900 600 250"), lines.get(3));
+    }
+
+    @Test
+    void rotation(@TempDir Path tempDir) throws IOException {
+        var file = tempDir.resolve("access.log");
+        var config = createConfig(file, Map.of(
+                Constants.ACCESS_LOG_MAX_FILE_SIZE, 200,
+                Constants.ACCESS_LOG_MAX_FILES, 2
+        ));
+        // The file is rotated between batches. Closing the log writes a batch, and it is appended to when reopened.
+        for (int batch = 0; batch < 10; batch++) {
+            var accessLog = new AccessLog(config);
+            for (int i = 0; i < 10; i++) {
+                accessLog.log(CLIENT, "GET", "/" + (batch * 10 + i), "HTTP/1.1", 200, i, 0, -1, -1);
+            }
+            accessLog.close();
+        }
+        assertTrue(Files.exists(tempDir.resolve("access.log.1")));
+        assertTrue(Files.exists(tempDir.resolve("access.log.2")));
+        assertFalse(Files.exists(tempDir.resolve("access.log.3")));
+        var lines = Files.readAllLines(file, StandardCharsets.US_ASCII);
+        assertEquals(10, lines.size());
+        assertTrue(lines.get(9).contains("\"GET /99 HTTP/1.1\""));
+    }
+
+    @Test
+    void disabled(@TempDir Path tempDir) throws IOException {
+        var file = tempDir.resolve("access.log");
+        var config = ConfigFactory.parseMap(Map.of(Constants.ACCESS_LOG_FILE, file.toString())).withFallback(ConfigFactory.load());
+        var accessLog = new AccessLog(config);
+        assertFalse(accessLog.isEnabled());
+        accessLog.log(CLIENT, "GET", "/", "HTTP/1.1", 200, 0, 0, -1, -1);
+        accessLog.close();
+        assertFalse(Files.exists(file));
+    }
+
+    @Test
+    void invalidConfig(@TempDir Path tempDir) {
+        var file = tempDir.resolve("access.log");
+        assertThrows(IllegalArgumentException.class, () -> new AccessLog(createConfig(file, Map.of(Constants.ACCESS_LOG_OVERFLOW_POLICY, "wait"))));
+        assertThrows(IllegalArgumentException.class, () -> new AccessLog(createConfig(file, Map.of(Constants.ACCESS_LOG_BUFFER_SIZE, 0))));
+        assertThrows(IllegalArgumentException.class, () -> new AccessLog(createConfig(file, Map.of(Constants.ACCESS_LOG_MAX_FILES, -1))));
+    }
+}
@@ -0,0 +1,116 @@
+package com.nsantos.httpfileserver.fileserver;
+
+import com.nsantos.httpfileserver.Constants;
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.time.Instant;
+import java.util.Map;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class CachingFileServerTest {
+    @TempDir
+    Path basePath;
+
+    private Config createConfig(boolean watch, int metadataCacheMaxEntries) {
+        return ConfigFactory.parseMap(Map.of(
+                Constants.FILE_SERVER_BASE_PATH, basePath.toString(),
+                Constants.CONTENT_CACHE_MAX_FILE_SIZE, 16,
+                Constants.METADATA_CACHE_MAX_ENTRIES, metadataCacheMaxEntries,
+                Constants.WATCH_FILES, watch
+        )).withFallback(ConfigFactory.load());
+    }
+
+    private static String getContent(FileServer fileServer, String path) throws IOException {
+        var stat = fileServer.stat(path).orElseThrow();
+        return fileServer.getContent(path, stat).map(c -> new String(c, StandardCharsets.UTF_8)).orElse(null);
+    }
+
+    private static void awaitCondition(BooleanSupplier condition) throws InterruptedException {
+        // Events are delivered asynchronously, and the polling implementation of WatchService may take seconds
+        var deadline = System.nanoTime() + 30_000_000_000L;
+        while (!condition.getAsBoolean() && System.nanoTime() < deadline) {
+            Thread.sleep(50);
+        }
+    }
+
+    @Test
+    void modifiedFilesAreReloaded() throws IOException {
+        // Without metadata cache, so that the change is seen immediately
+        var conf = createConfig(false, 0);
+        try (var fileServer = new CachingFileServer(new FileServerImpl(conf), conf)) {
+            var file = Files.writeString(basePath.resolve("a"), "first");
+            assertEquals("first", getContent(fileServer, "a"));
+            assertEquals("first", getContent(fileServer, "a"));
+            assertEquals(1, fileServer.getContentCacheStats().hitCount());
+
+            // Same size, different modification time
+            Files.writeString(file, "other");
+            Files.setLastModifiedTime(file, FileTime.from(Instant.now().plusSeconds(10)));
+            assertEquals("other", getContent(fileServer, "a"));
+            assertEquals(1, fileServer.getStaleCount());
+        }
+    }
+
+    @Test
+    void largeFilesAreNotCached() throws IOException {
+        var conf = createConfig(false, 0);
+        try (var fileServer = new CachingFileServer(new FileServerImpl(conf), conf)) {
+            Files.writeString(basePath.resolve("large"), "a".repeat(17));
+            assertNull(getContent(fileServer, "large"));
+            assertEquals(0, fileServer.getCachedBytes());
+        }
+    }
+
+    @Test
+    void deletedFilesAreEvicted() throws IOException, InterruptedException {
+        var conf = createConfig(true, 100);
+        // Created before the watcher starts, so that their events do not evict the cached contents
+        Files.createDirectory(basePath.resolve("dir"));
+        var file = Files.writeString(basePath.resolve("dir/a"), "content");
+        try (var fileServer = new CachingFileServer(new FileServerImpl(conf), conf)) {
+            assertEquals("content", getContent(fileServer, "dir/a"));
+            assertEquals(7, fileServer.getCachedBytes());
+
+            Files.delete(file);
+            awaitCondition(() -> fileServer.getCachedBytes() == 0);
+            assertEquals(0, fileServer.getCachedBytes());
+            assertTrue(fileServer.stat("dir/a").isEmpty());
+        }
+    }
+
+    @Test
+    void metadataIsCached() throws IOException, InterruptedException {
+        var conf = createConfig(true, 100);
+        try (var fileServer = new CachingFileServer(new FileServerImpl(conf), conf)) {
+            assertTrue(fileServer.stat("a").isEmpty());
+            // Files not found are cached too
+            assertTrue(fileServer.stat("a").isEmpty());
+            assertEquals(1, fileServer.getMetadataCacheStats().hitCount());
+
+            Files.writeString(basePath.resolve("a"), "content");
+            awaitCondition(() -> isFile(fileServer, "a"));
+            var stat = fileServer.stat("a").orElseThrow();
+            assertTrue(stat.isFile());
+            assertEquals(7, stat.size());
+        }
+    }
+
+    private static boolean isFile(FileServer fileServer, String path) {
+        try {
+            return fileServer.stat(path).map(FileStat::isFile).orElse(false);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package com.nsantos.httpfileserver.fileserver;
+
+import com.nsantos.httpfileserver.Constants;
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class MimeTypesTest {
+
+    private static Config createConfig(String overrides) {
+        return ConfigFactory.parseString(overrides).withFallback(ConfigFactory.load());
+    }
+
+    @Test
+    void bundledTypes() {
+        var mimeTypes = new MimeTypes(ConfigFactory.load());
+        assertEquals("application/json", mimeTypes.getContentType("data.json"));
+        assertEquals("application/wasm", mimeTypes.getContentType("dir/app.wasm"));
+        assertEquals("text/javascript", mimeTypes.getContentType("module.mjs"));
+        assertEquals("image/png", mimeTypes.getContentType("dir.d/IMAGE.PNG"));
+        assertEquals("application/zstd", mimeTypes.getContentType("backup.tar.zst"));
+        assertEquals("application/x-tar", mimeTypes.getContentType("backup.tar"));
+        // Same instance for all the files of a type
+        assertSame(mimeTypes.getContentType("a.html"), mimeTypes.getContentType("b.htm"));
+    }
+
+    @Test
+    void unknownTypes() {
+        var mimeTypes = new MimeTypes(ConfigFactory.load());
+        assertEquals(MimeTypes.DEFAULT_CONTENT_TYPE, mimeTypes.getContentType("carl_sagan_quotes"));
+        assertEquals(MimeTypes.DEFAULT_CONTENT_TYPE, mimeTypes.getContentType("file.unknown"));
+        assertEquals(MimeTypes.DEFAULT_CONTENT_TYPE, mimeTypes.getContentType("file."));
+        // Hidden files, the dot does not start an extension
+        assertEquals(MimeTypes.DEFAULT_CONTENT_TYPE, mimeTypes.getContentType("dir/.json"));
+        // Extensions of directories do not apply to the files in them
+        assertEquals(MimeTypes.DEFAULT_CONTENT_TYPE, mimeTypes.getContentType("dir.json/file"));
+    }
+
+    @Test
+    void overrides(@TempDir Path tempDir) throws IOException {
+        var file = tempDir.resolve("mime.types");
+        Files.writeString(file, """
+                # Additional types
+                application/x-custom    custom cst
+                text/x-json-lines       json
+                """);
+        var config = createConfig("""
+                %s = "%s"
+                %s { cst = "application/x-other", "tar.zst" = "application/x-zstd-tar" }
+                """.formatted(Constants.MIME_TYPES_FILE, file.toString().replace("\\", "\\\\"), Constants.MIME_TYPES_OVERRIDES));
+        var mimeTypes = new MimeTypes(config);
+        assertEquals("application/x-custom", mimeTypes.getContentType("a.custom"));
+        assertEquals("text/x-json-lines", mimeTypes.getContentType("a.json"));
+        assertEquals("application/x-other", mimeTypes.getContentType("a.cst"));
+        assertEquals("application/x-zstd-tar", mimeTypes.getContentType("a.tar.zst"));
+        assertEquals("application/zstd", mimeTypes.getContentType("a.zst"));
+    }
+
+    @Test
+    void invalidOverrides() {
+        // Not quoted, so it is read as a nested object
+        var config = ConfigFactory.parseMap(Map.of(Constants.MIME_TYPES_OVERRIDES + ".tar.zst", "application/zstd"))
+                .withFallback(ConfigFactory.load());
+        assertThrows(IllegalArgumentException.class, () -> new MimeTypes(config));
+        assertThrows(IllegalArgumentException.class, () -> new MimeTypes(createConfig(Constants.MIME_TYPES_OVERRIDES + ".json = json")));
+        assertThrows(IllegalArgumentException.class, () -> new MimeTypes(createConfig(Constants.MIME_TYPES_FILE + " = /does/not/exist")));
+    }
+}
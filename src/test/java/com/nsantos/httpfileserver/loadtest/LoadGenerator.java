@@ -0,0 +1,323 @@
+package com.nsantos.httpfileserver.loadtest;
+
+import com.nsantos.httpfileserver.metrics.Histogram;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ConnectException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Generates HTTP/1.1 load against a server, over raw sockets so that keep-alive and pipelining are under control.
+ * <p>
+ * Each connection is served by its own thread, which sends requests while there is space in its pipeline and then
+ * reads the response to the oldest one. In closed loop, a request is sent as soon as there is space. In open loop,
+ * the requests of each connection are scheduled at fixed intervals, and the latency is measured from the scheduled
+ * time, so that the requests delayed while the server stalls are not omitted from the results. Requests scheduled
+ * during the warmup are sent but not measured. When the server closes a connection with "Connection: close", the
+ * requests pipelined after the last response are sent again on a new connection.
+ */
+public class LoadGenerator {
+    private static final Logger logger = LoggerFactory.getLogger(LoadGenerator.class);
+    private static final long MAX_LATENCY_NANOS = TimeUnit.MINUTES.toNanos(1);
+    // Time for all the connection threads to start before the first request
+    private static final long START_DELAY_NANOS = TimeUnit.MILLISECONDS.toNanos(50);
+    private static final long RECONNECT_DELAY_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+
+    public enum ErrorKind {
+        CONNECT, TIMEOUT, IO, STATUS
+    }
+
+    /**
+     * A request waiting for its response.
+     */
+    private record Pending(byte[] request, long intendedNanos, long sentNanos) {
+    }
+
+    /**
+     * @param size  The size of the response, or -1 if its status is not 2xx
+     * @param close If the server closes the connection after the response
+     */
+    private record Response(long size, boolean close) {
+    }
+
+    private final InetSocketAddress address;
+    private final LoadOptions options;
+    // Requests to choose from, the cumulative weights give their relative frequency
+    private final byte[][] requests;
+    private final int[] cumulativeWeights;
+    private final Histogram latency = new Histogram(MAX_LATENCY_NANOS);
+    private final Histogram uncorrectedLatency = new Histogram(MAX_LATENCY_NANOS);
+    private final LongAdder completed = new LongAdder();
+    private final LongAdder bytesReceived = new LongAdder();
+    private final LongAccumulator lastReceivedNanos = new LongAccumulator(Math::max, Long.MIN_VALUE);
+    private final LongAdder[] errors = new LongAdder[ErrorKind.values().length];
+    private long measureStartNanos;
+    private long endNanos;
+
+    /**
+     * @param address The address of the server
+     * @param targets The paths to request, with the same weights as the file sizes of the options
+     * @param options The load to generate
+     */
+    public LoadGenerator(InetSocketAddress address, List<String> targets, LoadOptions options) {
+        var fileSizes = options.fileSizes();
+        if (targets.size() != fileSizes.size()) {
+            throw new IllegalArgumentException("Expected %d targets, got %d".formatted(fileSizes.size(), targets.size()));
+        }
+        this.address = address;
+        this.options = options;
+        this.requests = new byte[targets.size()][];
+        this.cumulativeWeights = new int[targets.size()];
+        var host = address.getHostString() + ":" + address.getPort();
+        var total = 0;
+        for (int i = 0; i < targets.size(); i++) {
+            requests[i] = "GET %s HTTP/1.1\r\nHost: %s\r\nUser-Agent: LoadGenerator\r\n\r\n".formatted(targets.get(i), host)
+                    .getBytes(StandardCharsets.US_ASCII);
+            total += fileSizes.get(i).weight();
+            cumulativeWeights[i] = total;
+        }
+        for (int i = 0; i < errors.length; i++) {
+            errors[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * Generates the load, blocking until the warmup and the measured period end and the pending responses are read.
+     *
+     * @param name Identifies the scenario in the report
+     */
+    public LoadReport run(String name) throws InterruptedException {
+        var startNanos = System.nanoTime() + START_DELAY_NANOS;
+        measureStartNanos = startNanos + options.warmup().toNanos();
+        endNanos = measureStartNanos + options.duration().toNanos();
+        logger.info("Starting load test {}: {}", name, options);
+        var threads = new ArrayList<Thread>();
+        for (int i = 0; i < options.connections(); i++) {
+            var index = i;
+            var thread = new Thread(() -> runConnection(index, startNanos), "load-generator-" + i);
+            thread.setDaemon(true);
+            thread.start();
+            threads.add(thread);
+        }
+        for (var thread : threads) {
+            thread.join();
+        }
+        var errorsByKind = new LinkedHashMap<String, Long>();
+        for (var kind : ErrorKind.values()) {
+            errorsByKind.put(kind.name().toLowerCase(Locale.ROOT), errors[kind.ordinal()].sum());
+        }
+        // Requests scheduled at the end of the measured period may complete later, if the server falls behind
+        var measuredNanos = Math.max(endNanos, lastReceivedNanos.get()) - measureStartNanos;
+        var report = new LoadReport(name, options, measuredNanos, completed.sum(), bytesReceived.sum(), errorsByKind,
+                latency.snapshot(), uncorrectedLatency.snapshot());
+        logger.info("Finished load test {}: {}", name, report.metrics());
+        return report;
+    }
+
+    private void runConnection(int index, long startNanos) {
+        var depth = options.pipelineDepth();
+        var openLoop = options.isOpenLoop();
+        // In open loop, each connection sends its share of the rate, staggered with the other connections
+        var intervalNanos = openLoop ? (long) (options.connections() * 1e9 / options.requestRate()) : 0;
+        var nextIntended = startNanos + (openLoop ? intervalNanos * index / options.connections() : 0);
+        var pending = new ArrayDeque<Pending>(depth);
+        var batch = new ByteArrayOutputStream();
+        var timeoutMillis = (int) Math.min(options.timeout().toMillis(), Integer.MAX_VALUE);
+        LockSupport.parkNanos(startNanos - System.nanoTime());
+        Socket socket = null;
+        InputStream is = null;
+        try {
+            while (true) {
+                var now = System.nanoTime();
+                try {
+                    batch.reset();
+                    if (socket == null) {
+                        if (pending.isEmpty() && (openLoop ? nextIntended >= endNanos : now >= endNanos)) {
+                            return;
+                        }
+                        if (openLoop && nextIntended > now) {
+                            // Connect when the request is due, the time to connect is part of its latency
+                            LockSupport.parkNanos(nextIntended - now);
+                            continue;
+                        }
+                        socket = new Socket();
+                        socket.setTcpNoDelay(true);
+                        socket.setSoTimeout(timeoutMillis);
+                        socket.connect(address, timeoutMillis);
+                        is = new BufferedInputStream(socket.getInputStream());
+                        // Requests left unanswered when the server closed the previous connection
+                        for (int i = pending.size(); i > 0; i--) {
+                            var request = pending.poll();
+                            batch.write(request.request());
+                            pending.add(new Pending(request.request(), request.intendedNanos(), now));
+                        }
+                    }
+                    // Pipelined requests are sent together, as a client would
+                    while (pending.size() < depth) {
+                        long intended;
+                        if (openLoop) {
+                            if (nextIntended > now || nextIntended >= endNanos) {
+                                break;
+                            }
+                            intended = nextIntended;
+                            nextIntended += intervalNanos;
+                        } else {
+                            if (now >= endNanos) {
+                                break;
+                            }
+                            intended = now;
+                        }
+                        var request = randomRequest();
+                        batch.write(request);
+                        pending.add(new Pending(request, intended, now));
+                    }
+                    if (batch.size() > 0) {
+                        socket.getOutputStream().write(batch.toByteArray());
+                    }
+                    if (!pending.isEmpty()) {
+                        var request = pending.poll();
+                        var response = readResponse(is);
+                        record(request, response.size(), System.nanoTime());
+                        if (!options.keepAlive() || response.close()) {
+                            socket = close(socket);
+                        }
+                    } else if (openLoop && nextIntended < endNanos) {
+                        LockSupport.parkNanos(nextIntended - System.nanoTime());
+                    } else {
+                        return;
+                    }
+                } catch (ConnectException e) {
+                    logger.debug("Error connecting: {}", e.toString());
+                    errors[ErrorKind.CONNECT.ordinal()].increment();
+                    socket = close(socket);
+                    LockSupport.parkNanos(RECONNECT_DELAY_NANOS);
+                } catch (SocketTimeoutException e) {
+                    logger.debug("Timeout waiting for response: {}", e.toString());
+                    errors[ErrorKind.TIMEOUT.ordinal()].add(Math.max(1, pending.size()));
+                    pending.clear();
+                    socket = close(socket);
+                } catch (IOException e) {
+                    logger.debug("Error in connection: {}", e.toString());
+                    errors[ErrorKind.IO.ordinal()].add(Math.max(1, pending.size()));
+                    pending.clear();
+                    socket = close(socket);
+                }
+            }
+        } finally {
+            close(socket);
+        }
+    }
+
+    private byte[] randomRequest() {
+        var value = ThreadLocalRandom.current().nextInt(cumulativeWeights[cumulativeWeights.length - 1]);
+        var i = 0;
+        while (cumulativeWeights[i] <= value) {
+            i++;
+        }
+        return requests[i];
+    }
+
+    private void record(Pending request, long bytes, long receivedNanos) {
+        if (bytes < 0) {
+            // Not a successful response
+            errors[ErrorKind.STATUS.ordinal()].increment();
+            return;
+        }
+        if (request.intendedNanos() < measureStartNanos) {
+            return;
+        }
+        completed.increment();
+        bytesReceived.add(bytes);
+        lastReceivedNanos.accumulate(receivedNanos);
+        latency.record(receivedNanos - request.intendedNanos());
+        uncorrectedLatency.record(receivedNanos - request.sentNanos());
+    }
+
+    private static Socket close(Socket socket) {
+        if (socket != null) {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                logger.debug("Suppressing error closing socket: {}", e.toString());
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Reads a response with a Content-Length or with chunked transfer coding.
+     */
+    private static Response readResponse(InputStream is) throws IOException {
+        var statusLine = readLine(is);
+        var size = statusLine.length() + 2L;
+        var parts = statusLine.split(" ", 3);
+        if (parts.length < 2 || !parts[0].startsWith("HTTP/1.")) {
+            throw new IOException("Invalid status line: " + statusLine);
+        }
+        var status = Integer.parseInt(parts[1]);
+        var contentLength = 0L;
+        var chunked = false;
+        var close = false;
+        String line;
+        while (!(line = readLine(is)).isEmpty()) {
+            size += line.length() + 2;
+            var colon = line.indexOf(':');
+            var name = colon < 0 ? line : line.substring(0, colon);
+            var value = colon < 0 ? "" : line.substring(colon + 1).trim();
+            if (name.equalsIgnoreCase("Content-Length")) {
+                contentLength = Long.parseLong(value);
+            } else if (name.equalsIgnoreCase("Transfer-Encoding")) {
+                chunked = value.equalsIgnoreCase("chunked");
+            } else if (name.equalsIgnoreCase("Connection")) {
+                close = value.equalsIgnoreCase("close");
+            }
+        }
+        size += 2;
+        if (chunked) {
+            long chunkSize;
+            do {
+                var chunkLine = readLine(is);
+                var extension = chunkLine.indexOf(';');
+                chunkSize = Long.parseLong((extension < 0 ? chunkLine : chunkLine.substring(0, extension)).trim(), 16);
+                is.skipNBytes(chunkSize + 2);
+                size += chunkLine.length() + chunkSize + 4;
+            } while (chunkSize > 0);
+        } else {
+            is.skipNBytes(contentLength);
+            size += contentLength;
+        }
+        return new Response(status >= 200 && status < 300 ? size : -1, close);
+    }
+
+    private static String readLine(InputStream is) throws IOException {
+        var line = new StringBuilder();
+        int c;
+        while ((c = is.read()) != '\n') {
+            if (c < 0) {
+                throw new IOException("Connection closed by the server");
+            }
+            if (c != '\r') {
+                line.append((char) c);
+            }
+        }
+        return line.toString();
+    }
+}
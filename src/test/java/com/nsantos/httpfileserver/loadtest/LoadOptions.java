@@ -0,0 +1,125 @@
+package com.nsantos.httpfileserver.loadtest;
+
+import com.typesafe.config.ConfigException;
+import com.typesafe.config.ConfigFactory;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The load generated by a LoadGenerator.
+ *
+ * @param connections   The number of connections opened concurrently
+ * @param keepAlive     Whether each connection sends several requests, otherwise a connection is opened for each request
+ * @param pipelineDepth The maximum number of requests sent in a connection before reading their responses
+ * @param requestRate   The requests per second sent by all the connections together, or 0 to send each request as soon
+ *                      as there is space in the pipeline (closed loop)
+ * @param warmup        The time during which requests are sent but not measured
+ * @param duration      The time during which the requests are measured
+ * @param timeout       The maximum time to wait for a response
+ * @param fileMix       The sizes of the files requested and their relative frequency, like {@code 1KiB:70,1MiB:30}
+ */
+public record LoadOptions(int connections, boolean keepAlive, int pipelineDepth, double requestRate,
+                          Duration warmup, Duration duration, Duration timeout, String fileMix) {
+    public static final String CONNECTIONS = "loadtest.connections";
+    public static final String KEEP_ALIVE = "loadtest.keep-alive";
+    public static final String PIPELINE_DEPTH = "loadtest.pipeline-depth";
+    public static final String REQUEST_RATE = "loadtest.request-rate";
+    public static final String WARMUP = "loadtest.warmup";
+    public static final String DURATION = "loadtest.duration";
+    public static final String TIMEOUT = "loadtest.timeout";
+    public static final String FILE_MIX = "loadtest.file-mix";
+
+    /**
+     * A size of the files requested.
+     *
+     * @param size   The size in bytes
+     * @param weight The relative frequency of the requests to files of this size
+     */
+    public record FileSize(long size, int weight) {
+    }
+
+    public LoadOptions {
+        if (connections <= 0) {
+            throw new IllegalArgumentException("Invalid value for %s: %d".formatted(CONNECTIONS, connections));
+        }
+        if (pipelineDepth <= 0 || (!keepAlive && pipelineDepth != 1)) {
+            throw new IllegalArgumentException("Invalid value for %s: %d. Must be 1 without keep-alive".formatted(PIPELINE_DEPTH, pipelineDepth));
+        }
+        if (requestRate < 0) {
+            throw new IllegalArgumentException("Invalid value for %s: %s".formatted(REQUEST_RATE, requestRate));
+        }
+        if (duration.isZero() || duration.isNegative() || warmup.isNegative() || timeout.isZero() || timeout.isNegative()) {
+            throw new IllegalArgumentException("Invalid value for %s, %s or %s: %s, %s, %s".formatted(
+                    WARMUP, DURATION, TIMEOUT, warmup, duration, timeout));
+        }
+        parseFileMix(fileMix);
+    }
+
+    /**
+     * @return The options given in the system properties, or their defaults: a short closed-loop run with keep-alive
+     */
+    public static LoadOptions fromSystemProperties() {
+        var config = ConfigFactory.systemProperties().withFallback(ConfigFactory.parseMap(Map.of(
+                CONNECTIONS, 16,
+                KEEP_ALIVE, true,
+                PIPELINE_DEPTH, 1,
+                REQUEST_RATE, 0,
+                WARMUP, "1 second",
+                DURATION, "3 seconds",
+                TIMEOUT, "10 seconds",
+                FILE_MIX, "1KiB:60,16KiB:30,1MiB:10"
+        )));
+        return new LoadOptions(config.getInt(CONNECTIONS), config.getBoolean(KEEP_ALIVE), config.getInt(PIPELINE_DEPTH),
+                config.getDouble(REQUEST_RATE), config.getDuration(WARMUP), config.getDuration(DURATION),
+                config.getDuration(TIMEOUT), config.getString(FILE_MIX));
+    }
+
+    public LoadOptions withKeepAlive(boolean keepAlive) {
+        return new LoadOptions(connections, keepAlive, keepAlive ? pipelineDepth : 1, requestRate, warmup, duration, timeout, fileMix);
+    }
+
+    public LoadOptions withPipelineDepth(int pipelineDepth) {
+        return new LoadOptions(connections, keepAlive, pipelineDepth, requestRate, warmup, duration, timeout, fileMix);
+    }
+
+    public LoadOptions withRequestRate(double requestRate) {
+        return new LoadOptions(connections, keepAlive, pipelineDepth, requestRate, warmup, duration, timeout, fileMix);
+    }
+
+    public boolean isOpenLoop() {
+        return requestRate > 0;
+    }
+
+    public List<FileSize> fileSizes() {
+        return parseFileMix(fileMix);
+    }
+
+    private static List<FileSize> parseFileMix(String fileMix) {
+        var sizes = new ArrayList<FileSize>();
+        for (var entry : fileMix.split(",")) {
+            var parts = entry.trim().split(":");
+            try {
+                // Sizes in the same format as the configuration of the server
+                var size = ConfigFactory.parseMap(Map.of("size", parts[0].trim())).getBytes("size");
+                var weight = parts.length > 1 ? Integer.parseInt(parts[1].trim()) : 1;
+                if (parts.length > 2 || weight <= 0) {
+                    throw new IllegalArgumentException();
+                }
+                sizes.add(new FileSize(size, weight));
+            } catch (ConfigException | IllegalArgumentException e) {
+                throw new IllegalArgumentException("Invalid value for %s: %s".formatted(FILE_MIX, fileMix), e);
+            }
+        }
+        return sizes;
+    }
+
+    String toJson() {
+        return """
+                {"connections": %d, "keepAlive": %b, "pipelineDepth": %d, "requestRate": %s, "warmupSeconds": %s, \
+                "durationSeconds": %s, "fileMix": "%s"}""".formatted(connections, keepAlive, pipelineDepth, requestRate,
+                warmup.toMillis() / 1000.0, duration.toMillis() / 1000.0, fileMix);
+    }
+}
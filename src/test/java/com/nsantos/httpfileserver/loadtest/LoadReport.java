@@ -0,0 +1,114 @@
+package com.nsantos.httpfileserver.loadtest;
+
+import com.nsantos.httpfileserver.metrics.Histogram;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * The results of a load test. Written as JSON with the numeric results at the top level, so that the files of
+ * different runs can be compared with {@link #compare(Map)}, or with any tool that reads JSON.
+ *
+ * @param name               Identifies the scenario
+ * @param options            The load generated
+ * @param measuredNanos      The time from the start of the measured period until the last response was read
+ * @param requests           The requests scheduled in the measured period that completed successfully
+ * @param bytesReceived      The bytes of the responses to those requests
+ * @param errors             The failed requests, by kind of error
+ * @param latency            The time from the moment each request should have been sent until its response was read.
+ *                           In open loop, this includes the time the request waited for a connection, correcting the
+ *                           coordinated omission of a generator that sends no requests while the server stalls.
+ * @param uncorrectedLatency The time from the moment each request was sent until its response was read
+ */
+public record LoadReport(String name, LoadOptions options, long measuredNanos, long requests, long bytesReceived,
+                         Map<String, Long> errors, Histogram.Snapshot latency, Histogram.Snapshot uncorrectedLatency) {
+    // A top-level numeric field of the JSON
+    private static final Pattern METRIC = Pattern.compile("^ {2}\"(\\w+)\": (-?[0-9.]+),?$", Pattern.MULTILINE);
+
+    public double requestsPerSecond() {
+        return requests / (measuredNanos / 1e9);
+    }
+
+    public long errorCount() {
+        return errors.values().stream().mapToLong(Long::longValue).sum();
+    }
+
+    /**
+     * @return The results that can be compared between runs, by name
+     */
+    public Map<String, Double> metrics() {
+        var metrics = new LinkedHashMap<String, Double>();
+        metrics.put("requests", (double) requests);
+        metrics.put("requestsPerSecond", requestsPerSecond());
+        metrics.put("measuredSeconds", measuredNanos / 1e9);
+        metrics.put("megabytesPerSecond", bytesReceived / 1e6 / (measuredNanos / 1e9));
+        metrics.put("errors", (double) errorCount());
+        putLatencies(metrics, "latency", latency);
+        putLatencies(metrics, "uncorrectedLatency", uncorrectedLatency);
+        return metrics;
+    }
+
+    private static void putLatencies(Map<String, Double> metrics, String name, Histogram.Snapshot snapshot) {
+        metrics.put(name + "P50Millis", toMillis(snapshot.valueAtQuantile(0.5)));
+        metrics.put(name + "P99Millis", toMillis(snapshot.valueAtQuantile(0.99)));
+        metrics.put(name + "P999Millis", toMillis(snapshot.valueAtQuantile(0.999)));
+        metrics.put(name + "MaxMillis", toMillis(snapshot.valueAtQuantile(1)));
+    }
+
+    private static double toMillis(long nanos) {
+        return nanos / 1e6;
+    }
+
+    public String toJson() {
+        var json = new StringBuilder("{\n");
+        json.append("  \"name\": \"").append(name).append("\",\n");
+        json.append("  \"options\": ").append(options.toJson()).append(",\n");
+        metrics().forEach((metric, value) -> json.append("  \"").append(metric).append("\": ")
+                .append(String.format(Locale.ROOT, "%.3f", value)).append(",\n"));
+        json.append("  \"errorsByKind\": {");
+        var first = true;
+        for (var error : errors.entrySet()) {
+            json.append(first ? "" : ", ").append('"').append(error.getKey()).append("\": ").append(error.getValue());
+            first = false;
+        }
+        return json.append("}\n}\n").toString();
+    }
+
+    public void write(Path file) throws IOException {
+        Files.createDirectories(file.toAbsolutePath().getParent());
+        Files.writeString(file, toJson());
+    }
+
+    /**
+     * Reads the results of a previous run, as written by {@link #write(Path)}.
+     */
+    public static Map<String, Double> readMetrics(Path file) throws IOException {
+        var metrics = new LinkedHashMap<String, Double>();
+        var matcher = METRIC.matcher(Files.readString(file));
+        while (matcher.find()) {
+            metrics.put(matcher.group(1), Double.parseDouble(matcher.group(2)));
+        }
+        return metrics;
+    }
+
+    /**
+     * @param baseline The results of a previous run
+     * @return A line for each result, with its value in both runs and the relative change
+     */
+    public String compare(Map<String, Double> baseline) {
+        var comparison = new StringBuilder();
+        metrics().forEach((metric, value) -> {
+            var previous = baseline.get(metric);
+            if (previous != null) {
+                var change = previous == 0 ? "" : String.format(Locale.ROOT, " (%+.1f%%)", (value - previous) / previous * 100);
+                comparison.append(String.format(Locale.ROOT, "%s: %.3f -> %.3f%s%n", metric, previous, value, change));
+            }
+        });
+        return comparison.toString();
+    }
+}
@@ -0,0 +1,53 @@
+package com.nsantos.httpfileserver.metrics;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class HistogramTest {
+
+    @Test
+    void bucketBoundaries() {
+        var previous = -1;
+        for (long value = 0; value < 100_000; value++) {
+            var index = Histogram.bucketIndex(value);
+            assertTrue(index == previous || index == previous + 1, "Non contiguous buckets at " + value);
+            if (index != previous) {
+                assertEquals(value, Histogram.lowestValue(index));
+            }
+            previous = index;
+        }
+        assertEquals(1L << 40, Histogram.lowestValue(Histogram.bucketIndex(1L << 40)));
+    }
+
+    @Test
+    void quantiles() {
+        var histogram = new Histogram(1_000_000);
+        for (int value = 1; value <= 10_000; value++) {
+            histogram.record(value);
+        }
+        var snapshot = histogram.snapshot();
+        assertEquals(10_000, snapshot.count());
+        assertEquals(10_000L * 10_001 / 2, snapshot.sum());
+        for (var quantile : new double[]{0.5, 0.9, 0.99, 0.999}) {
+            var expected = quantile * 10_000;
+            var actual = snapshot.valueAtQuantile(quantile);
+            // The value is an upper bound, with a relative error of at most 1/8
+            assertTrue(actual >= expected && actual <= expected * 1.125, "Quantile %s: %d".formatted(quantile, actual));
+        }
+        // Exact at powers of two
+        assertEquals(1023, snapshot.countBelow(1024));
+        assertEquals(10_000, snapshot.countBelow(1 << 20));
+    }
+
+    @Test
+    void valuesOutOfRange() {
+        var histogram = new Histogram(1000);
+        histogram.record(-5);
+        histogram.record(5000);
+        var snapshot = histogram.snapshot();
+        assertEquals(2, snapshot.count());
+        assertEquals(1000, snapshot.sum());
+        assertEquals(1, snapshot.countBelow(1));
+    }
+}